@@ -0,0 +1,81 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.speedbagit.SpeedBagIt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of generating bagit.txt and bag-info.txt with a growing
+ * number of user supplied metadata entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BagitTxtBenchmark {
+
+    @Param({"0", "10", "100", "1000"})
+    public int metadataEntries;
+
+    private SpeedBagIt bag;
+
+    @Setup
+    public void setup() throws IOException {
+        Map<String, String> metadata = new HashMap<>();
+        for (int i = 0; i < metadataEntries; i++) {
+            metadata.put("External-Identifier-" + i, "https://orcid.org/0000-0002-1825-" + String.format("%04d", i));
+        }
+        bag = new SpeedBagIt(1.0, "MD5", metadata);
+        for (int i = 0; i < metadataEntries; i++) {
+            bag.addBagInfo("Contact-Name", "Researcher " + i + " (https://orcid.org/0000-0002-1825-" + String.format("%04d", i) + ")");
+        }
+    }
+
+    @Benchmark
+    public String generateBagitTxt() {
+        return bag.generateBagitTxt();
+    }
+
+    @Benchmark
+    public String generateBagInfoTxt() {
+        return bag.generateBagInfoTxt("123456789.1000", 123456789L);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the benchmark jar. It delegates to the JMH command line but writes
+ * the results as JSON (to jmh-result.json) unless another result format or file was
+ * asked for, so that the numbers from each release can be compared with each other.
+ *
+ * Usage: java -jar target/benchmarks.jar [JMH options] [benchmark regexp]
+ */
+public class BenchmarkMain {
+
+    // The file that results are written to when no -rff option is given
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        String[] jmhArgs = args;
+        if (!hasOption(args, "-rf")) {
+            jmhArgs = append(jmhArgs, "-rf", "json");
+        }
+        if (!hasOption(args, "-rff")) {
+            jmhArgs = append(jmhArgs, "-rff", DEFAULT_RESULT_FILE);
+        }
+        org.openjdk.jmh.Main.main(jmhArgs);
+    }
+
+    private static boolean hasOption(String[] args, String option) {
+        return Arrays.asList(args).contains(option);
+    }
+
+    private static String[] append(String[] args, String option, String value) {
+        String[] extended = Arrays.copyOf(args, args.length + 2);
+        extended[args.length] = option;
+        extended[args.length + 1] = value;
+        return extended;
+    }
+}
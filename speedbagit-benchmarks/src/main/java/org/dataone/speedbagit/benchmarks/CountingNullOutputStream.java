@@ -0,0 +1,54 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that discards everything written to it while keeping a count
+ * of the bytes, so that the benchmarks can drain a bag without storing it.
+ */
+public class CountingNullOutputStream extends OutputStream {
+
+    // The number of bytes written to the stream
+    private long count;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        count += len;
+    }
+
+    /**
+     * Returns the number of bytes that were written to the stream
+     *
+     * @return The number of bytes written
+     */
+    public long getCount() {
+        return count;
+    }
+}
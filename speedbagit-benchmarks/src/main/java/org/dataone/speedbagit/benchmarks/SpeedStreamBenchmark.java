@@ -0,0 +1,83 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.speedbagit.Checksummer;
+import org.dataone.speedbagit.Checksummers;
+import org.dataone.speedbagit.SpeedStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the read throughput of a SpeedStream for each checksum algorithm and
+ * read buffer size. Each invocation streams {@link #STREAM_SIZE} bytes, so the
+ * throughput in bytes per second is STREAM_SIZE times the reported ops/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpeedStreamBenchmark {
+
+    // The number of bytes read per invocation (64 MB)
+    public static final long STREAM_SIZE = 64L << 20;
+
+    @Param({"MD5", "SHA-1", "SHA-256", "SHA-512", "BLAKE3", "XXH64"})
+    public String algorithm;
+
+    @Param({"8192", "65536", "1048576"})
+    public int bufferSize;
+
+    private byte[] buffer;
+    private Checksummer digest;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        buffer = new byte[bufferSize];
+        digest = Checksummers.getInstance(algorithm);
+    }
+
+    @Benchmark
+    public String read() throws IOException {
+        SpeedStream stream = new SpeedStream(new SyntheticInputStream(STREAM_SIZE), digest);
+        while (stream.read(buffer, 0, buffer.length) != -1) {
+            // Draining the stream is what computes the checksum
+        }
+        return stream.getChecksum();
+    }
+}
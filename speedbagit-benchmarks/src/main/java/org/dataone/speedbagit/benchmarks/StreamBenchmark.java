@@ -0,0 +1,95 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.speedbagit.SpeedBagException;
+import org.dataone.speedbagit.SpeedBagIt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building and streaming an entire bag end to end. The payload is made of
+ * synthetic in-memory sources so that the numbers reflect SpeedBagIt (checksumming,
+ * compression, manifest generation and the piped hand-off) rather than the disk.
+ *
+ * The mix parameter has the form {fileCount}x{fileSize}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"5000x1024", "1000x65536", "100x1048576", "4x67108864"})
+    public String mix;
+
+    @Param({"MD5", "SHA-256", "BLAKE3"})
+    public String algorithm;
+
+    @Param({"65536", "1048576"})
+    public int bufferSize;
+
+    private int fileCount;
+    private long fileSize;
+
+    @Setup
+    public void setup() {
+        String[] parts = mix.split("x");
+        fileCount = Integer.parseInt(parts[0]);
+        fileSize = Long.parseLong(parts[1]);
+    }
+
+    @Benchmark
+    public long stream() throws IOException, NoSuchAlgorithmException, SpeedBagException {
+        SpeedBagIt bag = new SpeedBagIt(1.0, algorithm);
+        bag.setBufferSize(bufferSize);
+        for (int i = 0; i < fileCount; i++) {
+            bag.addFile(new SyntheticInputStream(fileSize), "data/file-" + i + ".bin", false);
+        }
+        CountingNullOutputStream out = new CountingNullOutputStream();
+        byte[] buffer = new byte[65536];
+        try (InputStream bagStream = bag.stream()) {
+            int read;
+            while ((read = bagStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.getCount();
+    }
+}
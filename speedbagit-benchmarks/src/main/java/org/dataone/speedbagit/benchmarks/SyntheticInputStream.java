@@ -0,0 +1,86 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.benchmarks;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * An InputStream that produces a fixed number of pseudo random bytes without touching
+ * the filesystem. The bytes are served from a shared, pre-generated block so that the
+ * benchmarks measure SpeedBagIt rather than the random number generator or the disk.
+ */
+public class SyntheticInputStream extends InputStream {
+
+    // Size of the shared block of random bytes
+    private static final int BLOCK_SIZE = 1 << 20;
+    // The shared block of random bytes that every stream reads from
+    private static final byte[] BLOCK = new byte[BLOCK_SIZE];
+    static {
+        new Random(42).nextBytes(BLOCK);
+    }
+
+    // The total number of bytes this stream produces
+    private final long size;
+    // The number of bytes that have been read so far
+    private long position;
+
+    /**
+     * Creates a new stream of synthetic bytes.
+     *
+     * @param size: The number of bytes that the stream produces before reaching EOF
+     */
+    public SyntheticInputStream(long size) {
+        this.size = size;
+        this.position = 0;
+    }
+
+    @Override
+    public int read() {
+        if (position >= size) {
+            return -1;
+        }
+        return BLOCK[(int) (position++ % BLOCK_SIZE)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        long remaining = size - position;
+        if (remaining <= 0) {
+            return -1;
+        }
+        int blockOffset = (int) (position % BLOCK_SIZE);
+        int count = (int) Math.min(Math.min(len, remaining), BLOCK_SIZE - blockOffset);
+        System.arraycopy(BLOCK, blockOffset, buf, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+}
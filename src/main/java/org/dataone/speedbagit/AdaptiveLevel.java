@@ -0,0 +1,117 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Picks the compression level of a bag from how fast its output is drained. Every 100 ms
+ * of time spent writing, it compares the time that the writer was blocked on the output
+ * with the time it was busy:
+ *
+ *  - When the output blocks for more than half of the time, the client is the bottleneck
+ *    and there's CPU to spare, so the level goes up and the client gets fewer bytes to read.
+ *  - When the output hardly ever blocks, deflating is the bottleneck, so the level goes
+ *    down, all the way to storing the entries without compressing them.
+ *
+ * The level changes between entries, and between the blocks of the entries that are streamed.
+ */
+final class AdaptiveLevel {
+    private final static Log logger = LogFactory.getLog(AdaptiveLevel.class);
+
+    // The levels that are stepped through, from storing to the best compression
+    static final int[] LEVELS = {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, 3, 6, Deflater.BEST_COMPRESSION};
+    // The time spent writing that each decision is based on
+    static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // The share of the time blocked on the output above which the level goes up
+    static final double RAISE_STALL = 0.5;
+    // The share of the time blocked on the output below which the level goes down
+    static final double LOWER_STALL = 0.05;
+
+    // The writer whose level is adjusted
+    private final BagSerializer writer;
+    // Measures the time that the writer is blocked on the output
+    private final Metered out;
+    // The position of the current level in LEVELS
+    private int index;
+    // The time spent writing, and blocked, since the last decision
+    private long busyNanos;
+    private long stallStart;
+
+    /**
+     * Starts adjusting the level of a writer
+     *
+     * @param writer The writer, which starts at the level closest to its own
+     * @param out The metered output of the writer
+     */
+    AdaptiveLevel(BagSerializer writer, Metered out) {
+        this.writer = writer;
+        this.out = out;
+        int level = writer.getLevel() == Deflater.DEFAULT_COMPRESSION ? 6 : writer.getLevel();
+        while (index < LEVELS.length - 1 && LEVELS[index] < level) {
+            index++;
+        }
+        writer.setLevel(LEVELS[index]);
+        this.stallStart = out.getNanos();
+    }
+
+    /**
+     * Records a write to the writer, changing its level when a window has passed
+     *
+     * @param nanos The time spent in the writer
+     */
+    void record(long nanos) {
+        busyNanos += nanos;
+        if (busyNanos < WINDOW_NANOS) {
+            return;
+        }
+        long stallNanos = out.getNanos() - stallStart;
+        double stall = (double) stallNanos / busyNanos;
+        int previous = index;
+        if (stall > RAISE_STALL && index < LEVELS.length - 1) {
+            index++;
+        } else if (stall < LOWER_STALL && index > 0) {
+            index--;
+        }
+        if (index != previous) {
+            writer.setLevel(LEVELS[index]);
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Blocked on the output %.0f%% of the time, compressing at level %d",
+                        stall * 100, LEVELS[index]));
+            }
+        }
+        busyNanos = 0;
+        stallStart = out.getNanos();
+    }
+
+    /**
+     * Returns the current level
+     */
+    int getLevel() {
+        return LEVELS[index];
+    }
+}
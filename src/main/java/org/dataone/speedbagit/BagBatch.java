@@ -0,0 +1,248 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams many bags from one job, such as a nightly export of thousands of small bags, on
+ * a few worker threads (see SpeedBagIt.batch). Each worker takes the next bag's name,
+ * builds the bag, opens its sink and streams the bag straight into it with
+ * SpeedBagIt.stream(WritableByteChannel), so there's no pipe or thread handoff per bag.
+ * The bags share the direct buffer pool, the buffer and deflater pools, and whatever the
+ * factory shares between them, such as a BagTemplate. The names are taken from their
+ * iterator as the workers get to them, so the bags don't all have to exist at once.
+ *
+ * A bag that fails doesn't stop the batch: its exception is kept with its name, and the
+ * other bags carry on. A name that's in the batch twice is streamed twice, and counted
+ * twice. Its sink is closed, and whatever was written to it is left for the
+ * caller to remove.
+ *
+ * A measured batch also keeps the totals of the bags that were streamed. It listens to
+ * every bag, which times each read, hash and deflate and records every file's metrics, so
+ * it's off unless it's asked for.
+ */
+public final class BagBatch {
+    private final static Log logger = LogFactory.getLog(BagBatch.class);
+
+    /**
+     * Builds the bag with a name. It's called on a worker thread, just before the bag is
+     * streamed.
+     */
+    @FunctionalInterface
+    public interface BagFactory {
+        SpeedBagIt create(String name) throws Exception;
+    }
+
+    /**
+     * Opens the channel that a bag is written to. The batch closes it.
+     */
+    @FunctionalInterface
+    public interface BagSink {
+        WritableByteChannel open(String name) throws IOException;
+    }
+
+    private final Iterator<String> names;
+    private final BagFactory factory;
+    private final BagSink sink;
+    private final boolean measured;
+    // The names of the bags that failed and their exceptions, in the order they failed
+    private final List<Map.Entry<String, Exception>> failures = new ArrayList<>();
+    private int succeeded;
+    // The totals of the bags that were streamed
+    private int fileCount;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private long readNanos;
+    private long hashNanos;
+    private long deflateNanos;
+    private long stallNanos;
+    private long manifestNanos;
+    private long tagFileNanos;
+    private long elapsedNanos;
+    // An error that stopped a worker, which stops the batch
+    private Error fatal;
+
+    BagBatch(Iterator<String> names, BagFactory factory, BagSink sink, boolean measured) {
+        this.names = names;
+        this.factory = factory;
+        this.sink = sink;
+        this.measured = measured;
+    }
+
+    /**
+     * Streams the bags on a number of worker threads, returning when they have all been
+     * streamed
+     *
+     * @param threads The number of worker threads
+     * @throws InterruptedIOException When the thread is interrupted while it waits for the bags
+     */
+    void run(int threads) throws InterruptedIOException {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "speedbagit-batch-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while streaming the batch");
+        }
+        synchronized (this) {
+            elapsedNanos = System.nanoTime() - start;
+            if (fatal != null) {
+                throw fatal;
+            }
+        }
+    }
+
+    /**
+     * Returns the next bag's name, or null when there are none left or the batch stopped
+     */
+    private synchronized String next() {
+        if (fatal != null || Thread.currentThread().isInterrupted() || !names.hasNext()) {
+            return null;
+        }
+        return names.next();
+    }
+
+    private void work() {
+        try {
+            for (String name = next(); name != null; name = next()) {
+                stream(name);
+            }
+        } catch (Error e) {
+            synchronized (this) {
+                if (fatal == null) {
+                    fatal = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds and streams one bag, recording its totals or its failure
+     */
+    private void stream(String name) {
+        WritableByteChannel channel = null;
+        try {
+            SpeedBagIt bag = factory.create(name);
+            if (measured) {
+                bag.addStreamListener(new BagStreamListener() {
+                    @Override
+                    public void onBagFinished(BagMetrics metrics) {
+                        add(metrics);
+                    }
+                });
+            }
+            channel = sink.open(name);
+            bag.stream(channel);
+            channel.close();
+            synchronized (this) {
+                succeeded++;
+            }
+        } catch (Exception e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("The bag %s failed: %s", name, e));
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            synchronized (this) {
+                failures.add(new AbstractMap.SimpleImmutableEntry<>(name, e));
+            }
+        }
+    }
+
+    private synchronized void add(BagMetrics metrics) {
+        fileCount += metrics.getFileCount();
+        uncompressedBytes += metrics.getUncompressedBytes();
+        compressedBytes += metrics.getCompressedBytes();
+        readNanos += metrics.getReadNanos();
+        hashNanos += metrics.getHashNanos();
+        deflateNanos += metrics.getDeflateNanos();
+        stallNanos += metrics.getStallNanos();
+        manifestNanos += metrics.getManifestNanos();
+        tagFileNanos += metrics.getTagFileNanos();
+    }
+
+    /**
+     * Returns the number of bags that were streamed
+     */
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    /**
+     * Returns the number of bags that failed
+     */
+    public synchronized int getFailedCount() {
+        return failures.size();
+    }
+
+    /**
+     * Returns the names of the bags that failed with their exceptions, in the order they
+     * failed. A name is listed once for each time its bag failed.
+     */
+    public synchronized List<Map.Entry<String, Exception>> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<>(failures));
+    }
+
+    /**
+     * Returns the totals of the bags that were streamed. The timings are the sums of the
+     * bags' own, while the elapsed time is the wall clock time of the batch.
+     *
+     * @throws IllegalStateException When the batch wasn't measured
+     */
+    public synchronized BagMetrics getMetrics() {
+        if (!measured) {
+            throw new IllegalStateException("The batch wasn't measured");
+        }
+        return new BagMetrics(fileCount, uncompressedBytes, compressedBytes, readNanos, hashNanos,
+                deflateNanos, stallNanos, manifestNanos, tagFileNanos, elapsedNanos, 0);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The archive formats that a bag can be serialized as
+ */
+public enum BagFormat {
+    // A zip file, whose entries are compressed one by one (see CompressionMethod)
+    ZIP("zip"),
+    // An uncompressed POSIX tar file, which can be piped into `tar x`
+    TAR("tar"),
+    // A gzipped tar file, compressed on several cores
+    TAR_GZ("tar.gz");
+
+    private final String extension;
+
+    BagFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the usual file extension of the format, without the leading dot
+     *
+     * @return The extension, such as "tar.gz"
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Creates a serializer of the format that writes to a stream
+     */
+    BagSerializer newSerializer(OutputStream out, int level, int entrySize) {
+        if (this == ZIP) {
+            return new ZipStreamWriter(out, level, entrySize);
+        }
+        return new TarStreamWriter(out, this == TAR_GZ, level, entrySize);
+    }
+
+    /**
+     * Creates a serializer of the format that writes to a channel
+     */
+    BagSerializer newSerializer(WritableByteChannel channel, ByteBuffer direct, int level, int entrySize) {
+        if (this == ZIP) {
+            return new ZipStreamWriter(channel, direct, level, entrySize);
+        }
+        return new TarStreamWriter(channel, this == TAR_GZ, level, entrySize);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Collects where each entry of a bag was written, as the serializer writes it, and writes
+ * them out as a sidecar index once the bag is finished (see SpeedBagIt.setSidecarIndex). It
+ * only holds the numbers that the serializer already has, so the index costs no extra
+ * reads or writes of the bag.
+ *
+ * The sidecar is little endian, and made to be memory mapped by SpeedBagIndex:
+ *
+ *  - a header: the magic "SBIX", a version (u16), the digest length (u16), the number of
+ *    entries (u32), and the checksum algorithm as a length (u16) and its ASCII name
+ *  - a record for each entry, sorted by the UTF-8 bytes of its path: the offset of its
+ *    data (u64), the number of bytes its data takes (u64), its size (u64), its CRC-32 (u32),
+ *    the offset (u32) and length (u16) of its path in the paths, its zip method (u16), its
+ *    flags (u16), two reserved bytes, and its digest
+ *  - the paths, one after the other
+ *
+ * The records have a fixed size, so an entry is found with a binary search and nothing
+ * has to be sorted when the sidecar is opened.
+ */
+final class BagIndexWriter {
+    static final int MAGIC = 0x58494253;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 14;
+    // The size of a record without its digest
+    static final int RECORD_SIZE = 40;
+    // Record flags: the record has a CRC-32, and a digest
+    static final int HAS_CRC = 1;
+    static final int HAS_DIGEST = 2;
+
+    // The offset of the data, the number of bytes it takes, the size and the CRC-32 (or -1)
+    // of each entry, four longs per entry
+    private long[] entries = new long[4 * 64];
+    // The offset of each path in paths, and its zip method, two ints per entry. The length of
+    // a path follows from the next one's offset.
+    private int[] names = new int[2 * 64];
+    private byte[] paths = new byte[4096];
+    private int pathsLength;
+    private int count;
+
+    /**
+     * Adds an entry
+     *
+     * @param name       The UTF-8 bytes of the entry's path
+     * @param method     The zip method of the entry, 0 when it's stored
+     * @param crc        The CRC-32 of the entry's bytes, or -1 when the format doesn't have one
+     * @param storedSize The number of bytes that the entry's data takes in the bag
+     * @param size       The number of bytes in the entry
+     * @param dataOffset The offset of the entry's data in the bag
+     */
+    void add(byte[] name, int method, long crc, long storedSize, long size, long dataOffset) {
+        if (4 * count == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        if (pathsLength + name.length > paths.length) {
+            paths = Arrays.copyOf(paths, Math.max(paths.length * 2, pathsLength + name.length));
+        }
+        int e = 4 * count;
+        entries[e] = dataOffset;
+        entries[e + 1] = storedSize;
+        entries[e + 2] = size;
+        entries[e + 3] = crc;
+        names[2 * count] = pathsLength;
+        names[2 * count + 1] = method;
+        System.arraycopy(name, 0, paths, pathsLength, name.length);
+        pathsLength += name.length;
+        count++;
+    }
+
+    /**
+     * Returns the number of entries
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Writes the sidecar
+     *
+     * @param sidecar   The stream that it's written to, which is flushed and left open
+     * @param algorithm The checksum algorithm of the bag
+     * @param digests   Returns the raw checksum of an entry by its path, or null
+     */
+    void write(OutputStream sidecar, String algorithm, Function<String, byte[]> digests) throws IOException {
+        OutputStream out = new BufferedOutputStream(sidecar, 64 * 1024);
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, this::compare);
+        byte[][] digestOf = new byte[count][];
+        int digestLength = 0;
+        for (int i = 0; i < count; i++) {
+            digestOf[i] = digests.apply(new String(paths, pathOffset(i), pathLength(i), StandardCharsets.UTF_8));
+            if (digestOf[i] != null) {
+                digestLength = digestOf[i].length;
+            }
+        }
+
+        byte[] name = algorithm.getBytes(StandardCharsets.US_ASCII);
+        byte[] header = new byte[HEADER_SIZE + name.length];
+        ZipStreamWriter.putInt(header, 0, MAGIC);
+        ZipStreamWriter.putShort(header, 4, VERSION);
+        ZipStreamWriter.putShort(header, 6, digestLength);
+        ZipStreamWriter.putInt(header, 8, count);
+        ZipStreamWriter.putShort(header, 12, name.length);
+        System.arraycopy(name, 0, header, HEADER_SIZE, name.length);
+        out.write(header);
+
+        byte[] record = new byte[RECORD_SIZE + digestLength];
+        int pathOffset = 0;
+        for (int i : order) {
+            int e = 4 * i;
+            long crc = entries[e + 3];
+            byte[] digest = digestOf[i];
+            boolean hasDigest = digest != null && digest.length == digestLength;
+            ZipStreamWriter.putLong(record, 0, entries[e]);
+            ZipStreamWriter.putLong(record, 8, entries[e + 1]);
+            ZipStreamWriter.putLong(record, 16, entries[e + 2]);
+            ZipStreamWriter.putInt(record, 24, (int) Math.max(crc, 0));
+            ZipStreamWriter.putInt(record, 28, pathOffset);
+            ZipStreamWriter.putShort(record, 32, pathLength(i));
+            ZipStreamWriter.putShort(record, 34, names[2 * i + 1]);
+            ZipStreamWriter.putShort(record, 36, (crc < 0 ? 0 : HAS_CRC) | (hasDigest ? HAS_DIGEST : 0));
+            ZipStreamWriter.putShort(record, 38, 0);
+            if (hasDigest) {
+                System.arraycopy(digest, 0, record, RECORD_SIZE, digestLength);
+            } else {
+                Arrays.fill(record, RECORD_SIZE, record.length, (byte) 0);
+            }
+            out.write(record);
+            pathOffset += pathLength(i);
+        }
+        for (int i : order) {
+            out.write(paths, pathOffset(i), pathLength(i));
+        }
+        out.flush();
+    }
+
+    private int pathOffset(int i) {
+        return names[2 * i];
+    }
+
+    private int pathLength(int i) {
+        return (i + 1 < count ? names[2 * (i + 1)] : pathsLength) - names[2 * i];
+    }
+
+    /**
+     * Compares the paths of two entries, as unsigned bytes
+     */
+    private int compare(int a, int b) {
+        int aOffset = pathOffset(a);
+        int bOffset = pathOffset(b);
+        int aLength = pathLength(a);
+        int bLength = pathLength(b);
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            int cmp = (paths[aOffset + i] & 0xFF) - (paths[bOffset + i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return aLength - bLength;
+    }
+}
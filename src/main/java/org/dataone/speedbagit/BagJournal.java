@@ -0,0 +1,291 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoints of a bag that's written to a file, so that a run that dies part way can be
+ * resumed instead of started over. The journal is a file of its own, next to the bag, that
+ * a checkpoint is appended to every few data files. A checkpoint holds:
+ *
+ *  - the length of the bag file once the files so far were written
+ *  - the size and checksum of each of those files, which are what the manifest needs
+ *  - the state of the serializer, which for a zip file is its central directory so far
+ *
+ * The bag file and then the journal are forced to disk before a checkpoint counts. Each
+ * checkpoint ends with a CRC, and a torn one at the end of the journal is ignored, so a
+ * crash at any point leaves the last complete checkpoint to resume from.
+ */
+final class BagJournal {
+
+    // "SBJ1"
+    private static final int MAGIC = 0x53424a31;
+
+    // The journal file, and the bag file whose checkpoints it holds
+    private final Path path;
+    private final FileChannel bag;
+    // The number of data files between checkpoints
+    private final int interval;
+    // The data files that the journal has checkpoints for, with their sizes & checksums
+    private final Map<String, Completed> completed = new LinkedHashMap<>();
+    // The files completed since the last checkpoint
+    private final List<SpeedFile> pending = new ArrayList<>();
+    // The last checkpoint's length of the bag file, number of entries and serializer state
+    private long offset;
+    private long entryCount;
+    private final ByteArrayOutputStream state = new ByteArrayOutputStream();
+    private FileChannel journal;
+
+    /**
+     * Opens the journal of a bag file, reading the checkpoints that it already has
+     *
+     * @param path      The journal file, which is created when it doesn't exist
+     * @param bag       The bag file
+     * @param interval  The number of data files between checkpoints
+     * @param format    The format of the bag, which has to match the journal's
+     * @param algorithm The checksum algorithm of the bag, which has to match the journal's
+     * @throws IOException When the journal belongs to a bag of another format or algorithm
+     */
+    BagJournal(Path path, FileChannel bag, int interval, BagFormat format, String algorithm) throws IOException {
+        this.path = path;
+        this.bag = bag;
+        this.interval = interval;
+        this.journal = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (journal.size() == 0) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream data = new DataOutputStream(header);
+                data.writeInt(MAGIC);
+                data.writeUTF(format.name());
+                data.writeUTF(algorithm);
+                append(header.toByteArray());
+            } else {
+                read(format, algorithm);
+            }
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    private void read(BagFormat format, String algorithm) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(journal.position(0)));
+        byte[] header = readRecord(in);
+        if (header == null) {
+            throw new IOException(path + " isn't a bag journal");
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(header));
+        if (data.readInt() != MAGIC || !data.readUTF().equals(format.name()) || !data.readUTF().equals(algorithm)) {
+            throw new IOException(path + " is the journal of a bag with another format or checksum algorithm");
+        }
+        long end = journal.position();
+        byte[] record;
+        while ((record = readRecord(in)) != null) {
+            data = new DataInputStream(new ByteArrayInputStream(record));
+            offset = data.readLong();
+            entryCount = data.readLong();
+            byte[] delta = new byte[data.readInt()];
+            data.readFully(delta);
+            state.write(delta, 0, delta.length);
+            int files = data.readInt();
+            for (int i = 0; i < files; i++) {
+                String filePath = data.readUTF();
+                long size = data.readLong();
+                byte[] digest = new byte[data.readUnsignedShort()];
+                data.readFully(digest);
+                completed.put(filePath, new Completed(size, digest));
+            }
+            end += 8 + record.length;
+        }
+        // Drop a checkpoint that was torn by the crash
+        journal.truncate(end);
+        journal.position(end);
+    }
+
+    /**
+     * Reads a record, or returns null at the end of the journal or at a torn record
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > Integer.MAX_VALUE - 8) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, length);
+            return in.readInt() == (int) crc.getValue() ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the journal has a checkpoint
+     */
+    boolean isResumed() {
+        return offset > 0;
+    }
+
+    /**
+     * Truncates the bag file to the last checkpoint and restores the serializer and the data
+     * files that were completed before it. Their streams are closed, unread.
+     *
+     * @param writer    The serializer that continues the bag
+     * @param dataFiles The data files of the bag
+     * @throws IOException When the journal has files that aren't in the bag, or the bag file
+     *                     is shorter than the checkpoint
+     */
+    void restore(BagSerializer writer, Map<String, SpeedFile> dataFiles) throws IOException {
+        if (bag.size() < offset) {
+            throw new IOException(String.format("The bag file is %d bytes, but the journal's checkpoint is at %d",
+                    bag.size(), offset));
+        }
+        for (String filePath : completed.keySet()) {
+            if (!dataFiles.containsKey(filePath)) {
+                throw new IOException(filePath + " is in the journal, but isn't a data file of the bag");
+            }
+        }
+        bag.truncate(offset);
+        bag.position(offset);
+        writer.restore(offset, entryCount, state.toByteArray());
+        for (Map.Entry<String, Completed> file : completed.entrySet()) {
+            SpeedStream stream = dataFiles.get(file.getKey()).getStream();
+            stream.restore(file.getValue().size, file.getValue().digest);
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns whether a data file was completed before the last checkpoint
+     */
+    boolean isCompleted(SpeedFile file) {
+        return completed.containsKey(file.getPath());
+    }
+
+    /**
+     * Records a data file that has been written, writing a checkpoint every interval files
+     *
+     * @param writer The serializer that the file was written to
+     * @param file   The data file, which has been read to its end
+     */
+    void fileCompleted(BagSerializer writer, SpeedFile file) throws IOException {
+        pending.add(file);
+        if (pending.size() >= interval) {
+            checkpoint(writer);
+        }
+    }
+
+    /**
+     * Forces the bag file to disk and appends a checkpoint of the files written since the
+     * last one
+     *
+     * @param writer The serializer, which is between entries
+     */
+    void checkpoint(BagSerializer writer) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        bag.force(false);
+        byte[] delta = writer.getState(state.size());
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeLong(writer.getBytesWritten());
+        data.writeLong(writer.getEntryCount());
+        data.writeInt(delta.length);
+        data.write(delta);
+        data.writeInt(pending.size());
+        for (SpeedFile file : pending) {
+            byte[] digest = file.getStream().getDigest();
+            data.writeUTF(file.getPath());
+            data.writeLong(file.getStream().getSize());
+            data.writeShort(digest.length);
+            data.write(digest);
+        }
+        append(record.toByteArray());
+        state.write(delta, 0, delta.length);
+        offset = writer.getBytesWritten();
+        entryCount = writer.getEntryCount();
+        for (SpeedFile file : pending) {
+            completed.put(file.getPath(), new Completed(file.getStream().getSize(), file.getStream().getDigest()));
+        }
+        pending.clear();
+    }
+
+    private void append(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        ByteBuffer bytes = ByteBuffer.allocate(record.length + 8);
+        bytes.putInt(record.length).put(record).putInt((int) crc.getValue());
+        ((Buffer) bytes).flip();
+        while (bytes.hasRemaining()) {
+            journal.write(bytes);
+        }
+        journal.force(false);
+    }
+
+    /**
+     * Closes the journal, deleting it when the bag was finished
+     *
+     * @param finished Whether the bag was finished
+     */
+    void close(boolean finished) throws IOException {
+        journal.close();
+        if (finished) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * The size and checksum of a data file in a checkpoint
+     */
+    private static final class Completed {
+        final long size;
+        final byte[] digest;
+
+        Completed(long size, byte[] digest) {
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * Totals that were recorded while an entire bag was streamed. The per-phase timings
+ * are the sums of the matching FileMetrics values of every file in the bag.
+ */
+public class BagMetrics {
+    private final int fileCount;
+    private final long uncompressedBytes;
+    private final long compressedBytes;
+    private final long readNanos;
+    private final long hashNanos;
+    private final long deflateNanos;
+    private final long stallNanos;
+    private final long manifestNanos;
+    private final long tagFileNanos;
+    private final long elapsedNanos;
+    private final int queueDepth;
+
+    /**
+     * Creates a new set of bag metrics.
+     *
+     * @param fileCount         The number of files (data and tag) written to the bag
+     * @param uncompressedBytes The number of bytes read from all of the files
+     * @param compressedBytes   The number of bytes written to the output
+     * @param readNanos         The time spent waiting on sources
+     * @param hashNanos         The time spent checksumming
+     * @param deflateNanos      The time spent compressing
+     * @param stallNanos        The time spent waiting for the output to be drained
+     * @param manifestNanos     The time spent generating the manifests
+     * @param tagFileNanos      The time spent generating bagit.txt and bag-info.txt
+     * @param elapsedNanos      The wall clock time it took to stream the bag
+     * @param queueDepth        The number of bags that were waiting for a streaming thread
+     *                          when the bag started
+     */
+    public BagMetrics(int fileCount, long uncompressedBytes, long compressedBytes, long readNanos,
+                      long hashNanos, long deflateNanos, long stallNanos, long manifestNanos,
+                      long tagFileNanos, long elapsedNanos, int queueDepth) {
+        this.fileCount = fileCount;
+        this.uncompressedBytes = uncompressedBytes;
+        this.compressedBytes = compressedBytes;
+        this.readNanos = readNanos;
+        this.hashNanos = hashNanos;
+        this.deflateNanos = deflateNanos;
+        this.stallNanos = stallNanos;
+        this.manifestNanos = manifestNanos;
+        this.tagFileNanos = tagFileNanos;
+        this.elapsedNanos = elapsedNanos;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @return The number of files, data and tag, that were written to the bag
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return The number of bytes read from all of the files in the bag
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return The number of bytes written to the output
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return The nanoseconds spent waiting on the sources of the files
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent checksumming
+     */
+    public long getHashNanos() {
+        return hashNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent compressing
+     */
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent waiting for the consumer to drain the output
+     */
+    public long getStallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent generating the manifest and tag manifest
+     */
+    public long getManifestNanos() {
+        return manifestNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent generating bagit.txt and bag-info.txt
+     */
+    public long getTagFileNanos() {
+        return tagFileNanos;
+    }
+
+    /**
+     * @return The wall clock nanoseconds between the first and last byte of the bag
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return The number of bags that were waiting for a streaming thread when the bag
+     * started, in the shared executor or in the bag's BagScheduler
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+}
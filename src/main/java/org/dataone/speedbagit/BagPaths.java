@@ -0,0 +1,144 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the paths of a bag's files the way the BagIt specification requires them in
+ * manifests: a carriage return is written as %0D, a line feed as %0A, and so a percent sign
+ * as %25. The paths are scanned once, without regular expressions, and paths that are
+ * ASCII are encoded straight into the manifest's line buffer without allocating.
+ *
+ * Paths that only differ in case or Unicode normalization are found by PathRegistry.
+ */
+final class BagPaths {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private BagPaths() {
+    }
+
+    /**
+     * Checks that a path can be written into a bag and extracted from it on any platform.
+     * It must be relative, can't climb out of the bag with a ".." segment, and can't hold
+     * a NUL character.
+     *
+     * @param path The path, relative to the bag root
+     * @return Why the path can't be used, or null when it can
+     */
+    static String check(String path) {
+        if (path.isEmpty()) {
+            return "The path is empty";
+        }
+        if (path.charAt(0) == '/' || path.charAt(0) == '\\') {
+            return String.format("The path %s is absolute", path);
+        }
+        int segment = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            char c = i < path.length() ? path.charAt(i) : '/';
+            if (c == 0) {
+                return String.format("The path %s holds a NUL character", path.replace('\0', '?'));
+            }
+            if (c == '/' || c == '\\') {
+                if (i - segment == 2 && path.charAt(segment) == '.' && path.charAt(segment + 1) == '.') {
+                    return String.format("The path %s leaves the bag", path);
+                }
+                segment = i + 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a path for a manifest
+     *
+     * @param path The path of the file
+     * @return The encoded path, which is the same String when nothing needs to be encoded
+     */
+    static String encode(String path) {
+        int i = 0;
+        while (i < path.length() && !isEscaped(path.charAt(i))) {
+            i++;
+        }
+        if (i == path.length()) {
+            return path;
+        }
+        StringBuilder encoded = new StringBuilder(path.length() + 8).append(path, 0, i);
+        for (; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (isEscaped(c)) {
+                encoded.append('%').append((char) HEX[c >> 4]).append((char) HEX[c & 0xf]);
+            } else {
+                encoded.append(c);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Returns the number of bytes that an ASCII path takes up in a manifest
+     *
+     * @param path The path of the file
+     * @return The length of the encoded path, or -1 when the path isn't ASCII
+     */
+    static int encodedAsciiLength(String path) {
+        int length = path.length();
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            if (isEscaped(c)) {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes an ASCII path into a buffer, which must have room for its encodedAsciiLength
+     *
+     * @param path   The path of the file, which is ASCII
+     * @param buffer The buffer that the path is written into
+     * @param off    The position in the buffer to write the path at
+     * @return The position after the path
+     */
+    static int encodeAscii(String path, byte[] buffer, int off) {
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (isEscaped(c)) {
+                buffer[off++] = '%';
+                buffer[off++] = HEX[c >> 4];
+                buffer[off++] = HEX[c & 0xf];
+            } else {
+                buffer[off++] = (byte) c;
+            }
+        }
+        return off;
+    }
+
+    private static boolean isEscaped(char c) {
+        return c == '%' || c == '\n' || c == '\r';
+    }
+}
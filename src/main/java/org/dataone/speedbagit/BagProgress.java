@@ -0,0 +1,142 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A snapshot of how far along the payload of a bag is while it's being streamed, with
+ * an estimate of how long is left based on the throughput so far.
+ */
+public class BagProgress {
+    private final int filesCompleted;
+    private final int totalFiles;
+    private final long bytesProcessed;
+    private final long totalBytes;
+    private final long elapsedNanos;
+
+    /**
+     * Creates a new progress snapshot.
+     *
+     * @param filesCompleted The number of data files that have been streamed
+     * @param totalFiles     The number of data files in the bag
+     * @param bytesProcessed The number of payload bytes that have been streamed
+     * @param totalBytes     The number of payload bytes in the bag, or -1 when it isn't known
+     * @param elapsedNanos   The time since the payload started streaming
+     */
+    public BagProgress(int filesCompleted, int totalFiles, long bytesProcessed,
+                       long totalBytes, long elapsedNanos) {
+        this.filesCompleted = filesCompleted;
+        this.totalFiles = totalFiles;
+        this.bytesProcessed = bytesProcessed;
+        this.totalBytes = totalBytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The number of data files that have been completely streamed
+     */
+    public int getFilesCompleted() {
+        return filesCompleted;
+    }
+
+    /**
+     * @return The number of data files in the bag
+     */
+    public int getTotalFiles() {
+        return totalFiles;
+    }
+
+    /**
+     * @return The number of payload bytes that have been streamed
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    /**
+     * @return The number of payload bytes in the bag, or -1 when the size of
+     * some of the files wasn't given
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The nanoseconds since the payload started streaming
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the average payload throughput so far.
+     *
+     * @return The number of bytes streamed per second
+     */
+    public double getBytesPerSecond() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return bytesProcessed / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Returns how much of the payload has been streamed, by bytes when the total is
+     * known and by files otherwise.
+     *
+     * @return A fraction between 0 and 1
+     */
+    public double getFractionComplete() {
+        if (totalBytes > 0) {
+            return Math.min(1.0, (double) bytesProcessed / totalBytes);
+        } else if (totalBytes == 0 || totalFiles == 0) {
+            return filesCompleted == totalFiles ? 1.0 : 0.0;
+        }
+        return (double) filesCompleted / totalFiles;
+    }
+
+    /**
+     * Estimates the time left to stream the payload, assuming the throughput so far
+     * holds for the rest of it.
+     *
+     * @return The estimated number of milliseconds left, or -1 when there isn't enough
+     * information to make an estimate yet
+     */
+    public long getEtaMillis() {
+        double fraction = this.getFractionComplete();
+        if (fraction >= 1.0) {
+            return 0;
+        }
+        if (fraction <= 0 || elapsedNanos <= 0) {
+            return -1;
+        }
+        double elapsedMillis = elapsedNanos / 1e6;
+        return (long) (elapsedMillis * (1 - fraction) / fraction);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d files, %s/%s, %.1f%%", filesCompleted, totalFiles,
+                SpeedBagIt.formatSize(bytesProcessed),
+                totalBytes < 0 ? "?" : SpeedBagIt.formatSize(totalBytes), getFractionComplete() * 100);
+    }
+}
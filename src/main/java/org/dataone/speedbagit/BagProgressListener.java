@@ -0,0 +1,38 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A listener that is periodically told how much of a bag's payload has been streamed.
+ * It is called on the thread that streams the bag, so it should return quickly.
+ */
+public interface BagProgressListener {
+
+    /**
+     * Called each time another interval of payload bytes has been streamed, and once
+     * more after the last data file.
+     *
+     * @param progress: A snapshot of the progress of the payload
+     */
+    void onProgress(BagProgress progress);
+}
@@ -0,0 +1,259 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.InterruptedIOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the memory and file descriptors that the bags sharing it use together, so that a
+ * known number of bags can be streamed at once in a container of a known size. A budget
+ * has three limits:
+ * <ul>
+ * <li>bufferMemory: the buffers that a bag holds while it's streamed (its copy buffer, the
+ * writer's buffers, the pipe of stream(), the read ahead memory of setPrefetch, the blocks
+ * of a gzipped tar bag and the buffers of the copy threads of writeTo). Each bag reserves
+ * the most it can hold before it starts, and waits until the other bags have released
+ * enough of the budget.</li>
+ * <li>openFiles: the payload sources that are open at once. Each bag reserves the most
+ * files it can have open (the file being written and the ones read ahead, or one per copy
+ * thread) before it starts, along with its buffers.</li>
+ * <li>manifestMemory: the manifests that are generated in memory. A bag whose manifest
+ * doesn't fit what's left of it writes the manifest to a temporary file instead, and
+ * streams it into the bag from there.</li>
+ * </ul>
+ * A bag that needs more than a limit on its own fails when it's streamed, with an
+ * IllegalStateException. What the bags use is kept track of, with its peaks, so that the
+ * limits can be checked against what bags really need.
+ *
+ * The budget doesn't cover the SpeedFile objects of the bags or the zip central directory,
+ * which grow with the number of files.
+ */
+public final class BagResourceBudget {
+    private final static Log logger = LogFactory.getLog(BagResourceBudget.class);
+
+    private final long maxBufferMemory;
+    private final int maxOpenFiles;
+    private final long maxManifestMemory;
+    // What the streaming bags have reserved, and the most they have reserved at once
+    private long bufferMemory;
+    private long peakBufferMemory;
+    private int reservedFiles;
+    private long manifestMemory;
+    private long peakManifestMemory;
+    // The sources that are open, and the most that have been open at once
+    private int openFiles;
+    private int peakOpenFiles;
+    // The number of bags waiting for their buffers and files
+    private int waitingBags;
+    // The number of manifests that were written to a temporary file
+    private long spilledManifests;
+
+    /**
+     * Creates a budget
+     *
+     * @param bufferMemory   The most bytes of buffers held by the bags at once
+     * @param openFiles      The most payload sources open at once
+     * @param manifestMemory The most bytes of manifests held in memory at once
+     */
+    public BagResourceBudget(long bufferMemory, int openFiles, long manifestMemory) {
+        if (bufferMemory <= 0 || openFiles <= 0 || manifestMemory < 0) {
+            throw new IllegalArgumentException(
+                    "A budget needs room for buffers and at least one open file, and can't have negative manifest memory");
+        }
+        this.maxBufferMemory = bufferMemory;
+        this.maxOpenFiles = openFiles;
+        this.maxManifestMemory = manifestMemory;
+    }
+
+    /**
+     * Checks that a bag's needs fit in the budget at all
+     *
+     * @param files  The most files the bag opens at once
+     * @param memory The most bytes of buffers the bag holds
+     * @throws IllegalStateException When they don't
+     */
+    void check(int files, long memory) {
+        if (files > maxOpenFiles || memory > maxBufferMemory) {
+            throw new IllegalStateException(String.format("The bag needs %d open files and %d bytes of buffers, "
+                    + "more than its budget of %d files and %d bytes", files, memory, maxOpenFiles, maxBufferMemory));
+        }
+    }
+
+    /**
+     * Waits until a bag's files and buffers fit in what's left of the budget, and reserves
+     * them. The caller must call release() with the same numbers once the bag is done.
+     *
+     * @param files  The most files the bag opens at once
+     * @param memory The most bytes of buffers the bag holds
+     * @throws InterruptedIOException When the thread is interrupted while it waits
+     */
+    synchronized void reserve(int files, long memory) throws InterruptedIOException {
+        check(files, memory);
+        if (reservedFiles + files > maxOpenFiles || bufferMemory + memory > maxBufferMemory) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Waiting for %d files and %d bytes of the budget", files, memory));
+            }
+            waitingBags++;
+            try {
+                while (reservedFiles + files > maxOpenFiles || bufferMemory + memory > maxBufferMemory) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the bag's budget");
+            } finally {
+                waitingBags--;
+            }
+        }
+        reservedFiles += files;
+        bufferMemory += memory;
+        peakBufferMemory = Math.max(peakBufferMemory, bufferMemory);
+    }
+
+    /**
+     * Releases the files and buffers that a bag reserved
+     */
+    synchronized void release(int files, long memory) {
+        reservedFiles -= files;
+        bufferMemory -= memory;
+        notifyAll();
+    }
+
+    /**
+     * Reserves the memory of a manifest, if there's enough of it left
+     *
+     * @param bytes The size of the manifest
+     * @return Whether the memory was reserved, otherwise the manifest should be spilled
+     */
+    synchronized boolean reserveManifest(long bytes) {
+        if (manifestMemory + bytes > maxManifestMemory) {
+            spilledManifests++;
+            return false;
+        }
+        manifestMemory += bytes;
+        peakManifestMemory = Math.max(peakManifestMemory, manifestMemory);
+        return true;
+    }
+
+    /**
+     * Releases the memory of a manifest that was reserved
+     */
+    synchronized void releaseManifest(long bytes) {
+        manifestMemory -= bytes;
+    }
+
+    /**
+     * Counts a payload source that was opened
+     */
+    synchronized void fileOpened() {
+        openFiles++;
+        peakOpenFiles = Math.max(peakOpenFiles, openFiles);
+    }
+
+    /**
+     * Counts a payload source that was closed
+     */
+    synchronized void fileClosed() {
+        openFiles--;
+    }
+
+    /**
+     * Returns the most bytes of buffers held by the bags at once
+     */
+    public long getMaxBufferMemory() {
+        return maxBufferMemory;
+    }
+
+    /**
+     * Returns the most payload sources open at once
+     */
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    /**
+     * Returns the most bytes of manifests held in memory at once
+     */
+    public long getMaxManifestMemory() {
+        return maxManifestMemory;
+    }
+
+    /**
+     * Returns the bytes of buffers that the streaming bags have reserved
+     */
+    public synchronized long getBufferMemory() {
+        return bufferMemory;
+    }
+
+    /**
+     * Returns the most bytes of buffers that were reserved at once
+     */
+    public synchronized long getPeakBufferMemory() {
+        return peakBufferMemory;
+    }
+
+    /**
+     * Returns the number of payload sources that are open
+     */
+    public synchronized int getOpenFiles() {
+        return openFiles;
+    }
+
+    /**
+     * Returns the most payload sources that were open at once
+     */
+    public synchronized int getPeakOpenFiles() {
+        return peakOpenFiles;
+    }
+
+    /**
+     * Returns the bytes of manifests held in memory
+     */
+    public synchronized long getManifestMemory() {
+        return manifestMemory;
+    }
+
+    /**
+     * Returns the most bytes of manifests that were held in memory at once
+     */
+    public synchronized long getPeakManifestMemory() {
+        return peakManifestMemory;
+    }
+
+    /**
+     * Returns the number of manifests that didn't fit and were written to a temporary file
+     */
+    public synchronized long getSpilledManifests() {
+        return spilledManifests;
+    }
+
+    /**
+     * Returns the number of bags waiting for their share of the budget
+     */
+    public synchronized int getWaitingCount() {
+        return waitingBags;
+    }
+}
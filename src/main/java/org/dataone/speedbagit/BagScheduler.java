@@ -0,0 +1,282 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decides when the bags that share it are streamed. Without a scheduler, every bag is
+ * streamed by a shared pool of threads in the order that stream() was called, so one huge
+ * bag can hold up many small ones. A scheduler
+ * <ul>
+ * <li>streams at most maxConcurrentBags bags at once, whether they're streamed with
+ * stream() or stream(WritableByteChannel),</li>
+ * <li>queues the rest by priority (see SpeedBagIt.setPriority) and then by its Policy,</li>
+ * <li>rejects bags with a RejectedExecutionException when maxQueuedBags bags are waiting,
+ * rather than letting them pile up,</li>
+ * <li>and can limit the rate that all of its bags read their payload at together. Each bag
+ * can be limited on its own as well, with SpeedBagIt.setBandwidthLimit.</li>
+ * </ul>
+ * For example, interactive downloads can be given a higher priority than batch exports, or
+ * the two can be given schedulers of their own.
+ */
+public final class BagScheduler {
+    private final static Log logger = LogFactory.getLog(BagScheduler.class);
+
+    /**
+     * The order of bags that have the same priority
+     */
+    public enum Policy {
+        // The bags that were streamed first go first
+        FIFO,
+        // The bags with the smallest payload go first. Bags that have a data file of
+        // unknown size (see SpeedBagIt.addFile) go after the ones that don't.
+        SMALLEST_FIRST
+    }
+
+    private final int maxConcurrentBags;
+    private final int maxQueuedBags;
+    private final Policy policy;
+    // Limits every bag together, or null
+    private final Throttle throttle;
+    // Runs the bags that are streamed with stream()
+    private final ExecutorService threads;
+    // Bags waiting for their turn
+    private final PriorityQueue<Ticket> queue;
+    // The number of bags being streamed
+    private int running;
+    // Gives the bags their place in line
+    private long sequence;
+    // The number of bags turned away
+    private long rejected;
+
+    /**
+     * Creates a scheduler
+     *
+     * @param maxConcurrentBags The most bags streamed at once
+     * @param maxQueuedBags     The most bags waiting to be streamed
+     * @param policy            The order of the bags with the same priority
+     * @param bytesPerSecond    The most payload bytes per second read by all of the bags, or 0
+     *                          for no limit
+     */
+    public BagScheduler(int maxConcurrentBags, int maxQueuedBags, Policy policy, long bytesPerSecond) {
+        if (maxConcurrentBags <= 0 || maxQueuedBags < 0) {
+            throw new IllegalArgumentException("A scheduler needs to stream at least one bag, and can't queue fewer than none");
+        }
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The bandwidth can't be negative");
+        }
+        this.maxConcurrentBags = maxConcurrentBags;
+        this.maxQueuedBags = maxQueuedBags;
+        this.policy = policy;
+        this.throttle = bytesPerSecond == 0 ? null : new Throttle(bytesPerSecond, null);
+        Comparator<Ticket> order = Comparator.comparingInt((Ticket ticket) -> -ticket.priority);
+        if (policy == Policy.SMALLEST_FIRST) {
+            order = order.thenComparingLong(ticket -> ticket.size < 0 ? Long.MAX_VALUE : ticket.size);
+        }
+        this.queue = new PriorityQueue<>(order.thenComparingLong(ticket -> ticket.sequence));
+        AtomicInteger count = new AtomicInteger();
+        this.threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "speedbagit-scheduler-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates a scheduler without a bandwidth limit that streams bags in the order they come
+     *
+     * @param maxConcurrentBags The most bags streamed at once
+     * @param maxQueuedBags     The most bags waiting to be streamed
+     */
+    public BagScheduler(int maxConcurrentBags, int maxQueuedBags) {
+        this(maxConcurrentBags, maxQueuedBags, Policy.FIFO, 0);
+    }
+
+    /**
+     * Runs a bag on one of the scheduler's threads when it's the bag's turn
+     *
+     * @param bag  The bag
+     * @param task Streams the bag
+     * @throws RejectedExecutionException When the queue is full
+     */
+    void execute(SpeedBagIt bag, Runnable task) {
+        admit(new Ticket(bag, task));
+    }
+
+    /**
+     * Waits for a bag's turn to be streamed on the calling thread. The caller must call
+     * exit() once the bag has been streamed.
+     *
+     * @param bag The bag
+     * @throws RejectedExecutionException When the queue is full
+     * @throws InterruptedIOException When the thread is interrupted while it waits
+     */
+    synchronized void enter(SpeedBagIt bag) throws InterruptedIOException {
+        Ticket ticket = new Ticket(bag, null);
+        admit(ticket);
+        try {
+            while (!ticket.started) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (ticket.started) {
+                exit();
+            } else {
+                queue.remove(ticket);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to stream the bag");
+        }
+    }
+
+    /**
+     * Frees the place of a bag that was streamed, starting the next one in line
+     */
+    synchronized void exit() {
+        running--;
+        while (running < maxConcurrentBags && !queue.isEmpty()) {
+            start(queue.poll());
+        }
+    }
+
+    private synchronized void admit(Ticket ticket) {
+        ticket.sequence = sequence++;
+        if (running < maxConcurrentBags && queue.isEmpty()) {
+            start(ticket);
+        } else if (queue.size() >= maxQueuedBags) {
+            rejected++;
+            throw new RejectedExecutionException(String.format(
+                    "%d bags are streaming and %d are waiting", running, queue.size()));
+        } else {
+            queue.add(ticket);
+        }
+    }
+
+    private void start(Ticket ticket) {
+        running++;
+        if (ticket.task == null) {
+            ticket.started = true;
+            notifyAll();
+            return;
+        }
+        threads.execute(new Runnable() {
+            public void run() {
+                try {
+                    ticket.task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Failed to stream a bag", e);
+                } finally {
+                    exit();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the throttle of a bag, which is also limited by the scheduler's bandwidth
+     *
+     * @param bytesPerSecond The bag's own limit, or 0
+     * @return The throttle, or null when neither the bag nor the scheduler is limited
+     */
+    Throttle newThrottle(long bytesPerSecond) {
+        if (bytesPerSecond == 0) {
+            return throttle;
+        }
+        return new Throttle(bytesPerSecond, throttle);
+    }
+
+    /**
+     * Returns the most bags that are streamed at once
+     */
+    public int getMaxConcurrentBags() {
+        return maxConcurrentBags;
+    }
+
+    /**
+     * Returns the most bags that may wait to be streamed
+     */
+    public int getMaxQueuedBags() {
+        return maxQueuedBags;
+    }
+
+    /**
+     * Returns the order of bags with the same priority
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the number of bags that are being streamed
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Returns the number of bags that are waiting to be streamed
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of bags that were rejected because the queue was full
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * A bag waiting for its turn
+     */
+    private static final class Ticket {
+        final int priority;
+        // The expected size of the payload, or -1 when it isn't known
+        final long size;
+        // Streams the bag, or null when a thread is waiting in enter()
+        final Runnable task;
+        long sequence;
+        boolean started;
+
+        Ticket(SpeedBagIt bag, Runnable task) {
+            this.priority = bag.getPriority();
+            this.size = bag.getExpectedPayloadSize();
+            this.task = task;
+        }
+    }
+}
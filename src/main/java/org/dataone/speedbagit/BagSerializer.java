@@ -0,0 +1,203 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the entries of a bag in the container format that it's served in. SpeedBagIt
+ * checksums the files and builds the manifests the same way whatever the format is, and
+ * hands each file to the serializer as either:
+ *
+ *  - a whole entry, with writeEntry(), when the file fits in memory
+ *  - or a streamed entry, between putNextEntry() and closeEntry()
+ *
+ * Formats that can't compress single entries ignore the compression method and level.
+ */
+abstract class BagSerializer extends OutputStream {
+
+    // Collects where each entry is written, for the bag's sidecar index, or null
+    BagIndexWriter index;
+
+    /**
+     * Writes a whole entry whose bytes are in memory
+     *
+     * @param name The path of the entry in the bag
+     * @param data The bytes of the entry
+     * @param off  The offset of the first byte in data
+     * @param len  The number of bytes in the entry
+     */
+    abstract void writeEntry(String name, byte[] data, int off, int len) throws IOException;
+
+    /**
+     * Writes a whole entry whose bytes are between the position and limit of a buffer.
+     * The buffer's position is moved to its limit.
+     *
+     * @param name The path of the entry in the bag
+     * @param data The bytes of the entry
+     */
+    abstract void writeEntry(String name, ByteBuffer data) throws IOException;
+
+    /**
+     * Writes an entry of a bag template. The zip writer copies the entry's deflated bytes,
+     * other formats write the entry's original bytes.
+     *
+     * @param entry The entry, compressed ahead of time
+     * @param bytes The original bytes of the entry
+     */
+    void writeEntry(ZipStreamWriter.PreparedEntry entry, byte[] bytes) throws IOException {
+        writeEntry(new String(entry.name, StandardCharsets.UTF_8), bytes, 0, bytes.length);
+    }
+
+    /**
+     * Starts an entry whose bytes are written with write() until closeEntry()
+     *
+     * @param name The path of the entry in the bag
+     */
+    void putNextEntry(String name) throws IOException {
+        putNextEntry(name, -1);
+    }
+
+    /**
+     * Starts an entry whose bytes are written with write() until closeEntry()
+     *
+     * @param name The path of the entry in the bag
+     * @param size The number of bytes that will be written, or -1 when it isn't known
+     */
+    abstract void putNextEntry(String name, long size) throws IOException;
+
+    /**
+     * Writes the bytes of a buffer, between its position and limit, to the current entry.
+     * The buffer's position is moved to its limit.
+     *
+     * @param data The bytes to write
+     */
+    abstract void write(ByteBuffer data) throws IOException;
+
+    /**
+     * Finishes the current entry, if there is one
+     */
+    abstract void closeEntry() throws IOException;
+
+    /**
+     * Finishes the bag without closing the underlying stream
+     */
+    abstract void finish() throws IOException;
+
+    /**
+     * Frees the serializer's buffers without finishing the bag. Used when the bag fails
+     * part way through.
+     */
+    abstract void release();
+
+    /**
+     * Sets the compression method of the next entries
+     *
+     * @param method The zip method, such as ZipStreamWriter.DEFLATED
+     */
+    void setMethod(int method) {
+    }
+
+    /**
+     * Sets the compression level of the next entries, and the rest of the current one
+     *
+     * @param level The deflate compression level (0-9, or -1 for the default)
+     */
+    void setLevel(int level) {
+    }
+
+    /**
+     * Returns the compression level of the next entries
+     */
+    int getLevel() {
+        return 0;
+    }
+
+    /**
+     * Remembers the entry that was just written, so that duplicates can refer to it
+     *
+     * @param name The path of the entry
+     */
+    void remember(String name) {
+    }
+
+    /**
+     * Writes an entry whose bytes are the same as a remembered entry's, without writing
+     * the bytes again
+     *
+     * @param name     The path of the duplicate
+     * @param original The path of the remembered entry
+     */
+    abstract void writeDuplicate(String name, String original) throws IOException;
+
+    /**
+     * Records where each entry from now on is written, for the bag's sidecar index. The zip
+     * and plain tar formats support it, since their entries can be read at an offset.
+     *
+     * @param index Collects the entries
+     */
+    void setIndex(BagIndexWriter index) {
+        this.index = index;
+    }
+
+    /**
+     * Returns what collects the entries for the bag's sidecar index, or null
+     */
+    BagIndexWriter getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the state that the serializer needs to resume the bag after its entries so
+     * far, for the bag's journal. For a zip file it's the central directory.
+     *
+     * @param from The length of the state that was already saved
+     * @return The state after from
+     */
+    byte[] getState(int from) {
+        return new byte[0];
+    }
+
+    /**
+     * Continues a bag whose entries so far were written by an earlier run, whose output was
+     * truncated to them
+     *
+     * @param written    The number of bytes in the output
+     * @param entryCount The number of entries in the output
+     * @param state      The state from getState(0) once those entries were written
+     */
+    abstract void restore(long written, long entryCount, byte[] state) throws IOException;
+
+    /**
+     * Returns the number of bytes written so far
+     */
+    abstract long getBytesWritten();
+
+    /**
+     * Returns the number of entries written so far
+     */
+    abstract long getEntryCount();
+}
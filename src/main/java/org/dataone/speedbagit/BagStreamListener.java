@@ -0,0 +1,86 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A listener that is notified as a bag is streamed. It reports where the time goes for each
+ * file (reading the source, checksumming, compressing and waiting for the client to drain the
+ * output), how long the manifests and tag files took to generate and how many bytes went in
+ * and out of the bag. This makes it possible to tell whether a slow bag is disk, CPU or
+ * client bound.
+ *
+ * Every method has an empty default implementation so that listeners only implement the
+ * events they care about. Listeners are called on the thread that streams the bag, so they
+ * should be cheap and must not throw.
+ */
+public interface BagStreamListener {
+
+    /**
+     * Called before the first file of the bag is streamed.
+     *
+     * @param payloadFileCount The number of data files in the bag
+     * @param queueDepth       The number of bags waiting for a streaming thread
+     */
+    default void onBagStarted(int payloadFileCount, int queueDepth) {
+    }
+
+    /**
+     * Called after each file, data or tag, has been written to the bag.
+     *
+     * @param metrics The bytes and timings of the file
+     */
+    default void onFileStreamed(FileMetrics metrics) {
+    }
+
+    /**
+     * Called after the manifest and tag manifest contents have been generated.
+     *
+     * @param nanos The time spent generating them
+     */
+    default void onManifestsGenerated(long nanos) {
+    }
+
+    /**
+     * Called after bagit.txt and bag-info.txt have been generated.
+     *
+     * @param nanos The time spent generating them
+     */
+    default void onTagFilesGenerated(long nanos) {
+    }
+
+    /**
+     * Called once the bag has been completely written.
+     *
+     * @param metrics The totals for the whole bag
+     */
+    default void onBagFinished(BagMetrics metrics) {
+    }
+
+    /**
+     * Called when streaming the bag fails.
+     *
+     * @param cause The reason that the bag could not be streamed
+     */
+    default void onBagFailed(Throwable cause) {
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The parts of a bag that are the same for every request: the BagIt version, the checksum
+ * algorithm, bagit.txt, the fixed labels of bag-info.txt and static tag files such as a
+ * license or a README. A template encodes, checksums and deflates them once when it's
+ * built, and any number of bags can then be created from it with SpeedBagIt(BagTemplate),
+ * on any thread, without doing that work again.
+ *
+ * Templates are immutable and are created with a Builder.
+ * <pre>
+ * BagTemplate template = new BagTemplate.Builder(1.0, "SHA-256")
+ *         .addBagInfo("Source-Organization", "DataONE")
+ *         .addTagFile("metadata/LICENSE.txt", license)
+ *         .build();
+ * SpeedBagIt bag = new SpeedBagIt(template);
+ * </pre>
+ */
+public final class BagTemplate {
+
+    private final double version;
+    private final String checksumAlgorithm;
+    private final Map<String, String> bagitMetadata;
+    private final Map<String, List<String>> bagInfo;
+    private final int lineLength;
+    // bagit.txt, ready to be written
+    private final TemplateFile bagitTxt;
+    // The static tag files, keyed by their path
+    private final Map<String, TemplateFile> tagFiles;
+
+    private BagTemplate(Builder builder) throws NoSuchAlgorithmException {
+        this.version = builder.version;
+        this.checksumAlgorithm = builder.checksumAlgorithm;
+        this.bagitMetadata = Collections.unmodifiableMap(new LinkedHashMap<>(builder.bagitMetadata));
+        Map<String, List<String>> bagInfo = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : builder.bagInfo.entrySet()) {
+            bagInfo.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+        }
+        this.bagInfo = Collections.unmodifiableMap(bagInfo);
+        this.lineLength = builder.lineLength;
+
+        TagFileWriter bagit = SpeedBagIt.bagitTxt(version, bagitMetadata);
+        byte[] bytes = Arrays.copyOf(bagit.getBytes(), bagit.size());
+        this.bagitTxt = new TemplateFile(SpeedBagIt.getProperties().getProperty("bagit.file.name"), bytes,
+                checksumAlgorithm);
+        Map<String, TemplateFile> tagFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : builder.tagFiles.entrySet()) {
+            tagFiles.put(entry.getKey(), new TemplateFile(entry.getKey(), entry.getValue(), checksumAlgorithm));
+        }
+        this.tagFiles = Collections.unmodifiableMap(tagFiles);
+    }
+
+    /**
+     * Returns the version of the bags
+     */
+    public double getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the name of the checksum algorithm of the bags
+     */
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Returns the key-values that go in bagit.txt
+     */
+    public Map<String, String> getBagitMetadata() {
+        return bagitMetadata;
+    }
+
+    /**
+     * Returns the labels that every bag-info.txt starts with
+     */
+    public Map<String, List<String>> getBagInfo() {
+        return bagInfo;
+    }
+
+    /**
+     * Returns the longest line of bag-info.txt
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Returns the paths of the static tag files
+     */
+    public Set<String> getTagFilePaths() {
+        return tagFiles.keySet();
+    }
+
+    TemplateFile getBagitTxt() {
+        return bagitTxt;
+    }
+
+    Map<String, TemplateFile> getTagFiles() {
+        return tagFiles;
+    }
+
+    /**
+     * A tag file of the template, with its checksum and its deflated zip entry
+     */
+    static final class TemplateFile {
+        final String path;
+        // The uncompressed bytes of the file
+        final byte[] bytes;
+        // The raw checksum, in the template's algorithm
+        final byte[] digest;
+        final ZipStreamWriter.PreparedEntry entry;
+
+        TemplateFile(String path, byte[] bytes, String checksumAlgorithm) throws NoSuchAlgorithmException {
+            this.path = path;
+            this.bytes = bytes;
+            Checksummer checksummer = Checksummers.getInstance(checksumAlgorithm);
+            checksummer.update(bytes, 0, bytes.length);
+            this.digest = checksummer.digest();
+            // Deflated once for every bag, so it's worth the best compression
+            this.entry = new ZipStreamWriter.PreparedEntry(path, bytes, Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    /**
+     * Collects the parts of a template. Builders aren't thread safe, the templates they
+     * build are.
+     */
+    public static final class Builder {
+        private final double version;
+        private final String checksumAlgorithm;
+        private final Map<String, String> bagitMetadata = new LinkedHashMap<>();
+        private final Map<String, List<String>> bagInfo = new LinkedHashMap<>();
+        private int lineLength = SpeedBagIt.DEFAULT_LINE_LENGTH;
+        private final Map<String, byte[]> tagFiles = new LinkedHashMap<>();
+
+        /**
+         * Starts a template
+         *
+         * @param version           The bag version (0.97, 1.0, etc)
+         * @param checksumAlgorithm The name of the algorithm used to checksum the files
+         */
+        public Builder(double version, String checksumAlgorithm) {
+            this.version = version;
+            this.checksumAlgorithm = checksumAlgorithm;
+        }
+
+        /**
+         * Adds key-values to bagit.txt
+         *
+         * @param metadata The key-values, in the order they should be written
+         * @return This builder
+         */
+        public Builder bagitMetadata(Map<String, String> metadata) {
+            bagitMetadata.putAll(metadata);
+            return this;
+        }
+
+        /**
+         * Adds a value to a label of bag-info.txt, see SpeedBagIt.addBagInfo
+         *
+         * @param label The label
+         * @param value The value
+         * @return This builder
+         */
+        public Builder addBagInfo(String label, String value) {
+            SpeedBagIt.checkBagInfoLabel(label);
+            bagInfo.computeIfAbsent(label, key -> new ArrayList<>(1)).add(Objects.requireNonNull(value));
+            return this;
+        }
+
+        /**
+         * Sets the longest line of bag-info.txt, see SpeedBagIt.setLineLength
+         *
+         * @param lineLength The longest line, or 0 to never fold lines
+         * @return This builder
+         */
+        public Builder lineLength(int lineLength) {
+            if (lineLength < 0) {
+                throw new IllegalArgumentException("The line length can't be negative");
+            }
+            this.lineLength = lineLength;
+            return this;
+        }
+
+        /**
+         * Adds a tag file whose contents are the same in every bag
+         *
+         * @param path  The path, relative to the bag root
+         * @param bytes The contents of the file, which are copied
+         * @return This builder
+         * @throws SpeedBagException When a tag file was already added at the path, the path
+         *                            can't be used in a bag, or the bag generates the file
+         */
+        public Builder addTagFile(String path, byte[] bytes) throws SpeedBagException {
+            String invalid = BagPaths.check(path);
+            if (invalid == null) {
+                invalid = SpeedBagIt.checkGeneratedPath(path);
+            }
+            if (invalid != null) {
+                throw new SpeedBagException(invalid);
+            }
+            if (tagFiles.containsKey(path)) {
+                throw new SpeedBagException(
+                        String.format("The tag file with path %s conflicts with another file.", path));
+            }
+            tagFiles.put(path, bytes.clone());
+            return this;
+        }
+
+        /**
+         * Encodes, checksums and deflates the template's files
+         *
+         * @return The template
+         * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+         */
+        public BagTemplate build() throws NoSuchAlgorithmException {
+            return new BagTemplate(this);
+        }
+    }
+}
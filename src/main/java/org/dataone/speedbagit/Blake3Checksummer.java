@@ -0,0 +1,550 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A pure Java implementation of the BLAKE3 hash with a 256 bit output. BLAKE3 hashes its
+ * input as a binary tree of 1 KB chunks, so the chaining value of any complete, aligned
+ * subtree can be computed independently (see subtreeChainingValue). This is what lets
+ * large files be hashed on several cores while producing the same checksum as b3sum.
+ */
+public class Blake3Checksummer implements Checksummer {
+
+    // The length of the output, in bytes
+    public static final int OUT_LEN = 32;
+    // The length of a compressed block
+    public static final int BLOCK_LEN = 64;
+    // The length of a leaf of the tree
+    public static final int CHUNK_LEN = 1024;
+
+    static final int CHUNK_START = 1;
+    static final int CHUNK_END = 1 << 1;
+    static final int PARENT = 1 << 2;
+    static final int ROOT = 1 << 3;
+
+    static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+            0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    // Chaining values of complete subtrees, largest first. A 64 bit counter of chunks
+    // can't need more than 54 entries.
+    private final int[][] cvStack = new int[54][8];
+    private int cvStackLength;
+
+    // The state of the chunk that is being hashed
+    private final int[] chunkCv = new int[8];
+    private long chunkCounter;
+    private final byte[] block = new byte[BLOCK_LEN];
+    private int blockLength;
+    private int blocksCompressed;
+
+    // Scratch space, so that hashing doesn't allocate
+    private final int[] words = new int[16];
+    private final int[] state = new int[16];
+
+    public Blake3Checksummer() {
+        this.reset();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return Checksummers.BLAKE3;
+    }
+
+    @Override
+    public void reset() {
+        cvStackLength = 0;
+        startChunk(0);
+    }
+
+    @Override
+    public void update(byte b) {
+        if (chunkLength() == CHUNK_LEN) {
+            pushChainingValue(chunkChainingValue(), 0);
+            startChunk(chunkCounter + 1);
+        }
+        if (blockLength == BLOCK_LEN) {
+            compressBlock();
+        }
+        block[blockLength++] = b;
+    }
+
+    @Override
+    public void update(byte[] buf, int off, int len) {
+        int end = off + len;
+        while (off < end) {
+            if (chunkLength() == CHUNK_LEN) {
+                // The chunk is complete and there's more input, so it isn't the root
+                pushChainingValue(chunkChainingValue(), 0);
+                startChunk(chunkCounter + 1);
+            }
+            int take = Math.min(CHUNK_LEN - chunkLength(), end - off);
+            int chunkEnd = off + take;
+            while (off < chunkEnd) {
+                if (blockLength == BLOCK_LEN) {
+                    compressBlock();
+                }
+                if (blockLength == 0 && chunkEnd - off > BLOCK_LEN) {
+                    // Compress whole blocks straight out of the input when more follow
+                    loadWords(buf, off, words);
+                    compress(chunkCv, words, chunkCounter, BLOCK_LEN, chunkFlags(), state);
+                    System.arraycopy(state, 0, chunkCv, 0, 8);
+                    blocksCompressed++;
+                    off += BLOCK_LEN;
+                    continue;
+                }
+                int copy = Math.min(BLOCK_LEN - blockLength, chunkEnd - off);
+                System.arraycopy(buf, off, block, blockLength, copy);
+                blockLength += copy;
+                off += copy;
+            }
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        // The output of the last chunk, merged with the stack from the top down
+        int[] inputCv = chunkCv.clone();
+        int[] blockWords = new int[16];
+        loadWords(padBlock(), 0, blockWords);
+        long counter = chunkCounter;
+        int length = blockLength;
+        int flags = chunkFlags() | CHUNK_END;
+        for (int i = cvStackLength - 1; i >= 0; i--) {
+            compress(inputCv, blockWords, counter, length, flags, state);
+            System.arraycopy(cvStack[i], 0, blockWords, 0, 8);
+            System.arraycopy(state, 0, blockWords, 8, 8);
+            System.arraycopy(IV, 0, inputCv, 0, 8);
+            counter = 0;
+            length = BLOCK_LEN;
+            flags = PARENT;
+        }
+        compress(inputCv, blockWords, counter, length, flags | ROOT, state);
+        byte[] result = new byte[OUT_LEN];
+        for (int i = 0; i < 8; i++) {
+            int word = state[i];
+            result[i * 4] = (byte) word;
+            result[i * 4 + 1] = (byte) (word >>> 8);
+            result[i * 4 + 2] = (byte) (word >>> 16);
+            result[i * 4 + 3] = (byte) (word >>> 24);
+        }
+        this.reset();
+        return result;
+    }
+
+    /**
+     * Returns the number of complete chunks that have been hashed so far.
+     *
+     * @return The number of chunks before the current one
+     */
+    protected long getChunkCounter() {
+        return chunkCounter;
+    }
+
+    /**
+     * Returns whether the hasher is at the start of a chunk, meaning that
+     * nothing has been added to the current chunk yet.
+     *
+     * @return True when the current chunk is empty
+     */
+    protected boolean isChunkEmpty() {
+        return blocksCompressed == 0 && blockLength == 0;
+    }
+
+    /**
+     * Adds the chaining value of a complete subtree that was hashed elsewhere. The
+     * hasher must be at the start of a chunk whose counter is a multiple of the size
+     * of the subtree, and more input must follow the subtree.
+     *
+     * @param cv     The chaining value of the subtree
+     * @param chunks The number of chunks in the subtree, a power of two
+     */
+    protected void addSubtree(int[] cv, long chunks) {
+        pushChainingValue(cv, Long.numberOfTrailingZeros(chunks));
+        startChunk(chunkCounter + chunks);
+    }
+
+    /**
+     * Computes the chaining value of a complete subtree: a power of two number of whole
+     * chunks, starting at a chunk counter that is a multiple of that number. The result
+     * is only meaningful when the subtree isn't the whole input, because the root is
+     * finalized differently. This method is thread safe.
+     *
+     * @param buf          The buffer holding the subtree's bytes
+     * @param off          The offset of the subtree in buf
+     * @param chunks       The number of chunks in the subtree, a power of two
+     * @param chunkCounter The index of the first chunk of the subtree in the input
+     * @return The eight word chaining value of the subtree
+     */
+    public static int[] subtreeChainingValue(byte[] buf, int off, int chunks, long chunkCounter) {
+        int[] words = new int[16];
+        int[] state = new int[16];
+        int[][] cvs = new int[chunks][];
+        for (int c = 0; c < chunks; c++) {
+            int[] cv = IV.clone();
+            int chunkOff = off + c * CHUNK_LEN;
+            for (int b = 0; b < CHUNK_LEN / BLOCK_LEN; b++) {
+                int flags = (b == 0 ? CHUNK_START : 0) | (b == CHUNK_LEN / BLOCK_LEN - 1 ? CHUNK_END : 0);
+                loadWords(buf, chunkOff + b * BLOCK_LEN, words);
+                compress(cv, words, chunkCounter + c, BLOCK_LEN, flags, state);
+                System.arraycopy(state, 0, cv, 0, 8);
+            }
+            cvs[c] = cv;
+        }
+        for (int width = chunks; width > 1; width /= 2) {
+            for (int i = 0; i < width / 2; i++) {
+                cvs[i] = parentChainingValue(cvs[2 * i], cvs[2 * i + 1], words, state);
+            }
+        }
+        return cvs[0];
+    }
+
+    /**
+     * Pushes the chaining value of a complete subtree onto the stack, first merging the
+     * subtrees on the stack that the new one completes.
+     *
+     * @param cv    The chaining value of the subtree
+     * @param level The height of the subtree (log2 of its number of chunks)
+     */
+    private void pushChainingValue(int[] cv, int level) {
+        int[] merged = cv.clone();
+        long total = (chunkCounter + (1L << level)) >>> level;
+        while ((total & 1) == 0) {
+            merged = parentChainingValue(cvStack[--cvStackLength], merged, words, state);
+            total >>>= 1;
+        }
+        System.arraycopy(merged, 0, cvStack[cvStackLength++], 0, 8);
+    }
+
+    private static int[] parentChainingValue(int[] left, int[] right, int[] words, int[] state) {
+        System.arraycopy(left, 0, words, 0, 8);
+        System.arraycopy(right, 0, words, 8, 8);
+        compress(IV, words, 0, BLOCK_LEN, PARENT, state);
+        int[] cv = new int[8];
+        System.arraycopy(state, 0, cv, 0, 8);
+        return cv;
+    }
+
+    private void startChunk(long counter) {
+        System.arraycopy(IV, 0, chunkCv, 0, 8);
+        chunkCounter = counter;
+        blockLength = 0;
+        blocksCompressed = 0;
+    }
+
+    private int chunkLength() {
+        return blocksCompressed * BLOCK_LEN + blockLength;
+    }
+
+    private int chunkFlags() {
+        return blocksCompressed == 0 ? CHUNK_START : 0;
+    }
+
+    private void compressBlock() {
+        loadWords(block, 0, words);
+        compress(chunkCv, words, chunkCounter, BLOCK_LEN, chunkFlags(), state);
+        System.arraycopy(state, 0, chunkCv, 0, 8);
+        blocksCompressed++;
+        blockLength = 0;
+    }
+
+    private int[] chunkChainingValue() {
+        loadWords(padBlock(), 0, words);
+        compress(chunkCv, words, chunkCounter, blockLength, chunkFlags() | CHUNK_END, state);
+        int[] cv = new int[8];
+        System.arraycopy(state, 0, cv, 0, 8);
+        return cv;
+    }
+
+    private byte[] padBlock() {
+        for (int i = blockLength; i < BLOCK_LEN; i++) {
+            block[i] = 0;
+        }
+        return block;
+    }
+
+    private static void loadWords(byte[] buf, int off, int[] words) {
+        for (int i = 0; i < 16; i++) {
+            int p = off + i * 4;
+            words[i] = (buf[p] & 0xFF) | (buf[p + 1] & 0xFF) << 8
+                    | (buf[p + 2] & 0xFF) << 16 | (buf[p + 3] & 0xFF) << 24;
+        }
+    }
+
+    /**
+     * The BLAKE3 compression function, with its seven rounds unrolled and the message
+     * permutation applied ahead of time. The 16 output words are written to out.
+     */
+    static void compress(int[] cv, int[] m, long counter, int blockLength, int flags, int[] out) {
+        int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3];
+        int s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+        int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+        int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = blockLength, s15 = flags;
+        final int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        final int m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11], m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+
+        // Round 1
+        s0 += s4 + m0; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m1; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m2; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m3; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m4; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m5; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m6; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m7; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m8; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m9; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m10; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m11; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m12; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m13; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m14; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m15; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 2
+        s0 += s4 + m2; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m6; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m3; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m10; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m7; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m0; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m4; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m13; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m1; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m11; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m12; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m5; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m9; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m14; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m15; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m8; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 3
+        s0 += s4 + m3; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m4; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m10; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m12; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m13; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m2; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m7; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m14; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m6; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m5; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m9; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m0; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m11; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m15; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m8; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m1; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 4
+        s0 += s4 + m10; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m7; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m12; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m9; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m14; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m3; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m13; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m15; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m4; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m0; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m11; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m2; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m5; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m8; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m1; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m6; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 5
+        s0 += s4 + m12; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m13; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m9; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m11; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m15; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m10; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m14; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m8; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m7; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m2; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m5; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m3; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m0; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m1; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m6; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m4; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 6
+        s0 += s4 + m9; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m14; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m11; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m5; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m8; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m12; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m15; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m1; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m13; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m3; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m0; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m10; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m2; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m6; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m4; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m7; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // Round 7
+        s0 += s4 + m11; s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m15; s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m5; s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m0; s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m1; s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m9; s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m8; s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m6; s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m14; s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m10; s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m2; s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m12; s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m3; s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m4; s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m7; s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m13; s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        out[0] = s0 ^ s8; out[1] = s1 ^ s9; out[2] = s2 ^ s10; out[3] = s3 ^ s11;
+        out[4] = s4 ^ s12; out[5] = s5 ^ s13; out[6] = s6 ^ s14; out[7] = s7 ^ s15;
+        out[8] = s8 ^ cv[0]; out[9] = s9 ^ cv[1]; out[10] = s10 ^ cv[2]; out[11] = s11 ^ cv[3];
+        out[12] = s12 ^ cv[4]; out[13] = s13 ^ cv[5]; out[14] = s14 ^ cv[6]; out[15] = s15 ^ cv[7];
+    }
+}
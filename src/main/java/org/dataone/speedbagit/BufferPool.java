@@ -0,0 +1,86 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A pool of byte arrays, so that the buffers used to copy, deflate and write bags are
+ * reused from one bag to the next instead of being allocated for each bag or entry.
+ * Buffers are pooled by their exact size.
+ */
+final class BufferPool {
+
+    // The most idle buffers that are kept for each size
+    private static final int MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final ConcurrentMap<Integer, BlockingQueue<byte[]>> idle = new ConcurrentHashMap<>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one when there's no idle buffer of the size.
+     * The buffer's contents are whatever its last user left in it.
+     *
+     * @param size The size of the buffer
+     * @return A buffer of exactly size bytes
+     */
+    static byte[] acquire(int size) {
+        BlockingQueue<byte[]> buffers = idle.get(size);
+        byte[] buffer = buffers == null ? null : buffers.poll();
+        return buffer == null ? new byte[size] : buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. It's dropped when the pool already holds enough
+     * buffers of its size.
+     *
+     * @param buffer The buffer that's no longer used
+     */
+    static void release(byte[] buffer) {
+        BlockingQueue<byte[]> buffers = idle.get(buffer.length);
+        if (buffers == null) {
+            buffers = new ArrayBlockingQueue<>(MAX_IDLE);
+            BlockingQueue<byte[]> existing = idle.putIfAbsent(buffer.length, buffers);
+            if (existing != null) {
+                buffers = existing;
+            }
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the number of idle buffers of a size
+     *
+     * @param size The size of the buffers
+     * @return The number of buffers in the pool
+     */
+    static int idleCount(int size) {
+        BlockingQueue<byte[]> buffers = idle.get(size);
+        return buffers == null ? 0 : buffers.size();
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the checksum of the bytes that are streamed into a bag. SpeedStream feeds
+ * every byte it reads to a Checksummer, so the implementation is on the hot path of
+ * every bag. MessageDigestChecksummer, which wraps java.security.MessageDigest, is
+ * used for every algorithm that doesn't have a faster implementation.
+ *
+ * Implementations are stateful and not thread safe; use one instance per stream.
+ * New implementations are made available by algorithm name through a ChecksummerProvider.
+ */
+public interface Checksummer {
+
+    /**
+     * Returns the name of the algorithm, as it would be passed to Checksummers.getInstance.
+     *
+     * @return The algorithm name
+     */
+    String getAlgorithm();
+
+    /**
+     * Updates the checksum with a single byte.
+     *
+     * @param b The byte to add
+     */
+    void update(byte b);
+
+    /**
+     * Updates the checksum with a range of bytes.
+     *
+     * @param buf The buffer holding the bytes
+     * @param off The offset of the first byte in buf
+     * @param len The number of bytes to add
+     */
+    void update(byte[] buf, int off, int len);
+
+    /**
+     * Updates the checksum with the remaining bytes of a buffer, leaving its position at its
+     * limit. Buffers that aren't backed by an array, like direct buffers, are copied through
+     * a small per-thread array unless the implementation can read them directly.
+     *
+     * @param buffer The bytes to add
+     */
+    default void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            ((Buffer) buffer).position(buffer.limit());
+            return;
+        }
+        byte[] scratch = ScratchBuffer.get();
+        while (buffer.hasRemaining()) {
+            int length = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, length);
+            update(scratch, 0, length);
+        }
+    }
+
+    /**
+     * Completes the checksum and resets the Checksummer so that it can be reused.
+     *
+     * @return The raw bytes of the checksum
+     */
+    byte[] digest();
+
+    /**
+     * Discards the bytes added so far.
+     */
+    void reset();
+}
@@ -0,0 +1,41 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * The service provider interface used to plug new checksum implementations into
+ * SpeedBagIt, for example a native or SIMD implementation of an algorithm. Providers
+ * are found with java.util.ServiceLoader (list the class in
+ * META-INF/services/org.dataone.speedbagit.ChecksummerProvider) or registered with
+ * Checksummers.register. They take precedence over the built in implementations.
+ */
+public interface ChecksummerProvider {
+
+    /**
+     * Creates a Checksummer for an algorithm.
+     *
+     * @param algorithm The name of the algorithm, as given to SpeedBagIt
+     * @return A new Checksummer, or null when the provider doesn't support the algorithm
+     */
+    Checksummer create(String algorithm);
+}
@@ -0,0 +1,164 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Creates Checksummers by algorithm name. Algorithms are looked up in this order:
+ *
+ *  1. Providers registered with register(), most recently registered first
+ *  2. Providers found on the classpath with java.util.ServiceLoader
+ *  3. The built in non-cryptographic and fast algorithms: BLAKE3 and XXH64
+ *  4. java.security.MessageDigest
+ *
+ * BLAKE3 and XXH64 aren't part of the BagIt algorithm registry, so they should only
+ * be used for bags that are exchanged between systems that know about them.
+ */
+public final class Checksummers {
+
+    // The name of the BLAKE3 algorithm
+    public static final String BLAKE3 = "BLAKE3";
+    // The name of the 64 bit xxHash algorithm
+    public static final String XXH64 = "XXH64";
+
+    // Providers that were registered at runtime, consulted first
+    private static final List<ChecksummerProvider> registered = new CopyOnWriteArrayList<>();
+    // Providers found through the ServiceLoader
+    private static final List<ChecksummerProvider> discovered = new CopyOnWriteArrayList<>();
+    static {
+        for (ChecksummerProvider provider : ServiceLoader.load(ChecksummerProvider.class)) {
+            discovered.add(provider);
+        }
+    }
+
+    // MessageDigests that are cloned instead of looking the algorithm up in the security
+    // providers again, which is much slower for bags with many files
+    private static final ConcurrentMap<String, MessageDigest> prototypes = new ConcurrentHashMap<>();
+    // The canonical names of the algorithm names that were asked for, since a bag asks for
+    // its algorithm's Checksummer once per file
+    private static final ConcurrentMap<String, String> canonicalNames = new ConcurrentHashMap<>();
+
+    private Checksummers() {
+    }
+
+    /**
+     * Registers a provider, which is asked for algorithms before any other provider.
+     *
+     * @param provider The provider to add
+     */
+    public static void register(ChecksummerProvider provider) {
+        registered.add(0, provider);
+    }
+
+    /**
+     * Removes a provider that was added with register().
+     *
+     * @param provider The provider to remove
+     */
+    public static void unregister(ChecksummerProvider provider) {
+        registered.remove(provider);
+    }
+
+    /**
+     * Creates a new Checksummer for an algorithm.
+     *
+     * @param algorithm The name of the algorithm (MD5, SHA-256, BLAKE3, XXH64, etc)
+     * @return A new Checksummer
+     * @throws NoSuchAlgorithmException When no provider supports the algorithm
+     */
+    public static Checksummer getInstance(String algorithm) throws NoSuchAlgorithmException {
+        for (ChecksummerProvider provider : registered) {
+            Checksummer checksummer = provider.create(algorithm);
+            if (checksummer != null) {
+                return checksummer;
+            }
+        }
+        for (ChecksummerProvider provider : discovered) {
+            Checksummer checksummer = provider.create(algorithm);
+            if (checksummer != null) {
+                return checksummer;
+            }
+        }
+        switch (canonicalName(algorithm)) {
+            case "BLAKE3":
+                return new Blake3Checksummer();
+            case "XXH64":
+            case "XXHASH64":
+                return new Xxh64Checksummer();
+            default:
+                return new MessageDigestChecksummer(newMessageDigest(algorithm));
+        }
+    }
+
+    /**
+     * Creates a MessageDigest by cloning a fresh prototype of the algorithm, falling
+     * back to MessageDigest.getInstance for digests that can't be cloned.
+     *
+     * @param algorithm The name of the algorithm
+     * @return A new MessageDigest
+     * @throws NoSuchAlgorithmException When no security provider supports the algorithm
+     */
+    private static MessageDigest newMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        MessageDigest prototype = prototypes.get(algorithm);
+        if (prototype != null) {
+            try {
+                return (MessageDigest) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                // Only digests that could be cloned are kept as prototypes
+            }
+        }
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        try {
+            MessageDigest copy = (MessageDigest) digest.clone();
+            prototypes.putIfAbsent(algorithm, digest);
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            return digest;
+        }
+    }
+
+    /**
+     * Reduces an algorithm name to upper case letters and digits so that
+     * "blake3", "BLAKE-3" and "Blake3" all refer to the same algorithm. Each name is only
+     * reduced the first time.
+     *
+     * @param algorithm The name of the algorithm
+     * @return The canonical name
+     */
+    static String canonicalName(String algorithm) {
+        String name = canonicalNames.get(algorithm);
+        if (name == null) {
+            name = algorithm.toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9]", "");
+            canonicalNames.putIfAbsent(algorithm, name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * The compression methods that the files of a bag can be written with
+ */
+public enum CompressionMethod {
+    // Deflate (zip method 8), which every zip reader can extract
+    DEFLATE(ZipStreamWriter.DEFLATED),
+    // Zstandard (zip method 93), which compresses several times faster than deflate at a
+    // similar ratio. Fewer zip readers can extract it, so it's meant for transfers between
+    // systems that are known to support it. It needs io.airlift:aircompressor on the classpath.
+    ZSTD(ZipStreamWriter.ZSTD);
+
+    // The method's number in the zip file
+    private final int zipMethod;
+
+    CompressionMethod(int zipMethod) {
+        this.zipMethod = zipMethod;
+    }
+
+    int getZipMethod() {
+        return zipMethod;
+    }
+
+    /**
+     * Returns whether the libraries that the method needs are on the classpath
+     *
+     * @return Whether files can be compressed with the method
+     */
+    public boolean isAvailable() {
+        if (this != ZSTD) {
+            return true;
+        }
+        try {
+            Class.forName("io.airlift.compress.zstd.ZstdCompressor", false, CompressionMethod.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
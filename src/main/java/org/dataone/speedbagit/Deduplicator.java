@@ -0,0 +1,112 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the data files of a bag that have the same bytes as a file that was already written,
+ * so that they can refer to it instead of being written again. Files are matched:
+ *
+ *  - by the content key that the caller gave them, before they're read at all
+ *  - or by their size and checksum, once a file has been read whole into the buffer and
+ *    before it's compressed. Larger files are only matched by their content keys, since
+ *    their checksums are known once they have been written.
+ */
+final class Deduplicator {
+
+    // The files that were written, by their content keys and by their sizes & checksums
+    private final Map<String, SpeedFile> originals = new HashMap<>();
+    private int duplicateCount;
+    private long duplicateBytes;
+
+    /**
+     * Finds the file that was written with the same content key as a file
+     *
+     * @param file A file that hasn't been read
+     * @return The original, or null when the file has no key or is the first with it
+     */
+    SpeedFile findByKey(SpeedFile file) {
+        return file.getContentKey() == null ? null : originals.get("key:" + file.getContentKey());
+    }
+
+    /**
+     * Finds the file that was written with the same size and checksum as a file
+     *
+     * @param file A file that has been read to its end
+     * @return The original, or null when there isn't one
+     */
+    SpeedFile findByChecksum(SpeedFile file) {
+        return originals.get(checksumKey(file));
+    }
+
+    /**
+     * Records a file that's written as a duplicate, giving its stream the size and checksum
+     * of the original
+     *
+     * @param file     The duplicate
+     * @param original The file that it refers to
+     */
+    void duplicated(SpeedFile file, SpeedFile original) {
+        SpeedStream stream = original.getStream();
+        file.getStream().restore(stream.getSize(), stream.getDigest());
+        if (file.getContentKey() != null) {
+            originals.putIfAbsent("key:" + file.getContentKey(), original);
+        }
+        duplicateCount++;
+        duplicateBytes += stream.getSize();
+    }
+
+    /**
+     * Records a file that was written, unless it was written as a duplicate
+     *
+     * @param file A file that has been read to its end
+     * @return Whether the file is an original that later files may refer to
+     */
+    boolean written(SpeedFile file) {
+        boolean original = originals.putIfAbsent(checksumKey(file), file) == null;
+        if (original && file.getContentKey() != null) {
+            originals.putIfAbsent("key:" + file.getContentKey(), file);
+        }
+        return original;
+    }
+
+    /**
+     * Returns the number of files that were written as duplicates
+     */
+    int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Returns the number of payload bytes that weren't written again
+     */
+    long getDuplicateBytes() {
+        return duplicateBytes;
+    }
+
+    private static String checksumKey(SpeedFile file) {
+        return file.getStream().getSize() + ":" + file.getStream().getChecksum();
+    }
+}
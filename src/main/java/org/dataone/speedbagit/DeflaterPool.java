@@ -0,0 +1,70 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of raw (nowrap) Deflaters shared by the bags that are streamed. Each Deflater
+ * holds a few hundred KB of native memory that is only freed by end(), so creating one
+ * per bag or per entry is expensive. Deflaters are reset before they go back in the pool.
+ */
+final class DeflaterPool {
+
+    // The most Deflaters that are kept around when they aren't being used
+    private static final int MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<Deflater> idle = new ArrayBlockingQueue<>(MAX_IDLE);
+
+    private DeflaterPool() {
+    }
+
+    /**
+     * Takes a Deflater from the pool, or creates one when the pool is empty.
+     *
+     * @param level The compression level the Deflater should use
+     * @return A Deflater that's ready for new input
+     */
+    static Deflater acquire(int level) {
+        Deflater deflater = idle.poll();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /**
+     * Gives a Deflater back to the pool, or frees it when the pool is full.
+     *
+     * @param deflater The Deflater that's no longer used
+     */
+    static void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+}
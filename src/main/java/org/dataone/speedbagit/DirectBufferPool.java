@@ -0,0 +1,156 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of direct ByteBuffers, used when bags are written to a channel. Direct
+ * buffers live outside of the Java heap, so the payload of large bags doesn't churn the
+ * young generation, and they're kept for reuse because allocating and freeing them is
+ * slow. At most maxBuffers buffers are ever allocated; when they're all in use, acquire()
+ * returns null and the bag falls back to heap buffers.
+ */
+public final class DirectBufferPool {
+
+    // The size of each buffer
+    private final int bufferSize;
+    // The most buffers that may be allocated
+    private final int maxBuffers;
+    // Buffers that aren't in use
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    // The number of buffers that have been allocated
+    private final AtomicInteger allocated = new AtomicInteger();
+    // The number of buffers that are in use
+    private final AtomicInteger inUse = new AtomicInteger();
+    // The number of times that a buffer was asked for when there was none left
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Creates an empty pool. Buffers are only allocated when they're first needed.
+     *
+     * @param bufferSize The size of each buffer in bytes
+     * @param maxBuffers The most buffers that the pool may allocate
+     */
+    public DirectBufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize <= 0 || maxBuffers <= 0) {
+            throw new IllegalArgumentException("The buffer size and the number of buffers must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one when none are idle and the pool isn't full.
+     *
+     * @return A cleared buffer, or null when every buffer is in use
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            int count;
+            do {
+                count = allocated.get();
+                if (count >= maxBuffers) {
+                    exhausted.incrementAndGet();
+                    return null;
+                }
+            } while (!allocated.compareAndSet(count, count + 1));
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        inUse.incrementAndGet();
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer that came from acquire() back to the pool.
+     *
+     * @param buffer The buffer that's no longer used
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer doesn't belong to this pool");
+        }
+        inUse.decrementAndGet();
+        idle.offer(buffer);
+    }
+
+    /**
+     * Returns the size of each buffer
+     *
+     * @return The size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the most buffers that the pool may allocate
+     *
+     * @return The buffer limit
+     */
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * Returns the number of buffers that have been allocated, which are all kept by the pool
+     *
+     * @return The number of buffers
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of buffers that are in use
+     *
+     * @return The number of buffers
+     */
+    public int getInUseCount() {
+        return inUse.get();
+    }
+
+    /**
+     * Returns the number of direct bytes held by the pool
+     *
+     * @return The size of all of the allocated buffers
+     */
+    public long getAllocatedBytes() {
+        return (long) allocated.get() * bufferSize;
+    }
+
+    /**
+     * Returns the number of times that a buffer was needed when all of them were in use
+     *
+     * @return The number of times the pool ran out
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
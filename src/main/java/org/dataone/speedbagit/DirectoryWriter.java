@@ -0,0 +1,294 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes a bag as a directory tree of loose files, for tools that want the bag on disk
+ * rather than an archive. Every entry becomes a file under the bag's directory, created
+ * along with its parent directories. Existing files are never overwritten.
+ *
+ * The data files are copied with copy(), which is safe to call from several threads at
+ * once. A data file that was added as a file on the same filesystem can be hard linked
+ * instead of copied; it's still read once, to checksum it.
+ *
+ * The writer is its own Metered destination: it counts the bytes written to the files and
+ * the time spent writing them.
+ */
+final class DirectoryWriter extends BagSerializer implements Metered {
+    private final static Log logger = LogFactory.getLog(DirectoryWriter.class);
+
+    // The directory of the bag
+    private final Path root;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder entryCount = new LongAdder();
+    // The file of the entry that's being streamed, if any
+    private FileChannel entry;
+    private boolean closed;
+
+    /**
+     * Creates a writer, along with the directory if it doesn't exist
+     *
+     * @param root The directory that the bag's files are written to
+     */
+    DirectoryWriter(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        Files.createDirectories(this.root);
+    }
+
+    /**
+     * Copies a data file into the bag, checksumming it on the way
+     *
+     * @param file     The file to copy
+     * @param buffer   The buffer that the file is copied through
+     * @param link     Whether to hard link the file when it's a file on the same filesystem
+     * @param measured Whether the time spent reading and checksumming the file is measured
+     * @return The metrics of the file
+     */
+    FileMetrics copy(SpeedFile file, ByteBuffer buffer, boolean link, boolean measured) throws IOException {
+        SpeedStream stream = file.getStream();
+        stream.setTimed(measured);
+        Path target = resolve(file.getPath());
+        long writeNanos = 0;
+        boolean linked = link && link(stream, target);
+        if (linked) {
+            // The file is in place, it only needs its checksum
+            do {
+                ((Buffer) buffer).clear();
+            } while (stream.read(buffer) != -1);
+        } else {
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                while (true) {
+                    ((Buffer) buffer).clear();
+                    if (stream.read(buffer) == -1) {
+                        break;
+                    }
+                    ((Buffer) buffer).flip();
+                    long start = System.nanoTime();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    writeNanos += System.nanoTime() - start;
+                }
+            }
+            count.add(stream.getSize());
+            nanos.add(writeNanos);
+        }
+        entryCount.increment();
+        return new FileMetrics(file.getPath(), file.isTagFile(), stream.getSize(), linked ? 0 : stream.getSize(),
+                stream.getReadNanos(), stream.getHashNanos(), 0, writeNanos);
+    }
+
+    /**
+     * Hard links the source of a stream to a path, when the source is a file
+     *
+     * @return Whether the file was linked
+     */
+    private static boolean link(SpeedStream stream, Path target) throws IOException {
+        if (!(stream.getSource() instanceof SourceInputStream)) {
+            return false;
+        }
+        Path source = ((SourceInputStream) stream.getSource()).getSource().path();
+        if (source == null) {
+            return false;
+        }
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // Another filesystem, or one without hard links
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Copying %s instead of linking it: %s", source, e));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Hard links the duplicate to the original's file, or copies the file when it can't be
+     * linked
+     */
+    @Override
+    void writeDuplicate(String name, String original) throws IOException {
+        ensureOpen();
+        closeEntry();
+        Path target = resolve(name);
+        Path source = resolve(original);
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (Files.exists(target)) {
+                throw e;
+            }
+            Files.copy(source, target);
+        }
+        entryCount.increment();
+    }
+
+    @Override
+    void writeEntry(String name, byte[] data, int off, int len) throws IOException {
+        writeEntry(name, ByteBuffer.wrap(data, off, len));
+    }
+
+    @Override
+    void writeEntry(String name, ByteBuffer data) throws IOException {
+        putNextEntry(name, data.remaining());
+        write(data);
+        closeEntry();
+    }
+
+    @Override
+    void putNextEntry(String name, long size) throws IOException {
+        ensureOpen();
+        closeEntry();
+        entry = FileChannel.open(resolve(name), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    void write(ByteBuffer data) throws IOException {
+        if (entry == null) {
+            throw new IOException("No entry has been started");
+        }
+        long start = System.nanoTime();
+        int len = data.remaining();
+        while (data.hasRemaining()) {
+            entry.write(data);
+        }
+        nanos.add(System.nanoTime() - start);
+        count.add(len);
+    }
+
+    @Override
+    void closeEntry() throws IOException {
+        if (entry == null) {
+            return;
+        }
+        FileChannel channel = entry;
+        entry = null;
+        channel.close();
+        entryCount.increment();
+    }
+
+    @Override
+    void finish() throws IOException {
+        ensureOpen();
+        closeEntry();
+        closed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            finish();
+        }
+    }
+
+    /**
+     * Closes the file that's being written without finishing the bag. The files that were
+     * written are left in the directory.
+     */
+    @Override
+    void release() {
+        closed = true;
+        if (entry != null) {
+            try {
+                entry.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close " + e.getMessage());
+            }
+            entry = null;
+        }
+    }
+
+    /**
+     * Not supported: a bag that's written to a directory isn't resumed
+     */
+    @Override
+    void restore(long written, long entryCount, byte[] state) throws IOException {
+        throw new IOException("Bags written to a directory can't be resumed");
+    }
+
+    @Override
+    long getBytesWritten() {
+        return count.sum();
+    }
+
+    @Override
+    long getEntryCount() {
+        return entryCount.sum();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * Resolves the path of an entry in the bag's directory and creates its parents
+     *
+     * @throws IOException When the path leads out of the bag's directory
+     */
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new IOException(name + " isn't a path inside the bag");
+        }
+        Files.createDirectories(path.getParent());
+        return path;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The bag has already been finished");
+        }
+    }
+}
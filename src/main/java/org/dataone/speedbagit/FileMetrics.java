@@ -0,0 +1,117 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * The bytes and timings recorded while a single file was written to a bag.
+ */
+public class FileMetrics {
+    private final String path;
+    private final boolean isTagFile;
+    private final long bytes;
+    private final long compressedBytes;
+    private final long readNanos;
+    private final long hashNanos;
+    private final long deflateNanos;
+    private final long stallNanos;
+
+    /**
+     * Creates a new set of file metrics.
+     *
+     * @param path            The path of the file, relative to the bag root
+     * @param isTagFile       Whether the file is a tag file
+     * @param bytes           The number of uncompressed bytes in the file
+     * @param compressedBytes The number of bytes the file took up in the bag, headers included
+     * @param readNanos       The time spent waiting on the file's source
+     * @param hashNanos       The time spent checksumming the file
+     * @param deflateNanos    The time spent compressing the file
+     * @param stallNanos      The time spent waiting for the output to be drained
+     */
+    public FileMetrics(String path, boolean isTagFile, long bytes, long compressedBytes,
+                       long readNanos, long hashNanos, long deflateNanos, long stallNanos) {
+        this.path = path;
+        this.isTagFile = isTagFile;
+        this.bytes = bytes;
+        this.compressedBytes = compressedBytes;
+        this.readNanos = readNanos;
+        this.hashNanos = hashNanos;
+        this.deflateNanos = deflateNanos;
+        this.stallNanos = stallNanos;
+    }
+
+    /**
+     * @return The path of the file, relative to the bag root
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return Whether the file is a BagIt tag file
+     */
+    public boolean isTagFile() {
+        return isTagFile;
+    }
+
+    /**
+     * @return The number of uncompressed bytes in the file
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of bytes written to the output for the file, headers included
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return The nanoseconds spent waiting on the file's source
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent checksumming the file
+     */
+    public long getHashNanos() {
+        return hashNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent compressing the file
+     */
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * @return The nanoseconds spent waiting for the consumer to drain the output
+     */
+    public long getStallNanos() {
+        return stallNanos;
+    }
+}
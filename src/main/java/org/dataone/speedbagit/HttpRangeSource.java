@@ -0,0 +1,449 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A PayloadSource for an object that's served over HTTP, such as an object in an S3
+ * compatible store behind a presigned URL. A single GET is limited to what one connection
+ * can carry, which is usually far less than what the store can serve, so large objects are
+ * read with several concurrent range requests. The ranges are put back in order as the
+ * stream is read, and only a few of them are held at once: the one being read and the
+ * ones that the connections are fetching. A range that fails is retried on its own.
+ *
+ * The first request asks for the first range, and its Content-Range tells the size of the
+ * object. Objects that fit in one range are read with that request alone, and servers that
+ * don't serve ranges are read as a single GET. The other ranges are requested with the
+ * object's ETag in If-Match, so that an object that changes while it's read fails instead
+ * of being mixed from two versions.
+ *
+ * Requests aren't signed, so a private bucket needs presigned URLs or headers set with
+ * setHeader.
+ */
+public final class HttpRangeSource implements PayloadSource {
+    private final static Log logger = LogFactory.getLog(HttpRangeSource.class);
+
+    // The default size of each range request
+    public static final int DEFAULT_RANGE_SIZE = 8 << 20;
+    // The default number of concurrent range requests of an object
+    public static final int DEFAULT_CONNECTIONS = 4;
+    // The default number of times a failed request is retried
+    public static final int DEFAULT_RETRIES = 3;
+    // The default connect and read timeout, in milliseconds
+    public static final int DEFAULT_TIMEOUT = 30000;
+    // The delay before the first retry, which doubles with each retry
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final URL url;
+    private final long size;
+    private int rangeSize = DEFAULT_RANGE_SIZE;
+    private int connections = DEFAULT_CONNECTIONS;
+    private int retries = DEFAULT_RETRIES;
+    private int timeout = DEFAULT_TIMEOUT;
+    // Headers that are added to every request
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    /**
+     * Creates a source for an object whose size isn't known until it's read
+     *
+     * @param url The URL of the object
+     */
+    public HttpRangeSource(URL url) {
+        this(url, -1);
+    }
+
+    /**
+     * Creates a source for an object whose size is known, such as from a bucket listing
+     *
+     * @param url The URL of the object
+     * @param size The number of bytes in the object, or -1 when it isn't known
+     */
+    public HttpRangeSource(URL url, long size) {
+        String protocol = url.getProtocol();
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            throw new IllegalArgumentException("Not an HTTP URL: " + url);
+        }
+        this.url = url;
+        this.size = size;
+    }
+
+    /**
+     * Sets the number of bytes that each range request asks for. Each connection holds a
+     * range in memory.
+     *
+     * @param rangeSize The size of a range, in bytes
+     */
+    public void setRangeSize(int rangeSize) {
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("The range size must be positive, not " + rangeSize);
+        }
+        this.rangeSize = rangeSize;
+    }
+
+    /**
+     * Sets how many ranges of the object are requested at once
+     *
+     * @param connections The number of concurrent requests
+     */
+    public void setConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection is needed, not " + connections);
+        }
+        this.connections = connections;
+    }
+
+    /**
+     * Sets how many times a request is retried when it fails with an I/O error, a 429 or a
+     * 5xx status
+     *
+     * @param retries The number of retries, 0 for none
+     */
+    public void setRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("The number of retries can't be negative: " + retries);
+        }
+        this.retries = retries;
+    }
+
+    /**
+     * Sets the connect and read timeout of the requests
+     *
+     * @param timeout The timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("The timeout can't be negative: " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a header to every request, such as Authorization
+     *
+     * @param name The name of the header
+     * @param value Its value
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Requests the first range of the object, and returns a stream that requests the rest
+     * of it as it's read
+     */
+    @Override
+    public InputStream open() throws IOException {
+        return retry("the first bytes of " + url, () -> {
+            HttpURLConnection connection = connect(0, rangeSize - 1, null);
+            boolean opened = false;
+            try {
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    // The server ignored the range, so the object is read in one piece
+                    InputStream body = connection.getInputStream();
+                    opened = true;
+                    return new FilterInputStream(body) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                connection.disconnect();
+                            }
+                        }
+                    };
+                }
+                if (status == 416) {
+                    // An empty object has no first byte
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                long[] range = checkRange(connection, status, 0);
+                byte[] first = readBody(connection, (int) (range[1] + 1));
+                if (range[2] <= first.length) {
+                    return new ByteArrayInputStream(first);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Reading %s, %d bytes, with %d connections", url, range[2],
+                            connections));
+                }
+                return new RangedInputStream(first, range[2], connection.getHeaderField("ETag"));
+            } finally {
+                if (!opened) {
+                    connection.disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a range of the object
+     *
+     * @param start The offset of its first byte
+     * @param end The offset of its last byte
+     * @param etag The ETag the object had when it was opened, or null
+     */
+    private byte[] fetch(long start, long end, String etag) throws IOException {
+        return retry(String.format("bytes %d-%d of %s", start, end, url), () -> {
+            HttpURLConnection connection = connect(start, end, etag);
+            try {
+                checkRange(connection, connection.getResponseCode(), start);
+                return readBody(connection, (int) (end - start + 1));
+            } finally {
+                connection.disconnect();
+            }
+        });
+    }
+
+    private HttpURLConnection connect(long start, long end, String etag) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        if (etag != null) {
+            connection.setRequestProperty("If-Match", etag);
+        }
+        return connection;
+    }
+
+    /**
+     * Checks that a response is the range that was asked for
+     *
+     * @return The first and last offsets of the range, and the size of the object
+     */
+    private long[] checkRange(HttpURLConnection connection, int status, long start) throws IOException {
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            String message = String.format("GET %s returned %d %s", url, status, connection.getResponseMessage());
+            boolean retryable = status == 429 || status >= 500;
+            throw retryable ? new IOException(message) : new HttpStatusException(message);
+        }
+        String contentRange = connection.getHeaderField("Content-Range");
+        Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (matcher == null || !matcher.matches() || matcher.group(3).equals("*")
+                || Long.parseLong(matcher.group(1)) != start) {
+            throw new HttpStatusException(String.format("GET %s returned the range %s instead of one from %d",
+                    url, contentRange, start));
+        }
+        return new long[]{start, Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3))};
+    }
+
+    /**
+     * Reads a response body that has a number of bytes
+     */
+    private static byte[] readBody(HttpURLConnection connection, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (InputStream in = connection.getInputStream()) {
+            int position = 0;
+            while (position < length) {
+                int read = in.read(bytes, position, length - position);
+                if (read < 0) {
+                    throw new EOFException(String.format("The response ended after %d of %d bytes",
+                            position, length));
+                }
+                position += read;
+            }
+        }
+        return bytes;
+    }
+
+    private interface Request<T> {
+        T send() throws IOException;
+    }
+
+    /**
+     * Sends a request until it succeeds, it fails with a status that isn't worth retrying,
+     * or it runs out of retries, waiting longer between each try
+     */
+    private <T> T retry(String description, Request<T> request) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return request.send();
+            } catch (HttpStatusException | InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    throw new IOException(String.format("Failed to read %s after %d attempts", description,
+                            attempt + 1), e);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Retrying %s: %s", description, e));
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS << Math.min(attempt, 10));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while retrying " + description);
+                }
+            }
+        }
+    }
+
+    /**
+     * A response whose status means that asking again won't help
+     */
+    private static final class HttpStatusException extends IOException {
+        HttpStatusException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the object's ranges in order while the next ones are fetched on threads of
+     * its own, one per connection
+     */
+    private final class RangedInputStream extends InputStream {
+        private final long total;
+        private final String etag;
+        private final ExecutorService fetchers;
+        // The ranges that are being fetched, in order
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        // The offset of the first byte that hasn't been requested yet
+        private long requested;
+        // The range that's being read
+        private byte[] current;
+        private int position;
+        private boolean closed;
+
+        RangedInputStream(byte[] first, long total, String etag) {
+            this.total = total;
+            this.etag = etag;
+            this.current = first;
+            this.requested = first.length;
+            long ranges = (total - requested + rangeSize - 1) / rangeSize;
+            this.fetchers = Executors.newFixedThreadPool((int) Math.min(connections, ranges), runnable -> {
+                Thread thread = new Thread(runnable, "speedbagit-range-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < connections; i++) {
+                requestNext();
+            }
+        }
+
+        private void requestNext() {
+            if (requested >= total) {
+                return;
+            }
+            long start = requested;
+            long end = Math.min(total, start + rangeSize) - 1;
+            requested = end + 1;
+            pending.add(fetchers.submit(() -> fetch(start, end, etag)));
+        }
+
+        /**
+         * Moves to the next range once the current one has been read
+         *
+         * @return Whether there are bytes left
+         */
+        private boolean fill() throws IOException {
+            if (closed) {
+                throw new IOException("The stream is closed");
+            }
+            while (position == current.length) {
+                Future<byte[]> next = pending.poll();
+                if (next == null) {
+                    return false;
+                }
+                try {
+                    current = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading " + url);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause
+                            : new IOException("Failed to read " + url, cause);
+                }
+                position = 0;
+                requestNext();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? current[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return closed ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                for (Future<byte[]> range : pending) {
+                    range.cancel(true);
+                }
+                pending.clear();
+                fetchers.shutdownNow();
+            }
+        }
+    }
+}
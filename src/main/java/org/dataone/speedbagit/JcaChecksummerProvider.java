@@ -0,0 +1,58 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+/**
+ * A ChecksummerProvider that takes MessageDigests from a specific JCA security provider
+ * instead of the JVM's default, which lets an application use a faster provider (for
+ * example a native one) for the bags it creates without installing it JVM wide.
+ *
+ *   Checksummers.register(new JcaChecksummerProvider(fasterProvider));
+ */
+public class JcaChecksummerProvider implements ChecksummerProvider {
+
+    // The security provider that the digests come from
+    private final Provider provider;
+
+    /**
+     * Creates a provider for the digests of a JCA security provider
+     *
+     * @param provider The security provider
+     */
+    public JcaChecksummerProvider(Provider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Checksummer create(String algorithm) {
+        try {
+            return new MessageDigestChecksummer(MessageDigest.getInstance(algorithm, provider));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
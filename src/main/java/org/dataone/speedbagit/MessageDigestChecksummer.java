@@ -0,0 +1,88 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * A Checksummer backed by java.security.MessageDigest. This is the default for every
+ * algorithm supported by the JVM's security providers (MD5, SHA-1, SHA-256, SHA-512...).
+ * HotSpot already uses the CPU's SHA instructions for the SUN provider's SHA digests
+ * when they're available.
+ */
+public class MessageDigestChecksummer implements Checksummer {
+
+    // The digest that does the work
+    private final MessageDigest digest;
+
+    /**
+     * Wraps a MessageDigest
+     *
+     * @param digest The digest that computes the checksum
+     */
+    public MessageDigestChecksummer(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return digest.getAlgorithm();
+    }
+
+    @Override
+    public void update(byte b) {
+        digest.update(b);
+    }
+
+    @Override
+    public void update(byte[] buf, int off, int len) {
+        digest.update(buf, off, len);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        // MessageDigestSpi copies direct buffers through a small array of its own, a few KB
+        // at a time, which costs a few percent over hashing a heap array
+        digest.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return digest.digest();
+    }
+
+    @Override
+    public void reset() {
+        digest.reset();
+    }
+
+    /**
+     * Returns the wrapped MessageDigest
+     *
+     * @return The digest
+     */
+    public MessageDigest getMessageDigest() {
+        return digest;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * The destination of a bag that counts the bytes written to it and the time spent
+ * waiting on it.
+ */
+interface Metered {
+
+    /**
+     * Returns the number of bytes that have been written
+     *
+     * @return The byte count
+     */
+    long getCount();
+
+    /**
+     * Returns the time spent blocked on the destination
+     *
+     * @return The number of nanoseconds spent writing
+     */
+    long getNanos();
+}
@@ -0,0 +1,80 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A WritableByteChannel that counts the bytes written through it and the time spent
+ * waiting on the channel underneath. It's the channel counterpart of MeteredOutputStream,
+ * used when a bag is streamed to a channel.
+ */
+public class MeteredChannel implements WritableByteChannel, Metered {
+
+    // The channel being measured
+    private final WritableByteChannel channel;
+    // The number of bytes written
+    private long count;
+    // Nanoseconds spent inside the underlying channel's write
+    private long nanos;
+
+    /**
+     * Creates a new metered channel
+     *
+     * @param channel The channel being measured
+     */
+    public MeteredChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        long start = System.nanoTime();
+        int written = channel.write(src);
+        this.nanos += System.nanoTime() - start;
+        this.count += written;
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getNanos() {
+        return nanos;
+    }
+}
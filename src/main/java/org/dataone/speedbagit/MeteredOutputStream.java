@@ -0,0 +1,82 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that counts the bytes written through it and the time spent
+ * waiting on the stream underneath. When the underlying stream is the pipe to the
+ * client, that time is how long the bag stalled because the client wasn't reading.
+ */
+public class MeteredOutputStream extends FilterOutputStream implements Metered {
+
+    // The number of bytes written
+    private long count;
+    // Nanoseconds spent inside the underlying stream's write & flush
+    private long nanos;
+
+    /**
+     * Creates a new metered stream
+     *
+     * @param out The stream being measured
+     */
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        this.nanos += System.nanoTime() - start;
+        this.count++;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(buf, off, len);
+        this.nanos += System.nanoTime() - start;
+        this.count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        out.flush();
+        this.nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public long getNanos() {
+        return nanos;
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BLAKE3 Checksummer that hashes large inputs on several cores. The input is gathered
+ * into segments of segmentSize bytes; every complete segment is a complete subtree of the
+ * BLAKE3 tree, so its chaining value is computed on a worker thread while the stream keeps
+ * reading. The subtrees are then merged in order, which gives exactly the same checksum as
+ * the sequential Blake3Checksummer and b3sum, so the manifest stays manifest-blake3.txt.
+ *
+ * The chaining value of each complete segment is kept as a leaf digest. A single segment of a
+ * file can later be re-verified by computing Blake3Checksummer.subtreeChainingValue over just
+ * that range and comparing it with the matching leaf digest.
+ *
+ * At most maxInFlight segments are hashed at once; their buffers are reused between files.
+ */
+public class ParallelBlake3Checksummer extends Blake3Checksummer {
+
+    // The default segment size, 1 MB
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    // The most segment buffers that are kept around for reuse
+    private static final int MAX_FREE_SEGMENTS = 64;
+    // Segment buffers that are free to be reused, shared by every instance
+    private static final ConcurrentLinkedQueue<byte[]> freeSegments = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger freeSegmentCount = new AtomicInteger();
+
+    // The number of bytes in a segment, a power of two number of chunks
+    private final int segmentSize;
+    // The number of chunks in a segment
+    private final int segmentChunks;
+    // The threads that hash the segments
+    private final ExecutorService executor;
+    // The maximum number of segments being hashed at once
+    private final int maxInFlight;
+
+    // The segment that's being filled
+    private byte[] segment;
+    private int segmentLength;
+    // The index of the first chunk of the segment that's being filled
+    private long segmentChunkCounter;
+    // Segments that are being hashed, oldest first
+    private final ArrayDeque<PendingSegment> inFlight = new ArrayDeque<>();
+    // Chaining values of the segments that were merged so far
+    private List<byte[]> leafDigests = new ArrayList<>();
+    // Leaf digests of the last input that was digested
+    private List<byte[]> lastLeafDigests = Collections.emptyList();
+
+    /**
+     * Creates a Checksummer with 1 MB segments that hashes on the common fork join pool.
+     */
+    public ParallelBlake3Checksummer() {
+        this(DEFAULT_SEGMENT_SIZE, ForkJoinPool.commonPool(),
+                Math.max(2, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a Checksummer that hashes on a specific executor
+     *
+     * @param segmentSize The size of the segments that are hashed in parallel. Must be a
+     *                    power of two and at least two chunks (2 KB)
+     * @param executor    The threads that hash the segments
+     * @param maxInFlight The maximum number of segments hashed at once, which bounds the
+     *                    memory used to segmentSize * (maxInFlight + 1)
+     */
+    public ParallelBlake3Checksummer(int segmentSize, ExecutorService executor, int maxInFlight) {
+        if (Integer.bitCount(segmentSize) != 1 || segmentSize < 2 * CHUNK_LEN) {
+            throw new IllegalArgumentException("The segment size must be a power of two of at least "
+                    + 2 * CHUNK_LEN + " bytes");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one segment must be allowed in flight");
+        }
+        this.segmentSize = segmentSize;
+        this.segmentChunks = segmentSize / CHUNK_LEN;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void update(byte b) {
+        if (segmentLength == segmentSize) {
+            dispatchSegment();
+        }
+        if (segment == null) {
+            segment = takeSegment();
+        }
+        segment[segmentLength++] = b;
+    }
+
+    @Override
+    public void update(byte[] buf, int off, int len) {
+        while (len > 0) {
+            // A full segment is only sent off once more input shows that it isn't the root
+            if (segmentLength == segmentSize) {
+                dispatchSegment();
+            }
+            if (segment == null) {
+                segment = takeSegment();
+            }
+            int copy = Math.min(segmentSize - segmentLength, len);
+            System.arraycopy(buf, off, segment, segmentLength, copy);
+            segmentLength += copy;
+            off += copy;
+            len -= copy;
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        while (!inFlight.isEmpty()) {
+            mergeOldest();
+        }
+        // The last segment can be the root, so it's hashed in order on this thread
+        if (segment != null) {
+            super.update(segment, 0, segmentLength);
+            releaseSegment(segment);
+            segment = null;
+        }
+        List<byte[]> leaves = leafDigests;
+        // Digesting resets the state, including the leaf digests
+        byte[] result = super.digest();
+        lastLeafDigests = Collections.unmodifiableList(leaves);
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        if (inFlight != null) {
+            for (PendingSegment pending : inFlight) {
+                pending.future.cancel(false);
+            }
+            inFlight.clear();
+            leafDigests = new ArrayList<>();
+            segmentLength = 0;
+            segmentChunkCounter = 0;
+        }
+        super.reset();
+    }
+
+    /**
+     * Returns the chaining values of the complete segments of the last input that was
+     * digested, in order. The final segment isn't included, because it is part of the
+     * root; it is covered by the checksum itself.
+     *
+     * @return The 32 byte leaf digests
+     */
+    public List<byte[]> getLeafDigests() {
+        return lastLeafDigests;
+    }
+
+    /**
+     * Returns the number of bytes covered by each leaf digest
+     *
+     * @return The segment size
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    private void dispatchSegment() {
+        if (inFlight.size() >= maxInFlight) {
+            mergeOldest();
+        }
+        final byte[] full = segment;
+        final long counter = segmentChunkCounter;
+        Future<int[]> future = executor.submit(
+                () -> subtreeChainingValue(full, 0, segmentChunks, counter));
+        inFlight.add(new PendingSegment(full, future));
+        segmentChunkCounter += segmentChunks;
+        segment = null;
+        segmentLength = 0;
+    }
+
+    private void mergeOldest() {
+        PendingSegment pending = inFlight.poll();
+        int[] cv;
+        try {
+            cv = pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing a segment", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to hash a segment", e.getCause());
+        }
+        releaseSegment(pending.buffer);
+        addSubtree(cv, segmentChunks);
+        byte[] leaf = new byte[OUT_LEN];
+        for (int i = 0; i < 8; i++) {
+            leaf[i * 4] = (byte) cv[i];
+            leaf[i * 4 + 1] = (byte) (cv[i] >>> 8);
+            leaf[i * 4 + 2] = (byte) (cv[i] >>> 16);
+            leaf[i * 4 + 3] = (byte) (cv[i] >>> 24);
+        }
+        leafDigests.add(leaf);
+    }
+
+    private byte[] takeSegment() {
+        byte[] free;
+        while ((free = freeSegments.poll()) != null) {
+            freeSegmentCount.decrementAndGet();
+            if (free.length == segmentSize) {
+                return free;
+            }
+        }
+        return new byte[segmentSize];
+    }
+
+    private static void releaseSegment(byte[] buffer) {
+        if (freeSegmentCount.incrementAndGet() <= MAX_FREE_SEGMENTS) {
+            freeSegments.offer(buffer);
+        } else {
+            freeSegmentCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A segment that is being hashed, along with its buffer so that it can be reused.
+     */
+    private static class PendingSegment {
+        final byte[] buffer;
+        final Future<int[]> future;
+
+        PendingSegment(byte[] buffer, Future<int[]> future) {
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+}
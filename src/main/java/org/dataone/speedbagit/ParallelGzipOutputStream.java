@@ -0,0 +1,237 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that compresses on several cores. The bytes are cut into 1 MB blocks and
+ * each block is compressed on the common ForkJoinPool as a gzip member of its own. The
+ * members are written in order, and gzip readers (gunzip, tar, GZIPInputStream) read the
+ * concatenated members as one stream. The price is a little compression, since a block
+ * doesn't see the bytes of the one before it.
+ */
+final class ParallelGzipOutputStream extends FilterOutputStream {
+
+    // The number of uncompressed bytes in each gzip member
+    static final int BLOCK_SIZE = 1024 * 1024;
+    // The most blocks being compressed at once, before writing waits on the oldest one
+    private static final int MAX_PENDING = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // Room for a member that doesn't compress: its header, trailer and the stored blocks' headers
+    private static final int MEMBER_SIZE = BLOCK_SIZE + BLOCK_SIZE / 64 + 64;
+    // The most memory a stream holds: the block being filled and the pending blocks, with
+    // their compressed members
+    static final long MAX_MEMORY = (long) (MAX_PENDING + 1) * (BLOCK_SIZE + MEMBER_SIZE);
+    // ID1, ID2, deflate, no flags, no time, no extra flags, unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private int level;
+    // The block that's being filled, taken from the BufferPool
+    private byte[] block;
+    private int length;
+    // The blocks that are being compressed, oldest first
+    private final ArrayDeque<Future<Member>> pending = new ArrayDeque<>();
+    private boolean wroteMember;
+
+    /**
+     * Creates a stream
+     *
+     * @param out   The stream that the gzip members are written to
+     * @param level The deflate compression level (0-9, or -1 for the default)
+     */
+    ParallelGzipOutputStream(OutputStream out, int level) {
+        super(out);
+        this.level = level;
+    }
+
+    /**
+     * Changes the compression level of the blocks that haven't been started yet
+     *
+     * @param level The deflate compression level (0-9, or -1 for the default)
+     */
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (block == null) {
+            block = BufferPool.acquire(BLOCK_SIZE);
+        }
+        block[length++] = (byte) b;
+        if (length == BLOCK_SIZE) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (block == null) {
+                block = BufferPool.acquire(BLOCK_SIZE);
+            }
+            int n = Math.min(len, BLOCK_SIZE - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == BLOCK_SIZE) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Compresses the bytes so far as a member, waits for every member to be written and
+     * flushes the stream underneath
+     */
+    @Override
+    public void flush() throws IOException {
+        if (length > 0) {
+            submit();
+        }
+        drain(0);
+        out.flush();
+    }
+
+    /**
+     * Writes the rest of the bytes without closing the stream underneath
+     */
+    void finish() throws IOException {
+        if (length > 0 || !wroteMember && pending.isEmpty()) {
+            // An empty stream still needs a member to be valid gzip
+            submit();
+        }
+        drain(0);
+        out.flush();
+        if (block != null) {
+            BufferPool.release(block);
+            block = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Stops compressing without writing the rest of the stream. Used when the bag fails
+     * part way through.
+     */
+    void release() {
+        for (Future<Member> member : pending) {
+            member.cancel(false);
+        }
+        pending.clear();
+        block = null;
+    }
+
+    private void submit() throws IOException {
+        byte[] input = block == null ? BufferPool.acquire(BLOCK_SIZE) : block;
+        int inputLength = length;
+        int memberLevel = level;
+        block = null;
+        length = 0;
+        pending.add(ForkJoinPool.commonPool().submit(() -> compress(input, inputLength, memberLevel)));
+        drain(MAX_PENDING);
+    }
+
+    /**
+     * Writes the oldest members until at most max are left
+     */
+    private void drain(int max) throws IOException {
+        while (pending.size() > max) {
+            Member member;
+            try {
+                member = pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing");
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress a gzip member", e.getCause());
+            }
+            out.write(member.data, 0, member.length);
+            if (member.data.length == MEMBER_SIZE) {
+                BufferPool.release(member.data);
+            }
+            wroteMember = true;
+        }
+    }
+
+    /**
+     * Compresses a block into a complete gzip member, giving the block back to the pool
+     */
+    private static Member compress(byte[] input, int length, int level) {
+        Deflater deflater = DeflaterPool.acquire(level);
+        byte[] output = BufferPool.acquire(MEMBER_SIZE);
+        try {
+            System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+            int position = HEADER.length;
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            // The last 8 bytes are kept for the trailer
+            while (!deflater.finished()) {
+                if (position == output.length - 8) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                position += deflater.deflate(output, position, output.length - 8 - position);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(input, 0, length);
+            ZipStreamWriter.putInt(output, position, (int) crc.getValue());
+            ZipStreamWriter.putInt(output, position + 4, length);
+            return new Member(output, position + 8);
+        } finally {
+            DeflaterPool.release(deflater);
+            BufferPool.release(input);
+        }
+    }
+
+    /**
+     * A compressed block
+     */
+    private static final class Member {
+        final byte[] data;
+        final int length;
+
+        Member(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
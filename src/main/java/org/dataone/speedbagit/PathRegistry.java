@@ -0,0 +1,195 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.text.Normalizer;
+
+/**
+ * Finds the paths of a bag that can't be told apart once the bag is extracted. Besides
+ * paths that are the same, BagIt warns that paths which differ only in case collide on
+ * case-insensitive filesystems, and that paths which differ only in their Unicode
+ * normalization (a composed é and an e followed by a combining accent) collide on
+ * filesystems that normalize names.
+ *
+ * The registry doesn't keep a second copy of the paths. It holds a 64 bit hash of each
+ * path after it's folded (NFC and case folded), in an open addressing table of longs, so
+ * that a bag with millions of files spends 16 bytes or so per file on it and a check is a
+ * single probe. ASCII paths are folded as they're hashed, without allocating. When a hash
+ * is already in the table, the paths that the bag holds are searched for the one that
+ * folds the same, which only happens for real collisions (or once in 2^64 otherwise).
+ */
+final class PathRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // The paths that are registered, searched when a hash is already in the table
+    private final Iterable<String> paths;
+    // The hashes of the folded paths, 0 being an empty slot
+    private long[] table = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Creates a registry for a collection of paths that's kept up to date by the caller
+     *
+     * @param paths The registered paths, which the caller adds each path to after add()
+     */
+    PathRegistry(Iterable<String> paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Finds a registered path that collides with a path once they're folded
+     *
+     * @param path The path that's being added
+     * @return The path that it collides with, or null when it doesn't collide
+     */
+    String findCollision(String path) {
+        long hash = hash(path);
+        if (!contains(hash)) {
+            return null;
+        }
+        String folded = fold(path);
+        for (String registered : paths) {
+            if (fold(registered).equals(folded)) {
+                return registered;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers a path, which should have been checked with findCollision
+     *
+     * @param path The path to register
+     */
+    void add(String path) {
+        long hash = hash(path);
+        if (contains(hash)) {
+            return;
+        }
+        if (2 * (size + 1) > table.length) {
+            grow();
+        }
+        insert(table, hash);
+        size++;
+    }
+
+    /**
+     * Returns the number of distinct folded paths that are registered
+     */
+    int size() {
+        return size;
+    }
+
+    private boolean contains(long hash) {
+        int mask = table.length - 1;
+        for (int i = (int) hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void insert(long[] table, long hash) {
+        int mask = table.length - 1;
+        int i = (int) hash & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = hash;
+    }
+
+    private void grow() {
+        long[] grown = new long[table.length * 2];
+        for (long hash : table) {
+            if (hash != 0) {
+                insert(grown, hash);
+            }
+        }
+        table = grown;
+    }
+
+    /**
+     * Hashes a path as it's folded. ASCII paths are lower cased as they're hashed; other
+     * paths are folded first.
+     *
+     * @param path The path to hash
+     * @return The hash, which is never 0
+     */
+    static long hash(String path) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c >= 0x80) {
+                return hashFolded(fold(path));
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    private static long hashFolded(String folded) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < folded.length(); i++) {
+            hash = (hash ^ folded.charAt(i)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of an FNV hash over the low bits that index the table
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Folds a path to the form that paths which collide share: its NFC normalization, with
+     * each code point simply case folded
+     *
+     * @param path The path to fold
+     * @return The folded path
+     */
+    static String fold(String path) {
+        String normalized = Normalizer.isNormalized(path, Normalizer.Form.NFC) ? path
+                : Normalizer.normalize(path, Normalizer.Form.NFC);
+        StringBuilder folded = new StringBuilder(normalized.length());
+        for (int i = 0; i < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(i);
+            folded.appendCodePoint(Character.toLowerCase(Character.toUpperCase(codePoint)));
+            i += Character.charCount(codePoint);
+        }
+        return folded.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A source of bytes for a file in the bag that is only opened when it's needed.
+ * Unlike passing an open InputStream to addFile, this lets SpeedBagIt decide when
+ * to open each file, so that bags with many files don't hold every file open at
+ * once and the next files can be opened ahead of time (see SpeedBagIt.setPrefetch).
+ */
+public interface PayloadSource {
+
+    /**
+     * Opens the source. Called at most once per bag.
+     *
+     * @return A stream of the source's bytes
+     * @throws IOException When the source can't be opened
+     */
+    InputStream open() throws IOException;
+
+    /**
+     * Opens the source as a channel, which is how it's read when the bag is streamed to a
+     * channel with direct buffers. Either this or open() is called, at most once per bag.
+     * The default wraps open().
+     *
+     * @return A channel of the source's bytes
+     * @throws IOException When the source can't be opened
+     */
+    default ReadableByteChannel openChannel() throws IOException {
+        return Channels.newChannel(open());
+    }
+
+    /**
+     * Returns the number of bytes in the source, if it's known without opening it.
+     *
+     * @return The size in bytes, or -1 when it isn't known
+     */
+    default long size() {
+        return -1;
+    }
+
+    /**
+     * Returns the file that the source reads, when it's a file on a filesystem. A bag
+     * written to a directory can then link the file instead of copying it.
+     *
+     * @return The path of the file, or null when the source isn't a file
+     */
+    default Path path() {
+        return null;
+    }
+
+    /**
+     * Creates a source for a file on a filesystem.
+     *
+     * @param path The path to the file
+     * @return A source that opens the file
+     */
+    static PayloadSource of(Path path) {
+        return new PayloadSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return Files.newInputStream(path);
+            }
+
+            @Override
+            public ReadableByteChannel openChannel() throws IOException {
+                return FileChannel.open(path, StandardOpenOption.READ);
+            }
+
+            @Override
+            public Path path() {
+                return path;
+            }
+
+            @Override
+            public long size() {
+                try {
+                    return Files.size(path);
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+        };
+    }
+}
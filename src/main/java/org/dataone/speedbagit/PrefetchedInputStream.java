@@ -0,0 +1,207 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An InputStream whose bytes are read from a source by a background thread, through a
+ * bounded queue of chunks. The background thread runs fill(), which opens the source (if
+ * it's a lazily opened PayloadSource), reads it until the end and closes it.
+ */
+class PrefetchedInputStream extends InputStream {
+
+    // Marks the end of the source in the queue
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    // The stream that's read by the background thread
+    private final InputStream source;
+    // The size of each read from the source
+    private final int chunkSize;
+    // Chunks that were read but not consumed yet
+    private final BlockingQueue<Chunk> queue;
+    // The chunk that's being consumed
+    private Chunk current;
+    private int position;
+    // Set when the consumer closes the stream, to stop the background thread
+    private volatile boolean closed;
+    // The error the background thread ran into, if any
+    private volatile IOException error;
+    // Whether the background thread has closed the source
+    private boolean sourceClosed;
+
+    PrefetchedInputStream(InputStream source, int chunkSize, int capacity) {
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Reads the source into the queue until the end of the source, an error, or until
+     * the stream is closed. Runs on a prefetch thread.
+     */
+    void fill() {
+        byte[] buffer = null;
+        int length = 0;
+        try {
+            while (!closed) {
+                buffer = new byte[chunkSize];
+                length = 0;
+                int read = 0;
+                // Fill the chunk so that small reads from the source don't make small chunks
+                while (length < chunkSize && (read = source.read(buffer, length, chunkSize - length)) != -1) {
+                    length += read;
+                }
+                if (length > 0 && !put(new Chunk(buffer, length))) {
+                    return;
+                }
+                length = 0;
+                if (read == -1) {
+                    // The source is closed before the reader can see the end, so that it
+                    // no longer counts as open once the file has been written
+                    closeSource();
+                    put(END);
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e instanceof IOException ? (IOException) e : new IOException("Failed to read ahead", e);
+            closeSource();
+            // The bytes read before the error are still handed to the reader
+            if (length > 0 && !put(new Chunk(buffer, length))) {
+                return;
+            }
+            put(END);
+        } finally {
+            closeSource();
+        }
+    }
+
+    private void closeSource() {
+        if (!sourceClosed) {
+            sourceClosed = true;
+            try {
+                source.close();
+            } catch (IOException e) {
+                // The bytes have all been read, there's nothing left to lose
+            }
+        }
+    }
+
+    /**
+     * Adds a chunk to the queue, waiting for space unless the stream gets closed.
+     *
+     * @return False when the stream was closed before there was space
+     */
+    private boolean put(Chunk chunk) {
+        try {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure that there's a chunk with unread bytes, waiting for the background thread.
+     *
+     * @return False at the end of the source
+     */
+    private boolean nextChunk() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        while (current == null || position == current.length) {
+            if (current == END) {
+                if (error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            try {
+                current = queue.take();
+                position = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for prefetched data", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return current.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, buf, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // Free the chunks and any background thread that's waiting for space
+        queue.clear();
+    }
+
+    /**
+     * A block of bytes that was read from the source.
+     */
+    private static class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
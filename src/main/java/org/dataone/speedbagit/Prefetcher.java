@@ -0,0 +1,155 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Opens and starts reading the next few data files of a bag on background threads
+ * while the current file is written. On sources with a high latency per file (network
+ * filesystems, object stores), this hides the time it takes to open each file and
+ * get its first bytes behind the writing of the files before it.
+ *
+ * The prefetcher keeps depth files in flight. Each one may buffer up to
+ * memoryCap / depth bytes, so the bag never holds more than memoryCap bytes of
+ * prefetched data, and a file that's being read ahead can never hold up the file
+ * that is being written.
+ */
+class Prefetcher {
+    private final static Log logger = LogFactory.getLog(Prefetcher.class);
+
+    // The largest read made by a prefetch thread
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // The smallest read made by a prefetch thread
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    // Threads that read ahead, shared by every bag. They spend their time blocked on I/O,
+    // so they don't take from the threads that stream the bags.
+    private static final ExecutorService threads = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "speedbagit-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // The files in the order they are written
+    private final List<SpeedFile> files;
+    // The number of files read ahead at once
+    private final int depth;
+    // The size of each read
+    private final int chunkSize;
+    // The number of chunks each file may buffer
+    private final int chunksPerFile;
+    // The index of the next file to read ahead
+    private int next;
+    // The streams that were handed to a prefetch thread and haven't been written yet, in
+    // the order they're written. Written ones aren't kept, since a bag may have millions.
+    private final ArrayDeque<PrefetchedInputStream> started = new ArrayDeque<>();
+
+    /**
+     * Creates a prefetcher for the files of a bag.
+     *
+     * @param files     The files, in the order they will be written
+     * @param depth     The number of files to read ahead
+     * @param memoryCap The most bytes that may be buffered for the bag
+     */
+    Prefetcher(List<SpeedFile> files, int depth, long memoryCap) {
+        this.files = files;
+        this.depth = depth;
+        long perFile = memoryCap / depth;
+        this.chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, perFile / 4));
+        // The chunk being filled and the chunk being read count against the cap too
+        this.chunksPerFile = (int) Math.max(1, perFile / chunkSize - 2);
+    }
+
+    /**
+     * Starts reading ahead the first files of the bag.
+     */
+    void start() {
+        while (next < depth && next < files.size()) {
+            prefetch(files.get(next++));
+        }
+    }
+
+    /**
+     * Called when a file has been written, so that another file can be read ahead.
+     */
+    void fileCompleted() {
+        started.poll();
+        if (next < files.size()) {
+            prefetch(files.get(next++));
+        }
+    }
+
+    /**
+     * Stops all of the prefetch threads of the bag, for example when the bag fails.
+     */
+    void close() {
+        logger.debug("Stopping " + started.size() + " prefetched streams");
+        for (PrefetchedInputStream stream : started) {
+            stream.close();
+        }
+        started.clear();
+    }
+
+    private void prefetch(SpeedFile file) {
+        SpeedStream stream = file.getStream();
+        PrefetchedInputStream prefetched = new PrefetchedInputStream(stream.getSource(), chunkSize, chunksPerFile);
+        stream.setSource(prefetched);
+        started.add(prefetched);
+        threads.execute(prefetched::fill);
+    }
+
+    /**
+     * Returns the number of files that are read ahead and haven't been written yet
+     */
+    int getInFlightCount() {
+        return started.size();
+    }
+
+    /**
+     * Returns the number of bytes read by each prefetch read
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the number of chunks that each file buffers
+     */
+    int getChunksPerFile() {
+        return chunksPerFile;
+    }
+}
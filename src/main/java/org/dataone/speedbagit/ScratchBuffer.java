@@ -0,0 +1,51 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A small array per thread, used to copy direct buffers to code that only takes arrays.
+ */
+final class ScratchBuffer {
+
+    // The size of each thread's array
+    static final int SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SIZE];
+        }
+    };
+
+    private ScratchBuffer() {
+    }
+
+    /**
+     * Returns the calling thread's array
+     *
+     * @return An array of SIZE bytes
+     */
+    static byte[] get() {
+        return scratch.get();
+    }
+}
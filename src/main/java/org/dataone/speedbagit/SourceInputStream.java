@@ -0,0 +1,136 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An InputStream over a PayloadSource that opens the source on the first read.
+ */
+class SourceInputStream extends InputStream {
+
+    // The source that's opened on the first read
+    private final PayloadSource source;
+    // The opened source, null until the first read
+    private InputStream in;
+    // The source opened as a channel, when it's read through channel()
+    private ReadableByteChannel channel;
+    private boolean closed;
+    // Counts the source while it's open, or null
+    private BagResourceBudget budget;
+
+    SourceInputStream(PayloadSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Sets the budget that the source is counted against while it's open
+     *
+     * @param budget The budget of the bag, or null
+     */
+    void setBudget(BagResourceBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the PayloadSource behind the stream
+     */
+    PayloadSource getSource() {
+        return source;
+    }
+
+    private InputStream opened() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        if (in == null) {
+            in = source.open();
+            if (channel == null && budget != null) {
+                budget.fileOpened();
+            }
+        }
+        return in;
+    }
+
+    /**
+     * Opens the source as a channel, unless it has already been opened as a stream
+     *
+     * @return A channel of the source's bytes
+     */
+    ReadableByteChannel channel() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        if (channel == null) {
+            if (in == null) {
+                channel = source.openChannel();
+                if (budget != null) {
+                    budget.fileOpened();
+                }
+            } else {
+                channel = Channels.newChannel(in);
+            }
+        }
+        return channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return opened().read();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        return opened().read(buf, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in == null ? 0 : in.available();
+    }
+
+    /**
+     * Closes the source and lets go of it, since a bag keeps the streams of all of its files
+     * until it's done, and a channel made from a stream holds a transfer buffer
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed && (in != null || channel != null) && budget != null) {
+            budget.fileClosed();
+        }
+        closed = true;
+        ReadableByteChannel channel = this.channel;
+        InputStream in = this.in;
+        this.channel = null;
+        this.in = null;
+        if (channel != null) {
+            channel.close();
+        }
+        if (in != null) {
+            in.close();
+        }
+    }
+}
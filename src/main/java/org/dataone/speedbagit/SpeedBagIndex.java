@@ -0,0 +1,806 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Reads single files out of a bag that was written to a zip file, without reading the rest
+ * of it. The central directory at the end of the file is memory mapped, and its entries are
+ * sorted by path when the index is opened, so that finding a file is a binary search
+ * through the mapped directory. Opening a file reads its local header and then only its
+ * own bytes, which are inflated as the stream is read. This is what a preview of one file
+ * from a large bag needs, such as its manifest or a single table.
+ *
+ * A stream can also be checked against the bag's manifest, which is read when the stream
+ * is opened. Files under data/ are checked against the first manifest-{algo}.txt, and tag
+ * files against the first tagmanifest-{algo}.txt. A file that doesn't match its manifest
+ * fails with an IOException when the stream reaches its end.
+ *
+ * A bag that was streamed with a sidecar index (see SpeedBagIt.setSidecarIndex), which may
+ * also be a tar bag, can be opened with its sidecar instead. The sidecar is mapped and is
+ * already sorted, so nothing is read from the bag until a file is opened. Its entries have
+ * the offset of their data and their checksum, so a file is read without its local header,
+ * and checked without reading the manifest. Without the bag, the index still finds entries,
+ * which is enough to serve ranges of a bag that's kept elsewhere.
+ *
+ * The index can be shared by threads, which each read their own streams. The directory
+ * stays mapped until the index is garbage collected, even after it's closed.
+ */
+public final class SpeedBagIndex implements Closeable {
+    // The end of central directory record, and the most bytes of comment that can follow it
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_SIZE = 56;
+    // The size of the buffer that entries are inflated from
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path bag;
+    // The bag, or null when the index was opened from a sidecar without its bag
+    private final FileChannel channel;
+    // The central directory, mapped from the end of the bag, or the mapped sidecar
+    private final ByteBuffer directory;
+    // The same bytes in big endian order, so that names can be compared eight bytes at a time
+    private final ByteBuffer names;
+    // The position of each central header in the directory, sorted by path, or null for a
+    // sidecar
+    private final int[] headers;
+    // The layout of a sidecar: its number of records, where they and the paths start, and
+    // the size of a record
+    private final int count;
+    private final int recordsStart;
+    private final int pathsStart;
+    private final int recordSize;
+    // The checksum algorithm of a sidecar's digests, and their length
+    private final String algorithm;
+    private final int digestLength;
+
+    /**
+     * A file in the bag, as its central directory describes it
+     */
+    public static final class Entry {
+        private final String path;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+        private final long dataOffset;
+        private final byte[] digest;
+
+        Entry(String path, int method, long crc, long compressedSize, long size, long offset,
+              long dataOffset, byte[] digest) {
+            this.path = path;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.digest = digest;
+        }
+
+        /**
+         * @return The path of the file in the bag
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The zip compression method: 0 when stored, 8 when deflated, 93 for Zstandard
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return The CRC-32 of the file's bytes, or -1 for the files of a tar bag
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return The number of bytes the file takes in the zip file
+         */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return The number of bytes in the file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The offset of the file's local header in the zip file, or -1 when the
+         *         index is a sidecar
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The offset of the file's data in the bag, which takes getCompressedSize()
+         *         bytes from there, or -1 when the index is a zip file's central directory
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        /**
+         * @return The file's checksum from the sidecar, in hex, or null when the index
+         *         isn't a sidecar
+         */
+        public String getChecksum() {
+            return digest == null ? null : Hex.encodeHexString(digest);
+        }
+    }
+
+    private SpeedBagIndex(Path bag, FileChannel channel) throws IOException {
+        this.bag = bag;
+        this.channel = channel;
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT);
+        ByteBuffer tail = read(fileSize - tailSize, tailSize);
+        // The end record is the last one whose comment runs to the end of the file
+        int end = tailSize - END_SIZE;
+        while (end >= 0 && (tail.getInt(end) != ZipStreamWriter.END_SIGNATURE
+                || end + END_SIZE + (tail.getShort(end + 20) & 0xFFFF) != tailSize)) {
+            end--;
+        }
+        if (end < 0) {
+            throw new IOException(bag + " isn't a zip file");
+        }
+        long endOffset = fileSize - tailSize + end;
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if ((count == ZipStreamWriter.ZIP64_MAGIC_COUNT || size == ZipStreamWriter.ZIP64_MAGIC
+                || offset == ZipStreamWriter.ZIP64_MAGIC) && endOffset >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = read(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZipStreamWriter.ZIP64_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64End = read(locator.getLong(8), ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZipStreamWriter.ZIP64_END_SIGNATURE) {
+                    throw new IOException("The ZIP64 end record of " + bag + " is damaged");
+                }
+                count = zip64End.getLong(32);
+                size = zip64End.getLong(40);
+                offset = zip64End.getLong(48);
+            }
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("The central directory of %s is too large to map (%s)",
+                    bag, SpeedBagIt.formatSize(size)));
+        }
+        if (offset < 0 || offset + size > endOffset || count > size / ZipStreamWriter.CENTRAL_HEADER_SIZE) {
+            throw new IOException("The central directory of " + bag + " is damaged");
+        }
+        this.directory = channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.names = directory.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.count = (int) count;
+        this.recordsStart = 0;
+        this.pathsStart = 0;
+        this.recordSize = 0;
+        this.algorithm = null;
+        this.digestLength = 0;
+        this.headers = new int[(int) count];
+        int position = 0;
+        for (int i = 0; i < headers.length; i++) {
+            if (position + ZipStreamWriter.CENTRAL_HEADER_SIZE > size
+                    || directory.getInt(position) != ZipStreamWriter.CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("The central directory of " + bag + " is damaged");
+            }
+            headers[i] = position;
+            position += ZipStreamWriter.CENTRAL_HEADER_SIZE + shortAt(position + 28)
+                    + shortAt(position + 30) + shortAt(position + 32);
+        }
+        if (position > size) {
+            throw new IOException("The central directory of " + bag + " is damaged");
+        }
+        sort();
+    }
+
+    private SpeedBagIndex(Path bag, FileChannel channel, Path sidecar, ByteBuffer index) throws IOException {
+        this.bag = bag;
+        this.channel = channel;
+        this.directory = index.order(ByteOrder.LITTLE_ENDIAN);
+        this.names = index.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.headers = null;
+        int capacity = index.capacity();
+        if (capacity < BagIndexWriter.HEADER_SIZE || index.getInt(0) != BagIndexWriter.MAGIC) {
+            throw new IOException(sidecar + " isn't a sidecar index");
+        }
+        if (shortAt(4) != BagIndexWriter.VERSION) {
+            throw new IOException(String.format("%s is a version %d sidecar index, which isn't supported",
+                    sidecar, shortAt(4)));
+        }
+        this.digestLength = shortAt(6);
+        this.count = index.getInt(8);
+        int algorithmLength = shortAt(12);
+        this.recordsStart = BagIndexWriter.HEADER_SIZE + algorithmLength;
+        this.recordSize = BagIndexWriter.RECORD_SIZE + digestLength;
+        this.pathsStart = recordsStart + count * recordSize;
+        if (count < 0 || recordsStart > capacity || (capacity - recordsStart) / recordSize < count) {
+            throw new IOException("The sidecar index " + sidecar + " is damaged");
+        }
+        byte[] name = new byte[algorithmLength];
+        ByteBuffer bytes = index.duplicate();
+        ((Buffer) bytes).position(BagIndexWriter.HEADER_SIZE);
+        bytes.get(name);
+        this.algorithm = new String(name, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Opens the index of a bag that was written to a zip file
+     *
+     * @param bag The zip file
+     * @return The index, which has to be closed
+     * @throws IOException When the file can't be read or isn't a zip file
+     */
+    public static SpeedBagIndex open(Path bag) throws IOException {
+        FileChannel channel = FileChannel.open(bag, StandardOpenOption.READ);
+        try {
+            return new SpeedBagIndex(bag, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the index of a bag from the sidecar index that was written with it. Without the
+     * bag, entries can be found but not read.
+     *
+     * @param bag The bag, or null to only find entries
+     * @param sidecar The sidecar index of the bag
+     * @return The index, which has to be closed
+     * @throws IOException When the files can't be read or the sidecar isn't a sidecar index
+     */
+    public static SpeedBagIndex open(Path bag, Path sidecar) throws IOException {
+        ByteBuffer index;
+        try (FileChannel file = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            if (file.size() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("The sidecar index %s is too large to map (%s)",
+                        sidecar, SpeedBagIt.formatSize(file.size())));
+            }
+            index = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        FileChannel channel = bag == null ? null : FileChannel.open(bag, StandardOpenOption.READ);
+        try {
+            return new SpeedBagIndex(bag, channel, sidecar, index);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of files in the bag
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Finds a file in the bag
+     *
+     * @param path The path of the file, such as data/table.csv
+     * @return The file, or null when the bag doesn't have it
+     */
+    public Entry find(String path) {
+        int index = search(path.getBytes(StandardCharsets.UTF_8));
+        return index < 0 ? null : entry(index);
+    }
+
+    /**
+     * Opens a file in the bag, which is inflated as it's read
+     *
+     * @param path The path of the file, such as data/table.csv
+     * @return The file's bytes
+     * @throws NoSuchFileException When the bag doesn't have the file
+     * @throws IOException When the file can't be read
+     */
+    public InputStream newInputStream(String path) throws IOException {
+        return newInputStream(path, false);
+    }
+
+    /**
+     * Opens a file in the bag, which is inflated as it's read, and optionally checked against
+     * the bag's manifest once it has been read to its end
+     *
+     * @param path The path of the file, such as data/table.csv
+     * @param verify Whether the file's checksum is checked against the manifest
+     * @return The file's bytes
+     * @throws NoSuchFileException When the bag doesn't have the file
+     * @throws IOException When the file can't be read, or isn't listed in a manifest
+     */
+    public InputStream newInputStream(String path, boolean verify) throws IOException {
+        Entry entry = find(path);
+        if (entry == null) {
+            throw new NoSuchFileException(path, null, "Not in " + bag);
+        }
+        if (!verify) {
+            return open(entry);
+        }
+        if (entry.digest != null) {
+            return new VerifiedInputStream(open(entry), checksummer(algorithm), path, entry.getChecksum());
+        }
+        Entry manifest = manifestOf(path);
+        String name = manifest.getPath();
+        String algorithm = name.substring(name.indexOf('-') + 1, name.length() - ".txt".length());
+        String checksum = checksumOf(manifest, path);
+        return new VerifiedInputStream(open(entry), checksummer(algorithm), path, checksum);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens the bytes of a file, inflating them when they're compressed
+     */
+    private InputStream open(Entry entry) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("The index was opened without its bag");
+        }
+        long start = entry.getDataOffset();
+        if (start < 0) {
+            ByteBuffer header = read(entry.getOffset(), ZipStreamWriter.LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != ZipStreamWriter.LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("The local header of " + entry.getPath() + " is damaged");
+            }
+            start = entry.getOffset() + ZipStreamWriter.LOCAL_HEADER_SIZE
+                    + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        }
+        InputStream data = new EntryInputStream(channel, start, entry.getCompressedSize());
+        switch (entry.getMethod()) {
+            case ZipStreamWriter.STORED:
+                return data;
+            case ZipStreamWriter.DEFLATED:
+                Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(data, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            case ZipStreamWriter.ZSTD:
+                return new ZstdCodec().newInputStream(data);
+            default:
+                data.close();
+                throw new IOException(String.format("%s is compressed with method %d, which isn't supported",
+                        entry.getPath(), entry.getMethod()));
+        }
+    }
+
+    /**
+     * Returns the first manifest that lists a file: a manifest-{algo}.txt for data files,
+     * and a tagmanifest-{algo}.txt for tag files
+     */
+    private Entry manifestOf(String path) throws IOException {
+        String prefix = path.startsWith("data/") ? "manifest-" : "tagmanifest-";
+        int index = search(prefix.getBytes(StandardCharsets.UTF_8));
+        for (index = -index - 1; index >= 0 && index < count; index++) {
+            Entry entry = entry(index);
+            if (!entry.getPath().startsWith(prefix)) {
+                break;
+            }
+            if (entry.getPath().endsWith(".txt") && entry.getPath().indexOf('/') < 0) {
+                return entry;
+            }
+        }
+        throw new IOException(String.format("%s has no %s{algo}.txt to check %s against", bag, prefix, path));
+    }
+
+    /**
+     * Reads a manifest until it finds the line of a file, returning its checksum
+     */
+    private String checksumOf(Entry manifest, String path) throws IOException {
+        String encoded = BagPaths.encode(path);
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(open(manifest),
+                StandardCharsets.UTF_8))) {
+            for (String line; (line = lines.readLine()) != null; ) {
+                int space = line.indexOf(' ');
+                int start = space + 1;
+                while (start > 0 && start < line.length()
+                        && (line.charAt(start) == ' ' || line.charAt(start) == '\t')) {
+                    start++;
+                }
+                if (space > 0 && line.length() - start == encoded.length() && line.startsWith(encoded, start)) {
+                    return line.substring(0, space);
+                }
+            }
+        }
+        throw new IOException(String.format("%s isn't listed in %s", path, manifest.getPath()));
+    }
+
+    /**
+     * Creates the Checksummer of a manifest's algorithm. Manifest names drop the dashes of
+     * the algorithm, so sha256 is tried as SHA-256 when it isn't known as it is.
+     */
+    private static Checksummer checksummer(String algorithm) throws IOException {
+        try {
+            return Checksummers.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            if (algorithm.matches("sha\\d+")) {
+                try {
+                    return Checksummers.getInstance("SHA-" + algorithm.substring(3));
+                } catch (NoSuchAlgorithmException dashed) {
+                    e.addSuppressed(dashed);
+                }
+            }
+            throw new IOException("The manifest's algorithm isn't supported: " + algorithm, e);
+        }
+    }
+
+    /**
+     * Describes the file with an index in the sorted entries
+     */
+    private Entry entry(int index) {
+        if (headers != null) {
+            return centralEntry(headers[index]);
+        }
+        int record = recordsStart + index * recordSize;
+        int flags = shortAt(record + 36);
+        byte[] digest = null;
+        if ((flags & BagIndexWriter.HAS_DIGEST) != 0) {
+            digest = new byte[digestLength];
+            ByteBuffer bytes = directory.duplicate();
+            ((Buffer) bytes).position(record + BagIndexWriter.RECORD_SIZE);
+            bytes.get(digest);
+        }
+        long crc = (flags & BagIndexWriter.HAS_CRC) != 0 ? directory.getInt(record + 24) & 0xFFFFFFFFL : -1;
+        return new Entry(name(nameAt(index), nameLengthAt(index)), shortAt(record + 34), crc,
+                directory.getLong(record + 8), directory.getLong(record + 16), -1,
+                directory.getLong(record), digest);
+    }
+
+    /**
+     * Describes the file of a central header
+     */
+    private Entry centralEntry(int header) {
+        int nameLength = shortAt(header + 28);
+        int extraLength = shortAt(header + 30);
+        long compressedSize = directory.getInt(header + 20) & 0xFFFFFFFFL;
+        long size = directory.getInt(header + 24) & 0xFFFFFFFFL;
+        long offset = directory.getInt(header + 42) & 0xFFFFFFFFL;
+        int extra = header + ZipStreamWriter.CENTRAL_HEADER_SIZE + nameLength;
+        int extraEnd = extra + extraLength;
+        // The fields that overflowed are in the ZIP64 extra field, in this order
+        while (extra + 4 <= extraEnd) {
+            if (shortAt(extra) == ZipStreamWriter.ZIP64_EXTRA_ID) {
+                int p = extra + 4;
+                if (size == ZipStreamWriter.ZIP64_MAGIC) {
+                    size = directory.getLong(p);
+                    p += 8;
+                }
+                if (compressedSize == ZipStreamWriter.ZIP64_MAGIC) {
+                    compressedSize = directory.getLong(p);
+                    p += 8;
+                }
+                if (offset == ZipStreamWriter.ZIP64_MAGIC) {
+                    offset = directory.getLong(p);
+                }
+                break;
+            }
+            extra += 4 + shortAt(extra + 2);
+        }
+        return new Entry(name(header + ZipStreamWriter.CENTRAL_HEADER_SIZE, nameLength), shortAt(header + 10),
+                directory.getInt(header + 16) & 0xFFFFFFFFL, compressedSize, size, offset, -1, null);
+    }
+
+    /**
+     * Decodes the UTF-8 name at a position
+     */
+    private String name(int position, int length) {
+        byte[] name = new byte[length];
+        ByteBuffer bytes = names.duplicate();
+        ((Buffer) bytes).position(position);
+        bytes.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the position of the name of the entry with an index in the sorted entries
+     */
+    private int nameAt(int index) {
+        if (headers != null) {
+            return headers[index] + ZipStreamWriter.CENTRAL_HEADER_SIZE;
+        }
+        return pathsStart + directory.getInt(recordsStart + index * recordSize + 28);
+    }
+
+    /**
+     * Returns the length of the name of the entry with an index in the sorted entries
+     */
+    private int nameLengthAt(int index) {
+        if (headers != null) {
+            return shortAt(headers[index] + 28);
+        }
+        return shortAt(recordsStart + index * recordSize + 32);
+    }
+
+    /**
+     * Binary searches the sorted entries for a path
+     *
+     * @return The index of the path's entry, or (-(insertion point) - 1) when there's none
+     */
+    private int search(byte[] name) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compare(nameAt(middle), nameLengthAt(middle), name);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compares the bytes of a name in the directory with another name, as unsigned bytes
+     */
+    private int compare(int position, int length, byte[] name) {
+        int n = Math.min(length, name.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (names.get(position + i) & 0xFF) - (name[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Compares the names of two central headers, as unsigned bytes
+     */
+    private int compareHeaders(int a, int b) {
+        int aLength = shortAt(a + 28);
+        int bLength = shortAt(b + 28);
+        int n = Math.min(aLength, bLength);
+        a += ZipStreamWriter.CENTRAL_HEADER_SIZE;
+        b += ZipStreamWriter.CENTRAL_HEADER_SIZE;
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            long x = names.getLong(a + i);
+            long y = names.getLong(b + i);
+            if (x != y) {
+                return Long.compareUnsigned(x, y);
+            }
+        }
+        for (; i < n; i++) {
+            int cmp = (names.get(a + i) & 0xFF) - (names.get(b + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * Sorts the headers by name, with a bottom up merge sort that skips runs that are
+     * already in order, since bags often add their files in order
+     */
+    private void sort() {
+        int n = headers.length;
+        int[] from = headers;
+        int[] to = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                int middle = Math.min(low + width, n);
+                int high = Math.min(low + 2 * width, n);
+                if (middle == high || compareHeaders(from[middle - 1], from[middle]) <= 0) {
+                    System.arraycopy(from, low, to, low, high - low);
+                    continue;
+                }
+                int i = low;
+                int j = middle;
+                int k = low;
+                while (i < middle && j < high) {
+                    to[k++] = compareHeaders(from[j], from[i]) < 0 ? from[j++] : from[i++];
+                }
+                System.arraycopy(from, i, to, k, middle - i);
+                System.arraycopy(from, j, to, k + middle - i, high - j);
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != headers) {
+            System.arraycopy(from, 0, headers, 0, n);
+        }
+    }
+
+    private int shortAt(int position) {
+        return directory.getShort(position) & 0xFFFF;
+    }
+
+    /**
+     * Reads bytes from the bag at a position, as a little endian buffer
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new EOFException(bag + " ends before its central directory says it does");
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the bytes of one entry with positional reads, so that streams of the same bag
+     * don't move each other's position
+     */
+    private static final class EntryInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        EntryInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) {
+                throw new EOFException("The bag ends in the middle of an entry");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Checksums a file as it's read, and compares the checksum with its manifest's once
+     * the file has been read to its end
+     */
+    private static final class VerifiedInputStream extends FilterInputStream {
+        private final String path;
+        private final String expected;
+        private boolean checked;
+
+        VerifiedInputStream(InputStream in, Checksummer checksummer, String path, String expected) {
+            super(new SpeedStream(in, checksummer));
+            this.path = path;
+            this.expected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                check();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                check();
+            }
+            return n;
+        }
+
+        /**
+         * Skips by reading, so that the skipped bytes are checksummed too
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void check() throws IOException {
+            if (checked) {
+                return;
+            }
+            checked = true;
+            String actual = ((SpeedStream) in).getChecksum();
+            if (!actual.equalsIgnoreCase(expected)) {
+                throw new IOException(String.format("The checksum of %s is %s, but its manifest lists %s",
+                        path, actual, expected));
+            }
+        }
+    }
+}
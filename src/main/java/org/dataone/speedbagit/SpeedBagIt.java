@@ -22,29 +22,54 @@
 
 package org.dataone.speedbagit;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -63,29 +88,138 @@ public class SpeedBagIt {
     private Properties properties;
     // Version that the bag is (0.97, 1.0, etc)
     public double version;
-    // Contents of tagmanifest-{algo}.txt file
+    /**
+     * Extra lines of the tagmanifest-{algo}.txt file. The lines of the streamed tag files
+     * are added from their raw checksums when the tag manifest is generated, and aren't put
+     * here.
+     *
+     * @deprecated Add lines with writeToTagManifest, and read the checksums of the streamed
+     * files from getTagFiles()
+     */
+    @Deprecated
     public Map<String, String> tagManifestFile;
-    // Contents of manifest-{algo}.txt file
+    /**
+     * Extra lines of the manifest-{algo}.txt file. The lines of the streamed data files are
+     * added from their raw checksums when the manifest is generated, and aren't put here.
+     *
+     * @deprecated Add lines with writeToDataManifest, and read the checksums of the streamed
+     * files from getDataFiles()
+     */
+    @Deprecated
     public Map<String, String> dataManifestFile;
-    // The name of the algorithm. Should be compatible with the MessageDigest class
+    // The name of the algorithm. Should be supported by Checksummers (which includes MessageDigest)
     public String checksumAlgorithm;
     // Map of key-values that go in the bagit.txt file
     public Map<String, String> bagitMetadata;
+    // Labels of bag-info.txt with their values, in the order they were added. A label
+    // may have several values.
+    private Map<String, List<String>> bagInfo;
+    // The longest line of bag-info.txt before it's folded (0 turns folding off)
+    private int lineLength;
+    // The template that the bag was created from, or null
+    private BagTemplate template;
+    // Decides when the bag is streamed, or null to stream it on the shared executor
+    private BagScheduler scheduler;
+    // Limits the buffers, open files and manifest memory of the bag, or null
+    private BagResourceBudget budget;
+    // The stream that the sidecar index is written to once the bag is written, or null
+    private OutputStream sidecar;
+    // The bag's place in its scheduler's queue; higher priorities go first
+    private int priority;
+    // The most payload bytes read per second (0 is no limit)
+    private long bandwidthLimit;
+    // The deflate level of the bag, and whether it follows the rate that the bag is read at
+    private int compressionLevel;
+    private boolean adaptiveCompression;
+    // The method that the data files are compressed with
+    private CompressionMethod compressionMethod;
+    // The archive format that the bag is written as
+    private BagFormat format;
+    // The number of data files copied at once when the bag is written to a directory, and
+    // whether files on the same filesystem are hard linked instead
+    private int copyThreads;
+    private boolean linkPayload;
+    // The number of data files between the checkpoints of a bag written to a file
+    private int checkpointInterval;
+    // Whether data files with the same bytes are written once
+    private boolean deduplicate;
 
     // Containers for keeping track of tag & data files, keyed off of
-    // their relative file path
+    // their relative file path. They're written in the order they were added.
     private HashMap<String, SpeedFile> dataFiles;
     private HashMap<String, SpeedFile> tagFiles;
-    
+    // The folded paths of the data & tag files, for finding the paths that only differ in
+    // case or Unicode normalization
+    private PathRegistry dataPaths;
+    private PathRegistry tagPaths;
+    // Whether paths that only differ in case or normalization collide
+    private boolean strictPaths;
+    // Create the checksummers of the files added by path, when they're first read
+    private Supplier<Checksummer> checksummers;
+    private Supplier<Checksummer> parallelChecksummers;
+    // Listeners that are notified with metrics as the bag is streamed
+    private List<BagStreamListener> listeners;
+    // Listener that is told how far along the payload is, and how often it's told
+    private BagProgressListener progressListener;
+    private long progressInterval;
+    // The most recent progress report, for callers that poll
+    private volatile BagProgress progress;
+    // Whether BLAKE3 files are hashed as a tree on several threads
+    private boolean parallelHashing;
+    // The number of data files read ahead while another is written (0 turns it off)
+    private int prefetchDepth;
+    // The most bytes of read ahead data held for the bag
+    private long prefetchMemory;
+    // The size of the buffer that files are copied with
+    private int bufferSize;
+
+    // The default memory cap of the read ahead buffers of a bag (32 MB)
+    public static final long DEFAULT_PREFETCH_MEMORY = 32L << 20;
+
+    // The default number of payload bytes between progress reports (16 MB)
+    public static final long DEFAULT_PROGRESS_INTERVAL = 16L << 20;
+
+    // The default size of the buffer used to copy a file into the bag. Files that fit in it
+    // are written as a single zip entry, without streaming them through the deflater.
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // The smallest and largest copy buffers
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    // The default number of data files between the checkpoints of a bag's journal
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+
+    // The default number of data files copied at once when a bag is written to a directory
+    public static final int DEFAULT_COPY_THREADS = 4;
+
+    // The longest bag-info.txt line by default, as recommended by the BagIt specification
+    public static final int DEFAULT_LINE_LENGTH = 79;
+
+    // Hex digits of the checksums written to the manifests
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // The size of the pipe between the thread writing the bag and the reader. The default
+    // of 1 KB makes the threads hand over to each other for every KB of the bag.
+    private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+
+    // The default number of direct buffers that bags streamed to channels may use
+    public static final int DEFAULT_DIRECT_BUFFERS = 64;
+    // The direct buffers shared by the bags that are streamed to channels
+    private static volatile DirectBufferPool directBufferPool =
+            new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_DIRECT_BUFFERS);
+
+    // The string constants, loaded once for every bag
+    private static final Properties PROPERTIES = loadProperties();
+
     // An ExecutorService to run the piped stream in another thread
-    private static ExecutorService executor = null;
+    private static ThreadPoolExecutor executor = null;
     static {
         // use a shared executor service with nThreads == one less than available processors
         int availableProcessors = Runtime.getRuntime().availableProcessors();
         int nThreads = availableProcessors * 1;
         nThreads--;
         nThreads = Math.max(1, nThreads);
-        executor = Executors.newFixedThreadPool(nThreads);  
+        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(nThreads);
     }
 
     /**
@@ -100,15 +234,25 @@ public class SpeedBagIt {
                     Map<String, String> bagitMetadata) throws IOException {
         this.version = version;
         this.checksumAlgorithm = checksumAlgorithm;
-        this.dataFiles = new HashMap<>();
-        this.tagFiles = new HashMap<>();
+        this.dataFiles = new LinkedHashMap<>();
+        this.tagFiles = new LinkedHashMap<>();
+        this.dataPaths = new PathRegistry(this.dataFiles.keySet());
+        this.tagPaths = new PathRegistry(this.tagFiles.keySet());
+        this.strictPaths = true;
         this.bagitMetadata = bagitMetadata;
         this.dataManifestFile = new HashMap<> ();
         this.tagManifestFile = new HashMap<> ();
-
-        this.properties = new Properties();
-        this.properties.load(Objects.requireNonNull(this.getClass().
-                getClassLoader().getResourceAsStream("speed-bagit.properties")));
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.progressInterval = DEFAULT_PROGRESS_INTERVAL;
+        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        this.compressionMethod = CompressionMethod.DEFLATE;
+        this.format = BagFormat.ZIP;
+        this.copyThreads = DEFAULT_COPY_THREADS;
+        this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        this.bagInfo = new LinkedHashMap<>();
+        this.lineLength = DEFAULT_LINE_LENGTH;
+        this.properties = PROPERTIES;
     }
 
     /**
@@ -122,6 +266,49 @@ public class SpeedBagIt {
         this(version, checksumAlgorithm, new HashMap<>());
     }
 
+    /**
+     * Creates a new SpeedBagIt from a template. The bag takes its version, checksum
+     * algorithm, bagit.txt and bag-info.txt labels from the template, and its static tag
+     * files are written to the bag without encoding, checksumming or deflating them again.
+     * Labels can still be added to bag-info.txt, and files to the bag.
+     *
+     * @param template: The template shared by the bags
+     */
+    public SpeedBagIt(BagTemplate template) throws IOException {
+        this(template.getVersion(), template.getChecksumAlgorithm(), template.getBagitMetadata());
+        this.template = template;
+        this.lineLength = template.getLineLength();
+        // The template's tag files collide with the bag's
+        this.tagPaths = new PathRegistry(() -> Stream.concat(template.getTagFiles().keySet().stream(),
+                this.tagFiles.keySet().stream()).iterator());
+        for (String path : template.getTagFiles().keySet()) {
+            this.tagPaths.add(path);
+        }
+        for (Map.Entry<String, List<String>> entry : template.getBagInfo().entrySet()) {
+            this.bagInfo.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+    }
+
+    /**
+     * Loads the string constants of the bags from speed-bagit.properties
+     */
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        try (InputStream stream = SpeedBagIt.class.getClassLoader().getResourceAsStream("speed-bagit.properties")) {
+            properties.load(Objects.requireNonNull(stream));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load speed-bagit.properties", e);
+        }
+        return properties;
+    }
+
+    /**
+     * Returns the string constants of the bags, which must not be modified
+     */
+    static Properties getProperties() {
+        return PROPERTIES;
+    }
+
     /**
      * Adds a stream of data to the bag.
      *
@@ -132,20 +319,214 @@ public class SpeedBagIt {
      */
     public void addFile(InputStream file, String bagPath, MessageDigest checksum, boolean isTagFile)
             throws SpeedBagException {
-        logger.debug(String.format("Adding %s to the bag", bagPath));
+        this.addFile(new SpeedFile(new SpeedStream(file, checksum), bagPath, isTagFile));
+    }
+
+    /**
+     * Adds a stream of data to the bag, checksummed with a specific Checksummer.
+     *
+     * @param file:        The stream representing a file or data that will be placed in the bag
+     * @param bagPath:     The path, relative to the bag root where the file belongs
+     * @param checksummer: The Checksummer that will compute the checksum
+     * @param isTagFile:   Boolean set to True when the file is a tag file
+     */
+    public void addFile(InputStream file, String bagPath, Checksummer checksummer, boolean isTagFile)
+            throws SpeedBagException {
+        this.addFile(new SpeedFile(new SpeedStream(file, checksummer), bagPath, isTagFile));
+    }
+
+    /**
+     * Adds a file to the bag that is opened only when the bag is streamed. The size of
+     * the source, when it knows it, is used for progress reporting.
+     *
+     * @param source:    The source of the file's bytes
+     * @param bagPath:   The path, relative to the bag root where the file belongs
+     * @param isTagFile: Boolean set to True when the file is a tag file
+     */
+    public void addFile(PayloadSource source, String bagPath, boolean isTagFile)
+            throws NoSuchAlgorithmException, SpeedBagException {
+        SpeedStream stream = new SpeedStream(new SourceInputStream(source), this.checksummerFactory());
+        this.addFile(new SpeedFile(stream, bagPath, isTagFile, source.size()));
+    }
+
+    /**
+     * Adds a stream of data whose size is known to the bag. Knowing the size of the
+     * payload lets progress reports estimate how long is left.
+     *
+     * @param file:      The stream representing a file or data that will be placed in the bag
+     * @param bagPath:   The path, relative to the bag root where the file belongs
+     * @param size:      The number of bytes in the stream
+     * @param isTagFile: Boolean set to True when the file is a tag file
+     */
+    public void addFile(InputStream file, String bagPath, long size, boolean isTagFile)
+            throws NoSuchAlgorithmException, SpeedBagException {
+        this.addFile(new SpeedFile(new SpeedStream(file, this.checksummerFactory()), bagPath, isTagFile, size));
+    }
+
+    /**
+     * Turns parallel tree hashing on or off for the files added after this call. It only
+     * applies to bags checksummed with BLAKE3: each file is hashed in 1 MB segments on
+     * several cores as it is read (see ParallelBlake3Checksummer). The manifest is the same
+     * as when hashing sequentially, and the leaf digest of each segment can be found through
+     * the file's SpeedStream.getChecksummer().
+     *
+     * @param parallelHashing: Whether to hash BLAKE3 files in parallel
+     */
+    public void setParallelHashing(boolean parallelHashing) {
+        this.parallelHashing = parallelHashing;
+    }
+
+    /**
+     * Turns on reading ahead: while a data file is written to the bag, the next depth
+     * files are opened and read into memory on background threads. This hides the latency
+     * of opening files on network filesystems and object stores. Sources added as a
+     * PayloadSource are also opened in the background; streams that were already open
+     * are read ahead. Prefetching is off by default.
+     *
+     * @param depth:     The number of files to read ahead, or 0 to turn prefetching off
+     * @param memoryCap: The most bytes of read ahead data that the bag may hold at once
+     */
+    public void setPrefetch(int depth, long memoryCap) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("The prefetch depth can't be negative");
+        }
+        if (depth > 0 && memoryCap < (long) depth * Prefetcher.MIN_CHUNK_SIZE * 3) {
+            throw new IllegalArgumentException(String.format(
+                    "A memory cap of %d bytes is too small to read %d files ahead", memoryCap, depth));
+        }
+        this.prefetchDepth = depth;
+        this.prefetchMemory = memoryCap;
+    }
+
+    /**
+     * Turns on reading ahead with the default memory cap.
+     *
+     * @param depth: The number of files to read ahead, or 0 to turn prefetching off
+     */
+    public void setPrefetch(int depth) {
+        this.setPrefetch(depth, DEFAULT_PREFETCH_MEMORY);
+    }
+
+    /**
+     * Sets the size of the buffer that files are copied into the bag with. Files no larger
+     * than the buffer are written as a single zip entry, so a larger buffer helps bags of
+     * medium sized files, at the cost of memory for each bag that's streaming at once.
+     * Buffers are pooled and reused between bags.
+     *
+     * @param bufferSize: The size of the buffer, between 64 KB and 1 MB
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE || bufferSize > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "The buffer size must be between %d and %d bytes", MIN_BUFFER_SIZE, MAX_BUFFER_SIZE));
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the size of the buffer that files are copied with
+     *
+     * @return The size of the buffer in bytes
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Returns the factory of the Checksummers of the files added with the bag's algorithm.
+     * The algorithm is looked up the first time, so that an unknown one still fails when
+     * the file is added, but each file's Checksummer is only created when it's streamed.
+     *
+     * @return A factory of Checksummers for the bag's algorithm
+     */
+    private Supplier<Checksummer> checksummerFactory() throws NoSuchAlgorithmException {
+        if (this.checksummers == null) {
+            Checksummers.getInstance(this.checksumAlgorithm);
+            String algorithm = this.checksumAlgorithm;
+            this.checksummers = () -> {
+                try {
+                    return Checksummers.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            this.parallelChecksummers = () -> {
+                Checksummer checksummer = this.checksummers.get();
+                return checksummer instanceof Blake3Checksummer ? new ParallelBlake3Checksummer() : checksummer;
+            };
+        }
+        return this.parallelHashing ? this.parallelChecksummers : this.checksummers;
+    }
+
+    /**
+     * Sets whether paths that differ only in case ("data/Obs.csv" and "data/obs.csv") or in
+     * their Unicode normalization collide, as they do once the bag is extracted on a
+     * case-insensitive or normalizing filesystem. It's on by default; paths that are the
+     * same always collide.
+     *
+     * @param strictPaths: Whether folded paths collide
+     */
+    public void setStrictPaths(boolean strictPaths) {
+        this.strictPaths = strictPaths;
+    }
+
+    /**
+     * Adds a file to the bag, checking that its path doesn't collide with another file.
+     *
+     * @param newFile: The file being added
+     */
+    private void addFile(SpeedFile newFile) throws SpeedBagException {
+        String bagPath = newFile.getPath();
+        boolean isTagFile = newFile.isTagFile();
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Adding %s to the bag", bagPath));
+        }
+        String invalid = BagPaths.check(bagPath);
+        if (invalid == null) {
+            invalid = checkGeneratedPath(bagPath);
+        }
+        if (invalid != null) {
+            throw new SpeedBagException(invalid);
+        }
         // Check to see if there's a path conflict
         if (this.hasPathCollisions(bagPath, isTagFile)) {
             throw new SpeedBagException(
                     String.format("The tag file with path %s conflicts with another file.", bagPath)
             );
         }
-        SpeedFile newFile = new SpeedFile(new SpeedStream(file, checksum), bagPath, isTagFile);
-            if (isTagFile) {
-                this.tagFiles.put(bagPath, newFile);
-            } else {
-                this.dataFiles.put(bagPath, newFile);
+        PathRegistry registry = isTagFile ? this.tagPaths : this.dataPaths;
+        if (this.strictPaths) {
+            String collision = registry.findCollision(bagPath);
+            if (collision != null) {
+                throw new SpeedBagException(String.format("The file with path %s conflicts with %s, which only "
+                        + "differs from it in case or Unicode normalization.", bagPath, collision));
             }
         }
+        registry.add(bagPath);
+        if (isTagFile) {
+            this.tagFiles.put(bagPath, newFile);
+        } else {
+            this.dataFiles.put(bagPath, newFile);
+        }
+    }
+
+    /**
+     * Checks that a path isn't one of the tag files that the bag writes itself: bagit.txt,
+     * bag-info.txt and the manifests. A file added at one of these paths would be written
+     * next to the generated one, and the bag would have two entries with the same name.
+     *
+     * @param path: The path, relative to the bag root
+     * @return Why the path can't be added, or null when it can
+     */
+    static String checkGeneratedPath(String path) {
+        if (path.equals(PROPERTIES.getProperty("bagit.file.name"))
+                || path.equals(PROPERTIES.getProperty("bag.info.file.name"))
+                || ((path.startsWith("manifest-") || path.startsWith("tagmanifest-"))
+                    && path.endsWith(".txt") && path.indexOf('/') < 0)) {
+            return String.format("The file with path %s conflicts with a tag file that the bag generates.", path);
+        }
+        return null;
+    }
 
         /**
          * Checks whether two paths collide, based on their file type (tag vs data file).
@@ -155,7 +536,8 @@ public class SpeedBagIt {
          */
         private boolean hasPathCollisions(String path, boolean isTagFile) {
             if (isTagFile) {
-                return this.tagFiles.containsKey(path);
+                return this.tagFiles.containsKey(path)
+                        || (this.template != null && this.template.getTagFiles().containsKey(path));
             } else {
                 return this.dataFiles.containsKey(path);
             }
@@ -170,224 +552,1737 @@ public class SpeedBagIt {
      * @param isTagFile: Boolean set to True when the file is a tag file
      */
     public void addFile(InputStream file, String bagPath, boolean isTagFile) throws NoSuchAlgorithmException, SpeedBagException {
-        logger.debug(String.format("Adding %s to the bag", bagPath));
-        MessageDigest newDigest = MessageDigest.getInstance(this.checksumAlgorithm);
-        this.addFile(file, bagPath, newDigest, isTagFile);
+        this.addFile(new SpeedFile(new SpeedStream(file, this.checksummerFactory()), bagPath, isTagFile));
     }
 
     /**
-     * Generates a bagit.txt file.
+     * Registers a listener that is notified with metrics while the bag is streamed.
      *
-     * @return A string representing the bagit.txt file.
+     * @param listener: The listener to notify
      */
-    public String generateBagitTxt() {
-        logger.debug("Creating the bagit.txt file");
-        String bagitFile = "";
-        for (Map.Entry<String, String> entry : this.bagitMetadata.entrySet()) {
-            if(bagitFile != null) {
-                bagitFile = String.format("%s%s: %s\n", bagitFile, entry.getKey(), entry.getValue());
-            } else {
-                bagitFile = String.format("%s: %s\n", entry.getKey(), entry.getValue());
-            }
+    public void addStreamListener(BagStreamListener listener) {
+        this.listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Removes a listener that was previously registered.
+     *
+     * @param listener: The listener to remove
+     */
+    public void removeStreamListener(BagStreamListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener that is periodically told how much of the payload has been
+     * streamed, using the default reporting interval.
+     *
+     * @param listener: The listener to notify, or null to stop reporting
+     */
+    public void setProgressListener(BagProgressListener listener) {
+        this.setProgressListener(listener, DEFAULT_PROGRESS_INTERVAL);
+    }
+
+    /**
+     * Registers a listener that is periodically told how much of the payload has been
+     * streamed. Progress is sampled by bytes rather than per read, so the listener is called
+     * about once every interval bytes, and once more when the whole payload has been streamed.
+     *
+     * @param listener: The listener to notify, or null to stop reporting
+     * @param interval: The number of payload bytes between reports
+     */
+    public void setProgressListener(BagProgressListener listener, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The progress interval must be positive");
         }
-        String tagFileversion = this.properties.getProperty("tag.file.version");
-        String tagFileCharacterEncodingName = this.properties.getProperty("tag.file.character.encoding.name");
-        String tagFileCharacterEncodingValue = this.properties.getProperty("tag.file.character.encoding.value");
+        this.progressListener = listener;
+        this.progressInterval = interval;
+    }
 
-        bagitFile = String.format("%s%s: %s\n", bagitFile, tagFileversion, version);
-        bagitFile = String.format("%s%s: %s\n", bagitFile, tagFileCharacterEncodingName, tagFileCharacterEncodingValue);
-        return bagitFile;
+    /**
+     * Returns the latest progress of the payload while the bag is streamed. This can be
+     * polled instead of registering a listener; it is updated at the same interval.
+     *
+     * @return The latest progress, or null if the bag hasn't started streaming
+     */
+    public BagProgress getProgress() {
+        return this.progress;
     }
 
     /**
-     * Takes a size and returns B, KB, Mb, GB, etc. Taken from
-     * https://stackoverflow.com/questions/3758606/how-can-i-convert-byte-size-into-a-human-readable-format-in-java
+     * Sets the deflate level that the files are compressed with. Level 0 stores the files.
      *
-     * @param size: The size being converted
-     * @return The size as 5 B, 5 KB, 5 GB, etc
+     * @param level: The level, from 0 to 9, or -1 for the default
      */
-    public static String formatSize(long size) {
-        if (size < 1024) return size + " B";
-        int z = (63 - Long.numberOfLeadingZeros(size)) / 10;
-        return String.format("%.1f %sB", (double)size / (1L << (z*10)), " KMGTPE".charAt(z));
+    public void setCompressionLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("The compression level must be between -1 and 9");
+        }
+        this.compressionLevel = level;
     }
 
     /**
-     *  Generates the bag-info.txt file contents.
+     * Returns the deflate level that the files are compressed with
      *
-     * @param payloadOxum The payload oxum of the bag
-     * @param bagSize: The size of the bag
-     * @return A text string with the file contents
+     * @return The level, or -1 for the default
      */
-    public String generateBagInfoTxt(String payloadOxum, int bagSize) {
-        logger.debug("Generating bag-info.txt");
-        LocalDateTime dateTime = LocalDateTime.now();
-        DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ENGLISH);
-        String bagInfoDateKey = this.properties.getProperty("bag.info.date");
-        String bagInfo = String.format("%s: %s\n", bagInfoDateKey, dateFormat.format(dateTime));
-        String bagInfoPayloadOxum = this.properties.getProperty("bag.info.payloadOxum");
-        bagInfo = String.format("%s%s: %s\n", bagInfo, bagInfoPayloadOxum, payloadOxum);
-        String bagInfoBagSize = this.properties.getProperty("bag.info.bagSize");
-        bagInfo = String.format("%s%s: %s\n", bagInfo, bagInfoBagSize, formatSize(bagSize));
-        return bagInfo;
+    public int getCompressionLevel() {
+        return compressionLevel;
     }
 
     /**
-     * Writes a line to the tag manifest file. The line conforms to the
-     * <path> <checksum> format specified by BagIt.
+     * Sets the method that the data files are compressed with. The tag files are always
+     * deflated so that any zip reader can validate the bag, and a data file can be given a
+     * method of its own with SpeedFile.setCompressionMethod.
      *
-     * @param path:     The path the the file, relative to the bag root
-     * @param checksum: The checksum of the file
+     * @param method: The method
+     * @throws IllegalArgumentException When the method's libraries aren't on the classpath
      */
-    public void writeToTagManifest(String path, String checksum) {
-        logger.debug(String.format("Writing line to the tag-manifest %s %s", path, checksum));
-        // Check to see if it doesn't exist (so we don't write null)
-        tagManifestFile.put(checksum, path);
+    public void setCompressionMethod(CompressionMethod method) {
+        if (!method.isAvailable()) {
+            throw new IllegalArgumentException(method + " isn't available on the classpath");
+        }
+        this.compressionMethod = method;
     }
 
     /**
-     * Writes a line to the manifest file describing the data files. The line conforms to the
-     * "<path> <checksum>" format specified by BagIt.
+     * Returns the method that the data files are compressed with
      *
-     * @param path:     The path the the file, relative to the bag root
-     * @param checksum: The checksum of the file
+     * @return The method
      */
-    public void writeToDataManifest(String path, String checksum) {
-        logger.debug(String.format("Writing line to the data manifest %s %s", path, checksum));
-        dataManifestFile.put(checksum, path);
+    public CompressionMethod getCompressionMethod() {
+        return compressionMethod;
     }
 
     /**
-     * Streams an individual file
+     * Sets the archive format that the bag is written as. A tar file has no central
+     * directory and can be piped into `tar x`; its files aren't compressed one by one, so
+     * the compression method is ignored and a TAR_GZ bag is gzipped at the compression
+     * level as a whole. Since a tar header holds the size of its file, data files that
+     * don't fit in the buffer should be added with their size, otherwise they're held in
+     * memory while they're written.
      *
-     * @param zos The output stream that the file is being written to
-     * @param streamingFile The file stream that's being written to the output stream
-     * @throws IOException
+     * @param format: The format, ZIP by default
      */
-    private void streamFile(ZipOutputStream zos, SpeedFile streamingFile) throws IOException {
-        try {
-            ZipEntry entry = new ZipEntry(streamingFile.getPath());
-            zos.putNextEntry(entry);
+    public void setFormat(BagFormat format) {
+        this.format = format;
+    }
 
-            SpeedStream fileStream = streamingFile.getStream();
-            IOUtils.copy(fileStream, zos);
-        } finally {
-            zos.closeEntry();
+    /**
+     * Returns the archive format that the bag is written as
+     *
+     * @return The format
+     */
+    public BagFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Writes the bytes of data files that are the same once. Files given the same content
+     * key (see SpeedFile.setContentKey) aren't read after the first, and files that fit in
+     * the buffer are also matched by their size and checksum before they're compressed,
+     * which relies on the checksum algorithm being a cryptographic one. Every path is still
+     * in the manifest. A duplicate is a hard link in a tar bag or a directory, and in a zip
+     * bag it's a central directory entry that points at the original's data. ZipFile reads
+     * those, but ZipInputStream doesn't see them, and tools like Info-ZIP's unzip refuse zip
+     * files whose entries share their data, so it's meant for readers known to accept them.
+     *
+     * @param deduplicate: Whether duplicates are written once
+     */
+    public void setDeduplication(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Sets how often a bag that's written to a file with a journal is checkpointed. Each
+     * checkpoint forces the file to disk, so checkpointing every file costs throughput.
+     *
+     * @param interval: The number of data files between checkpoints
+     * @throws IllegalArgumentException When interval isn't positive
+     */
+    public void setCheckpointInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval must be at least one file");
         }
+        this.checkpointInterval = interval;
     }
 
     /**
-     * Writes the files to a stream under the BagIt specification. The manifest, bagit.txt,
-     * and bag.info are generated inside.
+     * Sets the number of data files that are copied at once when the bag is written to a
+     * directory with writeTo
      *
-     * @throws IOException Throws when something went wrong with streaming the bag
-     * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+     * @param threads: The number of copying threads
+     * @throws IllegalArgumentException When threads isn't positive
      */
-    public InputStream stream()
-            throws IOException, NoSuchAlgorithmException {
-        PipedOutputStream ps = new PipedOutputStream();
-        PipedInputStream is = new PipedInputStream(ps);
-        ZipOutputStream zos = new ZipOutputStream(ps);
+    public void setCopyThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one copying thread is needed");
+        }
+        this.copyThreads = threads;
+    }
 
-        executor.execute(
-            new Runnable() {
-                public void run() {
-                    try {
-                        String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-                        logger.info(String.format("Streaming bag at %s", timeStamp));
-                        int totalSize = 0;
-                        // Stream all the files in the root 'data' directory
-
-                        for (SpeedFile streamingFile : dataFiles.values()) {
-                            try {
-                                streamFile(zos, streamingFile);
-                                String checksum = new String(streamingFile.getStream().getChecksum());
-                                writeToDataManifest(streamingFile.getPath(), checksum);
-                                totalSize += streamingFile.getStream().getSize();
-                            } finally {
-                                streamingFile.getStream().close();
-                            }
-                        }
-                        String payloadOxum =  String.format("%s.%s",totalSize, dataFiles.size());
-                        // Generate and add the bagit.txt file
-                        InputStream bagTextStream = new ByteArrayInputStream(generateBagitTxt().getBytes(StandardCharsets.UTF_8));
-                        String bagitFileName = properties.getProperty("bagit.file.name");
-                        addFile(bagTextStream, bagitFileName, MessageDigest.getInstance(checksumAlgorithm), true);
-
-
-                        // Generate and add the bag-info.txt file
-                        String bagInfoFile = generateBagInfoTxt(payloadOxum, totalSize);
-                        InputStream fileStream = new ByteArrayInputStream(bagInfoFile.getBytes(StandardCharsets.UTF_8));
-                        String bagitInfoFileName = properties.getProperty("bag.info.file.name");
-                        addFile(fileStream, bagitInfoFileName, MessageDigest.getInstance(checksumAlgorithm), true);
-
-                        // BagIt requires checksum filenames to be lower cased and without dashes
-                        String sanitizedChecksum = checksumAlgorithm.toLowerCase();
-                        sanitizedChecksum = sanitizedChecksum.replaceAll("[^A-Za-z0-9]", "");
-                        // Generate and add the data manifest file
-                        String dataManifest = bagFileToString(dataManifestFile);
-                        String fileName = String.format("manifest-%s.txt", sanitizedChecksum);
-                        fileStream = new ByteArrayInputStream(dataManifest.getBytes(StandardCharsets.UTF_8));
-                        addFile(fileStream, fileName, MessageDigest.getInstance(checksumAlgorithm), true);
-
-                        // Write all the tag files
-                        for (SpeedFile streamingFile : tagFiles.values()) {
-                            try {
-                                streamFile(zos, streamingFile);
-                                String checksum = streamingFile.getStream().getChecksum();
-                                writeToTagManifest(streamingFile.getPath(), checksum);
-                            } finally {
-                                streamingFile.getStream().close();
-                            }
-                        }
-
-                        // Create the tag manifest and stream it
-                        String tagMannifest = bagFileToString(tagManifestFile);
-                        fileStream = new ByteArrayInputStream(tagMannifest.getBytes(StandardCharsets.UTF_8));
-                        fileName = String.format("tagmanifest-%s.txt", sanitizedChecksum);
-                        SpeedFile tagManifestStreamFile = new SpeedFile(new SpeedStream(fileStream,
-                                MessageDigest.getInstance(checksumAlgorithm)), fileName, true);
-                        try {
-                            streamFile(zos, tagManifestStreamFile);
-                        } finally {
-                            tagManifestStreamFile.getStream().close();
-                        }
-                        zos.close();
-                        timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-                        logger.info(String.format("Finished streaming bag at %s", timeStamp));
-                        
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        return is;
+    /**
+     * Hard links the data files that were added as files, with PayloadSource.of, when the
+     * bag is written to a directory on the same filesystem. They're still read once to
+     * checksum them, but not written again. A linked file is the same file as its source,
+     * so changing one changes the other. Files on other filesystems are copied.
+     *
+     * @param link: Whether data files are linked when they can be
+     */
+    public void setLinkPayload(boolean link) {
+        this.linkPayload = link;
     }
 
     /**
-     * Returns the number of data files in the bag
+     * Adjusts the compression level of the data files while the bag streams, starting from
+     * the bag's compression level. When the client reads the bag slower than it's written,
+     * the files are compressed harder, and when compressing is what holds the bag up, they're
+     * compressed less, down to storing them, so that the client gets the payload as fast as
+     * it can be had.
      *
-     * @return The number of data files
+     * @param adaptive: Whether the level is adjusted
      */
-    public int getPayloadFileCount() {
-        return this.dataFiles.size();
+    public void setAdaptiveCompression(boolean adaptive) {
+        this.adaptiveCompression = adaptive;
     }
+
     /**
-     * Returns all the tag files that have been added to
-     * the bag.
-     * @return HashMap of tag files
+     * Streams the bag through a scheduler, which limits how many bags are streamed at once
+     * and in which order. Without one, the bag is streamed on the shared executor as soon as
+     * one of its threads is free.
+     *
+     * @param scheduler: The scheduler, or null to use the shared executor
      */
-    public HashMap<String, SpeedFile> getTagFiles() {
-        return this.tagFiles;
+    public void setScheduler(BagScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     /**
-     * Returns a list of the data files that have been added
-     * to the bag. These are the files that belong under data/
-     * @return List of data files
+     * Streams the bag within a budget of buffer memory, open files and manifest memory,
+     * which is usually shared by many bags. The bag waits before it starts until its
+     * buffers and files fit in what the other bags left of the budget, and writes its
+     * manifest to a temporary file when it doesn't fit in memory. A bag that needs more
+     * than the whole budget fails when it's streamed, with an IllegalStateException.
+     *
+     * @param budget: The budget, or null for no limits
      */
-    public HashMap<String, SpeedFile> getDataFiles() {
-        return this.dataFiles;
+    public void setResourceBudget(BagResourceBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the budget that the bag is streamed within
+     *
+     * @return The budget, or null when the bag has no limits
+     */
+    public BagResourceBudget getResourceBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Writes a sidecar index of the bag to a stream once the bag has been streamed, so that
+     * a service can serve single files of the bag with ranged reads of wherever the bag is
+     * kept (see SpeedBagIndex.open(Path, Path)). The index has each entry's path, the offset
+     * and size of its data, its size, compression method, CRC-32 and checksum. They're kept
+     * as the entries are written, so the bag isn't read again. Zip and plain tar bags streamed
+     * with stream() or stream(WritableByteChannel) can have one; gzipped tar bags, bags
+     * resumed from a journal and bags written to a directory can't.
+     *
+     * @param sidecar: The stream that the index is written to, which is flushed and left
+     *                 open, or null for no index
+     */
+    public void setSidecarIndex(OutputStream sidecar) {
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * Fails when the bag has a sidecar index that its format can't have
+     */
+    private void checkSidecar() {
+        if (sidecar != null && format == BagFormat.TAR_GZ) {
+            throw new IllegalStateException("Gzipped tar bags can't have a sidecar index, since their entries "
+                    + "can't be read at an offset");
+        }
+    }
+
+    /**
+     * Returns the most payload sources that the bag has open at once: the file being
+     * written and the ones read ahead, or one per copy thread of writeTo
+     */
+    private int budgetedFiles(boolean directory) {
+        return directory ? Math.max(1, copyThreads) : prefetchDepth + 1;
+    }
+
+    /**
+     * Estimates the most bytes of buffers that the bag holds while it's streamed
+     *
+     * @param piped: Whether the bag is streamed through the pipe of stream()
+     * @param directory: Whether the bag is written to a directory
+     */
+    private long budgetedMemory(boolean piped, boolean directory) {
+        if (directory) {
+            // The buffer of the tag files and one for each copy thread
+            return (long) bufferSize * (1 + Math.max(1, copyThreads));
+        }
+        // The copy buffer, and the writer's buffer and staging buffer
+        long memory = 3L * bufferSize;
+        if (piped) {
+            memory += PIPE_BUFFER_SIZE;
+        }
+        if (prefetchDepth > 0) {
+            memory += prefetchMemory;
+        }
+        if (format == BagFormat.TAR_GZ) {
+            memory += ParallelGzipOutputStream.MAX_MEMORY;
+        }
+        return memory;
+    }
+
+    /**
+     * Waits for the bag's share of its budget, and counts its payload sources against it
+     * while they're open. The caller must call releaseBudget when the bag is done.
+     */
+    private void reserveBudget(BagResourceBudget budget, int files, long memory) throws InterruptedIOException {
+        budget.reserve(files, memory);
+        for (HashMap<String, SpeedFile> bagFiles : Arrays.asList(dataFiles, tagFiles)) {
+            for (SpeedFile file : bagFiles.values()) {
+                InputStream source = file.getStream().getSource();
+                if (source instanceof SourceInputStream) {
+                    ((SourceInputStream) source).setBudget(budget);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the priority of the bag in its scheduler's queue. Bags with a higher priority
+     * are streamed before the ones with a lower priority. The default is 0.
+     *
+     * @param priority: The priority
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the priority of the bag in its scheduler's queue
+     *
+     * @return The priority
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Limits the rate that the bag reads its files at. The bag is also held to its
+     * scheduler's bandwidth, when it has one.
+     *
+     * @param bytesPerSecond: The most bytes per second, or 0 for no limit
+     */
+    public void setBandwidthLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The bandwidth can't be negative");
+        }
+        this.bandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * Returns the sum of the sizes that were given for the data files
+     *
+     * @return The size in bytes, or -1 when the size of a data file isn't known
+     */
+    long getExpectedPayloadSize() {
+        long totalBytes = 0;
+        for (SpeedFile dataFile : dataFiles.values()) {
+            if (dataFile.getExpectedSize() < 0) {
+                return -1;
+            }
+            totalBytes += dataFile.getExpectedSize();
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Returns the pool of direct buffers that bags streamed to a channel read their files into
+     *
+     * @return The shared pool
+     */
+    public static DirectBufferPool getDirectBufferPool() {
+        return directBufferPool;
+    }
+
+    /**
+     * Replaces the pool of direct buffers that bags streamed to a channel use. Each bag
+     * takes two buffers while it streams, and files are read in reads of the pool's buffer
+     * size. Bags that are already streaming keep using the old pool.
+     *
+     * @param pool: The pool to use from now on
+     */
+    public static void setDirectBufferPool(DirectBufferPool pool) {
+        directBufferPool = Objects.requireNonNull(pool);
+    }
+
+    /**
+     * Returns the number of bags that are waiting for a thread to stream them. A
+     * number that keeps growing means that bags are requested faster than they can be served.
+     *
+     * @return The number of queued bags
+     */
+    public static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Streams many bags from one job on a few worker threads of their own, returning once
+     * they have all been streamed. Each worker takes the next name, builds its bag with the
+     * factory and streams it to the channel that the sink opens for it (see
+     * stream(WritableByteChannel)), and then closes the channel. A bag that fails is recorded
+     * with its exception, and the others carry on. The batch isn't measured.
+     *
+     * @param names: The names of the bags, which are taken as the workers get to them
+     * @param factory: Builds the bag with a name
+     * @param sink: Opens the channel that a bag is written to
+     * @param threads: The number of worker threads
+     * @return The batch, with the bags that failed
+     * @throws InterruptedIOException Thrown when the thread is interrupted while it waits
+     */
+    public static BagBatch batch(Iterable<String> names, BagBatch.BagFactory factory,
+                                 BagBatch.BagSink sink, int threads) throws InterruptedIOException {
+        return batch(names, factory, sink, threads, false);
+    }
+
+    /**
+     * Streams many bags from one job on a few worker threads, as above. A measured batch
+     * keeps the totals of the bags that were streamed (see BagBatch.getMetrics), which means
+     * timing every file of every bag.
+     *
+     * @param names: The names of the bags, which are taken as the workers get to them
+     * @param factory: Builds the bag with a name
+     * @param sink: Opens the channel that a bag is written to
+     * @param threads: The number of worker threads
+     * @param measured: Whether to keep the totals of the bags
+     * @return The batch, with the bags that failed and, when measured, the totals of the ones that didn't
+     * @throws InterruptedIOException Thrown when the thread is interrupted while it waits
+     */
+    public static BagBatch batch(Iterable<String> names, BagBatch.BagFactory factory,
+                                 BagBatch.BagSink sink, int threads, boolean measured)
+            throws InterruptedIOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A batch needs at least one thread, not " + threads);
+        }
+        BagBatch batch = new BagBatch(names.iterator(), Objects.requireNonNull(factory),
+                Objects.requireNonNull(sink), measured);
+        batch.run(threads);
+        return batch;
+    }
+
+    /**
+     * Adds a value to a label of bag-info.txt, such as Contact-Name or External-Identifier.
+     * A label can be added more than once, and its values are written in the order they
+     * were added. Bagging-Date and Bag-Size replace the values that SpeedBagIt generates;
+     * Payload-Oxum is always generated from the payload.
+     *
+     * @param label: The label, which may not contain a colon or a line break or start or end with whitespace
+     * @param value: The value, which is folded when it doesn't fit on a line
+     */
+    public void addBagInfo(String label, String value) {
+        checkBagInfoLabel(label);
+        bagInfo.computeIfAbsent(label, key -> new ArrayList<>(1)).add(Objects.requireNonNull(value));
+    }
+
+    /**
+     * Checks that a label can be added to bag-info.txt
+     *
+     * @param label: The label
+     * @throws IllegalArgumentException When the label isn't valid or is always generated
+     */
+    static void checkBagInfoLabel(String label) {
+        if (label.isEmpty() || label.indexOf(':') >= 0 || label.indexOf('\n') >= 0 || label.indexOf('\r') >= 0
+                || !label.trim().equals(label)) {
+            throw new IllegalArgumentException("Invalid bag-info.txt label '" + label + "'");
+        }
+        if (label.equals(PROPERTIES.getProperty("bag.info.payloadOxum"))) {
+            throw new IllegalArgumentException("The Payload-Oxum is generated from the payload");
+        }
+    }
+
+    /**
+     * Returns the labels and values added to bag-info.txt
+     *
+     * @return The values of each label, in the order they were added
+     */
+    public Map<String, List<String>> getBagInfo() {
+        return Collections.unmodifiableMap(bagInfo);
+    }
+
+    /**
+     * Sets the longest line of bag-info.txt, in characters. Longer values are folded onto
+     * the next line at a space.
+     *
+     * @param lineLength: The longest line, or 0 to never fold lines
+     */
+    public void setLineLength(int lineLength) {
+        if (lineLength < 0) {
+            throw new IllegalArgumentException("The line length can't be negative");
+        }
+        this.lineLength = lineLength;
+    }
+
+    /**
+     * Generates a bagit.txt file.
+     *
+     * @return A string representing the bagit.txt file.
+     */
+    public String generateBagitTxt() {
+        return bagitTxt().toString();
+    }
+
+    /**
+     * Encodes the lines of bagit.txt
+     */
+    private TagFileWriter bagitTxt() {
+        return bagitTxt(version, bagitMetadata);
+    }
+
+    /**
+     * Encodes the lines of a bagit.txt file
+     *
+     * @param version: The bag version
+     * @param bagitMetadata: Key-values that go in the file
+     */
+    static TagFileWriter bagitTxt(double version, Map<String, String> bagitMetadata) {
+        logger.debug("Creating the bagit.txt file");
+        TagFileWriter bagitFile = new TagFileWriter(0);
+        for (Map.Entry<String, String> entry : bagitMetadata.entrySet()) {
+            bagitFile.writeTag(entry.getKey(), entry.getValue());
+        }
+        String tagFileversion = PROPERTIES.getProperty("tag.file.version");
+        String tagFileCharacterEncodingName = PROPERTIES.getProperty("tag.file.character.encoding.name");
+        String tagFileCharacterEncodingValue = PROPERTIES.getProperty("tag.file.character.encoding.value");
+
+        bagitFile.writeTag(tagFileversion, String.valueOf(version));
+        bagitFile.writeTag(tagFileCharacterEncodingName, tagFileCharacterEncodingValue);
+        return bagitFile;
+    }
+
+    /**
+     * Takes a size and returns B, KB, Mb, GB, etc. Taken from
+     * https://stackoverflow.com/questions/3758606/how-can-i-convert-byte-size-into-a-human-readable-format-in-java
+     *
+     * @param size: The size being converted
+     * @return The size as 5 B, 5 KB, 5 GB, etc
+     */
+    public static String formatSize(long size) {
+        if (size < 1024) return size + " B";
+        int z = (63 - Long.numberOfLeadingZeros(size)) / 10;
+        return String.format("%.1f %sB", (double)size / (1L << (z*10)), " KMGTPE".charAt(z));
+    }
+
+    /**
+     *  Generates the bag-info.txt file contents.
+     *
+     * @param payloadOxum The payload oxum of the bag
+     * @param bagSize: The size of the bag
+     * @return A text string with the file contents
+     */
+    public String generateBagInfoTxt(String payloadOxum, long bagSize) {
+        return bagInfoTxt(payloadOxum, bagSize).toString();
+    }
+
+    /**
+     * Encodes the generated lines of bag-info.txt followed by the labels that were added to it
+     */
+    private TagFileWriter bagInfoTxt(String payloadOxum, long bagSize) {
+        logger.debug("Generating bag-info.txt");
+        TagFileWriter bagInfoFile = new TagFileWriter(lineLength);
+        String bagInfoDateKey = this.properties.getProperty("bag.info.date");
+        if (!bagInfo.containsKey(bagInfoDateKey)) {
+            LocalDateTime dateTime = LocalDateTime.now();
+            DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.ENGLISH);
+            bagInfoFile.writeTag(bagInfoDateKey, dateFormat.format(dateTime));
+        }
+        String bagInfoPayloadOxum = this.properties.getProperty("bag.info.payloadOxum");
+        bagInfoFile.writeTag(bagInfoPayloadOxum, payloadOxum);
+        String bagInfoBagSize = this.properties.getProperty("bag.info.bagSize");
+        if (!bagInfo.containsKey(bagInfoBagSize)) {
+            bagInfoFile.writeTag(bagInfoBagSize, formatSize(bagSize));
+        }
+        for (Map.Entry<String, List<String>> entry : bagInfo.entrySet()) {
+            for (String value : entry.getValue()) {
+                bagInfoFile.writeTag(entry.getKey(), value);
+            }
+        }
+        return bagInfoFile;
+    }
+
+    /**
+     *  Generates the bag-info.txt file contents.
+     *
+     * @param payloadOxum The payload oxum of the bag
+     * @param bagSize: The size of the bag
+     * @return A text string with the file contents
+     * @deprecated Bags can be larger than 2 GB; use generateBagInfoTxt(String, long)
+     */
+    @Deprecated
+    public String generateBagInfoTxt(String payloadOxum, int bagSize) {
+        return generateBagInfoTxt(payloadOxum, (long) bagSize);
+    }
+
+    /**
+     * Writes a line to the tag manifest file. The line conforms to the
+     * <path> <checksum> format specified by BagIt.
+     *
+     * @param path:     The path the the file, relative to the bag root
+     * @param checksum: The checksum of the file
+     */
+    public void writeToTagManifest(String path, String checksum) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Writing line to the tag-manifest %s %s", path, checksum));
+        }
+        // Check to see if it doesn't exist (so we don't write null)
+        tagManifestFile.put(checksum, path);
+    }
+
+    /**
+     * Writes a line to the manifest file describing the data files. The line conforms to the
+     * "<path> <checksum>" format specified by BagIt.
+     *
+     * @param path:     The path the the file, relative to the bag root
+     * @param checksum: The checksum of the file
+     */
+    public void writeToDataManifest(String path, String checksum) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Writing line to the data manifest %s %s", path, checksum));
+        }
+        dataManifestFile.put(checksum, path);
+    }
+
+    /**
+     * Streams an individual file. The file is read into the buffer first: when it fits, it's
+     * written as one zip entry with its sizes and checksum up front, which is much cheaper
+     * for small files. Larger files are streamed through the deflater.
+     *
+     * @param writer The bag writer that the file is being written to
+     * @param out The metered destination underneath writer, used to measure the file
+     * @param streamingFile The file stream that's being written to the output stream
+     * @param buffer The buffer used to copy the file
+     * @param direct The direct buffer used to copy the file instead, or null
+     * @param tracker Tracks the progress of the payload, or null when it isn't tracked
+     * @param throttle Limits the rate that the file is read at, or null
+     * @param adaptive Adjusts the compression level as the file is written, or null
+     * @param dedup Finds the files that were already written with the same bytes, or null
+     * @return The metrics of the file, or null when there aren't any listeners
+     * @throws IOException
+     */
+    private FileMetrics streamFile(BagSerializer writer, Metered out, SpeedFile streamingFile, byte[] buffer,
+                                   ByteBuffer direct, ProgressTracker tracker, Throttle throttle,
+                                   AdaptiveLevel adaptive, Deduplicator dedup) throws IOException {
+        boolean measured = !this.listeners.isEmpty();
+        SpeedStream fileStream = streamingFile.getStream();
+        SpeedFile original = dedup == null ? null : dedup.findByKey(streamingFile);
+        if (original != null) {
+            // The file isn't read at all
+            long startCount = out.getCount();
+            dedup.duplicated(streamingFile, original);
+            writer.writeDuplicate(streamingFile.getPath(), original.getPath());
+            if (tracker != null) {
+                tracker.advance(fileStream.getSize());
+            }
+            return measured ? new FileMetrics(streamingFile.getPath(), false, fileStream.getSize(),
+                    out.getCount() - startCount, 0, 0, 0, 0) : null;
+        }
+        fileStream.setTimed(measured);
+        CompressionMethod method = streamingFile.getCompressionMethod();
+        if (method == null) {
+            method = streamingFile.isTagFile() ? CompressionMethod.DEFLATE : compressionMethod;
+        }
+        writer.setMethod(method.getZipMethod());
+        long startCount = out.getCount();
+        long startStall = out.getNanos();
+        long writeNanos;
+        if (direct != null) {
+            writeNanos = copyFile(writer, streamingFile, direct, tracker, throttle, adaptive, dedup, measured);
+        } else {
+            writeNanos = copyFile(writer, streamingFile, buffer, tracker, throttle, adaptive, dedup, measured);
+        }
+        if (dedup != null && dedup.written(streamingFile)) {
+            writer.remember(streamingFile.getPath());
+        }
+        if (!measured) {
+            return null;
+        }
+        // Time spent in writer that wasn't spent waiting on the output was spent deflating
+        long stallNanos = out.getNanos() - startStall;
+        return new FileMetrics(streamingFile.getPath(), streamingFile.isTagFile(), fileStream.getSize(),
+                out.getCount() - startCount, fileStream.getReadNanos(), fileStream.getHashNanos(),
+                Math.max(0, writeNanos - stallNanos), stallNanos);
+    }
+
+    /**
+     * Writes a tag file that was generated for the bag, such as bag-info.txt or the data
+     * manifest. Its bytes are already in memory, so they're hashed and written as one entry
+     * without going through a SpeedStream.
+     *
+     * @param writer The bag writer that the file is being written to
+     * @param out The metered destination underneath writer, used to measure the file
+     * @param path The path of the file in the bag
+     * @param bytes The array holding the file
+     * @param length The number of bytes in the file
+     * @param digests The checksums of the generated files, which the file's is added to
+     * @return The metrics of the file, or null when there aren't any listeners
+     */
+    private FileMetrics writeTagFile(BagSerializer writer, Metered out, String path, byte[] bytes, int length,
+                                     Map<String, byte[]> digests) throws IOException, NoSuchAlgorithmException {
+        long startCount = out.getCount();
+        long startStall = out.getNanos();
+        writer.setMethod(ZipStreamWriter.DEFLATED);
+        long start = System.nanoTime();
+        Checksummer checksummer = Checksummers.getInstance(checksumAlgorithm);
+        checksummer.update(bytes, 0, length);
+        digests.put(path, checksummer.digest());
+        long hashNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        writer.writeEntry(path, bytes, 0, length);
+        long writeNanos = System.nanoTime() - start;
+        if (this.listeners.isEmpty()) {
+            return null;
+        }
+        long stallNanos = out.getNanos() - startStall;
+        return new FileMetrics(path, true, length, out.getCount() - startCount, 0, hashNanos,
+                Math.max(0, writeNanos - stallNanos), stallNanos);
+    }
+
+    /**
+     * Writes a tag file of the bag's template, whose checksum and zip entry were computed
+     * when the template was built
+     *
+     * @param writer The bag writer that the file is being written to
+     * @param out The metered destination underneath writer, used to measure the file
+     * @param file The file of the template
+     * @param digests The checksums of the generated files, which the file's is added to
+     * @return The metrics of the file, or null when there aren't any listeners
+     */
+    private FileMetrics writeTemplateFile(BagSerializer writer, Metered out, BagTemplate.TemplateFile file,
+                                          Map<String, byte[]> digests) throws IOException, NoSuchAlgorithmException {
+        if (!checksumAlgorithm.equals(template.getChecksumAlgorithm())) {
+            // The algorithm was changed after the bag was created
+            return writeTagFile(writer, out, file.path, file.bytes, file.bytes.length, digests);
+        }
+        long startCount = out.getCount();
+        long startStall = out.getNanos();
+        digests.put(file.path, file.digest);
+        long start = System.nanoTime();
+        writer.writeEntry(file.entry, file.bytes);
+        long writeNanos = System.nanoTime() - start;
+        if (this.listeners.isEmpty()) {
+            return null;
+        }
+        long stallNanos = out.getNanos() - startStall;
+        return new FileMetrics(file.path, true, file.bytes.length, out.getCount() - startCount, 0, 0,
+                Math.max(0, writeNanos - stallNanos), stallNanos);
+    }
+
+    /**
+     * Writes a file that has been read whole as a duplicate, when a file with the same size
+     * and checksum was already written
+     *
+     * @return Whether the file was written as a duplicate
+     */
+    private boolean writeDuplicate(BagSerializer writer, SpeedFile streamingFile, Deduplicator dedup)
+            throws IOException {
+        SpeedFile original = dedup == null ? null : dedup.findByChecksum(streamingFile);
+        if (original == null) {
+            return false;
+        }
+        dedup.duplicated(streamingFile, original);
+        writer.writeDuplicate(streamingFile.getPath(), original.getPath());
+        return true;
+    }
+
+    /**
+     * Copies a file into the bag writer through a heap buffer
+     *
+     * @return The time spent in the bag writer
+     */
+    private long copyFile(BagSerializer writer, SpeedFile streamingFile, byte[] buffer,
+                          ProgressTracker tracker, Throttle throttle, AdaptiveLevel adaptive,
+                          Deduplicator dedup, boolean measured) throws IOException {
+        boolean timed = measured || adaptive != null;
+        SpeedStream fileStream = streamingFile.getStream();
+        long writeNanos = 0;
+        int length = 0;
+        int read = 0;
+        while (length < buffer.length && (read = fileStream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+        }
+        if (tracker != null) {
+            tracker.advance(length);
+        }
+        if (throttle != null) {
+            throttle.acquire(length);
+        }
+        long start = System.nanoTime();
+        if (read == -1) {
+            // The whole file is in the buffer
+            if (writeDuplicate(writer, streamingFile, dedup)) {
+                return System.nanoTime() - start;
+            }
+            writer.writeEntry(streamingFile.getPath(), buffer, 0, length);
+            writeNanos = System.nanoTime() - start;
+            if (adaptive != null) {
+                adaptive.record(writeNanos);
+            }
+            return writeNanos;
+        }
+        try {
+            writer.putNextEntry(streamingFile.getPath(), streamingFile.getExpectedSize());
+            writer.write(buffer, 0, length);
+            writeNanos += System.nanoTime() - start;
+            while ((read = fileStream.read(buffer, 0, buffer.length)) != -1) {
+                if (timed) {
+                    start = System.nanoTime();
+                    writer.write(buffer, 0, read);
+                    long nanos = System.nanoTime() - start;
+                    writeNanos += nanos;
+                    if (adaptive != null) {
+                        adaptive.record(nanos);
+                    }
+                } else {
+                    writer.write(buffer, 0, read);
+                }
+                if (tracker != null) {
+                    tracker.advance(read);
+                }
+                if (throttle != null) {
+                    throttle.acquire(read);
+                }
+            }
+        } finally {
+            start = System.nanoTime();
+            writer.closeEntry();
+            writeNanos += System.nanoTime() - start;
+        }
+        return writeNanos;
+    }
+
+    /**
+     * Copies a file into the bag writer through a direct buffer
+     *
+     * @return The time spent in the bag writer
+     */
+    private long copyFile(BagSerializer writer, SpeedFile streamingFile, ByteBuffer buffer,
+                          ProgressTracker tracker, Throttle throttle, AdaptiveLevel adaptive,
+                          Deduplicator dedup, boolean measured) throws IOException {
+        boolean timed = measured || adaptive != null;
+        SpeedStream fileStream = streamingFile.getStream();
+        long writeNanos = 0;
+        ((Buffer) buffer).clear();
+        int read = 0;
+        while (buffer.hasRemaining() && (read = fileStream.read(buffer)) != -1) {
+        }
+        if (tracker != null) {
+            tracker.advance(buffer.position());
+        }
+        if (throttle != null) {
+            throttle.acquire(buffer.position());
+        }
+        ((Buffer) buffer).flip();
+        long start = System.nanoTime();
+        if (read == -1) {
+            // The whole file is in the buffer
+            if (writeDuplicate(writer, streamingFile, dedup)) {
+                return System.nanoTime() - start;
+            }
+            writer.writeEntry(streamingFile.getPath(), buffer);
+            writeNanos = System.nanoTime() - start;
+            if (adaptive != null) {
+                adaptive.record(writeNanos);
+            }
+            return writeNanos;
+        }
+        try {
+            writer.putNextEntry(streamingFile.getPath(), streamingFile.getExpectedSize());
+            writer.write(buffer);
+            writeNanos += System.nanoTime() - start;
+            while (true) {
+                ((Buffer) buffer).clear();
+                if ((read = fileStream.read(buffer)) == -1) {
+                    break;
+                }
+                ((Buffer) buffer).flip();
+                if (timed) {
+                    start = System.nanoTime();
+                    writer.write(buffer);
+                    long nanos = System.nanoTime() - start;
+                    writeNanos += nanos;
+                    if (adaptive != null) {
+                        adaptive.record(nanos);
+                    }
+                } else {
+                    writer.write(buffer);
+                }
+                if (tracker != null) {
+                    tracker.advance(read);
+                }
+                if (throttle != null) {
+                    throttle.acquire(read);
+                }
+            }
+        } finally {
+            start = System.nanoTime();
+            writer.closeEntry();
+            writeNanos += System.nanoTime() - start;
+        }
+        return writeNanos;
+    }
+
+    /**
+     * Writes the files to a stream under the BagIt specification. The manifest, bagit.txt,
+     * and bag.info are generated inside.
+     *
+     * @throws IOException Throws when something went wrong with streaming the bag
+     * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+     * @throws RejectedExecutionException Thrown when the bag's scheduler has too many bags waiting
+     */
+    public InputStream stream()
+            throws IOException, NoSuchAlgorithmException {
+        checkSidecar();
+        if (budget != null) {
+            budget.check(budgetedFiles(false), budgetedMemory(true, false));
+        }
+        PipedOutputStream ps = new PipedOutputStream();
+        BagPipe is = new BagPipe(ps);
+        MeteredOutputStream out = new MeteredOutputStream(ps);
+        BagSerializer writer = format.newSerializer(out, compressionLevel, bufferSize);
+
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    writeBag(writer, out, null, null, true);
+                } catch (Throwable e) {
+                    logger.error("Failed to stream the bag", e);
+                    // The reader gets the failure once it has read what was written before it
+                    is.fail(e);
+                    try {
+                        ps.close();
+                    } catch (IOException closing) {
+                        logger.warn("Failed to close the bag's pipe " + closing.getMessage());
+                    }
+                }
+            }
+        };
+        try {
+            if (scheduler != null) {
+                scheduler.execute(this, task);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            writer.release();
+            throw e;
+        }
+        return is;
+    }
+
+    /**
+     * Writes the bag to a channel on the calling thread, returning once the whole bag has
+     * been written. The files are read into direct buffers from the shared DirectBufferPool
+     * (see setDirectBufferPool), checksummed and deflated from there, and written to the
+     * channel, so the payload doesn't need heap buffers of its own (MessageDigest checksums
+     * still copy it through a small array, a few KB at a time). Files added as a
+     * PayloadSource are read as channels. When the pool has no buffers left, heap buffers are
+     * used instead.
+     * The channel is left open. When the bag has a scheduler, the calling thread waits for the
+     * bag's turn.
+     *
+     * @param channel: The channel that the bag is written to
+     * @throws IOException Throws when something went wrong with streaming the bag
+     * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+     * @throws RejectedExecutionException Thrown when the bag's scheduler has too many bags waiting
+     */
+    public void stream(WritableByteChannel channel)
+            throws IOException, NoSuchAlgorithmException {
+        checkSidecar();
+        if (budget != null) {
+            budget.check(budgetedFiles(false), budgetedMemory(false, false));
+        }
+        BagScheduler scheduler = this.scheduler;
+        if (scheduler == null) {
+            streamDirect(channel);
+            return;
+        }
+        // Wait for the bag's turn
+        scheduler.enter(this);
+        try {
+            streamDirect(channel);
+        } finally {
+            scheduler.exit();
+        }
+    }
+
+    private void streamDirect(WritableByteChannel channel)
+            throws IOException, NoSuchAlgorithmException {
+        DirectBufferPool pool = directBufferPool;
+        ByteBuffer input = pool.acquire();
+        ByteBuffer output = input == null ? null : pool.acquire();
+        if (output == null && input != null) {
+            pool.release(input);
+            input = null;
+        }
+        MeteredChannel out = new MeteredChannel(channel);
+        int entrySize = input == null ? bufferSize : pool.getBufferSize();
+        BagSerializer writer = format.newSerializer(out, output, compressionLevel, entrySize);
+        try {
+            writeBag(writer, out, input, null, false);
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to stream the bag", e);
+        } finally {
+            if (input != null) {
+                pool.release(input);
+                pool.release(output);
+            }
+        }
+    }
+
+    /**
+     * Writes the bag to a file on the calling thread, keeping a journal so that a run that
+     * dies part way can be resumed. Every few data files (see setCheckpointInterval) the
+     * file is forced to disk and a checkpoint is appended to the journal. When the journal
+     * already exists, the file is truncated to the journal's last checkpoint and the bag
+     * carries on with the data files that came after it; the ones before it aren't read
+     * again. The bag has to be given the same data files, in the same order, and have the
+     * same format and checksum algorithm as the run that was interrupted. The journal is
+     * deleted once the bag is finished. When the bag has a scheduler, the calling thread
+     * waits for the bag's turn.
+     *
+     * @param file: The file that the bag is written to
+     * @param journal: The file that the checkpoints are kept in
+     * @throws IOException Throws when something went wrong with writing the bag, or when the
+     *                     journal doesn't match the bag
+     * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+     * @throws IllegalStateException When the bag's format is TAR_GZ, which can't be resumed, or the
+     *                               bag has a sidecar index
+     */
+    public void stream(Path file, Path journal) throws IOException, NoSuchAlgorithmException {
+        if (format == BagFormat.TAR_GZ) {
+            throw new IllegalStateException("Gzipped tar bags can't be resumed");
+        }
+        if (sidecar != null) {
+            throw new IllegalStateException("Bags that are resumed from a journal can't have a sidecar index");
+        }
+        if (budget != null) {
+            budget.check(budgetedFiles(false), budgetedMemory(false, false));
+        }
+        BagScheduler scheduler = this.scheduler;
+        if (scheduler != null) {
+            scheduler.enter(this);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            BagJournal checkpoints = new BagJournal(journal, channel, checkpointInterval, format, checksumAlgorithm);
+            boolean finished = false;
+            try {
+                MeteredChannel out = new MeteredChannel(channel);
+                BagSerializer writer = format.newSerializer(out, null, compressionLevel, bufferSize);
+                try {
+                    if (checkpoints.isResumed()) {
+                        checkpoints.restore(writer, dataFiles);
+                    } else {
+                        channel.truncate(0);
+                    }
+                } catch (IOException e) {
+                    writer.release();
+                    throw e;
+                }
+                writeBag(writer, out, null, checkpoints, false);
+                finished = true;
+            } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Failed to stream the bag", e);
+            } finally {
+                checkpoints.close(finished);
+            }
+        } finally {
+            if (scheduler != null) {
+                scheduler.exit();
+            }
+        }
+    }
+
+    /**
+     * Writes the bag to a directory as loose files, on the calling thread, returning once
+     * the whole bag has been written. The data files are copied on several threads (see
+     * setCopyThreads) and checksummed as they're copied, then the tag files and manifests
+     * are written. The directory is created when it doesn't exist, and files that are
+     * already in it aren't overwritten: the bag fails instead. When the bag fails, the files
+     * written so far are left in place.
+     *
+     * @param directory: The directory that the bag is written to
+     * @throws IOException Throws when something went wrong with writing the bag
+     * @throws NoSuchAlgorithmException Thrown when an unsupported checksum algorithm is used
+     */
+    public void writeTo(Path directory) throws IOException, NoSuchAlgorithmException {
+        if (sidecar != null) {
+            throw new IllegalStateException("Bags written to a directory can't have a sidecar index");
+        }
+        BagResourceBudget budget = this.budget;
+        int files = budgetedFiles(true);
+        long memory = budgetedMemory(false, true);
+        if (budget != null) {
+            reserveBudget(budget, files, memory);
+        }
+        try {
+            writeToDirectory(directory);
+        } finally {
+            if (budget != null) {
+                budget.release(files, memory);
+            }
+        }
+    }
+
+    private void writeToDirectory(Path directory) throws IOException, NoSuchAlgorithmException {
+        DirectoryWriter writer = new DirectoryWriter(directory);
+        List<SpeedFile> payload = new ArrayList<>(dataFiles.values());
+        int threads = Math.max(1, Math.min(copyThreads, payload.size()));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService copiers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "speedbagit-copy-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        byte[] buffer = BufferPool.acquire(bufferSize);
+        try {
+            long bagStart = System.nanoTime();
+            for (BagStreamListener listener : listeners) {
+                listener.onBagStarted(payload.size(), 0);
+            }
+            boolean measured = !listeners.isEmpty();
+            // With deduplication, the files with the content key of an earlier file are linked
+            // to it once it has been copied
+            Map<String, SpeedFile> originals = new HashMap<>();
+            Map<SpeedFile, SpeedFile> duplicates = new LinkedHashMap<>();
+            CompletionService<FileMetrics> copies = new ExecutorCompletionService<>(copiers);
+            int copyCount = 0;
+            for (SpeedFile file : payload) {
+                String key = file.getContentKey();
+                SpeedFile original = deduplicate && key != null ? originals.putIfAbsent(key, file) : null;
+                if (original != null) {
+                    duplicates.put(file, original);
+                    continue;
+                }
+                copies.submit(() -> copyToDirectory(writer, file, measured));
+                copyCount++;
+            }
+            BagTotals totals = new BagTotals();
+            ProgressTracker tracker = createProgressTracker();
+            long totalSize = 0;
+            for (int i = 0; i < copyCount; i++) {
+                // The files are tracked in the order they finish
+                FileMetrics metrics = copies.take().get();
+                if (measured) {
+                    totals.add(metrics);
+                }
+                tracker.fileCompleted();
+                tracker.advance(metrics.getBytes());
+                totalSize += metrics.getBytes();
+            }
+            Deduplicator dedup = new Deduplicator();
+            for (Map.Entry<SpeedFile, SpeedFile> duplicate : duplicates.entrySet()) {
+                SpeedFile file = duplicate.getKey();
+                dedup.duplicated(file, duplicate.getValue());
+                writer.writeDuplicate(file.getPath(), duplicate.getValue().getPath());
+                file.getStream().close();
+                tracker.fileCompleted();
+                tracker.advance(file.getStream().getSize());
+                totalSize += file.getStream().getSize();
+            }
+            tracker.report();
+            writeTags(writer, writer, payload, totalSize, totals, buffer, null);
+            if (!listeners.isEmpty()) {
+                BagMetrics metrics = totals.toMetrics(writer.getCount(), System.nanoTime() - bagStart);
+                for (BagStreamListener listener : listeners) {
+                    listener.onBagFinished(metrics);
+                }
+            }
+        } catch (Exception e) {
+            copiers.shutdownNow();
+            writer.release();
+            for (SpeedFile file : payload) {
+                file.getStream().close();
+            }
+            for (BagStreamListener listener : listeners) {
+                listener.onBagFailed(e);
+            }
+            if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                e = (Exception) e.getCause();
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the bag");
+            }
+            throw new IOException("Failed to write the bag", e);
+        } finally {
+            copiers.shutdown();
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Copies a data file into a bag directory through a direct buffer, or a heap buffer when
+     * the pool has none left
+     */
+    private FileMetrics copyToDirectory(DirectoryWriter writer, SpeedFile file, boolean measured)
+            throws IOException {
+        DirectBufferPool pool = directBufferPool;
+        ByteBuffer direct = pool.acquire();
+        ByteBuffer buffer = direct == null ? ByteBuffer.allocate(bufferSize) : direct;
+        try {
+            return writer.copy(file, buffer, linkPayload, measured);
+        } finally {
+            file.getStream().close();
+            if (direct != null) {
+                pool.release(direct);
+            }
+        }
+    }
+
+    /**
+     * Writes the data files, tag files and manifests of the bag to a bag writer, telling the
+     * listeners how it went.
+     *
+     * @param writer: The bag writer, which is closed at the end of the bag
+     * @param out: The metered destination underneath writer
+     * @param direct: A direct buffer to copy the files with, or null to copy them on the heap
+     * @param journal: The journal that checkpoints are written to, or null
+     * @param piped: Whether the bag is written to the pipe of stream()
+     */
+    private void writeBag(BagSerializer writer, Metered out, ByteBuffer direct, BagJournal journal, boolean piped)
+            throws Exception {
+        // Reads the data files ahead, when prefetching is turned on
+        Prefetcher prefetcher = null;
+        BagResourceBudget budget = this.budget;
+        int files = budgetedFiles(false);
+        long memory = budgetedMemory(piped, false);
+        boolean reserved = false;
+        byte[] buffer = null;
+        try {
+            if (budget != null) {
+                reserveBudget(budget, files, memory);
+                reserved = true;
+            }
+            buffer = direct == null ? BufferPool.acquire(bufferSize) : null;
+            if (sidecar != null) {
+                writer.setIndex(new BagIndexWriter());
+            }
+            long bagStart = System.nanoTime();
+            if (logger.isInfoEnabled()) {
+                String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
+                logger.info(String.format("Streaming bag at %s", timeStamp));
+            }
+            int queueDepth = scheduler == null ? getQueueDepth() : scheduler.getQueuedCount();
+            for (BagStreamListener listener : listeners) {
+                listener.onBagStarted(dataFiles.size(), queueDepth);
+            }
+            // Limits the rate that the payload is read at
+            Throttle throttle = scheduler == null
+                    ? (bandwidthLimit == 0 ? null : new Throttle(bandwidthLimit, null))
+                    : scheduler.newThrottle(bandwidthLimit);
+            // Adjusts the compression level of the data files to the client
+            AdaptiveLevel adaptive = adaptiveCompression ? new AdaptiveLevel(writer, out) : null;
+            // Finds the data files that were already written, when the payload is deduplicated
+            Deduplicator dedup = deduplicate ? new Deduplicator() : null;
+            BagTotals totals = new BagTotals();
+            totals.queueDepth = queueDepth;
+            ProgressTracker tracker = createProgressTracker();
+            long totalSize = 0;
+            List<SpeedFile> payload = new ArrayList<>(dataFiles.values());
+            // The data files that weren't written before the journal's last checkpoint
+            List<SpeedFile> remaining = payload;
+            if (journal != null && journal.isResumed()) {
+                remaining = new ArrayList<>();
+                for (SpeedFile streamingFile : payload) {
+                    if (journal.isCompleted(streamingFile)) {
+                        tracker.advance(streamingFile.getStream().getSize());
+                        tracker.fileCompleted();
+                        totalSize += streamingFile.getStream().getSize();
+                    } else {
+                        remaining.add(streamingFile);
+                    }
+                }
+            }
+            if (prefetchDepth > 0) {
+                prefetcher = new Prefetcher(remaining, prefetchDepth, prefetchMemory);
+                prefetcher.start();
+            }
+            // Stream all the files in the root 'data' directory
+
+            for (SpeedFile streamingFile : remaining) {
+                try {
+                    totals.add(streamFile(writer, out, streamingFile, buffer, direct, tracker, throttle, adaptive,
+                            dedup));
+                    tracker.fileCompleted();
+                    if (prefetcher != null) {
+                        prefetcher.fileCompleted();
+                    }
+                    totalSize += streamingFile.getStream().getSize();
+                    if (journal != null) {
+                        journal.fileCompleted(writer, streamingFile);
+                    }
+                } finally {
+                    streamingFile.getStream().close();
+                }
+            }
+            tracker.report();
+            if (dedup != null && logger.isDebugEnabled()) {
+                logger.debug(String.format("Wrote %d duplicate files, %d bytes, once",
+                        dedup.getDuplicateCount(), dedup.getDuplicateBytes()));
+            }
+            if (adaptive != null) {
+                // Only the data files are adapted; the tag files get the bag's own level
+                writer.setLevel(compressionLevel);
+            }
+            writeTags(writer, out, payload, totalSize, totals, buffer, direct);
+            if (logger.isInfoEnabled()) {
+                String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
+                logger.info(String.format("Finished streaming bag at %s", timeStamp));
+            }
+            if (!listeners.isEmpty()) {
+                BagMetrics metrics = totals.toMetrics(out.getCount(), System.nanoTime() - bagStart);
+                for (BagStreamListener listener : listeners) {
+                    listener.onBagFinished(metrics);
+                }
+            }
+        } catch (Exception e) {
+            writer.release();
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+            for (BagStreamListener listener : listeners) {
+                listener.onBagFailed(e);
+            }
+            throw e;
+        } finally {
+            if (buffer != null) {
+                BufferPool.release(buffer);
+            }
+            if (reserved) {
+                budget.release(files, memory);
+            }
+        }
+    }
+
+    /**
+     * Writes bagit.txt, bag-info.txt, the manifests and the tag files once the payload has
+     * been written, and finishes the bag
+     *
+     * @param writer: The bag writer, which is closed at the end
+     * @param out: The metered destination underneath writer
+     * @param payload: The data files, which have all been read
+     * @param totalSize: The number of bytes in the payload
+     * @param totals: The totals of the bag, which the tag files are added to
+     * @param buffer: The heap buffer to copy the tag files with, when direct is null
+     * @param direct: A direct buffer to copy the tag files with, or null
+     */
+    private void writeTags(BagSerializer writer, Metered out, List<SpeedFile> payload, long totalSize,
+                           BagTotals totals, byte[] buffer, ByteBuffer direct) throws Exception {
+        long phaseStart = System.nanoTime();
+        String payloadOxum =  String.format("%s.%s",totalSize, dataFiles.size());
+        // The checksums of the tag files that are generated here
+        Map<String, byte[]> generated = new LinkedHashMap<>();
+        // Generate and write the bagit.txt file, unless the template's still matches the bag
+        if (template != null && template.getVersion() == version
+                && template.getBagitMetadata() == bagitMetadata) {
+            totals.add(writeTemplateFile(writer, out, template.getBagitTxt(), generated));
+        } else {
+            TagFileWriter bagitFile = bagitTxt();
+            String bagitFileName = properties.getProperty("bagit.file.name");
+            totals.add(writeTagFile(writer, out, bagitFileName, bagitFile.getBytes(), bagitFile.size(), generated));
+        }
+
+        // Generate and write the bag-info.txt file
+        TagFileWriter bagInfoFile = bagInfoTxt(payloadOxum, totalSize);
+        String bagitInfoFileName = properties.getProperty("bag.info.file.name");
+        totals.add(writeTagFile(writer, out, bagitInfoFileName, bagInfoFile.getBytes(), bagInfoFile.size(), generated));
+        totals.tagFileNanos = System.nanoTime() - phaseStart;
+        for (BagStreamListener listener : listeners) {
+            listener.onTagFilesGenerated(totals.tagFileNanos);
+        }
+
+        phaseStart = System.nanoTime();
+        // BagIt requires checksum filenames to be lower cased and without dashes
+        String sanitizedChecksum = checksumAlgorithm.toLowerCase();
+        sanitizedChecksum = sanitizedChecksum.replaceAll("[^A-Za-z0-9]", "");
+        // Generate and write the data manifest file, through a temporary file when it doesn't fit
+        // in the bag's budget
+        String fileName = String.format("manifest-%s.txt", sanitizedChecksum);
+        BagResourceBudget budget = this.budget;
+        long manifestSize = budget == null ? 0 : manifestSize(dataManifestFile, payload);
+        if (budget == null || budget.reserveManifest(manifestSize)) {
+            try {
+                byte[] dataManifest = generateManifest(dataManifestFile, payload);
+                totals.manifestNanos = System.nanoTime() - phaseStart;
+                totals.add(writeTagFile(writer, out, fileName, dataManifest, dataManifest.length, generated));
+            } finally {
+                if (budget != null) {
+                    budget.releaseManifest(manifestSize);
+                }
+            }
+        } else {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Writing the %d byte manifest through a temporary file", manifestSize));
+            }
+            Path spill = Files.createTempFile("speedbagit-manifest-", ".txt");
+            try {
+                try (OutputStream manifest = new BufferedOutputStream(Files.newOutputStream(spill), bufferSize)) {
+                    writeManifest(manifest, dataManifestFile, Collections.emptyMap(), payload);
+                }
+                totals.manifestNanos = System.nanoTime() - phaseStart;
+                SpeedFile manifestFile = new SpeedFile(new SpeedStream(new SourceInputStream(PayloadSource.of(spill)),
+                        Checksummers.getInstance(checksumAlgorithm)), fileName, true, Files.size(spill));
+                try {
+                    totals.add(streamFile(writer, out, manifestFile, buffer, direct, null, null, null, null));
+                } finally {
+                    manifestFile.getStream().close();
+                }
+                generated.put(fileName, manifestFile.getStream().getDigest());
+            } finally {
+                Files.deleteIfExists(spill);
+            }
+        }
+        if (template != null) {
+            for (BagTemplate.TemplateFile file : template.getTagFiles().values()) {
+                totals.add(writeTemplateFile(writer, out, file, generated));
+            }
+        }
+
+        // Write all the tag files
+        List<SpeedFile> tags = new ArrayList<>(tagFiles.values());
+        for (SpeedFile streamingFile : tags) {
+            try {
+                totals.add(streamFile(writer, out, streamingFile, buffer, direct, null, null, null, null));
+            } finally {
+                streamingFile.getStream().close();
+            }
+        }
+
+        // Create the tag manifest and stream it
+        phaseStart = System.nanoTime();
+        byte[] tagManifest = generateManifest(tagManifestFile, generated, tags);
+        InputStream fileStream = new ByteArrayInputStream(tagManifest);
+        fileName = String.format("tagmanifest-%s.txt", sanitizedChecksum);
+        SpeedFile tagManifestStreamFile = new SpeedFile(new SpeedStream(fileStream,
+                Checksummers.getInstance(checksumAlgorithm)), fileName, true);
+        totals.manifestNanos += System.nanoTime() - phaseStart;
+        for (BagStreamListener listener : listeners) {
+            listener.onManifestsGenerated(totals.manifestNanos);
+        }
+        try {
+            totals.add(streamFile(writer, out, tagManifestStreamFile, buffer, direct, null, null, null, null));
+        } finally {
+            tagManifestStreamFile.getStream().close();
+        }
+        writer.close();
+
+        BagIndexWriter index = writer.getIndex();
+        if (index != null) {
+            generated.put(fileName, tagManifestStreamFile.getStream().getDigest());
+            index.write(sidecar, checksumAlgorithm, path -> {
+                byte[] digest = generated.get(path);
+                SpeedFile file = digest == null ? dataFiles.get(path) : null;
+                if (digest == null && file == null) {
+                    file = tagFiles.get(path);
+                }
+                return file == null ? digest : file.getStream().getDigest();
+            });
+        }
+    }
+
+    /**
+     * Creates a tracker for the payload of the bag that is about to be streamed. The total
+     * number of bytes is only known when the size of every data file was given to addFile.
+     *
+     * @return A tracker for the data files of the bag
+     */
+    private ProgressTracker createProgressTracker() {
+        return new ProgressTracker(dataFiles.size(), getExpectedPayloadSize());
+    }
+
+    /**
+     * Keeps count of the payload that has been streamed, and reports it to the progress
+     * listener each time another interval's worth of bytes has gone through.
+     */
+    private class ProgressTracker {
+        final int totalFiles;
+        final long totalBytes;
+        final long startNanos;
+        final BagProgressListener listener;
+        final long interval;
+        int filesCompleted;
+        long bytesProcessed;
+        long nextReport;
+
+        ProgressTracker(int totalFiles, long totalBytes) {
+            this.totalFiles = totalFiles;
+            this.totalBytes = totalBytes;
+            this.startNanos = System.nanoTime();
+            this.listener = progressListener;
+            this.interval = progressInterval;
+            this.nextReport = interval;
+            progress = new BagProgress(0, totalFiles, 0, totalBytes, 0);
+        }
+
+        void advance(long bytes) {
+            bytesProcessed += bytes;
+            if (bytesProcessed >= nextReport) {
+                nextReport = bytesProcessed + interval;
+                report();
+            }
+        }
+
+        void fileCompleted() {
+            filesCompleted++;
+        }
+
+        void report() {
+            BagProgress current = new BagProgress(filesCompleted, totalFiles, bytesProcessed,
+                    totalBytes, System.nanoTime() - startNanos);
+            progress = current;
+            if (listener != null) {
+                listener.onProgress(current);
+            }
+        }
+    }
+
+    /**
+     * The pipe that stream() returns. When writing the bag fails, the writer closes the pipe
+     * and the failure is thrown to the reader at the end of the bytes that were written,
+     * instead of the bag ending as if it were complete or the reader waiting on the pipe.
+     */
+    private static class BagPipe extends PipedInputStream {
+        // Why the bag couldn't be written, once it has failed
+        private volatile Throwable failure;
+
+        BagPipe(PipedOutputStream source) throws IOException {
+            super(source, PIPE_BUFFER_SIZE);
+        }
+
+        void fail(Throwable failure) {
+            this.failure = failure;
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable failure = this.failure;
+            if (failure != null) {
+                throw new IOException("Failed to stream the bag", failure);
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                checkFailure();
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0) {
+                checkFailure();
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Running totals of the file metrics of a bag that is being streamed. Each file
+     * is reported to the listeners as it is added.
+     */
+    private class BagTotals {
+        int fileCount;
+        long bytes;
+        long readNanos;
+        long hashNanos;
+        long deflateNanos;
+        long stallNanos;
+        long manifestNanos;
+        long tagFileNanos;
+        // The number of bags that were waiting when the bag started
+        int queueDepth;
+
+        void add(FileMetrics metrics) {
+            if (metrics == null) {
+                return;
+            }
+            fileCount++;
+            bytes += metrics.getBytes();
+            readNanos += metrics.getReadNanos();
+            hashNanos += metrics.getHashNanos();
+            deflateNanos += metrics.getDeflateNanos();
+            stallNanos += metrics.getStallNanos();
+            for (BagStreamListener listener : listeners) {
+                listener.onFileStreamed(metrics);
+            }
+        }
+
+        BagMetrics toMetrics(long compressedBytes, long elapsedNanos) {
+            return new BagMetrics(fileCount, bytes, compressedBytes, readNanos, hashNanos,
+                    deflateNanos, stallNanos, manifestNanos, tagFileNanos, elapsedNanos, queueDepth);
+        }
+    }
+
+    /**
+     * Returns the number of data files in the bag
+     *
+     * @return The number of data files
+     */
+    public int getPayloadFileCount() {
+        return this.dataFiles.size();
+    }
+    /**
+     * Returns all the tag files that have been added to
+     * the bag.
+     * @return HashMap of tag files
+     */
+    public HashMap<String, SpeedFile> getTagFiles() {
+        return this.tagFiles;
+    }
+
+    /**
+     * Returns a list of the data files that have been added
+     * to the bag. These are the files that belong under data/
+     * @return List of data files
+     */
+    public HashMap<String, SpeedFile> getDataFiles() {
+        return this.dataFiles;
+    }
+
+    /**
+     * Generates the contents of a manifest. The checksums of the streamed files are kept as
+     * raw bytes until now, and are hex encoded straight into the manifest.
+     *
+     * @param lines: Lines that were added with writeToDataManifest or writeToTagManifest,
+     *               keyed by checksum
+     * @param files: The files that were streamed, whose checksums have been computed
+     * @return The manifest, encoded in UTF-8
+     */
+    static byte[] generateManifest(Map<String, String> lines, List<SpeedFile> files) {
+        return generateManifest(lines, Collections.emptyMap(), files);
+    }
+
+    /**
+     * Generates the contents of a manifest that also lists files whose checksums were
+     * computed without a SpeedStream, such as the generated tag files.
+     *
+     * @param lines: Lines that were added with writeToDataManifest or writeToTagManifest,
+     *               keyed by checksum
+     * @param digests: The raw checksums of other files, keyed by path
+     * @param files: The files that were streamed, whose checksums have been computed
+     * @return The manifest, encoded in UTF-8
+     */
+    static byte[] generateManifest(Map<String, String> lines, Map<String, byte[]> digests, List<SpeedFile> files) {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream((files.size() + digests.size()) * 128 + 64);
+        try {
+            writeManifest(manifest, lines, digests, files);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return manifest.toByteArray();
+    }
+
+    /**
+     * Writes a manifest to a stream, such as the temporary file of a manifest that doesn't
+     * fit in the bag's budget
+     *
+     * @param manifest: The stream that the manifest is written to
+     * @param lines: Lines that were added with writeToDataManifest or writeToTagManifest,
+     *               keyed by checksum
+     * @param digests: The raw checksums of other files, keyed by path
+     * @param files: The files that were streamed, whose checksums have been computed
+     */
+    static void writeManifest(OutputStream manifest, Map<String, String> lines, Map<String, byte[]> digests,
+                              List<SpeedFile> files) throws IOException {
+        byte[] separator = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[256];
+        for (Map.Entry<String, String> entry : lines.entrySet()) {
+            byte[] bytes = String.format("%s %s", entry.getKey(), BagPaths.encode(entry.getValue()))
+                    .getBytes(StandardCharsets.UTF_8);
+            manifest.write(bytes, 0, bytes.length);
+            manifest.write(separator, 0, separator.length);
+        }
+        for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+            line = writeManifestLine(manifest, line, entry.getValue(), entry.getKey(), separator);
+        }
+        for (SpeedFile file : files) {
+            line = writeManifestLine(manifest, line, file.getStream().getDigest(), file.getPath(), separator);
+        }
+    }
+
+    /**
+     * Returns the size of a manifest, at most. ASCII paths are measured exactly, and other
+     * paths as though each character took three bytes.
+     *
+     * @param lines: Lines that were added with writeToDataManifest or writeToTagManifest
+     * @param files: The files that were streamed, whose checksums have been computed
+     * @return The most bytes that the manifest takes up
+     */
+    static long manifestSize(Map<String, String> lines, List<SpeedFile> files) {
+        int separator = System.getProperty("line.separator").length();
+        long size = 0;
+        for (Map.Entry<String, String> entry : lines.entrySet()) {
+            size += 3L * (entry.getKey().length() + 1 + entry.getValue().length()) + separator;
+        }
+        for (SpeedFile file : files) {
+            int path = BagPaths.encodedAsciiLength(file.getPath());
+            size += file.getStream().getDigest().length * 2 + 1 + separator
+                    + (path < 0 ? 3L * file.getPath().length() : path);
+        }
+        return size;
+    }
+
+    /**
+     * Writes a "checksum path" line to a manifest, with the path encoded by BagPaths. ASCII
+     * paths are encoded straight into the line.
+     *
+     * @return The line buffer, which grows when the line doesn't fit in it
+     */
+    private static byte[] writeManifestLine(OutputStream manifest, byte[] line, byte[] digest,
+                                            String filePath, byte[] separator) throws IOException {
+        int pathLength = BagPaths.encodedAsciiLength(filePath);
+        byte[] path = null;
+        if (pathLength < 0) {
+            path = BagPaths.encode(filePath).getBytes(StandardCharsets.UTF_8);
+            pathLength = path.length;
+        }
+        int length = digest.length * 2 + 1 + pathLength + separator.length;
+        if (line.length < length) {
+            line = new byte[length];
+        }
+        int position = 0;
+        for (byte b : digest) {
+            line[position++] = HEX_DIGITS[(b >> 4) & 0xf];
+            line[position++] = HEX_DIGITS[b & 0xf];
+        }
+        line[position++] = ' ';
+        if (path == null) {
+            position = BagPaths.encodeAscii(filePath, line, position);
+        } else {
+            System.arraycopy(path, 0, line, position, path.length);
+            position += path.length;
+        }
+        System.arraycopy(separator, 0, line, position, separator.length);
+        manifest.write(line, 0, length);
+        return line;
     }
 
     public static String bagFileToString(Map<String, String> mapFile) {
@@ -30,6 +30,11 @@ public class SpeedFile {
     private String bagPath;
     private SpeedStream stream;
     private boolean isTagFile;
+    private long expectedSize;
+    // The method the file is compressed with, or null for the bag's
+    private CompressionMethod compressionMethod;
+    // Identifies the file's content for deduplication, or null
+    private String contentKey;
 
     /**
      * Constructs a new SpeedFile instance.
@@ -39,9 +44,25 @@ public class SpeedFile {
      * @param isTagFile A boolean that represents whether the file is a BagIt Tag file
      */
     public SpeedFile(SpeedStream stream, String bagPath, boolean isTagFile) {
+        this(stream, bagPath, isTagFile, -1);
+    }
+
+    /**
+     * Constructs a new SpeedFile instance whose size is known ahead of time. The size
+     * is used to report progress, and lets tar bags stream the file without holding it in
+     * memory. A zip bag always records the number of bytes that were actually streamed,
+     * while a tar bag fails when it differs from the size.
+     *
+     * @param stream A SpeedStream representing the bytes of the file
+     * @param bagPath The path, relative to the bag root that the file is written to
+     * @param isTagFile A boolean that represents whether the file is a BagIt Tag file
+     * @param expectedSize The number of bytes in the file, or -1 when it isn't known
+     */
+    public SpeedFile(SpeedStream stream, String bagPath, boolean isTagFile, long expectedSize) {
         this.stream = stream;
         this.bagPath = bagPath;
         this.isTagFile = isTagFile;
+        this.expectedSize = expectedSize;
     }
 
     /**
@@ -71,4 +92,55 @@ public class SpeedFile {
     public boolean isTagFile() {
         return this.isTagFile;
     }
+
+    /**
+     * Gets the size that the file was expected to have when it was added
+     *
+     * @return The expected number of bytes, or -1 when it isn't known
+     */
+    public long getExpectedSize() {
+        return this.expectedSize;
+    }
+
+    /**
+     * Sets the method that the file is compressed with, instead of the bag's
+     *
+     * @param compressionMethod The method, or null to use the bag's
+     */
+    public void setCompressionMethod(CompressionMethod compressionMethod) {
+        if (compressionMethod != null && !compressionMethod.isAvailable()) {
+            throw new IllegalArgumentException(compressionMethod + " isn't available on the classpath");
+        }
+        this.compressionMethod = compressionMethod;
+    }
+
+    /**
+     * Gets the method that the file is compressed with
+     *
+     * @return The method, or null when the file uses the bag's
+     */
+    public CompressionMethod getCompressionMethod() {
+        return this.compressionMethod;
+    }
+
+    /**
+     * Sets a key that identifies the content of the file, such as a checksum that the caller
+     * already has. When the bag deduplicates its payload, data files with the same key are
+     * taken to have the same bytes: only the first is read and written, and the others refer
+     * to it. The key is trusted, it isn't checked against the bytes.
+     *
+     * @param contentKey The key, or null to identify the file by its checksum
+     */
+    public void setContentKey(String contentKey) {
+        this.contentKey = contentKey;
+    }
+
+    /**
+     * Gets the key that identifies the content of the file
+     *
+     * @return The key, or null when there isn't one
+     */
+    public String getContentKey() {
+        return this.contentKey;
+    }
 }
@@ -24,20 +24,52 @@ package org.dataone.speedbagit;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
+import java.util.function.Supplier;
 
 import org.apache.commons.codec.binary.Hex;
 
 /**
  * A class that manages a stream of bytes to a BagIt archive. While the data
  * is transferred/streamed, the size and checksum are computed.
+ *
+ * It can also be read as a channel, into direct ByteBuffers. Sources that were added
+ * as a PayloadSource are then opened as a channel, so that files can be read without a
+ * heap buffer of their own. MessageDigest checksums still copy the bytes through a small
+ * array, a few KB at a time.
  */
-public class SpeedStream extends FilterInputStream {
+public class SpeedStream extends FilterInputStream implements ReadableByteChannel {
+
+    // Replaces the source once the stream is closed
+    private static final InputStream CLOSED = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            throw new IOException("The stream is closed");
+        }
+    };
 
-    // The object that holds the checksum state & performs checksumming
-    private MessageDigest digest;
+    // The object that holds the checksum state & performs checksumming, created on the
+    // first read when the stream was given a factory
+    private Checksummer digest;
+    // Creates the Checksummer, until it has been created
+    private Supplier<Checksummer> factory;
     // The number of bytes streamed
-    private int size;
+    private long size;
+    // Whether the time spent reading and checksumming is recorded
+    private boolean timed;
+    // Nanoseconds spent waiting on the underlying stream
+    private long readNanos;
+    // Nanoseconds spent updating the checksum
+    private long hashNanos;
+    // The checksum, once it has been computed
+    private byte[] checksum;
+    // The source as a channel, once it's read through read(ByteBuffer)
+    private ReadableByteChannel channel;
+    private boolean closed;
     /**
      * Constructs a new SpeedStream object
      *
@@ -46,14 +78,50 @@ public class SpeedStream extends FilterInputStream {
      *
      */
     public SpeedStream(InputStream in, MessageDigest sum) {
+        this(in, new MessageDigestChecksummer(sum));
+    }
+
+    /**
+     * Constructs a new SpeedStream object that checksums with any Checksummer
+     *
+     * @param in The stream that's being read
+     * @param sum A Checksummer that is updated as the stream is streamed
+     *
+     */
+    public SpeedStream(InputStream in, Checksummer sum) {
         super(in);
         this.digest = sum;
         this.size = 0;
 
-        // Reset the MessageDigest's state
+        // Reset the Checksummer's state
         this.digest.reset();
     }
 
+    /**
+     * Constructs a new SpeedStream object whose Checksummer is only created when the
+     * stream is first read, so that a bag with many files doesn't hold the checksum state of
+     * each of them from the time they're added
+     *
+     * @param in The stream that's being read
+     * @param factory Creates a new Checksummer
+     */
+    SpeedStream(InputStream in, Supplier<Checksummer> factory) {
+        super(in);
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the Checksummer, creating it the first time
+     */
+    private Checksummer checksummer() {
+        if (this.digest == null) {
+            this.digest = this.factory.get();
+            this.digest.reset();
+            this.factory = null;
+        }
+        return this.digest;
+    }
+
     /**
      * Reads a byte. Will block if no input is available.
      *
@@ -63,7 +131,7 @@ public class SpeedStream extends FilterInputStream {
     public int read() throws IOException {
         int b = in.read();
         if (b != -1) {
-            this.digest.update((byte) b);
+            this.checksummer().update((byte) b);
             this.size += 1;
         }
         return b;
@@ -86,32 +154,187 @@ public class SpeedStream extends FilterInputStream {
      * @throws IOException               if an I/O error has occurred
      */
     public int read(byte[] buf, int off, int len) throws IOException {
+        if (this.timed) {
+            return this.timedRead(buf, off, len);
+        }
         len = in.read(buf, off, len);
         if (len != -1) {
-            this.digest.update(buf, off, len);
+            this.checksummer().update(buf, off, len);
             this.size += len;
         }
         return len;
     }
 
+    /**
+     * Same as read(byte[], int, int), but records the time spent waiting for the
+     * underlying stream separately from the time spent checksumming.
+     */
+    private int timedRead(byte[] buf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        len = in.read(buf, off, len);
+        long read = System.nanoTime();
+        this.readNanos += read - start;
+        if (len != -1) {
+            this.checksummer().update(buf, off, len);
+            this.size += len;
+            this.hashNanos += System.nanoTime() - read;
+        }
+        return len;
+    }
+
+    /**
+     * Reads into a buffer, checksumming the bytes that were read. The first call opens the
+     * source as a channel, after which the stream shouldn't be read with the other methods.
+     *
+     * @param buffer The buffer that bytes are read into, from its position
+     * @return The number of bytes read, or -1 at the end of the stream
+     * @throws IOException if an I/O error has occurred
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        if (this.channel == null) {
+            this.channel = in instanceof SourceInputStream ? ((SourceInputStream) in).channel()
+                    : Channels.newChannel(in);
+        }
+        int start = buffer.position();
+        long begin = this.timed ? System.nanoTime() : 0;
+        int len = this.channel.read(buffer);
+        long read = this.timed ? System.nanoTime() : 0;
+        if (len > 0) {
+            ByteBuffer bytes = buffer.duplicate();
+            ((Buffer) bytes).position(start);
+            ((Buffer) bytes).limit(start + len);
+            this.checksummer().update(bytes);
+            this.size += len;
+        }
+        if (this.timed) {
+            this.readNanos += read - begin;
+            this.hashNanos += System.nanoTime() - read;
+        }
+        return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.closed;
+    }
+
+    /**
+     * Closes the source. The source and channel are let go of, since a read ahead source
+     * holds its queue of chunks and a channel made from a stream holds a transfer buffer,
+     * and a bag keeps the streams of all of its files until it's done.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+        super.close();
+        this.in = CLOSED;
+    }
+
+    /**
+     * Turns on recording of the time spent reading from the underlying stream and
+     * computing the checksum. This is off by default, and is turned on by SpeedBagIt
+     * when a BagStreamListener is registered.
+     *
+     * @param timed Whether reads should be timed
+     */
+    public void setTimed(boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * Returns the time spent waiting on the underlying stream, when timing is turned on
+     *
+     * @return The number of nanoseconds spent reading
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /**
+     * Returns the time spent computing the checksum, when timing is turned on
+     *
+     * @return The number of nanoseconds spent checksumming
+     */
+    public long getHashNanos() {
+        return hashNanos;
+    }
+
     /**
      * Returns the number of bytes that were streamed
      *
      * @return The number of bytes streamed
      */
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
+    /**
+     * Returns the stream that the bytes are read from
+     *
+     * @return The underlying stream
+     */
+    InputStream getSource() {
+        return this.in;
+    }
+
+    /**
+     * Replaces the stream that the bytes are read from, before anything is read. Used
+     * to put a read ahead buffer in front of the original stream.
+     *
+     * @param source The stream to read from instead
+     */
+    void setSource(InputStream source) {
+        this.in = source;
+    }
+
+    /**
+     * Sets the size and checksum of a stream that was read by an earlier run of the bag,
+     * which was resumed from its journal, so that it isn't read again
+     *
+     * @param size The number of bytes that were streamed
+     * @param checksum The raw checksum of the bytes
+     */
+    void restore(long size, byte[] checksum) {
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns the Checksummer that computes the checksum of the stream
+     *
+     * @return The Checksummer
+     */
+    public Checksummer getChecksummer() {
+        return this.checksummer();
+    }
+
+    /**
+     * Returns the raw checksum of the stream. It's computed the first time this is
+     * called, once the whole stream has been read, and kept for later calls.
+     *
+     * @return The checksum of the streamed bytes
+     */
+    public byte[] getDigest() {
+        if (this.checksum == null) {
+            this.checksum = this.checksummer().digest();
+        }
+        return this.checksum;
+    }
+
     /**
      * Returns the checksum of the stream.
      *
-     * Converts checksum.digest (byte[]) to a String. Since this is a checksum,
+     * Converts the raw checksum (byte[]) to a String. Since this is a checksum,
      * it should take up minimal space in memory.
      *
      * @return The checksum of the streamed bytes
      */
     public String getChecksum() {
-        return Hex.encodeHexString(this.digest.digest());
+        return Hex.encodeHexString(this.getDigest());
     }
 }
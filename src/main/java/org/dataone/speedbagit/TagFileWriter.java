@@ -0,0 +1,187 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes the "Label: value" lines of tag files such as bagit.txt and bag-info.txt
+ * straight to UTF-8 bytes, without building a String for the file first. The bytes are
+ * kept in a growable array that's written to the bag as it is.
+ *
+ * Lines that are longer than the line length are folded at the last space that fits, and
+ * continue on the next line after a single space, as allowed by section 2.2.2 of the BagIt
+ * specification. Line breaks inside a value are folded the same way so that they can't
+ * start a new label. A lineLength of 0 turns folding off.
+ */
+final class TagFileWriter {
+
+    // The bytes of the file, up to size
+    private byte[] bytes;
+    private int size;
+    // The longest line in characters before it's folded, or 0 to never fold
+    private final int lineLength;
+
+    /**
+     * Creates an empty tag file
+     *
+     * @param lineLength The longest line in characters, or 0 to never fold lines
+     */
+    TagFileWriter(int lineLength) {
+        this.lineLength = lineLength;
+        this.bytes = new byte[1024];
+    }
+
+    /**
+     * Appends a "label: value" line
+     *
+     * @param label The label, which can't be folded
+     * @param value The value
+     * @return This writer
+     */
+    TagFileWriter writeTag(String label, String value) {
+        write(label, 0, label.length());
+        ensureCapacity(2);
+        bytes[size++] = ':';
+        bytes[size++] = ' ';
+        int column = label.length() + 2;
+        int start = 0;
+        int length = value.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && value.charAt(end) != '\n' && value.charAt(end) != '\r') {
+                end++;
+            }
+            // Fold the part of the value up to the line break
+            while (lineLength > 0 && column + (end - start) > lineLength) {
+                int fold = lastSpace(value, start, start + Math.max(0, lineLength - column));
+                if (fold < 0) {
+                    // A word that's longer than a line stays on one line
+                    break;
+                }
+                write(value, start, fold);
+                newLine();
+                column = 1;
+                start = fold + 1;
+            }
+            write(value, start, end);
+            start = end;
+            if (end < length) {
+                // Skip the line break, treating CRLF as one
+                start = value.charAt(end) == '\r' && end + 1 < length && value.charAt(end + 1) == '\n' ? end + 2 : end + 1;
+                newLine();
+                column = 1;
+            }
+        }
+        ensureCapacity(1);
+        bytes[size++] = '\n';
+        return this;
+    }
+
+    /**
+     * Ends the line and starts its continuation
+     */
+    private void newLine() {
+        ensureCapacity(2);
+        bytes[size++] = '\n';
+        bytes[size++] = ' ';
+    }
+
+    /**
+     * Returns the index of the last space in value between start and limit, or -1 when there's none
+     */
+    private static int lastSpace(String value, int start, int limit) {
+        for (int i = limit; i > start; i--) {
+            if (value.charAt(i) == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes the characters of a string between start and end as UTF-8
+     */
+    private void write(String text, int start, int end) {
+        // Most labels and values are ASCII, which take one byte per char
+        ensureCapacity(end - start);
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            bytes[size++] = (byte) c;
+            i++;
+        }
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            ensureCapacity(4);
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xc0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate can't be encoded, like String.getBytes
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xe0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * Returns the array holding the file. Only the first size() bytes belong to it.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes in the file
+     */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,528 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a bag as a POSIX (pax) tar file, optionally gzipped. Tar has no central directory
+ * and every entry is written exactly as it's read, so a bag can be piped straight into
+ * `tar x`. Paths that don't fit the ustar header, and files of 8 GB or more, get a pax
+ * extended header.
+ *
+ * A tar header holds the size of the entry before its bytes, so a streamed entry is either
+ * given its size by putNextEntry(), which is checked when the entry is closed, or is held
+ * in memory until it's closed.
+ *
+ * Written to a channel without gzip, the bytes of direct buffers go straight to the channel.
+ * With gzip, the tar file is compressed by a ParallelGzipOutputStream.
+ */
+class TarStreamWriter extends BagSerializer {
+
+    static final int BLOCK_SIZE = 512;
+    // The largest size that fits the 11 octal digits of the ustar size field
+    static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final byte REGULAR_FILE = '0';
+    static final byte HARD_LINK = '1';
+    private static final byte PAX_HEADER = 'x';
+    // The name GNU tar gives the pax headers that it writes
+    private static final String PAX_HEADER_NAME = "././@PaxHeader";
+    private static final byte[] ZEROS = new byte[2 * BLOCK_SIZE];
+
+    // The stream that the tar file is written to, or null when it's written to a channel
+    private final OutputStream out;
+    // The channel that the tar file is written to, when it isn't gzipped
+    private final WritableByteChannel channel;
+    // The gzip stream that's in front of out or the channel, if the tar file is gzipped
+    private final ParallelGzipOutputStream gzip;
+    // Whether close() closes out, which isn't done for a channel
+    private final boolean closeOut;
+    // The modification time of every entry, in seconds
+    private final long mtime;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    // Holds bytes of heap buffers that are copied out of direct buffers
+    private byte[] staging;
+    private final int stagingSize;
+    private long written;
+    private long entryCount;
+    // The entry that's being streamed, if any
+    private String entryName;
+    // The size the entry was given, or -1 when it's held in memory
+    private long entrySize;
+    private long entryWritten;
+    // The bytes of the entry that's held in memory
+    private byte[] spool;
+    // The offset of the last entry's data and its size, for the sidecar index
+    private long lastDataOffset;
+    private long lastSize;
+    // The data offsets and sizes of the entries that duplicates may refer to, by name, when
+    // there's a sidecar index
+    private Map<String, long[]> remembered;
+    private boolean closed;
+
+    /**
+     * Creates a writer
+     *
+     * @param out       The stream that the tar file is written to
+     * @param gzip      Whether the tar file is gzipped
+     * @param level     The gzip compression level (0-9, or -1 for the default)
+     * @param entrySize The size of the buffer used to copy direct buffers
+     */
+    TarStreamWriter(OutputStream out, boolean gzip, int level, int entrySize) {
+        this.gzip = gzip ? new ParallelGzipOutputStream(out, level) : null;
+        this.out = gzip ? this.gzip : out;
+        this.channel = null;
+        this.closeOut = true;
+        this.mtime = System.currentTimeMillis() / 1000;
+        this.stagingSize = entrySize;
+    }
+
+    /**
+     * Creates a writer that writes to a channel. The channel isn't closed by close().
+     *
+     * @param channel   The channel that the tar file is written to
+     * @param gzip      Whether the tar file is gzipped
+     * @param level     The gzip compression level (0-9, or -1 for the default)
+     * @param entrySize The size of the buffer used to copy direct buffers
+     */
+    TarStreamWriter(WritableByteChannel channel, boolean gzip, int level, int entrySize) {
+        this.gzip = gzip ? new ParallelGzipOutputStream(Channels.newOutputStream(channel), level) : null;
+        this.out = this.gzip;
+        this.channel = gzip ? null : channel;
+        this.closeOut = false;
+        this.mtime = System.currentTimeMillis() / 1000;
+        this.stagingSize = entrySize;
+    }
+
+    @Override
+    void writeEntry(String name, byte[] data, int off, int len) throws IOException {
+        ensureOpen();
+        closeEntry();
+        writeHeader(name, len);
+        writeOut(data, off, len);
+        pad(len);
+        entryCount++;
+    }
+
+    @Override
+    void writeEntry(String name, ByteBuffer data) throws IOException {
+        ensureOpen();
+        closeEntry();
+        int len = data.remaining();
+        writeHeader(name, len);
+        writeOut(data);
+        pad(len);
+        entryCount++;
+    }
+
+    /**
+     * Starts an entry whose bytes are written with write(). When the size isn't known, the
+     * entry is held in memory until closeEntry() since the header needs its size.
+     *
+     * @param name The path of the entry in the tar file
+     * @param size The number of bytes that will be written, or -1 when it isn't known
+     */
+    @Override
+    void putNextEntry(String name, long size) throws IOException {
+        ensureOpen();
+        closeEntry();
+        entryName = name;
+        entrySize = size;
+        entryWritten = 0;
+        if (size >= 0) {
+            writeHeader(name, size);
+        } else {
+            spool = new byte[Math.max(stagingSize, BLOCK_SIZE)];
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureEntry(len);
+        if (spool != null) {
+            System.arraycopy(b, off, spool, (int) entryWritten, len);
+        } else {
+            writeOut(b, off, len);
+        }
+        entryWritten += len;
+    }
+
+    @Override
+    void write(ByteBuffer data) throws IOException {
+        int len = data.remaining();
+        ensureEntry(len);
+        if (spool != null) {
+            data.get(spool, (int) entryWritten, len);
+        } else {
+            writeOut(data);
+        }
+        entryWritten += len;
+    }
+
+    /**
+     * Finishes the entry that's being streamed. An entry that was given its size fails
+     * when a different number of bytes was written, since its header is already out.
+     */
+    @Override
+    void closeEntry() throws IOException {
+        if (entryName == null) {
+            return;
+        }
+        String name = entryName;
+        entryName = null;
+        if (spool != null) {
+            byte[] bytes = spool;
+            spool = null;
+            writeHeader(name, entryWritten);
+            writeOut(bytes, 0, (int) entryWritten);
+        } else if (entryWritten != entrySize) {
+            throw new IOException(String.format("%s was %d bytes instead of the %d it was added with",
+                    name, entryWritten, entrySize));
+        }
+        pad(entryWritten);
+        entryCount++;
+    }
+
+    /**
+     * Finishes the last entry and writes the two empty blocks that end a tar file, without
+     * closing the underlying stream
+     */
+    @Override
+    void finish() throws IOException {
+        ensureOpen();
+        closeEntry();
+        writeOut(ZEROS, 0, ZEROS.length);
+        if (gzip != null) {
+            gzip.finish();
+        } else if (out != null) {
+            out.flush();
+        }
+        closed = true;
+        release();
+    }
+
+    /**
+     * Finishes the tar file and closes the underlying stream. A channel is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            finish();
+        }
+        if (closeOut) {
+            out.close();
+        }
+    }
+
+    @Override
+    void release() {
+        closed = true;
+        spool = null;
+        if (staging != null) {
+            BufferPool.release(staging);
+            staging = null;
+        }
+        if (gzip != null) {
+            gzip.release();
+        }
+    }
+
+    /**
+     * Changes the gzip compression level of the rest of the tar file
+     */
+    @Override
+    void setLevel(int level) {
+        if (gzip != null) {
+            gzip.setLevel(level);
+        }
+    }
+
+    @Override
+    void restore(long written, long entryCount, byte[] state) throws IOException {
+        ensureOpen();
+        if (this.entryCount > 0 || entryName != null) {
+            throw new IOException("Entries have already been written");
+        }
+        this.written = written;
+        this.entryCount = entryCount;
+    }
+
+    @Override
+    long getBytesWritten() {
+        return written;
+    }
+
+    @Override
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Writes a hard link to an earlier entry, which tar extracts as another name for the
+     * same file
+     */
+    @Override
+    void writeDuplicate(String name, String original) throws IOException {
+        ensureOpen();
+        closeEntry();
+        writeHeader(name, 0, original);
+        entryCount++;
+        if (index != null) {
+            long[] entry = remembered == null ? null : remembered.get(original);
+            if (entry == null) {
+                throw new IOException(original + " wasn't remembered");
+            }
+            index.add(name.getBytes(StandardCharsets.UTF_8), ZipStreamWriter.STORED, -1, entry[1], entry[1], entry[0]);
+        }
+    }
+
+    /**
+     * Remembers where the data of the last entry is, which the sidecar index gives for the
+     * hard links to it
+     */
+    @Override
+    void remember(String name) {
+        if (index != null) {
+            if (remembered == null) {
+                remembered = new HashMap<>();
+            }
+            remembered.put(name, new long[]{lastDataOffset, lastSize});
+        }
+    }
+
+    private void writeHeader(String name, long size) throws IOException {
+        writeHeader(name, size, null);
+    }
+
+    /**
+     * Writes the header of a regular file, or of a hard link when there's a link target,
+     * preceded by a pax header when the paths or size don't fit the ustar fields
+     */
+    private void writeHeader(String name, long size, String link) throws IOException {
+        byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        int split = splitPath(path);
+        byte[] linkPath = link == null ? null : link.getBytes(StandardCharsets.UTF_8);
+        boolean paxLink = linkPath != null && splitPath(linkPath) != -1;
+        StringBuilder pax = null;
+        if (split < -1) {
+            pax = new StringBuilder();
+            paxRecord(pax, "path", name);
+        }
+        if (paxLink) {
+            if (pax == null) {
+                pax = new StringBuilder();
+            }
+            paxRecord(pax, "linkpath", link);
+        }
+        if (size > MAX_USTAR_SIZE) {
+            if (pax == null) {
+                pax = new StringBuilder();
+            }
+            paxRecord(pax, "size", Long.toString(size));
+        }
+        if (pax != null) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            fillHeader(PAX_HEADER_NAME.getBytes(StandardCharsets.US_ASCII), -1, records.length, PAX_HEADER, null);
+            writeOut(header, 0, BLOCK_SIZE);
+            writeOut(records, 0, records.length);
+            pad(records.length);
+        }
+        byte type = link == null ? REGULAR_FILE : HARD_LINK;
+        // Readers take the paths from the pax header, the ustar fields are a fallback
+        if (paxLink) {
+            linkPath = asciiOnly(Arrays.copyOfRange(linkPath, Math.max(0, linkPath.length - NAME_LENGTH), linkPath.length));
+        }
+        if (split < -1) {
+            byte[] truncated = Arrays.copyOfRange(path, Math.max(0, path.length - NAME_LENGTH), path.length);
+            fillHeader(asciiOnly(truncated), -1, size > MAX_USTAR_SIZE ? 0 : size, type, linkPath);
+        } else {
+            fillHeader(path, split, size > MAX_USTAR_SIZE ? 0 : size, type, linkPath);
+        }
+        writeOut(header, 0, BLOCK_SIZE);
+        if (link == null) {
+            lastDataOffset = written;
+            lastSize = size;
+            if (index != null) {
+                index.add(path, ZipStreamWriter.STORED, -1, size, size, written);
+            }
+        }
+    }
+
+    /**
+     * Finds where a path is split between the ustar prefix and name fields
+     *
+     * @return -1 when the path fits the name field, the index of the '/' that it's split
+     *         at, or -2 when it needs a pax header
+     */
+    static int splitPath(byte[] path) {
+        for (byte b : path) {
+            if (b < 0x20) {
+                // Not ASCII (UTF-8 bytes are negative), or a control character
+                return -2;
+            }
+        }
+        if (path.length <= NAME_LENGTH) {
+            return -1;
+        }
+        for (int i = Math.min(PREFIX_LENGTH, path.length - 2); i > 0; i--) {
+            if (path[i] == '/') {
+                return path.length - i - 1 <= NAME_LENGTH ? i : -2;
+            }
+        }
+        return -2;
+    }
+
+    /**
+     * Adds a pax record, "length key=value\n", whose length counts its own digits
+     */
+    static void paxRecord(StringBuilder pax, String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits) {
+            digits++;
+        }
+        pax.append(length + digits).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private static byte[] asciiOnly(byte[] bytes) {
+        byte[] ascii = bytes.clone();
+        for (int i = 0; i < ascii.length; i++) {
+            if (ascii[i] < 0x20) {
+                ascii[i] = '_';
+            }
+        }
+        return ascii;
+    }
+
+    private void fillHeader(byte[] path, int split, long size, byte type, byte[] link) {
+        Arrays.fill(header, (byte) 0);
+        if (split < 0) {
+            System.arraycopy(path, 0, header, 0, path.length);
+        } else {
+            System.arraycopy(path, split + 1, header, 0, path.length - split - 1);
+            System.arraycopy(path, 0, header, 345, split);
+        }
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        if (link != null) {
+            System.arraycopy(link, 0, header, 157, link.length);
+        }
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        // The checksum is computed with its own field set to spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+    }
+
+    /**
+     * Writes a number as zero padded octal digits, followed by a NUL
+     */
+    private static void octal(byte[] b, int off, int length, long value) {
+        int end = off + length - 1;
+        b[end] = 0;
+        for (int i = end - 1; i >= off; i--) {
+            b[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+
+    private void pad(long size) throws IOException {
+        int padding = (int) (-size & (BLOCK_SIZE - 1));
+        if (padding > 0) {
+            writeOut(ZEROS, 0, padding);
+        }
+    }
+
+    private void ensureEntry(int len) throws IOException {
+        if (entryName == null) {
+            throw new IOException("No entry has been started");
+        }
+        if (spool != null && entryWritten + len > spool.length) {
+            long size = Math.max(spool.length * 2L, entryWritten + len);
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException(entryName + " is too large to hold in memory, its size must be given");
+            }
+            spool = Arrays.copyOf(spool, (int) size);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The tar file has already been finished");
+        }
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        if (channel != null) {
+            writeOut(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeOut(ByteBuffer bytes) throws IOException {
+        if (channel != null) {
+            while (bytes.hasRemaining()) {
+                written += channel.write(bytes);
+            }
+        } else if (bytes.hasArray()) {
+            int len = bytes.remaining();
+            writeOut(bytes.array(), bytes.arrayOffset() + bytes.position(), len);
+            ((Buffer) bytes).position(bytes.limit());
+        } else {
+            if (staging == null) {
+                staging = BufferPool.acquire(stagingSize);
+            }
+            while (bytes.hasRemaining()) {
+                int len = Math.min(bytes.remaining(), staging.length);
+                bytes.get(staging, 0, len);
+                writeOut(staging, 0, len);
+            }
+        }
+    }
+}
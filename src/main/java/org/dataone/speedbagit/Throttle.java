@@ -0,0 +1,95 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate that bytes are read at. Readers are delayed once they get ahead of the
+ * rate, after a burst of up to 100 ms worth of bytes that goes through at once. A throttle
+ * can be shared by several threads, which then share its rate, and can have a parent that
+ * limits it and its siblings together.
+ */
+final class Throttle {
+
+    // The bytes allowed through without waiting, as a time at the throttle's rate
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long bytesPerSecond;
+    private final double nanosPerByte;
+    // A throttle shared with other readers, or null
+    private final Throttle parent;
+    // The time at which the bytes let through so far are paid for
+    private long nextFree;
+
+    /**
+     * Creates a throttle
+     *
+     * @param bytesPerSecond The rate, which must be positive
+     * @param parent         A throttle that also limits the reads, or null
+     */
+    Throttle(long bytesPerSecond, Throttle parent) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("The bandwidth must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+        this.parent = parent;
+        this.nextFree = System.nanoTime() - BURST_NANOS;
+    }
+
+    /**
+     * Waits until some bytes fit within the rate, and the rate of the parent
+     *
+     * @param bytes The number of bytes that were read
+     * @throws InterruptedIOException When the thread is interrupted while it waits
+     */
+    void acquire(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Time that passed without reads only builds up to a burst
+            nextFree = Math.max(nextFree, now - BURST_NANOS) + (long) (bytes * nanosPerByte);
+            wait = nextFree - now;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+        if (parent != null) {
+            parent.acquire(bytes);
+        }
+    }
+
+    /**
+     * Returns the rate of the throttle
+     */
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+/**
+ * A pure Java implementation of the 64 bit xxHash algorithm (XXH64) with a seed of 0.
+ * It isn't a cryptographic hash, but it detects accidental corruption at several
+ * gigabytes per second, which makes it a good fixity value for bags that never leave
+ * systems that are trusted. The checksum is written in the canonical (big endian) form
+ * that xxhsum prints.
+ */
+public class Xxh64Checksummer implements Checksummer {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    // The four accumulators of the stripes
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    // The number of bytes hashed
+    private long totalLength;
+    // Bytes that don't fill a 32 byte stripe yet
+    private final byte[] buffer = new byte[32];
+    private int buffered;
+
+    public Xxh64Checksummer() {
+        this.reset();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return Checksummers.XXH64;
+    }
+
+    @Override
+    public void reset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        totalLength = 0;
+        buffered = 0;
+    }
+
+    @Override
+    public void update(byte b) {
+        buffer[buffered++] = b;
+        totalLength++;
+        if (buffered == 32) {
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    public void update(byte[] buf, int off, int len) {
+        totalLength += len;
+        if (buffered > 0) {
+            int fill = Math.min(32 - buffered, len);
+            System.arraycopy(buf, off, buffer, buffered, fill);
+            buffered += fill;
+            off += fill;
+            len -= fill;
+            if (buffered < 32) {
+                return;
+            }
+            processStripe(buffer, 0);
+            buffered = 0;
+        }
+        int end = off + len;
+        while (end - off >= 32) {
+            processStripe(buf, off);
+            off += 32;
+        }
+        if (off < end) {
+            System.arraycopy(buf, off, buffer, 0, end - off);
+            buffered = end - off;
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        long hash;
+        if (totalLength >= 32) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                    + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME64_5;
+        }
+        hash += totalLength;
+
+        int off = 0;
+        while (buffered - off >= 8) {
+            hash ^= round(0, readLong(buffer, off));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            off += 8;
+        }
+        if (buffered - off >= 4) {
+            hash ^= (readInt(buffer, off) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            off += 4;
+        }
+        while (off < buffered) {
+            hash ^= (buffer[off] & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            off++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+
+        this.reset();
+        byte[] result = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            result[i] = (byte) hash;
+            hash >>>= 8;
+        }
+        return result;
+    }
+
+    private void processStripe(byte[] buf, int off) {
+        v1 = round(v1, readLong(buf, off));
+        v2 = round(v2, readLong(buf, off + 8));
+        v3 = round(v3, readLong(buf, off + 16));
+        v4 = round(v4, readLong(buf, off + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long readLong(byte[] buf, int off) {
+        return (buf[off] & 0xFFL)
+                | (buf[off + 1] & 0xFFL) << 8
+                | (buf[off + 2] & 0xFFL) << 16
+                | (buf[off + 3] & 0xFFL) << 24
+                | (buf[off + 4] & 0xFFL) << 32
+                | (buf[off + 5] & 0xFFL) << 40
+                | (buf[off + 6] & 0xFFL) << 48
+                | (buf[off + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF)
+                | (buf[off + 1] & 0xFF) << 8
+                | (buf[off + 2] & 0xFF) << 16
+                | (buf[off + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,1046 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file to a stream. It's a replacement for java.util.zip.ZipOutputStream that
+ * keeps the cost of each entry low, which matters for bags with many small files:
+ *
+ *  - Entries that fit in memory are written with writeEntry() in one write: the CRC, sizes
+ *    and deflated bytes are known up front, so there's no data descriptor. Entries that
+ *    don't shrink when deflated are stored.
+ *  - Larger entries are streamed between putNextEntry() and closeEntry(), followed by a
+ *    data descriptor, like ZipOutputStream does.
+ *  - The Deflater comes from a pool and the header, deflate and central directory buffers
+ *    are reused, so no ZipEntry or other objects are created per entry.
+ *  - The central directory is built as bytes while the entries are written.
+ *
+ * Names are encoded in UTF-8 (with the language encoding flag set), every entry gets the
+ * time the writer was created, and ZIP64 records are added when the sizes, offsets or the
+ * number of entries need them.
+ *
+ * A writer can also write to a channel through a direct ByteBuffer. Entries given as direct
+ * buffers are then checksummed, deflated and written without being copied to the heap, on
+ * Java 11 and later where Deflater reads and writes ByteBuffers. On Java 8 they're copied
+ * through a pooled heap array.
+ */
+class ZipStreamWriter extends BagSerializer {
+
+    // Signatures of the zip records
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    // Compression methods
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int ZSTD = 93;
+
+    // General purpose flags: sizes follow the data, and the name is UTF-8
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    // Versions needed to extract
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int VERSION_ZSTD = 63;
+    // Values that are replaced by a ZIP64 field when they overflow
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+
+    // The default size of the largest entry that is written with writeEntry()
+    static final int DEFAULT_ENTRY_SIZE = 64 * 1024;
+    // Room left in the buffer for the local header of an entry
+    private static final int HEADER_ROOM = 1024;
+    // The initial size of the central directory
+    private static final int CENTRAL_SIZE = 64 * 1024;
+    // Entries smaller than this are always stored, deflating them saves next to nothing
+    static final int MIN_DEFLATE_SIZE = 64;
+    // The number of bytes at the start of an entry that its entropy is estimated from
+    private static final int ENTROPY_SAMPLE_SIZE = 4096;
+    // Entries whose bytes look more random than this (in bits per byte) are stored
+    private static final double MAX_DEFLATE_ENTROPY = 7.5;
+    // c * log2(c) for every count in a sample, so that the entropy needs no logarithms
+    private static final float[] COUNT_LOG = new float[ENTROPY_SAMPLE_SIZE + 1];
+    static {
+        for (int c = 1; c <= ENTROPY_SAMPLE_SIZE; c++) {
+            COUNT_LOG[c] = (float) (c * Math.log(c) / Math.log(2));
+        }
+    }
+
+    // Deflater.setInput(ByteBuffer) and Deflater.deflate(ByteBuffer), which were added in
+    // Java 11. They're looked up at runtime so that the library still runs on Java 8.
+    // Detaches the deflater from a buffer that it has consumed
+    private static final byte[] NO_INPUT = new byte[0];
+    private static final MethodHandle SET_INPUT;
+    private static final MethodHandle DEFLATE;
+    static {
+        MethodHandle setInput = null;
+        MethodHandle deflate = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            setInput = lookup.findVirtual(Deflater.class, "setInput",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+            deflate = lookup.findVirtual(Deflater.class, "deflate",
+                    MethodType.methodType(int.class, ByteBuffer.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            setInput = null;
+            deflate = null;
+        }
+        SET_INPUT = setInput;
+        DEFLATE = deflate;
+    }
+
+    // The stream that the zip file is written to, or null when it's written to a channel
+    private final OutputStream out;
+    // The channel that the zip file is written to, or null when it's written to a stream
+    private final WritableByteChannel channel;
+    // A direct buffer that deflated bytes are collected in when writing to a channel
+    private final ByteBuffer direct;
+    // Holds bytes of direct buffers that are copied to the heap to be deflated
+    private byte[] staging;
+    private final Deflater deflater;
+    // The compression level, where 0 stores whole entries rather than deflating them
+    private int level;
+    // The compression method of the next entries, DEFLATED or ZSTD
+    private int method = DEFLATED;
+    // Compresses Zstandard entries, created when the first one is written
+    private ZstdCodec zstd;
+    // The Zstandard stream of the entry that's being streamed, when it's a Zstandard entry
+    private OutputStream zstdStream;
+    // The sizes of the Zstandard entry that's being streamed
+    private long zstdSize;
+    private long zstdCompressedSize;
+    private final CRC32 crc = new CRC32();
+    // The byte counts of an entry's sample
+    private final int[] counts = new int[256];
+    // The modification time of every entry, in MS-DOS format
+    private final int dosTime;
+    // Holds headers and deflated data before they're written, taken from the BufferPool
+    private byte[] buffer;
+    private final int bufferSize;
+    // The central directory, built as entries are written
+    private byte[] central;
+    private int centralLength;
+    // The number of bytes written so far, which is the offset of the next record
+    private long written;
+    private long entryCount;
+    // The entry that's being streamed, if any
+    private byte[] entryName;
+    private long entryOffset;
+    private boolean closed;
+    // The central header fields of the last entry: version, flags, method, CRC, compressed
+    // size, size and offset, and the offset of its data
+    private final long[] lastEntry = new long[8];
+    // The central header fields of the entries that duplicates may refer to, by name
+    private Map<String, long[]> remembered;
+
+    /**
+     * Creates a writer with the default compression level
+     *
+     * @param out The stream that the zip file is written to
+     */
+    ZipStreamWriter(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer
+     *
+     * @param out   The stream that the zip file is written to
+     * @param level The deflate compression level (0-9, or -1 for the default)
+     */
+    ZipStreamWriter(OutputStream out, int level) {
+        this(out, level, DEFAULT_ENTRY_SIZE);
+    }
+
+    /**
+     * Creates a writer whose buffers fit entries of up to entrySize bytes
+     *
+     * @param out       The stream that the zip file is written to
+     * @param level     The deflate compression level (0-9, or -1 for the default)
+     * @param entrySize The size of the largest entry that will be written with writeEntry()
+     */
+    ZipStreamWriter(OutputStream out, int level, int entrySize) {
+        this(out, null, null, level, entrySize);
+    }
+
+    /**
+     * Creates a writer that writes to a channel. The channel isn't closed by close().
+     *
+     * @param channel   The channel that the zip file is written to
+     * @param direct    A direct buffer of at least entrySize bytes that deflated bytes are
+     *                  collected in, or null to collect them on the heap
+     * @param level     The deflate compression level (0-9, or -1 for the default)
+     * @param entrySize The size of the largest entry that will be written with writeEntry()
+     */
+    ZipStreamWriter(WritableByteChannel channel, ByteBuffer direct, int level, int entrySize) {
+        this(null, channel, direct, level, entrySize);
+    }
+
+    private ZipStreamWriter(OutputStream out, WritableByteChannel channel, ByteBuffer direct,
+                            int level, int entrySize) {
+        this.out = out;
+        this.channel = channel;
+        this.direct = direct;
+        this.deflater = DeflaterPool.acquire(level);
+        this.level = level;
+        this.dosTime = toDosTime(LocalDateTime.now());
+        this.bufferSize = entrySize + HEADER_ROOM;
+        this.buffer = BufferPool.acquire(bufferSize);
+        this.central = BufferPool.acquire(CENTRAL_SIZE);
+    }
+
+    /**
+     * Writes a whole entry whose bytes are in memory
+     *
+     * @param name The path of the entry in the zip file
+     * @param data The bytes of the entry
+     * @param off  The offset of the first byte in data
+     * @param len  The number of bytes in the entry
+     */
+    @Override
+    void writeEntry(String name, byte[] data, int off, int len) throws IOException {
+        ensureOpen();
+        if (entryName != null) {
+            closeEntry();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int headerLength = LOCAL_HEADER_SIZE + nameBytes.length;
+        crc.reset();
+        crc.update(data, off, len);
+
+        // Deflate right after where the header goes, so that the entry takes one write
+        int method = STORED;
+        int compressedSize = len;
+        if (this.method == ZSTD) {
+            if (level != Deflater.NO_COMPRESSION && isCompressible(data, off, len)) {
+                int limit = headerLength + zstd().maxCompressedLength(len);
+                ensureBuffer(limit);
+                int compressed = zstd.compress(data, off, len, buffer, headerLength, limit - headerLength);
+                if (compressed < len) {
+                    method = ZSTD;
+                    compressedSize = compressed;
+                }
+            }
+        } else if (level != Deflater.NO_COMPRESSION && isCompressible(data, off, len)) {
+            deflater.reset();
+            deflater.setInput(data, off, len);
+            deflater.finish();
+            int limit = headerLength + len;
+            ensureBuffer(limit);
+            int position = headerLength;
+            while (!deflater.finished() && position < limit) {
+                int deflated = deflater.deflate(buffer, position, limit - position);
+                if (deflated == 0) {
+                    break;
+                }
+                position += deflated;
+            }
+            if (deflater.finished() && position < limit) {
+                method = DEFLATED;
+                compressedSize = position - headerLength;
+            }
+        }
+        if (method == STORED) {
+            ensureBuffer(headerLength + len);
+            System.arraycopy(data, off, buffer, headerLength, len);
+        }
+        long offset = written;
+        int version = versionOf(method);
+        localHeader(nameBytes, version, FLAG_UTF8, method, crc.getValue(), compressedSize, len);
+        writeOut(buffer, 0, headerLength + compressedSize);
+        addCentralHeader(nameBytes, version, FLAG_UTF8, method, crc.getValue(), compressedSize, len, offset,
+                offset + LOCAL_HEADER_SIZE + nameBytes.length);
+    }
+
+    /**
+     * Changes the compression level. It applies to the next entries, and to the rest of
+     * the entry that's being streamed.
+     *
+     * @param level The deflate compression level (0-9, or -1 for the default)
+     */
+    @Override
+    void setLevel(int level) {
+        if (level != this.level) {
+            this.level = level;
+            deflater.setLevel(level);
+        }
+    }
+
+    /**
+     * Returns the compression level
+     */
+    @Override
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Changes the compression method of the next entries. Zstandard needs aircompressor on
+     * the classpath, see CompressionMethod.
+     *
+     * @param method DEFLATED or ZSTD
+     */
+    @Override
+    void setMethod(int method) {
+        if (method != DEFLATED && method != ZSTD) {
+            throw new IllegalArgumentException("Unsupported compression method " + method);
+        }
+        this.method = method;
+    }
+
+    private ZstdCodec zstd() {
+        if (zstd == null) {
+            zstd = new ZstdCodec();
+        }
+        return zstd;
+    }
+
+    /**
+     * Returns the version needed to extract an entry with a compression method
+     */
+    private static int versionOf(int method) {
+        switch (method) {
+            case DEFLATED:
+                return VERSION_DEFLATED;
+            case ZSTD:
+                return VERSION_ZSTD;
+            default:
+                return VERSION_STORED;
+        }
+    }
+
+    /**
+     * Writes an entry that was compressed ahead of time, copying its bytes as they are
+     *
+     * @param entry The entry to write
+     */
+    void writeEntry(PreparedEntry entry) throws IOException {
+        ensureOpen();
+        if (entryName != null) {
+            closeEntry();
+        }
+        long offset = written;
+        int version = entry.method == DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+        localHeader(entry.name, version, FLAG_UTF8, entry.method, entry.crc, entry.data.length, entry.size);
+        writeOut(buffer, 0, LOCAL_HEADER_SIZE + entry.name.length);
+        writeOut(entry.data, 0, entry.data.length);
+        addCentralHeader(entry.name, version, FLAG_UTF8, entry.method, entry.crc, entry.data.length, entry.size, offset,
+                offset + LOCAL_HEADER_SIZE + entry.name.length);
+    }
+
+    @Override
+    void writeEntry(PreparedEntry entry, byte[] bytes) throws IOException {
+        writeEntry(entry);
+    }
+
+    /**
+     * Writes a whole entry whose bytes are in a buffer. When the writer has a direct buffer
+     * and the Deflater can read buffers, the bytes never go through the heap.
+     *
+     * @param name The path of the entry in the zip file
+     * @param data The bytes of the entry, from its position to its limit. They're all consumed.
+     */
+    @Override
+    void writeEntry(String name, ByteBuffer data) throws IOException {
+        if (direct == null || SET_INPUT == null || method != DEFLATED) {
+            int len = data.remaining();
+            byte[] bytes = len <= bufferSize - HEADER_ROOM ? staging() : new byte[len];
+            data.get(bytes, 0, len);
+            writeEntry(name, bytes, 0, len);
+            return;
+        }
+        ensureOpen();
+        if (entryName != null) {
+            closeEntry();
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int headerLength = LOCAL_HEADER_SIZE + nameBytes.length;
+        int len = data.remaining();
+        crc.reset();
+        crc.update(data.duplicate());
+
+        // Deflate into the direct buffer after where the header goes
+        int method = STORED;
+        int compressedSize = len;
+        ByteBuffer output = direct;
+        ((Buffer) output).clear();
+        if (level != Deflater.NO_COMPRESSION && headerLength < output.capacity() && isCompressible(data)) {
+            deflater.reset();
+            setInput(data.duplicate());
+            deflater.finish();
+            ((Buffer) output).position(headerLength);
+            ((Buffer) output).limit((int) Math.min(output.capacity(), (long) headerLength + len));
+            while (!deflater.finished() && output.hasRemaining()) {
+                if (deflate(output) == 0) {
+                    break;
+                }
+            }
+            if (deflater.finished() && output.position() < headerLength + len) {
+                method = DEFLATED;
+                compressedSize = output.position() - headerLength;
+            }
+        }
+        long offset = written;
+        int version = method == DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+        localHeader(nameBytes, version, FLAG_UTF8, method, crc.getValue(), compressedSize, len);
+        if (method == DEFLATED) {
+            int end = output.position();
+            ((Buffer) output).position(0);
+            output.put(buffer, 0, headerLength);
+            ((Buffer) output).position(0);
+            ((Buffer) output).limit(end);
+            writeOut(output);
+            ((Buffer) data).position(data.limit());
+        } else {
+            writeOut(buffer, 0, headerLength);
+            writeOut(data);
+        }
+        addCentralHeader(nameBytes, version, FLAG_UTF8, method, crc.getValue(), compressedSize, len, offset,
+                offset + LOCAL_HEADER_SIZE + nameBytes.length);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to the entry that's being streamed
+     *
+     * @param data The bytes to write, from its position to its limit. They're all consumed.
+     */
+    @Override
+    void write(ByteBuffer data) throws IOException {
+        if (direct == null || SET_INPUT == null || zstdStream != null) {
+            byte[] bytes = staging();
+            while (data.hasRemaining()) {
+                int length = Math.min(bytes.length, data.remaining());
+                data.get(bytes, 0, length);
+                write(bytes, 0, length);
+            }
+            return;
+        }
+        if (entryName == null) {
+            throw new IOException("There's no entry to write to");
+        }
+        if (!data.hasRemaining()) {
+            return;
+        }
+        crc.update(data.duplicate());
+        setInput(data);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+        // The deflater keeps the buffer as its input, and the caller is about to refill it
+        deflater.setInput(NO_INPUT);
+    }
+
+    /**
+     * Starts an entry whose bytes are written with write(), closing the current entry first.
+     * The sizes of the entry follow it in a data descriptor, so its size isn't needed.
+     *
+     * @param name The path of the entry in the zip file
+     * @param size Ignored
+     */
+    @Override
+    void putNextEntry(String name, long size) throws IOException {
+        ensureOpen();
+        if (entryName != null) {
+            closeEntry();
+        }
+        entryName = name.getBytes(StandardCharsets.UTF_8);
+        entryOffset = written;
+        crc.reset();
+        deflater.reset();
+        // The CRC and sizes are in the data descriptor
+        localHeader(entryName, versionOf(method), FLAG_DATA_DESCRIPTOR | FLAG_UTF8, method, 0, 0, 0);
+        writeOut(buffer, 0, LOCAL_HEADER_SIZE + entryName.length);
+        if (method == ZSTD) {
+            zstdSize = 0;
+            zstdCompressedSize = 0;
+            zstdStream = zstd().newOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writeOut(b, off, len);
+                    zstdCompressedSize += len;
+                }
+
+                @Override
+                public void close() {
+                    // The zip file goes on after the entry
+                }
+            });
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (entryName == null) {
+            throw new IOException("There's no entry to write to");
+        }
+        if (len == 0) {
+            return;
+        }
+        crc.update(b, off, len);
+        if (zstdStream != null) {
+            zstdStream.write(b, off, len);
+            zstdSize += len;
+            return;
+        }
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    /**
+     * Finishes the entry that's being streamed and writes its data descriptor
+     */
+    @Override
+    void closeEntry() throws IOException {
+        if (entryName == null) {
+            return;
+        }
+        byte[] name = entryName;
+        entryName = null;
+        int method = DEFLATED;
+        long size;
+        long compressedSize;
+        if (zstdStream != null) {
+            method = ZSTD;
+            OutputStream stream = zstdStream;
+            zstdStream = null;
+            stream.close();
+            size = zstdSize;
+            compressedSize = zstdCompressedSize;
+        } else {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            size = deflater.getBytesRead();
+            compressedSize = deflater.getBytesWritten();
+        }
+        long checksum = crc.getValue();
+        putInt(buffer, 0, DATA_DESCRIPTOR_SIGNATURE);
+        putInt(buffer, 4, (int) checksum);
+        if (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC) {
+            putLong(buffer, 8, compressedSize);
+            putLong(buffer, 16, size);
+            writeOut(buffer, 0, 24);
+        } else {
+            putInt(buffer, 8, (int) compressedSize);
+            putInt(buffer, 12, (int) size);
+            writeOut(buffer, 0, 16);
+        }
+        addCentralHeader(name, versionOf(method), FLAG_DATA_DESCRIPTOR | FLAG_UTF8, method, checksum,
+                compressedSize, size, entryOffset, entryOffset + LOCAL_HEADER_SIZE + name.length);
+    }
+
+    /**
+     * Finishes the last entry and writes the central directory, without closing the
+     * underlying stream
+     */
+    @Override
+    void finish() throws IOException {
+        ensureOpen();
+        closeEntry();
+        long centralOffset = written;
+        writeOut(central, 0, centralLength);
+        long centralSize = centralLength;
+        byte[] end = buffer;
+        int length = 0;
+        if (entryCount >= ZIP64_MAGIC_COUNT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = written;
+            putInt(end, 0, ZIP64_END_SIGNATURE);
+            putLong(end, 4, 44);
+            putShort(end, 12, VERSION_ZIP64);
+            putShort(end, 14, VERSION_ZIP64);
+            putInt(end, 16, 0);
+            putInt(end, 20, 0);
+            putLong(end, 24, entryCount);
+            putLong(end, 32, entryCount);
+            putLong(end, 40, centralSize);
+            putLong(end, 48, centralOffset);
+            putInt(end, 56, ZIP64_LOCATOR_SIGNATURE);
+            putInt(end, 60, 0);
+            putLong(end, 64, zip64EndOffset);
+            putInt(end, 72, 1);
+            length = 76;
+        }
+        putInt(end, length, END_SIGNATURE);
+        putShort(end, length + 4, 0);
+        putShort(end, length + 6, 0);
+        putShort(end, length + 8, (int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        putShort(end, length + 10, (int) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        putInt(end, length + 12, (int) Math.min(centralSize, ZIP64_MAGIC));
+        putInt(end, length + 16, (int) Math.min(centralOffset, ZIP64_MAGIC));
+        putShort(end, length + 20, 0);
+        writeOut(end, 0, length + 22);
+        if (out != null) {
+            out.flush();
+        }
+        closed = true;
+        release();
+    }
+
+    /**
+     * Finishes the zip file and closes the underlying stream. A channel is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            finish();
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * Gives the Deflater back to the pool without finishing the zip file. Used when
+     * the bag fails part way through.
+     */
+    @Override
+    void release() {
+        closed = true;
+        if (buffer != null) {
+            // Buffers that had to grow aren't the size of the pooled ones
+            if (buffer.length == bufferSize) {
+                BufferPool.release(buffer);
+            }
+            if (central.length == CENTRAL_SIZE) {
+                BufferPool.release(central);
+            }
+            if (staging != null) {
+                BufferPool.release(staging);
+                staging = null;
+            }
+            buffer = null;
+            central = null;
+            DeflaterPool.release(deflater);
+        }
+    }
+
+    @Override
+    void remember(String name) {
+        if (remembered == null) {
+            remembered = new HashMap<>();
+        }
+        remembered.put(name, lastEntry.clone());
+    }
+
+    /**
+     * Adds a central directory entry that points at the local header and data of a
+     * remembered entry, so the bytes are in the zip file once under both names. Nothing
+     * is written to the stream.
+     */
+    @Override
+    void writeDuplicate(String name, String original) throws IOException {
+        ensureOpen();
+        closeEntry();
+        long[] entry = remembered == null ? null : remembered.get(original);
+        if (entry == null) {
+            throw new IOException(original + " wasn't remembered");
+        }
+        addCentralHeader(name.getBytes(StandardCharsets.UTF_8), (int) entry[0], (int) entry[1], (int) entry[2],
+                entry[3], entry[4], entry[5], entry[6], entry[7]);
+    }
+
+    @Override
+    byte[] getState(int from) {
+        return Arrays.copyOfRange(central, from, centralLength);
+    }
+
+    @Override
+    void restore(long written, long entryCount, byte[] state) throws IOException {
+        ensureOpen();
+        if (this.entryCount > 0 || entryName != null) {
+            throw new IOException("Entries have already been written");
+        }
+        if (state.length > central.length) {
+            central = Arrays.copyOf(central, state.length);
+        }
+        System.arraycopy(state, 0, central, 0, state.length);
+        this.centralLength = state.length;
+        this.written = written;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Returns the number of bytes written so far
+     */
+    @Override
+    long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Returns the number of entries written so far
+     */
+    @Override
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns whether direct buffers are deflated without copying them to the heap
+     */
+    static boolean canDeflateBuffers() {
+        return SET_INPUT != null && DEFLATE != null;
+    }
+
+    private void deflate() throws IOException {
+        if (direct != null && DEFLATE != null) {
+            ((Buffer) direct).clear();
+            if (deflate(direct) > 0) {
+                ((Buffer) direct).flip();
+                writeOut(direct);
+            }
+            return;
+        }
+        int length = deflater.deflate(buffer, 0, buffer.length);
+        if (length > 0) {
+            writeOut(buffer, 0, length);
+        }
+    }
+
+    private void setInput(ByteBuffer input) throws IOException {
+        try {
+            SET_INPUT.invokeExact(deflater, input);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    private int deflate(ByteBuffer output) throws IOException {
+        try {
+            return (int) DEFLATE.invokeExact(deflater, output);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the heap array that direct buffers are copied to when they can't be deflated
+     * directly
+     */
+    private byte[] staging() {
+        if (staging == null) {
+            staging = BufferPool.acquire(bufferSize - HEADER_ROOM);
+        }
+        return staging;
+    }
+
+    /**
+     * Fills the start of the buffer with a local file header
+     */
+    private void localHeader(byte[] name, int version, int flags, int method, long checksum,
+                             long compressedSize, long size) {
+        ensureBuffer(LOCAL_HEADER_SIZE + name.length);
+        putInt(buffer, 0, LOCAL_HEADER_SIGNATURE);
+        putShort(buffer, 4, version);
+        putShort(buffer, 6, flags);
+        putShort(buffer, 8, method);
+        putInt(buffer, 10, dosTime);
+        putInt(buffer, 14, (int) checksum);
+        putInt(buffer, 18, (int) compressedSize);
+        putInt(buffer, 22, (int) size);
+        putShort(buffer, 26, name.length);
+        putShort(buffer, 28, 0);
+        System.arraycopy(name, 0, buffer, LOCAL_HEADER_SIZE, name.length);
+    }
+
+    private void writeOut(byte[] b, int off, int len) throws IOException {
+        if (channel != null) {
+            writeOut(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeOut(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            written += channel.write(bytes);
+        }
+    }
+
+    private void addCentralHeader(byte[] name, int version, int flags, int method, long checksum,
+                                  long compressedSize, long size, long offset, long dataOffset) {
+        // Each field that overflows is moved to the ZIP64 extra field, in this order
+        int extraLength = 0;
+        if (size >= ZIP64_MAGIC) {
+            extraLength += 8;
+        }
+        if (compressedSize >= ZIP64_MAGIC) {
+            extraLength += 8;
+        }
+        if (offset >= ZIP64_MAGIC) {
+            extraLength += 8;
+        }
+        if (extraLength > 0) {
+            version = Math.max(version, VERSION_ZIP64);
+            extraLength += 4;
+        }
+        int length = CENTRAL_HEADER_SIZE + name.length + extraLength;
+        if (centralLength + length > central.length) {
+            central = Arrays.copyOf(central, Math.max(central.length * 2, centralLength + length));
+        }
+        byte[] c = central;
+        int p = centralLength;
+        putInt(c, p, CENTRAL_HEADER_SIGNATURE);
+        putShort(c, p + 4, version);
+        putShort(c, p + 6, version);
+        putShort(c, p + 8, flags);
+        putShort(c, p + 10, method);
+        putInt(c, p + 12, dosTime);
+        putInt(c, p + 16, (int) checksum);
+        putInt(c, p + 20, (int) Math.min(compressedSize, ZIP64_MAGIC));
+        putInt(c, p + 24, (int) Math.min(size, ZIP64_MAGIC));
+        putShort(c, p + 28, name.length);
+        putShort(c, p + 30, extraLength);
+        // Comment length, disk number, internal and external attributes
+        Arrays.fill(c, p + 32, p + 42, (byte) 0);
+        putInt(c, p + 42, (int) Math.min(offset, ZIP64_MAGIC));
+        System.arraycopy(name, 0, c, p + CENTRAL_HEADER_SIZE, name.length);
+        p += CENTRAL_HEADER_SIZE + name.length;
+        if (extraLength > 0) {
+            putShort(c, p, ZIP64_EXTRA_ID);
+            putShort(c, p + 2, extraLength - 4);
+            p += 4;
+            if (size >= ZIP64_MAGIC) {
+                putLong(c, p, size);
+                p += 8;
+            }
+            if (compressedSize >= ZIP64_MAGIC) {
+                putLong(c, p, compressedSize);
+                p += 8;
+            }
+            if (offset >= ZIP64_MAGIC) {
+                putLong(c, p, offset);
+            }
+        }
+        centralLength += length;
+        entryCount++;
+        lastEntry[0] = version;
+        lastEntry[1] = flags;
+        lastEntry[2] = method;
+        lastEntry[3] = checksum;
+        lastEntry[4] = compressedSize;
+        lastEntry[5] = size;
+        lastEntry[6] = offset;
+        lastEntry[7] = dataOffset;
+        if (index != null) {
+            index.add(name, method, checksum, compressedSize, size, dataOffset);
+        }
+    }
+
+    /**
+     * Guesses whether deflating some bytes is worth it. Resetting a Deflater and deflating
+     * a small entry costs tens of microseconds, most of it wasted on bytes that are already
+     * compressed or random. Tiny entries are never deflated, and larger ones are only deflated
+     * when the entropy of their first bytes is low enough. The entropy uses the Miller-Madow
+     * correction, since the plain estimate is too low for small samples.
+     *
+     * @param data The bytes of the entry
+     * @param off  The offset of the first byte
+     * @param len  The number of bytes in the entry
+     * @return Whether the bytes should be deflated
+     */
+    boolean isCompressible(byte[] data, int off, int len) {
+        if (len < MIN_DEFLATE_SIZE) {
+            return false;
+        }
+        int n = Math.min(len, ENTROPY_SAMPLE_SIZE);
+        int[] counts = this.counts;
+        Arrays.fill(counts, 0);
+        for (int i = off, end = off + n; i < end; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        return hasLowEntropy(n);
+    }
+
+    /**
+     * Guesses whether deflating the remaining bytes of a buffer is worth it, like
+     * isCompressible(byte[], int, int)
+     *
+     * @param data The bytes of the entry, which aren't consumed
+     * @return Whether the bytes should be deflated
+     */
+    boolean isCompressible(ByteBuffer data) {
+        if (data.remaining() < MIN_DEFLATE_SIZE) {
+            return false;
+        }
+        int n = Math.min(data.remaining(), ENTROPY_SAMPLE_SIZE);
+        int[] counts = this.counts;
+        Arrays.fill(counts, 0);
+        for (int i = data.position(), end = data.position() + n; i < end; i++) {
+            counts[data.get(i) & 0xff]++;
+        }
+        return hasLowEntropy(n);
+    }
+
+    /**
+     * Estimates the entropy of a sample of n bytes from the byte counts
+     */
+    private boolean hasLowEntropy(int n) {
+        double sum = 0;
+        int distinct = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                sum += COUNT_LOG[count];
+                distinct++;
+            }
+        }
+        double log2n = Math.log(n) / Math.log(2);
+        double entropy = log2n - sum / n + (distinct - 1) / (2 * n * Math.log(2));
+        return entropy < Math.min(MAX_DEFLATE_ENTROPY, log2n - 0.3);
+    }
+
+    private void ensureBuffer(int size) {
+        if (buffer.length < size) {
+            buffer = Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The zip file is closed");
+        }
+    }
+
+    /**
+     * Converts a time to the MS-DOS date and time format used by zip files
+     */
+    static int toDosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    static void putLong(byte[] b, int off, long value) {
+        putInt(b, off, (int) value);
+        putInt(b, off + 4, (int) (value >>> 32));
+    }
+
+    /**
+     * The bytes of an entry, deflated once so that they can be written to any number of
+     * zip files without deflating them again. They're stored when deflating doesn't make
+     * them smaller.
+     */
+    static final class PreparedEntry {
+        // The UTF-8 encoded path of the entry
+        final byte[] name;
+        // STORED or DEFLATED
+        final int method;
+        final long crc;
+        // The uncompressed size of the entry
+        final int size;
+        // The bytes that go in the zip file
+        final byte[] data;
+
+        /**
+         * Deflates the bytes of an entry
+         *
+         * @param name  The path of the entry in the zip file
+         * @param bytes The bytes of the entry
+         * @param level The compression level to deflate with
+         */
+        PreparedEntry(String name, byte[] bytes, int level) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes, 0, bytes.length);
+            this.crc = checksum.getValue();
+            this.size = bytes.length;
+            byte[] deflated = null;
+            if (bytes.length >= MIN_DEFLATE_SIZE) {
+                Deflater deflater = DeflaterPool.acquire(level);
+                try {
+                    deflater.setInput(bytes);
+                    deflater.finish();
+                    byte[] output = new byte[bytes.length];
+                    int length = 0;
+                    while (!deflater.finished() && length < output.length) {
+                        length += deflater.deflate(output, length, output.length - length);
+                    }
+                    if (deflater.finished() && length < bytes.length) {
+                        deflated = Arrays.copyOf(output, length);
+                    }
+                } finally {
+                    DeflaterPool.release(deflater);
+                }
+            }
+            this.method = deflated == null ? STORED : DEFLATED;
+            this.data = deflated == null ? bytes.clone() : deflated;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+/**
+ * Compresses zip entries with Zstandard, and decompresses them for SpeedBagIndex, using the
+ * pure Java implementation from aircompressor. This is the only class that refers to
+ * aircompressor, so that it's only needed on the classpath when Zstandard is used.
+ */
+final class ZstdCodec {
+
+    private final ZstdCompressor compressor = new ZstdCompressor();
+
+    /**
+     * Returns the most bytes that len bytes can be compressed to
+     */
+    int maxCompressedLength(int len) {
+        return compressor.maxCompressedLength(len);
+    }
+
+    /**
+     * Compresses bytes into a single Zstandard frame
+     *
+     * @return The length of the frame
+     */
+    int compress(byte[] input, int off, int len, byte[] output, int outputOff, int maxLength) {
+        return compressor.compress(input, off, len, output, outputOff, maxLength);
+    }
+
+    /**
+     * Creates a stream that writes a Zstandard frame to another stream. Closing it ends the
+     * frame and closes the other stream.
+     */
+    OutputStream newOutputStream(OutputStream out) throws IOException {
+        return new ZstdOutputStream(out);
+    }
+
+    /**
+     * Creates a stream that reads the bytes of Zstandard frames from another stream
+     */
+    InputStream newInputStream(InputStream in) {
+        return new ZstdInputStream(in);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event that is committed for each file written to a bag.
+ */
+@Name("org.dataone.speedbagit.FileStreamed")
+@Label("Bag File Streamed")
+@Category({"SpeedBagIt"})
+@Description("A data or tag file was written to a bag")
+public class FileStreamedEvent extends Event {
+
+    @Label("Path")
+    public String path;
+
+    @Label("Tag File")
+    public boolean tagFile;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Compressed Bytes")
+    @DataAmount
+    public long compressedBytes;
+
+    @Label("Read Time")
+    @Timespan
+    public long readTime;
+
+    @Label("Hash Time")
+    @Timespan
+    public long hashTime;
+
+    @Label("Deflate Time")
+    @Timespan
+    public long deflateTime;
+
+    @Label("Stall Time")
+    @Timespan
+    public long stallTime;
+}
@@ -0,0 +1,71 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.metrics;
+
+import org.dataone.speedbagit.BagMetrics;
+import org.dataone.speedbagit.BagStreamListener;
+import org.dataone.speedbagit.FileMetrics;
+
+/**
+ * A BagStreamListener that turns bag metrics into JDK Flight Recorder events, so
+ * that they show up next to the GC, I/O and CPU samples of a recording. Events are
+ * only created when a recording has them enabled. Requires a JVM with JFR (11+).
+ */
+public class JfrBagStreamListener implements BagStreamListener {
+
+    @Override
+    public void onFileStreamed(FileMetrics metrics) {
+        FileStreamedEvent event = new FileStreamedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.path = metrics.getPath();
+        event.tagFile = metrics.isTagFile();
+        event.bytes = metrics.getBytes();
+        event.compressedBytes = metrics.getCompressedBytes();
+        event.readTime = metrics.getReadNanos();
+        event.hashTime = metrics.getHashNanos();
+        event.deflateTime = metrics.getDeflateNanos();
+        event.stallTime = metrics.getStallNanos();
+        event.commit();
+    }
+
+    @Override
+    public void onBagFinished(BagMetrics metrics) {
+        BagStreamedEvent event = new BagStreamedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.fileCount = metrics.getFileCount();
+        event.uncompressedBytes = metrics.getUncompressedBytes();
+        event.compressedBytes = metrics.getCompressedBytes();
+        event.readTime = metrics.getReadNanos();
+        event.hashTime = metrics.getHashNanos();
+        event.deflateTime = metrics.getDeflateNanos();
+        event.stallTime = metrics.getStallNanos();
+        event.manifestTime = metrics.getManifestNanos();
+        event.tagFileTime = metrics.getTagFileNanos();
+        event.queueDepth = metrics.getQueueDepth();
+        event.commit();
+    }
+}
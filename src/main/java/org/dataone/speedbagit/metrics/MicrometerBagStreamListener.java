@@ -0,0 +1,133 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.dataone.speedbagit.BagMetrics;
+import org.dataone.speedbagit.BagStreamListener;
+import org.dataone.speedbagit.FileMetrics;
+import org.dataone.speedbagit.SpeedBagIt;
+
+/**
+ * A BagStreamListener that records bag metrics in a Micrometer MeterRegistry. One
+ * instance can be shared by every bag that the application streams. Using this class
+ * requires micrometer-core on the classpath, which SpeedBagIt only declares as optional.
+ */
+public class MicrometerBagStreamListener implements BagStreamListener {
+
+    private final Timer readTimer;
+    private final Timer hashTimer;
+    private final Timer deflateTimer;
+    private final Timer stallTimer;
+    private final DistributionSummary fileBytes;
+    private final Timer manifestTimer;
+    private final Timer tagFileTimer;
+    private final Timer bagTimer;
+    private final Counter uncompressedBytes;
+    private final Counter compressedBytes;
+    private final Counter failedBags;
+    // The queue depth that the last bag started with, from the executor or its BagScheduler
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * Registers the SpeedBagIt meters with a registry.
+     *
+     * @param registry The registry that the meters are added to
+     */
+    public MicrometerBagStreamListener(MeterRegistry registry) {
+        this.readTimer = Timer.builder("speedbagit.file.read")
+                .description("Time spent waiting on payload sources").register(registry);
+        this.hashTimer = Timer.builder("speedbagit.file.hash")
+                .description("Time spent checksumming files").register(registry);
+        this.deflateTimer = Timer.builder("speedbagit.file.deflate")
+                .description("Time spent compressing files").register(registry);
+        this.stallTimer = Timer.builder("speedbagit.file.stall")
+                .description("Time spent waiting for the client to drain the bag").register(registry);
+        this.fileBytes = DistributionSummary.builder("speedbagit.file.size")
+                .baseUnit("bytes").description("Uncompressed size of the files in a bag").register(registry);
+        this.manifestTimer = Timer.builder("speedbagit.manifests")
+                .description("Time spent generating manifests").register(registry);
+        this.tagFileTimer = Timer.builder("speedbagit.tagfiles")
+                .description("Time spent generating bagit.txt and bag-info.txt").register(registry);
+        this.bagTimer = Timer.builder("speedbagit.bag")
+                .description("Time taken to stream a whole bag").register(registry);
+        this.uncompressedBytes = Counter.builder("speedbagit.bytes.uncompressed")
+                .baseUnit("bytes").description("Bytes read into bags").register(registry);
+        this.compressedBytes = Counter.builder("speedbagit.bytes.compressed")
+                .baseUnit("bytes").description("Bytes written out of bags").register(registry);
+        this.failedBags = Counter.builder("speedbagit.bags.failed")
+                .description("Bags that could not be streamed").register(registry);
+        Gauge.builder("speedbagit.executor.queue", queueDepth, AtomicInteger::get)
+                .description("Bags that were waiting for a streaming thread when the last bag started")
+                .register(registry);
+        Gauge.builder("speedbagit.directbuffers.used", () -> SpeedBagIt.getDirectBufferPool().getInUseCount())
+                .description("Direct buffers in use by bags streaming to channels").register(registry);
+        Gauge.builder("speedbagit.directbuffers.allocated", () -> SpeedBagIt.getDirectBufferPool().getAllocatedBytes())
+                .baseUnit("bytes").description("Direct memory held by the buffer pool").register(registry);
+        Gauge.builder("speedbagit.directbuffers.exhausted", () -> SpeedBagIt.getDirectBufferPool().getExhaustedCount())
+                .description("Times a bag fell back to heap buffers").register(registry);
+    }
+
+    @Override
+    public void onBagStarted(int payloadFileCount, int queueDepth) {
+        this.queueDepth.set(queueDepth);
+    }
+
+    @Override
+    public void onFileStreamed(FileMetrics metrics) {
+        readTimer.record(metrics.getReadNanos(), TimeUnit.NANOSECONDS);
+        hashTimer.record(metrics.getHashNanos(), TimeUnit.NANOSECONDS);
+        deflateTimer.record(metrics.getDeflateNanos(), TimeUnit.NANOSECONDS);
+        stallTimer.record(metrics.getStallNanos(), TimeUnit.NANOSECONDS);
+        fileBytes.record(metrics.getBytes());
+    }
+
+    @Override
+    public void onManifestsGenerated(long nanos) {
+        manifestTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onTagFilesGenerated(long nanos) {
+        tagFileTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onBagFinished(BagMetrics metrics) {
+        bagTimer.record(metrics.getElapsedNanos(), TimeUnit.NANOSECONDS);
+        uncompressedBytes.increment(metrics.getUncompressedBytes());
+        compressedBytes.increment(metrics.getCompressedBytes());
+    }
+
+    @Override
+    public void onBagFailed(Throwable cause) {
+        failedBags.increment();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveLevelTest {
+
+    /**
+     * An output whose blocked time is set by the test
+     */
+    private static class FakeOutput implements Metered {
+        long nanos;
+
+        @Override
+        public long getCount() {
+            return 0;
+        }
+
+        @Override
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Test that the level goes up while the output blocks, and down to storing while it doesn't
+     */
+    @Test
+    public void testAdjusts() {
+        ZipStreamWriter writer = new ZipStreamWriter(new ByteArrayOutputStream());
+        FakeOutput out = new FakeOutput();
+        AdaptiveLevel adaptive = new AdaptiveLevel(writer, out);
+        assertEquals(6, adaptive.getLevel());
+        assertEquals(6, writer.getLevel());
+
+        // A slow client: 80% of the time is spent blocked
+        for (int i = 0; i < 10; i++) {
+            out.nanos += AdaptiveLevel.WINDOW_NANOS * 8 / 10;
+            adaptive.record(AdaptiveLevel.WINDOW_NANOS);
+        }
+        assertEquals(Deflater.BEST_COMPRESSION, adaptive.getLevel());
+        assertEquals(Deflater.BEST_COMPRESSION, writer.getLevel());
+
+        // A fast client: the writer never blocks
+        for (int i = 0; i < 10; i++) {
+            adaptive.record(AdaptiveLevel.WINDOW_NANOS);
+        }
+        assertEquals(Deflater.NO_COMPRESSION, writer.getLevel());
+
+        // Balanced: the level stays where it is
+        adaptive.record(AdaptiveLevel.WINDOW_NANOS);
+        adaptive.record(AdaptiveLevel.WINDOW_NANOS / 2);
+        out.nanos += AdaptiveLevel.WINDOW_NANOS / 5;
+        adaptive.record(AdaptiveLevel.WINDOW_NANOS / 2);
+        assertEquals(Deflater.NO_COMPRESSION, writer.getLevel());
+        out.nanos += AdaptiveLevel.WINDOW_NANOS / 5;
+        adaptive.record(AdaptiveLevel.WINDOW_NANOS);
+        assertEquals(Deflater.NO_COMPRESSION, writer.getLevel());
+        writer.release();
+    }
+
+    /**
+     * Test that the writer's level is where the adjusting starts
+     */
+    @Test
+    public void testStartingLevel() {
+        ZipStreamWriter writer = new ZipStreamWriter(new ByteArrayOutputStream(), 2);
+        assertEquals(3, new AdaptiveLevel(writer, new FakeOutput()).getLevel());
+        writer.release();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BagBatchTest {
+
+    /**
+     * Test that a batch streams each bag to its own sink, that a bag that can't be built
+     * and a sink that can't be opened fail only their own bags, and that a name that's in
+     * the batch twice fails twice
+     */
+    @Test
+    public void testBatch() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            names.add("bag" + i);
+        }
+        names.add("bag7");
+        Map<String, ByteArrayOutputStream> outputs = new ConcurrentHashMap<>();
+        BagBatch batch = SpeedBagIt.batch(names, name -> {
+            if (name.equals("bag7")) {
+                throw new IllegalStateException("No bag for " + name);
+            }
+            SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            bag.addFile(() -> new ByteArrayInputStream(bytes), "data/name.txt", false);
+            return bag;
+        }, name -> {
+            if (name.equals("bag13")) {
+                throw new IOException("No sink for " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outputs.put(name, out);
+            return Channels.newChannel(out);
+        }, 3, true);
+
+        assertEquals(48, batch.getSucceededCount());
+        assertEquals(3, batch.getFailedCount());
+        assertEquals(names.size(), batch.getSucceededCount() + batch.getFailedCount());
+        int bag7 = 0;
+        for (Map.Entry<String, Exception> failure : batch.getFailures()) {
+            if (failure.getKey().equals("bag7")) {
+                assertTrue(failure.getValue() instanceof IllegalStateException);
+                bag7++;
+            } else {
+                assertEquals("bag13", failure.getKey());
+                assertTrue(failure.getValue() instanceof IOException);
+            }
+        }
+        assertEquals(2, bag7);
+        assertEquals(48, outputs.size());
+
+        long compressed = 0;
+        for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet()) {
+            byte[] zip = output.getValue().toByteArray();
+            compressed += zip.length;
+            String contents = null;
+            try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+                for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+                    if (entry.getName().equals("data/name.txt")) {
+                        contents = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+                    }
+                }
+            }
+            assertEquals(output.getKey(), contents);
+        }
+
+        BagMetrics metrics = batch.getMetrics();
+        assertEquals(compressed, metrics.getCompressedBytes());
+        assertTrue(metrics.getFileCount() >= 48 * 4);
+        assertTrue(metrics.getElapsedNanos() > 0);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> SpeedBagIt.batch(names, name -> null, name -> null, 0));
+    }
+
+    /**
+     * Test that a batch is only measured when it's asked to be
+     */
+    @Test
+    public void testUnmeasuredBatch() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            names.add("bag" + i);
+        }
+        BagBatch batch = SpeedBagIt.batch(names, name -> {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            bag.addFile(() -> new ByteArrayInputStream(bytes), "data/name.txt", false);
+            return bag;
+        }, name -> Channels.newChannel(new ByteArrayOutputStream()), 2);
+
+        assertEquals(5, batch.getSucceededCount());
+        assertEquals(0, batch.getFailedCount());
+        assertThrows(IllegalStateException.class, batch::getMetrics);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class BagPathsTest {
+
+    /**
+     * Test that line breaks and percent signs are encoded, and that paths without them are
+     * returned as they are
+     */
+    @Test
+    public void testEncode() {
+        String plain = "data/2020/observations.csv";
+        assertSame(plain, BagPaths.encode(plain));
+        assertEquals("data/100%25.csv", BagPaths.encode("data/100%.csv"));
+        assertEquals("data/line%0Abreak%0D%0A.csv", BagPaths.encode("data/line\nbreak\r\n.csv"));
+        assertEquals("data/café%25.csv", BagPaths.encode("data/café%.csv"));
+    }
+
+    /**
+     * Test that ASCII paths are encoded into a buffer the same way as encode() does
+     */
+    @Test
+    public void testEncodeAscii() {
+        assertEquals(-1, BagPaths.encodedAsciiLength("data/café.csv"));
+        for (String path : new String[]{"data/2020/observations.csv", "data/100%.csv", "data/a\nb\rc%"}) {
+            int length = BagPaths.encodedAsciiLength(path);
+            byte[] buffer = new byte[length + 2];
+            assertEquals(length + 1, BagPaths.encodeAscii(path, buffer, 1));
+            assertEquals(BagPaths.encode(path),
+                    new String(Arrays.copyOfRange(buffer, 1, length + 1), StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Test that absolute paths, paths that leave the bag and paths with NUL characters
+     * are refused
+     */
+    @Test
+    public void testCheck() {
+        assertNull(BagPaths.check("data/2020/observations.csv"));
+        assertNull(BagPaths.check("./fetch.txt"));
+        assertNull(BagPaths.check("data/..hidden/file..csv"));
+        assertNotNull(BagPaths.check(""));
+        assertNotNull(BagPaths.check("/etc/passwd"));
+        assertNotNull(BagPaths.check("data/../../etc/passwd"));
+        assertNotNull(BagPaths.check("data\\..\\bagit.txt"));
+        assertNotNull(BagPaths.check(".."));
+        assertNotNull(BagPaths.check("data/file\0.csv"));
+    }
+}
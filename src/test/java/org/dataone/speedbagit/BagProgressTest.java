@@ -0,0 +1,71 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BagProgressTest {
+
+    /**
+     * Test that the ETA is based on the byte throughput when the total size is known
+     */
+    @Test
+    public void testEtaFromBytes() {
+        // A quarter of the bytes in two seconds leaves six seconds
+        BagProgress progress = new BagProgress(1, 10, 250, 1000, 2_000_000_000L);
+        assertEquals(0.25, progress.getFractionComplete());
+        assertEquals(125.0, progress.getBytesPerSecond());
+        assertEquals(6000, progress.getEtaMillis());
+    }
+
+    /**
+     * Test that the ETA falls back to the file count when the total size isn't known
+     */
+    @Test
+    public void testEtaFromFiles() {
+        BagProgress progress = new BagProgress(5, 10, 250, -1, 1_000_000_000L);
+        assertEquals(0.5, progress.getFractionComplete());
+        assertEquals(1000, progress.getEtaMillis());
+    }
+
+    /**
+     * Test that there's no estimate before anything was streamed
+     */
+    @Test
+    public void testNoEtaAtStart() {
+        BagProgress progress = new BagProgress(0, 10, 0, 1000, 0);
+        assertEquals(-1, progress.getEtaMillis());
+        assertEquals(0, progress.getBytesPerSecond());
+    }
+
+    /**
+     * Test that an empty payload is complete
+     */
+    @Test
+    public void testEmptyPayload() {
+        BagProgress progress = new BagProgress(0, 0, 0, 0, 10);
+        assertEquals(1.0, progress.getFractionComplete());
+        assertEquals(0, progress.getEtaMillis());
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BagResourceBudgetTest {
+
+    /**
+     * Test that a reservation waits until another one is released, and that reservations
+     * larger than the whole budget fail
+     */
+    @Test
+    public void testReserve() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new BagResourceBudget(0, 1, 0));
+        BagResourceBudget budget = new BagResourceBudget(1000, 4, 100);
+        assertThrows(IllegalStateException.class, () -> budget.reserve(5, 10));
+        assertThrows(IllegalStateException.class, () -> budget.reserve(1, 1001));
+
+        budget.reserve(2, 600);
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                budget.reserve(1, 600);
+                reserved.countDown();
+            } catch (Exception e) {
+                fail(e);
+            }
+        });
+        waiting.start();
+        for (int i = 0; i < 100 && budget.getWaitingCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, budget.getWaitingCount());
+        assertEquals(1, reserved.getCount());
+        budget.release(2, 600);
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        assertEquals(600, budget.getBufferMemory());
+        assertEquals(600, budget.getPeakBufferMemory());
+        budget.release(1, 600);
+        assertEquals(0, budget.getBufferMemory());
+    }
+
+    /**
+     * Test that manifests are reserved while they fit, and counted as spilled when they
+     * don't
+     */
+    @Test
+    public void testManifests() {
+        BagResourceBudget budget = new BagResourceBudget(1000, 1, 100);
+        assertTrue(budget.reserveManifest(60));
+        assertFalse(budget.reserveManifest(60));
+        assertEquals(1, budget.getSpilledManifests());
+        budget.releaseManifest(60);
+        assertTrue(budget.reserveManifest(100));
+        assertEquals(100, budget.getPeakManifestMemory());
+        budget.releaseManifest(100);
+        assertEquals(0, budget.getManifestMemory());
+    }
+
+    /**
+     * Test that a bag whose manifest doesn't fit writes it through a temporary file with the
+     * same contents, that its sources are counted while they're open, and that a bag that
+     * needs more than the budget fails
+     */
+    @Test
+    public void testBag() throws Exception {
+        byte[] manifest = null;
+        for (long manifestMemory : new long[]{1 << 20, 0}) {
+            BagResourceBudget budget = new BagResourceBudget(64L << 20, 3, manifestMemory);
+            SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+            bag.setResourceBudget(budget);
+            bag.setPrefetch(2, 4L << 20);
+            for (int i = 0; i < 20; i++) {
+                byte[] bytes = ("file " + i).getBytes(StandardCharsets.UTF_8);
+                bag.addFile(() -> new ByteArrayInputStream(bytes), "data/file" + i + ".txt", false);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bag.stream(Channels.newChannel(out));
+
+            byte[] written = null;
+            byte[] tagManifest = null;
+            try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                    if (entry.getName().equals("manifest-sha256.txt")) {
+                        written = IOUtils.toByteArray(zip);
+                    } else if (entry.getName().equals("tagmanifest-sha256.txt")) {
+                        tagManifest = IOUtils.toByteArray(zip);
+                    }
+                }
+            }
+            assertTrue(new String(tagManifest, StandardCharsets.UTF_8)
+                    .contains(DigestUtils.sha256Hex(written) + " manifest-sha256.txt"));
+            if (manifest == null) {
+                manifest = written;
+                assertEquals(0, budget.getSpilledManifests());
+                assertTrue(budget.getPeakManifestMemory() >= manifest.length);
+            } else {
+                assertArrayEquals(manifest, written);
+                assertEquals(1, budget.getSpilledManifests());
+            }
+            assertTrue(budget.getPeakOpenFiles() > 0 && budget.getPeakOpenFiles() <= 3);
+            assertEquals(0, budget.getOpenFiles());
+            assertEquals(0, budget.getBufferMemory());
+            assertEquals(0, budget.getManifestMemory());
+        }
+
+        SpeedBagIt greedy = new SpeedBagIt(1.0, "MD5");
+        greedy.setResourceBudget(new BagResourceBudget(64L << 20, 3, 0));
+        greedy.setPrefetch(3);
+        assertThrows(IllegalStateException.class, () -> greedy.stream(Channels.newChannel(new ByteArrayOutputStream())));
+        greedy.setPrefetch(2, 4L << 20);
+        greedy.setCopyThreads(4);
+        assertThrows(IllegalStateException.class, () -> greedy.writeTo(java.nio.file.Paths.get("unused")));
+    }
+}
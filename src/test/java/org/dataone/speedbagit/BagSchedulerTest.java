@@ -0,0 +1,175 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BagSchedulerTest {
+
+    /**
+     * Creates a bag whose only file can't be read until the latch is released
+     */
+    private SpeedBagIt blockedBag(CountDownLatch latch) throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(() -> {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ByteArrayInputStream("blocked".getBytes(StandardCharsets.UTF_8));
+        }, "data/blocked.txt", false);
+        return bag;
+    }
+
+    /**
+     * Creates a bag with one data file of a known size, which records when it's started
+     */
+    private SpeedBagIt namedBag(String name, int size, List<String> started) throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(new ByteArrayInputStream(new byte[size]), "data/" + name + ".bin", size, false);
+        bag.addStreamListener(new BagStreamListener() {
+            @Override
+            public void onBagStarted(int dataFileCount, int queueDepth) {
+                started.add(name);
+            }
+        });
+        return bag;
+    }
+
+    /**
+     * Test that the scheduler streams no more bags at once than its limit, and rejects bags
+     * once its queue is full
+     */
+    @Test
+    public void testLimits() throws Exception {
+        BagScheduler scheduler = new BagScheduler(1, 2);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<InputStream> streams = new ArrayList<>();
+        SpeedBagIt blocked = blockedBag(latch);
+        blocked.setScheduler(scheduler);
+        streams.add(blocked.stream());
+        for (int i = 0; i < 2; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+            bag.addFile(new ByteArrayInputStream(new byte[10]), "data/file.bin", false);
+            bag.setScheduler(scheduler);
+            streams.add(bag.stream());
+        }
+        assertEquals(1, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getQueuedCount());
+
+        SpeedBagIt rejected = new SpeedBagIt(1.0, "MD5");
+        rejected.setScheduler(scheduler);
+        assertThrows(RejectedExecutionException.class, rejected::stream);
+        assertEquals(1, scheduler.getRejectedCount());
+
+        latch.countDown();
+        for (InputStream stream : streams) {
+            assertTrue(IOUtils.toByteArray(stream).length > 0);
+        }
+        for (int i = 0; i < 100 && scheduler.getRunningCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    /**
+     * Test that queued bags are started by priority, and then with the smallest first
+     */
+    @Test
+    public void testOrder() throws Exception {
+        BagScheduler scheduler = new BagScheduler(1, 10, BagScheduler.Policy.SMALLEST_FIRST, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        List<InputStream> streams = new ArrayList<>();
+        SpeedBagIt blocked = blockedBag(latch);
+        blocked.setScheduler(scheduler);
+        streams.add(blocked.stream());
+
+        SpeedBagIt large = namedBag("large", 5000, started);
+        SpeedBagIt small = namedBag("small", 10, started);
+        SpeedBagIt urgent = namedBag("urgent", 20000, started);
+        urgent.setPriority(5);
+        for (SpeedBagIt bag : new SpeedBagIt[]{large, small, urgent}) {
+            bag.setScheduler(scheduler);
+            streams.add(bag.stream());
+        }
+        latch.countDown();
+        for (InputStream stream : streams) {
+            IOUtils.toByteArray(stream);
+        }
+        assertEquals(java.util.Arrays.asList("urgent", "small", "large"), started);
+    }
+
+    /**
+     * Test that the scheduler's bandwidth limits bags written to a channel, which wait for
+     * their turn on the calling thread
+     */
+    @Test
+    public void testBandwidth() throws Exception {
+        BagScheduler scheduler = new BagScheduler(1, 1, BagScheduler.Policy.FIFO, 1024 * 1024);
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(new ByteArrayInputStream(new byte[400 * 1024]), "data/file.bin", false);
+        bag.setScheduler(scheduler);
+        long start = System.nanoTime();
+        bag.stream(Channels.newChannel(new ByteArrayOutputStream()));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 100 KB go through at once, the other 300 KB take about 300 ms
+        assertTrue(millis >= 200, "Streamed in " + millis + " ms");
+        assertEquals(0, scheduler.getRunningCount());
+
+        assertThrows(IllegalArgumentException.class, () -> new BagScheduler(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> bag.setBandwidthLimit(-1));
+    }
+
+    /**
+     * Test that a bag can be limited on its own, without a scheduler
+     */
+    @Test
+    public void testBagBandwidth() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(new ByteArrayInputStream(new byte[400 * 1024]), "data/file.bin", false);
+        bag.setBandwidthLimit(1024 * 1024);
+        long start = System.nanoTime();
+        IOUtils.toByteArray(bag.stream());
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis >= 200, "Streamed in " + millis + " ms");
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BagTemplateTest {
+
+    @TempDir
+    Path directory = Files.createTempDirectory("speedbag_tests");
+
+    public BagTemplateTest() throws IOException {
+    }
+
+    private BagTemplate createTemplate(byte[] license) throws Exception {
+        return new BagTemplate.Builder(1.0, "SHA-256")
+                .bagitMetadata(Collections.singletonMap("Contact-Email", "admin@dataone.org"))
+                .addBagInfo("Source-Organization", "DataONE")
+                .addTagFile("metadata/LICENSE.txt", license)
+                .addTagFile("metadata/empty.txt", new byte[0])
+                .build();
+    }
+
+    /**
+     * Test that bags created from a template hold its files, and that their checksums are
+     * in the tag manifest
+     */
+    @Test
+    public void testBagsFromTemplate() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("Licensed under the Apache License, Version 2.0\n");
+        }
+        byte[] license = text.toString().getBytes(StandardCharsets.UTF_8);
+        BagTemplate template = createTemplate(license);
+        assertEquals(2, template.getTagFilePaths().size());
+
+        for (int i = 0; i < 2; i++) {
+            SpeedBagIt bag = new SpeedBagIt(template);
+            assertEquals("SHA-256", bag.checksumAlgorithm);
+            bag.addBagInfo("External-Identifier", "bag-" + i);
+            bag.addFile(new ByteArrayInputStream(("data " + i).getBytes(StandardCharsets.UTF_8)), "data/file.txt", false);
+
+            Path bagFilePath = Paths.get(directory.toString() + "templateBag" + i + ".zip");
+            try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                IOUtils.copy(bag.stream(), fos);
+            }
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                ZipEntry entry = zipFile.getEntry("metadata/LICENSE.txt");
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertArrayEquals(license, IOUtils.toByteArray(zipFile.getInputStream(entry)));
+                assertEquals(0, zipFile.getEntry("metadata/empty.txt").getSize());
+
+                byte[] bagit = IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("bagit.txt")));
+                assertEquals(bag.generateBagitTxt(), new String(bagit, StandardCharsets.UTF_8));
+                assertTrue(bag.generateBagitTxt().contains("Contact-Email: admin@dataone.org"));
+                String bagInfo = SpeedBagItTest.convertStreamToString(zipFile.getInputStream(zipFile.getEntry("bag-info.txt")));
+                assertTrue(bagInfo.contains("Source-Organization: DataONE\n"));
+                assertTrue(bagInfo.contains("External-Identifier: bag-" + i + "\n"));
+
+                String tagManifest = SpeedBagItTest.convertStreamToString(
+                        zipFile.getInputStream(zipFile.getEntry("tagmanifest-sha256.txt")));
+                assertTrue(tagManifest.contains(DigestUtils.sha256Hex(license) + " metadata/LICENSE.txt"));
+                assertTrue(tagManifest.contains(DigestUtils.sha256Hex(bagit) + " bagit.txt"));
+                assertTrue(tagManifest.contains(DigestUtils.sha256Hex(new byte[0]) + " metadata/empty.txt"));
+            }
+            Files.delete(bagFilePath);
+        }
+        // The template isn't changed by the bags
+        assertEquals(1, template.getBagInfo().size());
+    }
+
+    /**
+     * Test that a bag whose checksum algorithm was changed still lists the template's files
+     * with the right checksums
+     */
+    @Test
+    public void testChangedAlgorithm() throws Exception {
+        byte[] license = "Apache License".getBytes(StandardCharsets.UTF_8);
+        SpeedBagIt bag = new SpeedBagIt(createTemplate(license));
+        bag.checksumAlgorithm = "MD5";
+        Path bagFilePath = Paths.get(directory.toString() + "md5TemplateBag.zip");
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+            String tagManifest = SpeedBagItTest.convertStreamToString(
+                    zipFile.getInputStream(zipFile.getEntry("tagmanifest-md5.txt")));
+            assertTrue(tagManifest.contains(DigestUtils.md5Hex(license) + " metadata/LICENSE.txt"));
+        }
+        Files.delete(bagFilePath);
+    }
+
+    /**
+     * Test that files can't be added over the template's tag files
+     */
+    @Test
+    public void testConflicts() throws Exception {
+        BagTemplate template = createTemplate(new byte[1]);
+        SpeedBagIt bag = new SpeedBagIt(template);
+        assertThrows(SpeedBagException.class, () -> bag.addFile(new ByteArrayInputStream(new byte[1]),
+                "metadata/LICENSE.txt", true));
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "metadata/LICENSE.txt", false);
+        assertThrows(SpeedBagException.class, () -> new BagTemplate.Builder(1.0, "MD5")
+                .addTagFile("a.txt", new byte[0]).addTagFile("a.txt", new byte[0]));
+        assertThrows(SpeedBagException.class, () -> new BagTemplate.Builder(1.0, "MD5")
+                .addTagFile("manifest-md5.txt", new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> new BagTemplate.Builder(1.0, "MD5")
+                .addBagInfo("Payload-Oxum", "1.1"));
+        assertThrows(java.security.NoSuchAlgorithmException.class, () -> new BagTemplate.Builder(1.0, "NOPE").build());
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class Blake3ChecksummerTest {
+
+    /**
+     * Creates the input used by the official BLAKE3 test vectors: the bytes 0, 1, ... 250, repeated.
+     */
+    static byte[] testInput(int length) {
+        byte[] input = new byte[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = (byte) (i % 251);
+        }
+        return input;
+    }
+
+    static String blake3(byte[] input) {
+        Checksummer checksummer = new Blake3Checksummer();
+        checksummer.update(input, 0, input.length);
+        return Hex.encodeHexString(checksummer.digest());
+    }
+
+    /**
+     * Test inputs around the block and chunk boundaries against known digests
+     */
+    @Test
+    public void testVectors() {
+        assertEquals("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262", blake3(testInput(0)));
+        assertEquals("2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213", blake3(testInput(1)));
+        assertEquals("10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11", blake3(testInput(1023)));
+        assertEquals("42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7", blake3(testInput(1024)));
+        assertEquals("d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444", blake3(testInput(1025)));
+        assertEquals("aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63", blake3(testInput(8192)));
+        assertEquals("7c99f9840a73dfcb6e5bfe4ff6d1558acab7e015640790c26411818bdbe17eca", blake3(testInput(65537)));
+    }
+
+    /**
+     * Test that the digest doesn't depend on how the input is split up, including single byte updates
+     */
+    @Test
+    public void testIncrementalUpdates() {
+        byte[] input = testInput(65537);
+        Checksummer checksummer = new Blake3Checksummer();
+        int off = 0;
+        int step = 1;
+        while (off < input.length) {
+            int len = Math.min(step, input.length - off);
+            if (len == 1) {
+                checksummer.update(input[off]);
+            } else {
+                checksummer.update(input, off, len);
+            }
+            off += len;
+            step = (step * 7 + 3) % 3001;
+        }
+        assertEquals(blake3(input), Hex.encodeHexString(checksummer.digest()));
+    }
+
+    /**
+     * Test that digest() resets the state so that the Checksummer can be reused
+     */
+    @Test
+    public void testDigestResets() {
+        Checksummer checksummer = new Blake3Checksummer();
+        byte[] input = testInput(1025);
+        checksummer.update(input, 0, input.length);
+        checksummer.digest();
+        assertEquals("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+                Hex.encodeHexString(checksummer.digest()));
+    }
+}
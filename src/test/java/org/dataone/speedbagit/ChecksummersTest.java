@@ -0,0 +1,88 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChecksummersTest {
+
+    /**
+     * Test that algorithms are found by name, with MessageDigest as the fallback
+     */
+    @Test
+    public void testGetInstance() throws NoSuchAlgorithmException {
+        assertTrue(Checksummers.getInstance("BLAKE3") instanceof Blake3Checksummer);
+        assertTrue(Checksummers.getInstance("blake-3") instanceof Blake3Checksummer);
+        assertTrue(Checksummers.getInstance("xxh64") instanceof Xxh64Checksummer);
+        assertTrue(Checksummers.getInstance("XXHash64") instanceof Xxh64Checksummer);
+        Checksummer md5 = Checksummers.getInstance("MD5");
+        assertTrue(md5 instanceof MessageDigestChecksummer);
+        assertEquals("MD5", md5.getAlgorithm());
+        // Names are reduced once and then looked up
+        assertEquals("BLAKE3", Checksummers.canonicalName("Blake-3"));
+        assertSame(Checksummers.canonicalName("Blake-3"), Checksummers.canonicalName("Blake-3"));
+    }
+
+    /**
+     * Test that an unknown algorithm is reported the same way MessageDigest reports it
+     */
+    @Test
+    public void testUnknownAlgorithm() {
+        assertThrows(NoSuchAlgorithmException.class, () -> Checksummers.getInstance("not-an-algorithm"));
+    }
+
+    /**
+     * Test that a registered provider takes precedence over the built in algorithms
+     */
+    @Test
+    public void testRegisteredProvider() throws NoSuchAlgorithmException {
+        Checksummer custom = new Xxh64Checksummer();
+        ChecksummerProvider provider = algorithm -> algorithm.equals("BLAKE3") ? custom : null;
+        Checksummers.register(provider);
+        try {
+            assertSame(custom, Checksummers.getInstance("BLAKE3"));
+            // Other algorithms still fall through to the next provider
+            assertTrue(Checksummers.getInstance("MD5") instanceof MessageDigestChecksummer);
+        } finally {
+            Checksummers.unregister(provider);
+        }
+        assertTrue(Checksummers.getInstance("BLAKE3") instanceof Blake3Checksummer);
+    }
+
+    /**
+     * Test that digests come from the JCA provider that was asked for
+     */
+    @Test
+    public void testJcaProvider() throws NoSuchAlgorithmException {
+        java.security.Provider sun = java.security.MessageDigest.getInstance("SHA-256").getProvider();
+        Checksummer checksummer = new JcaChecksummerProvider(sun).create("SHA-256");
+        assertSame(sun, ((MessageDigestChecksummer) checksummer).getMessageDigest().getProvider());
+        assertEquals(null, new JcaChecksummerProvider(sun).create("not-an-algorithm"));
+    }
+}
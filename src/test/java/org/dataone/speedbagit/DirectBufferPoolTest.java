@@ -0,0 +1,70 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectBufferPoolTest {
+
+    /**
+     * Test that the pool never allocates more than its limit, and reuses released buffers
+     */
+    @Test
+    public void testBounded() {
+        DirectBufferPool pool = new DirectBufferPool(1024, 2);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(1024, first.capacity());
+        assertNull(pool.acquire());
+        assertEquals(1, pool.getExhaustedCount());
+        assertEquals(2, pool.getInUseCount());
+        assertEquals(2048, pool.getAllocatedBytes());
+
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer again = pool.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(1024, again.remaining());
+        pool.release(again);
+        pool.release(second);
+        assertEquals(0, pool.getInUseCount());
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    /**
+     * Test that buffers from elsewhere are refused
+     */
+    @Test
+    public void testForeignBuffer() {
+        DirectBufferPool pool = new DirectBufferPool(1024, 2);
+        assertThrows(IllegalArgumentException.class, () -> pool.release(ByteBuffer.allocate(1024)));
+        assertThrows(IllegalArgumentException.class, () -> pool.release(ByteBuffer.allocateDirect(512)));
+        assertThrows(IllegalArgumentException.class, () -> new DirectBufferPool(0, 2));
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DirectoryWriterTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Test that whole and streamed entries become files, with their parent directories
+     */
+    @Test
+    public void testEntries() throws Exception {
+        Path bag = directory.resolve("bag");
+        byte[] text = "Observation,Temperature\n".getBytes(StandardCharsets.UTF_8);
+        try (DirectoryWriter writer = new DirectoryWriter(bag)) {
+            writer.writeEntry("bagit.txt", text, 0, text.length);
+            writer.writeEntry("metadata/direct.txt", ByteBuffer.wrap(text));
+            writer.putNextEntry("data/nested/streamed.csv");
+            writer.write(text, 0, 12);
+            writer.write(ByteBuffer.wrap(text, 12, text.length - 12));
+            writer.closeEntry();
+            assertEquals(3, writer.getEntryCount());
+            assertEquals(3L * text.length, writer.getCount());
+        }
+        assertArrayEquals(text, Files.readAllBytes(bag.resolve("bagit.txt")));
+        assertArrayEquals(text, Files.readAllBytes(bag.resolve("metadata/direct.txt")));
+        assertArrayEquals(text, Files.readAllBytes(bag.resolve("data/nested/streamed.csv")));
+    }
+
+    /**
+     * Test that entries can't overwrite files or leave the bag's directory
+     */
+    @Test
+    public void testUnsafePaths() throws Exception {
+        DirectoryWriter writer = new DirectoryWriter(directory.resolve("bag"));
+        writer.writeEntry("bagit.txt", new byte[1], 0, 1);
+        assertThrows(FileAlreadyExistsException.class, () -> writer.writeEntry("bagit.txt", new byte[1], 0, 1));
+        assertThrows(IOException.class, () -> writer.writeEntry("../outside.txt", new byte[1], 0, 1));
+        assertThrows(IOException.class, () -> writer.writeEntry("data/../../outside.txt", new byte[1], 0, 1));
+        assertFalse(Files.exists(directory.resolve("outside.txt")));
+        writer.release();
+    }
+
+    /**
+     * Test that data files are copied with their checksums, and that files are linked
+     * when asked to
+     */
+    @Test
+    public void testCopy() throws Exception {
+        byte[] bytes = new byte[200000];
+        new java.util.Random(3).nextBytes(bytes);
+        Path source = directory.resolve("source.bin");
+        Files.write(source, bytes);
+        String checksum = org.apache.commons.codec.digest.DigestUtils.md5Hex(bytes);
+
+        DirectoryWriter writer = new DirectoryWriter(directory.resolve("bag"));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        for (boolean link : new boolean[]{false, true}) {
+            String path = link ? "data/linked.bin" : "data/copied.bin";
+            SpeedStream stream = new SpeedStream(new SourceInputStream(PayloadSource.of(source)),
+                    Checksummers.getInstance("MD5"));
+            FileMetrics metrics = writer.copy(new SpeedFile(stream, path, false), buffer, link, true);
+            stream.close();
+            assertEquals(checksum, stream.getChecksum());
+            assertEquals(bytes.length, metrics.getBytes());
+            Path copy = directory.resolve("bag").resolve(path);
+            assertArrayEquals(bytes, Files.readAllBytes(copy));
+            assertEquals(link, Files.isSameFile(source, copy));
+        }
+        // Streams that aren't files are always copied
+        SpeedStream stream = new SpeedStream(new ByteArrayInputStream(bytes), Checksummers.getInstance("MD5"));
+        writer.copy(new SpeedFile(stream, "data/stream.bin", false), buffer, true, false);
+        assertEquals(checksum, stream.getChecksum());
+        assertEquals(bytes.length, Files.size(directory.resolve("bag/data/stream.bin")));
+        writer.close();
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpRangeSourceTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private HttpServer server;
+    private final byte[] object = new byte[100000];
+    // Whether the stand-in serves ranges, like an object store does
+    private volatile boolean ranges = true;
+    // The ETag of the object, which is changed to act as if it were overwritten
+    private volatile String etag = "\"v1\"";
+    // Ranges, by their first byte, that fail the first time they're asked for
+    private final Set<Long> failOnce = ConcurrentHashMap.newKeySet();
+    private final Map<Long, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(object);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/bucket/object.bin", this::serve);
+        server.createContext("/bucket/empty.bin", exchange -> {
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+        });
+        server.createContext("/bucket/private.bin", exchange -> {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (!ranges || matcher == null || !matcher.matches()) {
+            exchange.sendResponseHeaders(200, object.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(object);
+            }
+            return;
+        }
+        long start = Long.parseLong(matcher.group(1));
+        long end = Math.min(Long.parseLong(matcher.group(2)), object.length - 1);
+        requests.computeIfAbsent(start, key -> new AtomicInteger()).incrementAndGet();
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (failOnce.remove(start)) {
+            exchange.sendResponseHeaders(503, -1);
+        } else if (ifMatch != null && !ifMatch.equals(etag)) {
+            exchange.sendResponseHeaders(412, -1);
+        } else {
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + object.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(object, (int) start, (int) (end - start + 1));
+            }
+        }
+        exchange.close();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private HttpRangeSource source(String path) throws IOException {
+        HttpRangeSource source = new HttpRangeSource(url(path));
+        source.setRangeSize(7000);
+        source.setConnections(3);
+        return source;
+    }
+
+    /**
+     * Test that an object read in ranges comes out in order, and that ranges that fail are
+     * retried on their own
+     */
+    @Test
+    public void testRanges() throws Exception {
+        failOnce.add(21000L);
+        failOnce.add(98000L);
+        HttpRangeSource source = source("/bucket/object.bin");
+        try (InputStream in = source.open()) {
+            assertArrayEquals(object, IOUtils.toByteArray(in));
+        }
+        // 100000 bytes in ranges of 7000
+        assertEquals(15, requests.size());
+        assertEquals(2, requests.get(21000L).get());
+        assertEquals(2, requests.get(98000L).get());
+        assertEquals(1, requests.get(0L).get());
+
+        // Objects that fit in the first range, and reads of one byte at a time
+        source.setRangeSize(200000);
+        try (InputStream in = source.open()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int b = in.read(); b >= 0; b = in.read()) {
+                out.write(b);
+            }
+            assertArrayEquals(object, out.toByteArray());
+        }
+    }
+
+    /**
+     * Test servers that don't serve ranges, empty objects, and statuses that aren't retried
+     */
+    @Test
+    public void testResponses() throws Exception {
+        ranges = false;
+        try (InputStream in = source("/bucket/object.bin").open()) {
+            assertArrayEquals(object, IOUtils.toByteArray(in));
+        }
+        try (InputStream in = source("/bucket/empty.bin").open()) {
+            assertEquals(-1, in.read());
+        }
+        ranges = true;
+        assertThrows(IOException.class, () -> source("/bucket/private.bin").open());
+
+        // A range that keeps failing fails the read once the retries run out
+        HttpRangeSource source = source("/bucket/object.bin");
+        source.setRetries(0);
+        failOnce.add(14000L);
+        try (InputStream in = source.open()) {
+            assertThrows(IOException.class, () -> IOUtils.toByteArray(in));
+        }
+
+        // An object that changes while it's read isn't mixed from two versions
+        source.setConnections(1);
+        try (InputStream in = source.open()) {
+            assertEquals(7000, in.read(new byte[7000]));
+            etag = "\"v2\"";
+            assertThrows(IOException.class, () -> IOUtils.toByteArray(in));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new HttpRangeSource(new URL("file:/tmp/object")));
+        assertThrows(IllegalArgumentException.class, () -> source.setRangeSize(0));
+        assertThrows(IllegalArgumentException.class, () -> source.setConnections(0));
+        assertThrows(IllegalArgumentException.class, () -> source.setRetries(-1));
+    }
+
+    /**
+     * Test that a bag checksums an object that's read in ranges
+     */
+    @Test
+    public void testBag() throws Exception {
+        failOnce.add(49000L);
+        SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+        bag.addFile(source("/bucket/object.bin"), "data/object.bin", false);
+        IOUtils.copy(bag.stream(), new ByteArrayOutputStream());
+
+        String expected = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(object));
+        assertEquals(expected, bag.getDataFiles().get("data/object.bin").getStream().getChecksum());
+    }
+}
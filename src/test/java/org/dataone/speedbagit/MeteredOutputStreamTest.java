@@ -0,0 +1,55 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MeteredOutputStreamTest {
+
+    /**
+     * Test that bytes are passed through and counted
+     */
+    @Test
+    public void testCount() throws IOException {
+        byte[] data = "a few bytes of data".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        MeteredOutputStream stream = new MeteredOutputStream(target);
+        assertEquals(0, stream.getCount());
+
+        stream.write(data, 0, data.length);
+        stream.write('!');
+        stream.flush();
+
+        assertEquals(data.length + 1, stream.getCount());
+        assertEquals(data.length + 1, target.size());
+        assertArrayEquals(data, java.util.Arrays.copyOf(target.toByteArray(), data.length));
+        assertTrue(stream.getNanos() >= 0);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ParallelBlake3ChecksummerTest {
+
+    // Small segments so that the tests cover many of them
+    private static final int SEGMENT_SIZE = 4096;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void createExecutor() {
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterEach
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test that the parallel checksum is the same as the sequential one around segment boundaries
+     */
+    @Test
+    public void testMatchesSequential() {
+        int[] sizes = {0, 1, 1024, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 2 * SEGMENT_SIZE,
+                2 * SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE + 5, 100000};
+        ParallelBlake3Checksummer parallel = new ParallelBlake3Checksummer(SEGMENT_SIZE, executor, 2);
+        for (int size : sizes) {
+            byte[] input = Blake3ChecksummerTest.testInput(size);
+            // Feed the input in odd sized pieces, like a stream would
+            for (int off = 0; off < size; off += 1000) {
+                parallel.update(input, off, Math.min(1000, size - off));
+            }
+            assertEquals(Blake3ChecksummerTest.blake3(input), Hex.encodeHexString(parallel.digest()),
+                    "Checksum of " + size + " bytes");
+        }
+    }
+
+    /**
+     * Test that a leaf digest is kept for every complete segment but the last, and that
+     * each one can be recomputed from its range of the input
+     */
+    @Test
+    public void testLeafDigests() {
+        byte[] input = Blake3ChecksummerTest.testInput(3 * SEGMENT_SIZE + 5);
+        ParallelBlake3Checksummer parallel = new ParallelBlake3Checksummer(SEGMENT_SIZE, executor, 1);
+        parallel.update(input, 0, input.length);
+        parallel.digest();
+
+        List<byte[]> leaves = parallel.getLeafDigests();
+        assertEquals(3, leaves.size());
+        int chunks = SEGMENT_SIZE / Blake3Checksummer.CHUNK_LEN;
+        for (int i = 0; i < leaves.size(); i++) {
+            int[] cv = Blake3Checksummer.subtreeChainingValue(input, i * SEGMENT_SIZE, chunks, (long) i * chunks);
+            byte[] expected = new byte[32];
+            for (int w = 0; w < 8; w++) {
+                for (int b = 0; b < 4; b++) {
+                    expected[w * 4 + b] = (byte) (cv[w] >>> (8 * b));
+                }
+            }
+            assertArrayEquals(expected, leaves.get(i));
+        }
+    }
+
+    /**
+     * Test that single byte updates go through the segments too
+     */
+    @Test
+    public void testSingleByteUpdates() {
+        byte[] input = Blake3ChecksummerTest.testInput(2 * SEGMENT_SIZE + 3);
+        ParallelBlake3Checksummer parallel = new ParallelBlake3Checksummer(SEGMENT_SIZE, executor, 2);
+        for (byte b : input) {
+            parallel.update(b);
+        }
+        assertEquals(Blake3ChecksummerTest.blake3(input), Hex.encodeHexString(parallel.digest()));
+        assertEquals(2, parallel.getLeafDigests().size());
+    }
+
+    /**
+     * Test that segment sizes which aren't complete subtrees are rejected
+     */
+    @Test
+    public void testInvalidSegmentSize() {
+        assertThrows(IllegalArgumentException.class, () -> new ParallelBlake3Checksummer(3000, executor, 2));
+        assertThrows(IllegalArgumentException.class, () -> new ParallelBlake3Checksummer(1024, executor, 2));
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+    private static byte[] gunzip(byte[] gzip) throws Exception {
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+    }
+
+    /**
+     * Test that bytes spanning many blocks come back in order from the concatenated members
+     */
+    @Test
+    public void testBlocks() throws Exception {
+        byte[] data = new byte[5 * ParallelGzipOutputStream.BLOCK_SIZE + 12345];
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            // Compressible, but different in every block
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 6)) {
+            gzip.write(data[0]);
+            int off = 1;
+            int length = 1;
+            while (off < data.length) {
+                int n = Math.min(length, data.length - off);
+                gzip.write(data, off, n);
+                off += n;
+                length = length * 3 + 1;
+            }
+        }
+        assertTrue(out.size() < data.length / 2);
+        assertArrayEquals(data, gunzip(out.toByteArray()));
+    }
+
+    /**
+     * Test that an empty stream, a flushed stream and a stored block are all valid gzip
+     */
+    @Test
+    public void testEdgeCases() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(out, -1).close();
+        assertEquals(0, gunzip(out.toByteArray()).length);
+
+        byte[] noise = new byte[ParallelGzipOutputStream.BLOCK_SIZE];
+        new Random(2).nextBytes(noise);
+        out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out, 0)) {
+            gzip.write(noise, 0, 1000);
+            gzip.flush();
+            assertTrue(out.size() > 1000);
+            gzip.setLevel(9);
+            gzip.write(noise, 1000, noise.length - 1000);
+        }
+        assertArrayEquals(noise, gunzip(out.toByteArray()));
+    }
+}
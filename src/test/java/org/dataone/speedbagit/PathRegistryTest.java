@@ -0,0 +1,72 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PathRegistryTest {
+
+    /**
+     * Test that paths are folded to their NFC form, case folded
+     */
+    @Test
+    public void testFold() {
+        assertEquals("data/obs.csv", PathRegistry.fold("Data/OBS.csv"));
+        assertEquals("data/caf\u00e9.csv", PathRegistry.fold("data/Cafe\u0301.csv"));
+        assertEquals(PathRegistry.fold("data/\u00c9t\u00e9"), PathRegistry.fold("data/E\u0301te\u0301"));
+        // The Kelvin sign folds to an ASCII k, so it hashes like the ASCII path
+        assertEquals(PathRegistry.hash("data/k.csv"), PathRegistry.hash("data/\u212a.csv"));
+        assertEquals(PathRegistry.hash("data/obs.csv"), PathRegistry.hash("DATA/Obs.CSV"));
+        assertNotEquals(PathRegistry.hash("data/obs.csv"), PathRegistry.hash("data/obs.csv "));
+    }
+
+    /**
+     * Test that paths collide with registered paths that fold the same, and that the
+     * table grows as paths are added
+     */
+    @Test
+    public void testCollisions() {
+        List<String> paths = new ArrayList<>();
+        PathRegistry registry = new PathRegistry(paths);
+        for (int i = 0; i < 10000; i++) {
+            String path = "data/run" + i + "/observations.csv";
+            assertNull(registry.findCollision(path));
+            registry.add(path);
+            paths.add(path);
+        }
+        assertEquals(10000, registry.size());
+        assertEquals("data/run42/observations.csv", registry.findCollision("data/RUN42/Observations.csv"));
+        assertNull(registry.findCollision("data/run10000/observations.csv"));
+
+        String composed = "data/r\u00e9sum\u00e9.txt";
+        registry.add(composed);
+        paths.add(composed);
+        assertEquals(composed, registry.findCollision("data/Re\u0301sume\u0301.txt"));
+    }
+}
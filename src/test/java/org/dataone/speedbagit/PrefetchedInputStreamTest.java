@@ -0,0 +1,174 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PrefetchedInputStreamTest {
+
+    /**
+     * Test that the prefetched bytes are the bytes of the source
+     */
+    @Test
+    public void testReadsSource() throws Exception {
+        int[] sizes = {0, 1, 4095, 4096, 4097, 100000};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            PrefetchedInputStream stream = new PrefetchedInputStream(new ByteArrayInputStream(data), 4096, 2);
+            Thread thread = new Thread(stream::fill);
+            thread.start();
+            assertArrayEquals(data, IOUtils.toByteArray(stream), "Size " + size);
+            thread.join();
+        }
+    }
+
+    /**
+     * Test that an error in the background thread is thrown to the reader after the bytes
+     * that were read before it
+     */
+    @Test
+    public void testSourceError() throws Exception {
+        InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (count == 10) {
+                    throw new IOException("Source failed");
+                }
+                return count++;
+            }
+        };
+        PrefetchedInputStream stream = new PrefetchedInputStream(failing, 4096, 2);
+        new Thread(stream::fill).start();
+        byte[] buffer = new byte[10];
+        assertEquals(10, IOUtils.read(stream, buffer));
+        IOException e = assertThrows(IOException.class, () -> stream.read());
+        assertEquals("Source failed", e.getMessage());
+    }
+
+    /**
+     * Test that closing the stream stops a background thread that's waiting for space
+     * and closes the source
+     */
+    @Test
+    public void testCloseStopsFill() throws Exception {
+        CountDownLatch sourceClosed = new CountDownLatch(1);
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                sourceClosed.countDown();
+            }
+        };
+        PrefetchedInputStream stream = new PrefetchedInputStream(endless, 4096, 1);
+        new Thread(stream::fill).start();
+        assertEquals(1, stream.read());
+        stream.close();
+        assertTrue(sourceClosed.await(5, TimeUnit.SECONDS));
+        assertThrows(IOException.class, () -> stream.read(new byte[4096]));
+    }
+
+    /**
+     * Test that the prefetcher splits its memory cap between the files it reads ahead
+     */
+    @Test
+    public void testPrefetcherMemoryCap() throws Exception {
+        List<SpeedFile> files = new ArrayList<>();
+        Prefetcher prefetcher = new Prefetcher(files, 4, 4L << 20);
+        assertEquals(Prefetcher.MAX_CHUNK_SIZE, prefetcher.getChunkSize());
+        assertEquals(14, prefetcher.getChunksPerFile());
+
+        prefetcher = new Prefetcher(files, 2, 64 * 1024);
+        assertEquals(8192, prefetcher.getChunkSize());
+        assertTrue((prefetcher.getChunksPerFile() + 2) * prefetcher.getChunkSize() <= 32 * 1024);
+    }
+
+    /**
+     * Test that the prefetcher and the streams of the files let go of the read ahead
+     * streams once their files have been written
+     */
+    @Test
+    public void testPrefetcherReleasesWrittenFiles() throws Exception {
+        List<SpeedFile> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] bytes = ("file " + i).getBytes("UTF-8");
+            files.add(new SpeedFile(new SpeedStream(new SourceInputStream(() -> new ByteArrayInputStream(bytes)),
+                    MessageDigest.getInstance("MD5")), "data/file" + i + ".txt", false));
+        }
+        Prefetcher prefetcher = new Prefetcher(files, 3, 1 << 20);
+        prefetcher.start();
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(Math.min(3, files.size() - i), prefetcher.getInFlightCount());
+            SpeedStream stream = files.get(i).getStream();
+            assertTrue(stream.getSource() instanceof PrefetchedInputStream);
+            assertEquals("file " + i, new String(IOUtils.toByteArray(stream), "UTF-8"));
+            stream.close();
+            assertFalse(stream.getSource() instanceof PrefetchedInputStream);
+            assertThrows(IOException.class, stream::read);
+            prefetcher.fileCompleted();
+        }
+        assertEquals(0, prefetcher.getInFlightCount());
+    }
+
+    /**
+     * Test that a PayloadSource is only opened when it's read
+     */
+    @Test
+    public void testSourceOpenedLazily() throws Exception {
+        int[] opened = new int[1];
+        PayloadSource source = () -> {
+            opened[0]++;
+            return new ByteArrayInputStream("lazy".getBytes("UTF-8"));
+        };
+        SourceInputStream stream = new SourceInputStream(source);
+        assertEquals(0, opened[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copy(stream, out);
+        assertEquals("lazy", out.toString("UTF-8"));
+        assertEquals(1, opened[0]);
+        stream.close();
+    }
+}
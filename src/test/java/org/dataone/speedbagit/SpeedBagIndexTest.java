@@ -0,0 +1,274 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpeedBagIndexTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Writes a bag with text files added in reverse order, a random file that's stored, a
+     * copy of the random file, a large text file and a file with a non-ASCII name
+     */
+    private Path writeBag(CompressionMethod method) throws Exception {
+        return writeBag(method, BagFormat.ZIP, null);
+    }
+
+    /**
+     * Writes the bag in a format, with a sidecar index when one is given
+     */
+    private Path writeBag(CompressionMethod method, BagFormat format, Path sidecar) throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+        bag.setCompressionMethod(method);
+        bag.setFormat(format);
+        bag.setDeduplication(true);
+        for (int i = 199; i >= 0; i--) {
+            byte[] bytes = ("row " + i + "\n").getBytes(StandardCharsets.UTF_8);
+            bag.addFile(() -> new ByteArrayInputStream(bytes), "data/file" + i + ".txt", false);
+        }
+        byte[] random = new byte[32 * 1024];
+        new Random(42).nextBytes(random);
+        bag.addFile(() -> new ByteArrayInputStream(random), "data/random.bin", false);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            large.append("line ").append(i).append('\n');
+        }
+        byte[] largeBytes = large.toString().getBytes(StandardCharsets.UTF_8);
+        bag.addFile(() -> new ByteArrayInputStream(largeBytes), "data/large.txt", false);
+        bag.addFile(() -> new ByteArrayInputStream(random), "data/copy/random.bin", false);
+        byte[] text = "café".getBytes(StandardCharsets.UTF_8);
+        bag.addFile(() -> new ByteArrayInputStream(text), "data/café.txt", false);
+        Path path = directory.resolve(method + "." + format.getExtension());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             OutputStream out = sidecar == null ? null : Files.newOutputStream(sidecar)) {
+            bag.setSidecarIndex(out);
+            bag.stream(channel);
+        }
+        return path;
+    }
+
+    /**
+     * Test that every entry of a bag is found and reads the same bytes as ZipFile does
+     */
+    @Test
+    public void testLookup() throws Exception {
+        Path path = writeBag(CompressionMethod.DEFLATE);
+        try (SpeedBagIndex index = SpeedBagIndex.open(path);
+             ZipFile zip = new ZipFile(path.toFile())) {
+            assertEquals(zip.size(), index.size());
+            for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+                ZipEntry expected = entries.nextElement();
+                SpeedBagIndex.Entry entry = index.find(expected.getName());
+                assertNotNull(entry, expected.getName());
+                assertEquals(expected.getName(), entry.getPath());
+                assertEquals(expected.getSize(), entry.getSize());
+                assertEquals(expected.getCrc(), entry.getCrc());
+                // The tag manifest isn't listed in a manifest to be checked against
+                boolean verify = !expected.getName().startsWith("tagmanifest-");
+                try (InputStream in = index.newInputStream(expected.getName(), verify)) {
+                    assertArrayEquals(IOUtils.toByteArray(zip.getInputStream(expected)),
+                            IOUtils.toByteArray(in), expected.getName());
+                }
+            }
+            assertNull(index.find("data/file200.txt"));
+            assertNull(index.find("data"));
+            assertThrows(NoSuchFileException.class, () -> index.newInputStream("data/missing.txt"));
+        }
+    }
+
+    /**
+     * Test that the files of a bag compressed with Zstandard, which ZipFile can't read, read
+     * the same as the files of a deflated bag
+     */
+    @Test
+    public void testZstd() throws Exception {
+        try (SpeedBagIndex deflated = SpeedBagIndex.open(writeBag(CompressionMethod.DEFLATE));
+             SpeedBagIndex zstd = SpeedBagIndex.open(writeBag(CompressionMethod.ZSTD))) {
+            assertEquals(deflated.size(), zstd.size());
+            for (String path : new String[]{"data/file7.txt", "data/random.bin", "data/large.txt",
+                    "data/café.txt", "manifest-sha256.txt"}) {
+                try (InputStream expected = deflated.newInputStream(path);
+                     InputStream in = zstd.newInputStream(path, true)) {
+                    assertArrayEquals(IOUtils.toByteArray(expected), IOUtils.toByteArray(in), path);
+                }
+            }
+            assertEquals(ZipStreamWriter.ZSTD, zstd.find("data/large.txt").getMethod());
+        }
+    }
+
+    /**
+     * Test that a file that was changed after the bag was written is read as it is, but fails
+     * when it's checked against the manifest
+     */
+    @Test
+    public void testVerify() throws Exception {
+        Path path = writeBag(CompressionMethod.DEFLATE);
+        byte[] original;
+        try (SpeedBagIndex index = SpeedBagIndex.open(path)) {
+            SpeedBagIndex.Entry entry = index.find("data/random.bin");
+            assertEquals(ZipStreamWriter.STORED, entry.getMethod());
+            try (InputStream in = index.newInputStream("data/random.bin")) {
+                original = IOUtils.toByteArray(in);
+            }
+            long data = entry.getOffset() + ZipStreamWriter.LOCAL_HEADER_SIZE + "data/random.bin".length();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{(byte) ~original[10]}), data + 10);
+            }
+        }
+        try (SpeedBagIndex index = SpeedBagIndex.open(path)) {
+            try (InputStream in = index.newInputStream("data/random.bin")) {
+                byte[] changed = IOUtils.toByteArray(in);
+                assertEquals((byte) ~original[10], changed[10]);
+            }
+            IOException e = assertThrows(IOException.class, () -> {
+                try (InputStream in = index.newInputStream("data/random.bin", true)) {
+                    IOUtils.toByteArray(in);
+                }
+            });
+            assertTrue(e.getMessage().contains("manifest"));
+            try (InputStream in = index.newInputStream("bag-info.txt", true)) {
+                IOUtils.toByteArray(in);
+            }
+        }
+    }
+
+    /**
+     * Test that the sidecar of a zip bag has the same entries as its central directory, with
+     * the offsets of their data, and that the sidecar of a tar bag reads its files, copies
+     * included
+     */
+    @Test
+    public void testSidecar() throws Exception {
+        Path zipSidecar = directory.resolve("zip.sbix");
+        Path zip = writeBag(CompressionMethod.DEFLATE, BagFormat.ZIP, zipSidecar);
+        try (SpeedBagIndex central = SpeedBagIndex.open(zip);
+             SpeedBagIndex index = SpeedBagIndex.open(zip, zipSidecar);
+             FileChannel channel = FileChannel.open(zip)) {
+            assertEquals(central.size(), index.size());
+            for (String path : new String[]{"bagit.txt", "bag-info.txt", "manifest-sha256.txt",
+                    "tagmanifest-sha256.txt", "data/file0.txt", "data/random.bin", "data/large.txt",
+                    "data/copy/random.bin", "data/café.txt"}) {
+                SpeedBagIndex.Entry expected = central.find(path);
+                SpeedBagIndex.Entry entry = index.find(path);
+                assertEquals(expected.getSize(), entry.getSize(), path);
+                assertEquals(expected.getCompressedSize(), entry.getCompressedSize(), path);
+                assertEquals(expected.getCrc(), entry.getCrc(), path);
+                assertEquals(expected.getMethod(), entry.getMethod(), path);
+                assertEquals(64, entry.getChecksum().length(), path);
+                try (InputStream in = index.newInputStream(path, true);
+                     InputStream original = central.newInputStream(path)) {
+                    assertArrayEquals(IOUtils.toByteArray(original), IOUtils.toByteArray(in), path);
+                }
+            }
+            // A stored file can be read straight from its range of the bag
+            SpeedBagIndex.Entry random = index.find("data/random.bin");
+            ByteBuffer range = ByteBuffer.allocate((int) random.getCompressedSize());
+            channel.read(range, random.getDataOffset());
+            try (InputStream in = index.newInputStream("data/random.bin")) {
+                assertArrayEquals(IOUtils.toByteArray(in), range.array());
+            }
+            assertEquals(index.find("data/random.bin").getDataOffset(),
+                    index.find("data/copy/random.bin").getDataOffset());
+        }
+
+        Path tarSidecar = directory.resolve("tar.sbix");
+        Path tar = writeBag(CompressionMethod.DEFLATE, BagFormat.TAR, tarSidecar);
+        try (SpeedBagIndex zipIndex = SpeedBagIndex.open(zip, zipSidecar);
+             SpeedBagIndex index = SpeedBagIndex.open(tar, tarSidecar)) {
+            assertEquals(zipIndex.size(), index.size());
+            for (String path : new String[]{"data/file0.txt", "data/random.bin", "data/copy/random.bin",
+                    "data/café.txt", "manifest-sha256.txt"}) {
+                SpeedBagIndex.Entry entry = index.find(path);
+                assertEquals(-1, entry.getCrc());
+                assertEquals(zipIndex.find(path).getChecksum(), entry.getChecksum());
+                try (InputStream in = index.newInputStream(path, true);
+                     InputStream expected = zipIndex.newInputStream(path)) {
+                    assertArrayEquals(IOUtils.toByteArray(expected), IOUtils.toByteArray(in), path);
+                }
+            }
+        }
+
+        try (SpeedBagIndex index = SpeedBagIndex.open(null, tarSidecar)) {
+            assertNotNull(index.find("data/random.bin"));
+            assertThrows(IllegalStateException.class, () -> index.newInputStream("data/random.bin"));
+        }
+        assertThrows(IOException.class, () -> SpeedBagIndex.open(zip, zip));
+        assertThrows(IllegalStateException.class,
+                () -> writeBag(CompressionMethod.DEFLATE, BagFormat.TAR_GZ, directory.resolve("gz.sbix")));
+    }
+
+    /**
+     * Test that zip files written by other tools, with a comment, can be indexed, and that
+     * other files can't
+     */
+    @Test
+    public void testOtherZips() throws Exception {
+        Path path = directory.resolve("other.zip");
+        try (OutputStream out = Files.newOutputStream(path);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.setComment("Not written by SpeedBagIt");
+            for (String name : new String[]{"b.txt", "a.txt", "c/d.txt"}) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(name.getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        try (SpeedBagIndex index = SpeedBagIndex.open(path)) {
+            assertEquals(3, index.size());
+            for (String name : new String[]{"a.txt", "b.txt", "c/d.txt"}) {
+                try (InputStream in = index.newInputStream(name)) {
+                    assertEquals(name, new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8));
+                }
+            }
+            assertThrows(IOException.class, () -> index.newInputStream("a.txt", true));
+        }
+
+        Path text = directory.resolve("text.zip");
+        Files.write(text, "Not a zip file".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> SpeedBagIndex.open(text));
+    }
+}
@@ -23,17 +23,24 @@
 package org.dataone.speedbagit;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
@@ -43,13 +50,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.junit.jupiter.api.io.TempDir;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 
 /**
@@ -245,6 +258,45 @@ public class SpeedBagItTest {
         }
     }
 
+    /**
+     * Test that the labels added to bag-info.txt are written after the generated ones,
+     * folded when they're long, and checksummed in the tag manifest
+     */
+    @Test
+    public void testBagInfo() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addBagInfo("Contact-Name", "Jane Doe");
+        bag.addBagInfo("Contact-Name", "Zoë Ångström");
+        bag.addBagInfo("Bagging-Date", "2020-01-01");
+        bag.addBagInfo("External-Description", "A description that is much too long to fit on a single line of bag-info.txt");
+        assertEquals(2, bag.getBagInfo().get("Contact-Name").size());
+        assertThrows(IllegalArgumentException.class, () -> bag.addBagInfo("Bad: Label", "value"));
+        assertThrows(IllegalArgumentException.class, () -> bag.addBagInfo(" Padded", "value"));
+        assertThrows(IllegalArgumentException.class, () -> bag.addBagInfo("Payload-Oxum", "1.1"));
+        assertThrows(IllegalArgumentException.class, () -> bag.setLineLength(-1));
+
+        String bagInfo = bag.generateBagInfoTxt("5.1", 5);
+        assertEquals("Payload-Oxum: 5.1\nBag-Size: 5 B\nContact-Name: Jane Doe\nContact-Name: Zoë Ångström\n"
+                + "Bagging-Date: 2020-01-01\nExternal-Description: A description that is much too long to fit on a single\n"
+                + " line of bag-info.txt\n", bagInfo);
+
+        bag.addFile(new ByteArrayInputStream("12345".getBytes(StandardCharsets.UTF_8)), "data/file.txt", false);
+        Path bagFilePath = Paths.get(directory.toString() + "bagInfo.zip");
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+            byte[] written = IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("bag-info.txt")));
+            assertEquals(bagInfo, new String(written, StandardCharsets.UTF_8));
+            String tagManifest = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("tagmanifest-md5.txt")));
+            assertTrue(tagManifest.contains(org.apache.commons.codec.digest.DigestUtils.md5Hex(written) + " bag-info.txt"));
+            byte[] manifest = IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("manifest-md5.txt")));
+            assertTrue(tagManifest.contains(org.apache.commons.codec.digest.DigestUtils.md5Hex(manifest) + " manifest-md5.txt"));
+            assertTrue(tagManifest.contains(" bagit.txt"));
+        }
+        Files.delete(bagFilePath);
+    }
+
     /**
      * Iterates over a bag, looking for bagit files that can be validated.
      *
@@ -470,5 +522,881 @@ public class SpeedBagItTest {
             bag.addFile(dataFile2Stream, "tag/data_file1.csv", true);
         });
     }
-}
 
+    /**
+     * Test that paths which only differ in case or Unicode normalization collide, unless
+     * the bag's paths aren't strict, and that tag files collide with the template's
+     */
+    @Test
+    void testFoldedPathCollisions() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "data/Observations.csv", false);
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "data/caf\u00e9.csv", false);
+        SpeedBagException e = assertThrows(SpeedBagException.class,
+                () -> bag.addFile(new ByteArrayInputStream(new byte[1]), "data/observations.CSV", false));
+        assertTrue(e.getMessage().contains("data/Observations.csv"));
+        assertThrows(SpeedBagException.class,
+                () -> bag.addFile(new ByteArrayInputStream(new byte[1]), "data/cafe\u0301.csv", false));
+        // A tag file doesn't collide with a data file
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "data/observations.csv", true);
+        bag.setStrictPaths(false);
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "data/observations.CSV", false);
+        assertEquals(3, bag.getDataFiles().size());
+
+        BagTemplate template = new BagTemplate.Builder(1.0, "MD5")
+                .addTagFile("metadata/eml.xml", new byte[1]).build();
+        SpeedBagIt templated = new SpeedBagIt(template);
+        assertThrows(SpeedBagException.class,
+                () -> templated.addFile(new ByteArrayInputStream(new byte[1]), "metadata/EML.xml", true));
+    }
+
+    /**
+     * Test that the manifest encodes line breaks and percent signs in paths, while the
+     * files keep their names in the bag, and that paths that leave the bag are refused
+     */
+    @Test
+    void testEncodedPaths() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        byte[] bytes = "1234".getBytes(StandardCharsets.UTF_8);
+        bag.addFile(new ByteArrayInputStream(bytes), "data/line\nbreak.csv", false);
+        bag.addFile(new ByteArrayInputStream(bytes), "data/100%.csv", false);
+        bag.addFile(new ByteArrayInputStream(bytes), "data/caf\u00e9\r.csv", false);
+        assertThrows(SpeedBagException.class,
+                () -> bag.addFile(new ByteArrayInputStream(bytes), "data/../bagit.txt", false));
+        assertThrows(SpeedBagException.class,
+                () -> bag.addFile(new ByteArrayInputStream(bytes), "/data/file.csv", false));
+
+        Path bagFilePath = Paths.get(directory.toString() + "encodedPaths.zip");
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        Map<String, byte[]> files = ZipStreamWriterTest.extract(bagFilePath, new HashMap<>());
+        assertArrayEquals(bytes, files.get("data/line\nbreak.csv"));
+        String md5 = DigestUtils.md5Hex(bytes);
+        String manifest = new String(files.get("manifest-md5.txt"), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains(md5 + " data/line%0Abreak.csv"));
+        assertTrue(manifest.contains(md5 + " data/100%25.csv"));
+        assertTrue(manifest.contains(md5 + " data/caf\u00e9%0D.csv"));
+    }
+
+    /**
+     * Test that an unknown checksum algorithm fails when a file is added, even though the
+     * file's checksummer is only created when it's streamed
+     */
+    @Test
+    void testLazyChecksummer() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD-13");
+        assertThrows(NoSuchAlgorithmException.class,
+                () -> bag.addFile(new ByteArrayInputStream(new byte[1]), "data/file.txt", false));
+
+        SpeedBagIt blake3 = new SpeedBagIt(1.0, Checksummers.BLAKE3);
+        blake3.addFile(new ByteArrayInputStream(new byte[1]), "data/sequential.txt", false);
+        blake3.setParallelHashing(true);
+        blake3.addFile(new ByteArrayInputStream(new byte[1]), "data/parallel.txt", false);
+        assertTrue(blake3.getDataFiles().get("data/parallel.txt").getStream().getChecksummer()
+                instanceof ParallelBlake3Checksummer);
+        assertFalse(blake3.getDataFiles().get("data/sequential.txt").getStream().getChecksummer()
+                instanceof ParallelBlake3Checksummer);
+    }
+
+    /**
+     * Tests that a BagStreamListener is told about every file in the bag, and that the
+     * bag totals match the files.
+     */
+    @Test
+    public void testStreamListener() throws Exception {
+        SpeedBagIt bag = getStockBag();
+        List<FileMetrics> files = new ArrayList<>();
+        BagMetrics[] finished = new BagMetrics[1];
+        int[] queueDepth = {-1};
+        CountDownLatch done = new CountDownLatch(1);
+        bag.addStreamListener(new BagStreamListener() {
+            @Override
+            public void onBagStarted(int payloadFileCount, int depth) {
+                queueDepth[0] = depth;
+            }
+
+            @Override
+            public void onFileStreamed(FileMetrics metrics) {
+                files.add(metrics);
+            }
+
+            @Override
+            public void onBagFinished(BagMetrics metrics) {
+                finished[0] = metrics;
+                done.countDown();
+            }
+        });
+
+        ByteArrayOutputStream bagBytes = new ByteArrayOutputStream();
+        IOUtils.copy(bag.stream(), bagBytes);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // 2 data files, 2 tag files, bagit.txt, bag-info.txt and the two manifests
+        assertEquals(8, files.size());
+        long dataBytes = 0;
+        long totalBytes = 0;
+        for (FileMetrics file : files) {
+            assertTrue(file.getCompressedBytes() > 0);
+            assertTrue(file.getHashNanos() >= 0);
+            assertTrue(file.getDeflateNanos() >= 0);
+            totalBytes += file.getBytes();
+            if (!file.isTagFile()) {
+                dataBytes += file.getBytes();
+            }
+        }
+        assertEquals("1234, 9876, 3845".length() + "trees, cars, bridges".length(), dataBytes);
+        assertEquals(files.size(), finished[0].getFileCount());
+        assertEquals(totalBytes, finished[0].getUncompressedBytes());
+        assertEquals(bagBytes.size(), finished[0].getCompressedBytes());
+        assertTrue(finished[0].getElapsedNanos() > 0);
+        assertEquals(queueDepth[0], finished[0].getQueueDepth());
+    }
+
+    /**
+     * Test that a bag that fails while it streams ends its stream with the failure, rather
+     * than the reader waiting on the pipe
+     */
+    @Test
+    public void testStreamFailure() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.addFile(new InputStream() {
+            private int remaining = 100000;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    throw new IOException("The source went away");
+                }
+                remaining--;
+                return 'a';
+            }
+        }, "data/broken.txt", false);
+        InputStream bagStream = bag.stream();
+        IOException e = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                () -> assertThrows(IOException.class, () -> IOUtils.consume(bagStream)));
+        Throwable cause = e.getCause();
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        assertEquals("The source went away", cause.getMessage());
+    }
+
+    /**
+     * Tests that progress is reported by bytes, and that the last report covers the
+     * whole payload when the sizes of the files were given.
+     */
+    @Test
+    public void testProgressListener() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        int fileSize = 1000;
+        for (int i = 0; i < 4; i++) {
+            bag.addFile(new ByteArrayInputStream(new byte[fileSize]), "data/file" + i, fileSize, false);
+        }
+        List<BagProgress> reports = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        bag.setProgressListener(progress -> {
+            reports.add(progress);
+            if (progress.getFilesCompleted() == progress.getTotalFiles()) {
+                done.countDown();
+            }
+        }, 1500);
+
+        IOUtils.copy(bag.stream(), new ByteArrayOutputStream());
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // One report every 1500 bytes, plus the final one
+        assertTrue(reports.size() >= 3);
+        BagProgress last = reports.get(reports.size() - 1);
+        assertEquals(4, last.getTotalFiles());
+        assertEquals(4 * fileSize, last.getTotalBytes());
+        assertEquals(4 * fileSize, last.getBytesProcessed());
+        assertEquals(1.0, last.getFractionComplete());
+        assertEquals(0, last.getEtaMillis());
+        assertEquals(last.getBytesProcessed(), bag.getProgress().getBytesProcessed());
+        for (int i = 1; i < reports.size(); i++) {
+            assertTrue(reports.get(i).getBytesProcessed() >= reports.get(i - 1).getBytesProcessed());
+        }
+    }
+
+    /**
+     * Tests that a bag can be checksummed with an algorithm that isn't a MessageDigest
+     */
+    @Test
+    public void testBlake3Bag() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "BLAKE3");
+        byte[] data = "12345, 345rfdew, 45tgfdr".getBytes(StandardCharsets.UTF_8);
+        bag.addFile(new ByteArrayInputStream(data), "data/data_file1.csv", false);
+
+        Path bagFilePath = Files.createFile(Paths.get(directory.toString() + "blake3Bag.zip"));
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+            this.validateBagItFiles(zipFile, 1.0, 1, "BLAKE3");
+            String manifest = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("manifest-blake3.txt")));
+            assertEquals("bd4065b0e0469c4a5c127ce99f034c5f8940fa9bde85598ac0eebd5865243c7e data/data_file1.csv",
+                    manifest.trim());
+        }
+        Files.delete(bagFilePath);
+    }
+
+    /**
+     * Tests that hashing BLAKE3 files in parallel writes the same manifest as hashing them in order
+     */
+    @Test
+    public void testParallelHashing() throws Exception {
+        byte[] data = new byte[(3 << 20) + 17];
+        new java.util.Random(7).nextBytes(data);
+        String[] manifests = new String[2];
+        for (int i = 0; i < 2; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "BLAKE3");
+            bag.setParallelHashing(i == 1);
+            bag.addFile(new ByteArrayInputStream(data), "data/large.bin", false);
+            SpeedFile file = bag.getDataFiles().get("data/large.bin");
+            assertEquals(i == 1, file.getStream().getChecksummer() instanceof ParallelBlake3Checksummer);
+
+            Path bagFilePath = Files.createFile(Paths.get(directory.toString() + "parallelBag" + i + ".zip"));
+            try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                IOUtils.copy(bag.stream(), fos);
+            }
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                manifests[i] = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("manifest-blake3.txt")));
+            }
+            Files.delete(bagFilePath);
+        }
+        assertEquals(manifests[0], manifests[1]);
+    }
+
+    /**
+     * Test that reading files ahead doesn't change the bag, with both PayloadSources
+     * and streams that were already open
+     */
+    @Test
+    public void testPrefetch() throws Exception {
+        Path sourceFile = Files.createFile(Paths.get(directory.toString() + "prefetchSource.bin"));
+        byte[] large = new byte[300000];
+        new java.util.Random(11).nextBytes(large);
+        Files.write(sourceFile, large);
+
+        String[] manifests = new String[2];
+        for (int i = 0; i < 2; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+            if (i == 1) {
+                bag.setPrefetch(2, 64 * 1024);
+            }
+            bag.addFile(PayloadSource.of(sourceFile), "data/source.bin", false);
+            for (int j = 0; j < 5; j++) {
+                String content = "file " + j;
+                // Sources that are slow to open
+                bag.addFile(() -> {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+                }, "data/lazy" + j + ".txt", false);
+                bag.addFile(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                        "data/open" + j + ".txt", false);
+            }
+
+            Path bagFilePath = Files.createFile(Paths.get(directory.toString() + "prefetchBag" + i + ".zip"));
+            try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                IOUtils.copy(bag.stream(), fos);
+            }
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                manifests[i] = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("manifest-sha256.txt")));
+                assertArrayEquals(large, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/source.bin"))));
+                assertEquals("file 3", convertStreamToString(zipFile.getInputStream(zipFile.getEntry("data/lazy3.txt"))).trim());
+            }
+            Files.delete(bagFilePath);
+        }
+        assertEquals(manifests[0], manifests[1]);
+        assertThrows(IllegalArgumentException.class, () -> new SpeedBagIt(1.0, "MD5").setPrefetch(4, 1024));
+    }
+
+    /**
+     * Test that a bag streamed to a channel through direct buffers is the same bag as
+     * one streamed from stream(), and that the buffers go back to the pool
+     */
+    @Test
+    public void testStreamToChannel() throws Exception {
+        Path sourceFile = Files.createFile(Paths.get(directory.toString() + "channelSource.bin"));
+        byte[] large = new byte[300000];
+        new java.util.Random(13).nextBytes(large);
+        Files.write(sourceFile, large);
+        byte[] text = new byte[150000];
+        java.util.Arrays.fill(text, (byte) 'a');
+
+        String[] manifests = new String[2];
+        for (int i = 0; i < 2; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+            bag.addFile(PayloadSource.of(sourceFile), "data/source.bin", false);
+            bag.addFile(new ByteArrayInputStream(text), "data/text.txt", false);
+            bag.addFile(new ByteArrayInputStream("small".getBytes(StandardCharsets.UTF_8)), "data/small.txt", false);
+            bag.addFile(new ByteArrayInputStream("tag".getBytes(StandardCharsets.UTF_8)), "metadata/tag.txt", true);
+
+            Path bagFilePath = Paths.get(directory.toString() + "channelBag" + i + ".zip");
+            if (i == 0) {
+                try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                    IOUtils.copy(bag.stream(), fos);
+                }
+            } else {
+                try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(bagFilePath,
+                        java.nio.file.StandardOpenOption.CREATE_NEW, java.nio.file.StandardOpenOption.WRITE)) {
+                    bag.stream(channel);
+                    assertTrue(channel.isOpen());
+                }
+            }
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                manifests[i] = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("manifest-sha256.txt")));
+                assertArrayEquals(large, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/source.bin"))));
+                assertArrayEquals(text, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/text.txt"))));
+                assertEquals("tag", convertStreamToString(zipFile.getInputStream(zipFile.getEntry("metadata/tag.txt"))).trim());
+            }
+            Files.delete(bagFilePath);
+        }
+        assertEquals(manifests[0], manifests[1]);
+        assertEquals(0, SpeedBagIt.getDirectBufferPool().getInUseCount());
+    }
+
+    /**
+     * Test that a bag is still written to a channel when the direct buffers run out
+     */
+    @Test
+    public void testStreamToChannelExhausted() throws Exception {
+        DirectBufferPool pool = SpeedBagIt.getDirectBufferPool();
+        DirectBufferPool small = new DirectBufferPool(SpeedBagIt.DEFAULT_BUFFER_SIZE, 1);
+        SpeedBagIt.setDirectBufferPool(small);
+        try {
+            // The second buffer can't be had, so the bag gives back the first one
+            SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+            bag.addFile(new ByteArrayInputStream("1234, 9876".getBytes(StandardCharsets.UTF_8)), "data/file.csv", false);
+            ByteArrayOutputStream bagBytes = new ByteArrayOutputStream();
+            bag.stream(java.nio.channels.Channels.newChannel(bagBytes));
+            assertEquals(1, small.getExhaustedCount());
+            assertEquals(0, small.getInUseCount());
+
+            Path bagFilePath = Paths.get(directory.toString() + "exhaustedBag.zip");
+            Files.write(bagFilePath, bagBytes.toByteArray());
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                assertEquals("1234, 9876", convertStreamToString(zipFile.getInputStream(zipFile.getEntry("data/file.csv"))).trim());
+            }
+            Files.delete(bagFilePath);
+        } finally {
+            SpeedBagIt.setDirectBufferPool(pool);
+        }
+    }
+
+    /**
+     * Test that bags are still valid when their compression level is fixed or adjusted
+     * while they stream
+     */
+    @Test
+    public void testCompressionLevel() throws Exception {
+        byte[] text = new byte[500000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 17);
+        }
+        long[] sizes = new long[3];
+        for (int i = 0; i < 3; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+            if (i == 0) {
+                bag.setCompressionLevel(0);
+            } else if (i == 2) {
+                bag.setAdaptiveCompression(true);
+            }
+            bag.addFile(new ByteArrayInputStream(text), "data/text.txt", false);
+            bag.addFile(new ByteArrayInputStream(text, 0, 5000), "data/small.txt", false);
+            Path bagFilePath = Paths.get(directory.toString() + "levelBag" + i + ".zip");
+            try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                IOUtils.copy(bag.stream(), fos);
+            }
+            sizes[i] = Files.size(bagFilePath);
+            try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+                assertArrayEquals(text, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/text.txt"))));
+                assertEquals(5000, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/small.txt"))).length);
+            }
+            Files.delete(bagFilePath);
+        }
+        assertTrue(sizes[0] > text.length);
+        assertTrue(sizes[1] < text.length / 10);
+        assertThrows(IllegalArgumentException.class, () -> new SpeedBagIt(1.0, "MD5").setCompressionLevel(10));
+    }
+
+    /**
+     * Test that the tag files of a bag whose level is adapted are written at the bag's own
+     * level, not at the level that the payload ended on
+     */
+    @Test
+    public void testAdaptiveTagFiles() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.setCompressionLevel(0);
+        bag.setAdaptiveCompression(true);
+        Random random = new Random(7);
+        byte[] text = new byte[4 << 20];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(8));
+        }
+        bag.addFile(new ByteArrayInputStream(text), "data/text.txt", false);
+        for (int i = 0; i < 300; i++) {
+            bag.addFile(new ByteArrayInputStream(new byte[]{(byte) i}), "data/small/" + i + ".bin", false);
+        }
+        // A client that blocks on every write, so that the level goes up while the payload streams
+        Path bagFilePath = Paths.get(directory.toString() + "adaptiveBag.zip");
+        try (FileChannel file = FileChannel.open(bagFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            bag.stream(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return file.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return file.isOpen();
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+            assertTrue(zipFile.getEntry("data/text.txt").getCompressedSize() < text.length * 3 / 4);
+            ZipEntry manifest = zipFile.getEntry("manifest-md5.txt");
+            assertTrue(manifest.getCompressedSize() >= manifest.getSize());
+        }
+    }
+
+    /**
+     * Test that the data files of a bag can be compressed with Zstandard while its tag
+     * files stay deflated, and that the manifest matches what's extracted
+     */
+    @Test
+    public void testZstdBag() throws Exception {
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("1234, 9876, 3845\n".charAt(i % 17));
+        }
+        SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+        assertTrue(CompressionMethod.ZSTD.isAvailable());
+        bag.setCompressionMethod(CompressionMethod.ZSTD);
+        bag.addFile(new ByteArrayInputStream(text), "data/large.csv", false);
+        bag.addFile(new ByteArrayInputStream(text, 0, 2000), "data/small.csv", false);
+        bag.addFile(new ByteArrayInputStream(text, 0, 2000), "data/deflated.csv", false);
+        bag.getDataFiles().get("data/deflated.csv").setCompressionMethod(CompressionMethod.DEFLATE);
+
+        Path bagFilePath = Paths.get(directory.toString() + "zstdBag.zip");
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        Map<String, Integer> methods = new HashMap<>();
+        Map<String, byte[]> entries = ZipStreamWriterTest.extract(bagFilePath, methods);
+        assertEquals(ZipStreamWriter.ZSTD, (int) methods.get("data/large.csv"));
+        assertEquals(ZipStreamWriter.ZSTD, (int) methods.get("data/small.csv"));
+        assertEquals(ZipStreamWriter.DEFLATED, (int) methods.get("data/deflated.csv"));
+        // The tag files stay deflated so that any zip reader can open them
+        assertNotEquals(ZipStreamWriter.ZSTD, (int) methods.get("bagit.txt"));
+        assertEquals(ZipStreamWriter.DEFLATED, (int) methods.get("manifest-sha256.txt"));
+        assertArrayEquals(text, entries.get("data/large.csv"));
+        String manifest = new String(entries.get("manifest-sha256.txt"), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains(org.apache.commons.codec.digest.DigestUtils.sha256Hex(text) + " data/large.csv"));
+        Files.delete(bagFilePath);
+    }
+
+    /**
+     * Test that a bag can be written as a tar file and a gzipped tar file, both through
+     * stream() and to a channel, with the same manifest as the zip file
+     */
+    @Test
+    public void testTarBag() throws Exception {
+        Path sourceFile = Files.createFile(Paths.get(directory.toString() + "tarSource.bin"));
+        byte[] large = new byte[300000];
+        new java.util.Random(17).nextBytes(large);
+        Files.write(sourceFile, large);
+        byte[] text = new byte[150000];
+        java.util.Arrays.fill(text, (byte) 'a');
+
+        Map<String, byte[]> zipped = null;
+        for (BagFormat format : BagFormat.values()) {
+            for (boolean channel : new boolean[]{false, true}) {
+                SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+                bag.setFormat(format);
+                // The source's size is known, the text's isn't
+                bag.addFile(PayloadSource.of(sourceFile), "data/source.bin", false);
+                bag.addFile(new ByteArrayInputStream(text), "data/text.txt", false);
+                bag.addFile(new ByteArrayInputStream("tag".getBytes(StandardCharsets.UTF_8)), "metadata/tag.txt", true);
+
+                Path bagFilePath = Paths.get(directory.toString() + "tarBag." + format.getExtension());
+                if (channel) {
+                    try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(bagFilePath,
+                            java.nio.file.StandardOpenOption.CREATE_NEW, java.nio.file.StandardOpenOption.WRITE)) {
+                        bag.stream(out);
+                    }
+                } else {
+                    try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                        IOUtils.copy(bag.stream(), fos);
+                    }
+                }
+                Map<String, byte[]> files;
+                if (format == BagFormat.ZIP) {
+                    files = ZipStreamWriterTest.extract(bagFilePath, new HashMap<>());
+                    zipped = files;
+                } else {
+                    InputStream in = Files.newInputStream(bagFilePath);
+                    if (format == BagFormat.TAR_GZ) {
+                        in = new java.util.zip.GZIPInputStream(in);
+                    }
+                    try {
+                        files = TarStreamWriterTest.untar(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                assertArrayEquals(large, files.get("data/source.bin"));
+                assertArrayEquals(text, files.get("data/text.txt"));
+                assertEquals(zipped.keySet(), files.keySet());
+                assertArrayEquals(zipped.get("manifest-sha256.txt"), files.get("manifest-sha256.txt"));
+                Files.delete(bagFilePath);
+            }
+        }
+
+        // A tar header holds the size the file was added with, so a file of another size fails
+        SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+        bag.setFormat(BagFormat.TAR);
+        bag.addFile(new ByteArrayInputStream(large), "data/source.bin", large.length - 1, false);
+        java.nio.channels.WritableByteChannel sink = java.nio.channels.Channels.newChannel(new ByteArrayOutputStream());
+        assertThrows(IOException.class, () -> bag.stream(sink));
+        assertEquals(0, SpeedBagIt.getDirectBufferPool().getInUseCount());
+    }
+
+    /**
+     * Test that a bag can be written to a directory, with its files copied or linked, and
+     * that the directory holds the same files as the zip file
+     */
+    @Test
+    public void testWriteTo() throws Exception {
+        Path sourceFile = Files.createFile(Paths.get(directory.toString() + "dirSource.bin"));
+        byte[] large = new byte[300000];
+        new java.util.Random(19).nextBytes(large);
+        Files.write(sourceFile, large);
+
+        Map<String, byte[]> zipped = null;
+        for (int i = 0; i < 3; i++) {
+            SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+            bag.addFile(PayloadSource.of(sourceFile), "data/source.bin", false);
+            for (int j = 0; j < 20; j++) {
+                bag.addFile(new ByteArrayInputStream(("file " + j).getBytes(StandardCharsets.UTF_8)),
+                        "data/files/" + j + ".txt", false);
+            }
+            bag.addFile(new ByteArrayInputStream("tag".getBytes(StandardCharsets.UTF_8)), "metadata/tag.txt", true);
+            if (i == 0) {
+                Path bagFilePath = Paths.get(directory.toString() + "dirBag.zip");
+                try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                    IOUtils.copy(bag.stream(), fos);
+                }
+                zipped = ZipStreamWriterTest.extract(bagFilePath, new HashMap<>());
+                Files.delete(bagFilePath);
+                continue;
+            }
+            Path bagDirectory = Paths.get(directory.toString() + "dirBag" + i);
+            bag.setLinkPayload(i == 2);
+            bag.setCopyThreads(3);
+            bag.writeTo(bagDirectory);
+            for (Map.Entry<String, byte[]> file : zipped.entrySet()) {
+                assertArrayEquals(file.getValue(), Files.readAllBytes(bagDirectory.resolve(file.getKey())), file.getKey());
+            }
+            assertEquals(i == 2, Files.isSameFile(sourceFile, bagDirectory.resolve("data/source.bin")));
+            // The files that are there aren't overwritten
+            SpeedBagIt again = new SpeedBagIt(1.0, "SHA-256");
+            again.addFile(new ByteArrayInputStream(large), "data/source.bin", false);
+            assertThrows(java.nio.file.FileAlreadyExistsException.class, () -> again.writeTo(bagDirectory));
+        }
+        assertEquals(0, SpeedBagIt.getDirectBufferPool().getInUseCount());
+    }
+
+    /**
+     * Creates the bag of testResume, whose files after the crash point fail to be read, and
+     * whose files before the resume point fail if they're read again
+     */
+    private SpeedBagIt resumableBag(BagFormat format, int crashAt, int resumeAfter) throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        bag.setFormat(format);
+        bag.setCheckpointInterval(3);
+        for (int i = 0; i < 20; i++) {
+            byte[] bytes = new byte[i % 4 == 0 ? 100000 : 1000];
+            java.util.Arrays.fill(bytes, (byte) ('a' + i));
+            boolean crash = i == crashAt;
+            boolean done = i < resumeAfter;
+            bag.addFile(new ByteArrayInputStream(bytes) {
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (crash || done) {
+                        throw new IllegalStateException(crash ? "Crashed" : "Read again after resuming");
+                    }
+                    return super.read(b, off, len);
+                }
+            }, "data/file" + i + ".txt", bytes.length, false);
+        }
+        return bag;
+    }
+
+    /**
+     * Test that a bag written to a file resumes from its journal's last checkpoint after a
+     * crash, without reading the files before it again, and ends up with the same files
+     */
+    @Test
+    public void testResume() throws Exception {
+        for (BagFormat format : new BagFormat[]{BagFormat.ZIP, BagFormat.TAR}) {
+            Path complete = Paths.get(directory.toString() + "complete." + format.getExtension());
+            resumableBag(format, -1, 0).stream(complete, Paths.get(directory.toString() + "complete.journal"));
+            assertFalse(Files.exists(Paths.get(directory.toString() + "complete.journal")));
+
+            Path bagFile = Paths.get(directory.toString() + "resumed." + format.getExtension());
+            Path journal = Paths.get(directory.toString() + "resumed.journal");
+            // Dies while writing the 11th file, after the checkpoint of the first 9
+            assertThrows(IllegalStateException.class, () -> resumableBag(format, 10, 0).stream(bagFile, journal));
+            assertTrue(Files.exists(journal));
+            // A torn checkpoint at the end of the journal is ignored
+            Files.write(journal, new byte[]{0, 0, 1, 0, 42}, java.nio.file.StandardOpenOption.APPEND);
+            resumableBag(format, -1, 9).stream(bagFile, journal);
+            assertFalse(Files.exists(journal));
+
+            Map<String, byte[]> expected;
+            Map<String, byte[]> resumed;
+            if (format == BagFormat.ZIP) {
+                expected = ZipStreamWriterTest.extract(complete, new HashMap<>());
+                resumed = ZipStreamWriterTest.extract(bagFile, new HashMap<>());
+            } else {
+                try (InputStream in = Files.newInputStream(complete)) {
+                    expected = TarStreamWriterTest.untar(in);
+                }
+                try (InputStream in = Files.newInputStream(bagFile)) {
+                    resumed = TarStreamWriterTest.untar(in);
+                }
+            }
+            assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(resumed.keySet()));
+            for (String path : expected.keySet()) {
+                assertArrayEquals(expected.get(path), resumed.get(path), path);
+            }
+            Files.delete(complete);
+            Files.delete(bagFile);
+        }
+
+        // A journal only resumes a bag with the same files
+        Path bagFile = Paths.get(directory.toString() + "mismatch.zip");
+        Path journal = Paths.get(directory.toString() + "mismatch.journal");
+        assertThrows(IllegalStateException.class, () -> resumableBag(BagFormat.ZIP, 5, 0).stream(bagFile, journal));
+        SpeedBagIt other = new SpeedBagIt(1.0, "MD5");
+        other.addFile(new ByteArrayInputStream(new byte[10]), "data/other.txt", false);
+        assertThrows(IOException.class, () -> other.stream(bagFile, journal));
+        SpeedBagIt sha = new SpeedBagIt(1.0, "SHA-256");
+        assertThrows(IOException.class, () -> sha.stream(bagFile, journal));
+    }
+
+    /**
+     * Creates the bag of testDeduplication: a large file and its copy, which has the same
+     * content key and fails if it's read when the bag is deduplicated, and two small files
+     * with the same bytes
+     */
+    private SpeedBagIt duplicatedBag(byte[] large, byte[] small, boolean deduplicate) throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+        bag.setDeduplication(deduplicate);
+        bag.addFile(new ByteArrayInputStream(large), "data/large.bin", large.length, false);
+        bag.addFile(new ByteArrayInputStream(large) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (deduplicate) {
+                    throw new IllegalStateException("Duplicate was read");
+                }
+                return super.read(b, off, len);
+            }
+        }, "data/copy/large.bin", large.length, false);
+        bag.getDataFiles().get("data/large.bin").setContentKey("large");
+        bag.getDataFiles().get("data/copy/large.bin").setContentKey("large");
+        bag.addFile(new ByteArrayInputStream(small), "data/small.txt", false);
+        bag.addFile(new ByteArrayInputStream(small), "data/copy/small.txt", false);
+        bag.addFile(new ByteArrayInputStream("other".getBytes(StandardCharsets.UTF_8)), "data/other.txt", false);
+        return bag;
+    }
+
+    /**
+     * Test that the files of a deduplicated bag are written once, as zip entries that share
+     * their data, tar hard links or linked files, and that every path is still in the bag
+     * and its manifest
+     */
+    @Test
+    public void testDeduplication() throws Exception {
+        byte[] large = new byte[SpeedBagIt.DEFAULT_BUFFER_SIZE * 3];
+        new java.util.Random(23).nextBytes(large);
+        byte[] small = new byte[5000];
+        new java.util.Random(29).nextBytes(small);
+
+        Map<String, byte[]> zipped = null;
+        for (BagFormat format : new BagFormat[]{BagFormat.ZIP, BagFormat.TAR}) {
+            Path plainPath = Paths.get(directory.toString() + "plain." + format.getExtension());
+            SpeedBagIt plain = duplicatedBag(large, small, false);
+            plain.setFormat(format);
+            try (FileOutputStream fos = new FileOutputStream(plainPath.toString())) {
+                IOUtils.copy(plain.stream(), fos);
+            }
+            SpeedBagIt bag = duplicatedBag(large, small, true);
+            bag.setFormat(format);
+            Path bagFilePath = Paths.get(directory.toString() + "dedup." + format.getExtension());
+            try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+                IOUtils.copy(bag.stream(), fos);
+            }
+            if (zipped == null) {
+                zipped = ZipStreamWriterTest.extract(plainPath, new HashMap<>());
+            }
+            Map<String, byte[]> files;
+            if (format == BagFormat.ZIP) {
+                files = ZipStreamWriterTest.extract(bagFilePath, new HashMap<>());
+            } else {
+                try (InputStream in = Files.newInputStream(bagFilePath)) {
+                    files = TarStreamWriterTest.untar(in);
+                }
+            }
+            assertEquals(zipped.keySet(), files.keySet());
+            assertArrayEquals(large, files.get("data/copy/large.bin"));
+            assertArrayEquals(small, files.get("data/copy/small.txt"));
+            String manifest = new String(files.get("manifest-sha256.txt"), StandardCharsets.UTF_8);
+            assertTrue(manifest.contains(DigestUtils.sha256Hex(large) + " data/copy/large.bin"));
+            assertTrue(manifest.contains(DigestUtils.sha256Hex(small) + " data/copy/small.txt"));
+            // Neither copy is in the file again
+            assertTrue(Files.size(bagFilePath) + large.length + small.length <= Files.size(plainPath));
+        }
+
+        // A directory links the files with the same content key
+        Path bagDirectory = Paths.get(directory.toString() + "dedupDir");
+        SpeedBagIt bag = duplicatedBag(large, small, true);
+        bag.writeTo(bagDirectory);
+        assertTrue(Files.isSameFile(bagDirectory.resolve("data/large.bin"), bagDirectory.resolve("data/copy/large.bin")));
+        assertArrayEquals(small, Files.readAllBytes(bagDirectory.resolve("data/copy/small.txt")));
+        String manifest = new String(Files.readAllBytes(bagDirectory.resolve("manifest-sha256.txt")), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains(DigestUtils.sha256Hex(large) + " data/copy/large.bin"));
+    }
+
+    /**
+     * Test that the buffer size can be changed within its limits, and that files larger
+     * than the default buffer are still bagged correctly with it
+     */
+    @Test
+    public void testBufferSize() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        assertEquals(SpeedBagIt.DEFAULT_BUFFER_SIZE, bag.getBufferSize());
+        assertThrows(IllegalArgumentException.class, () -> bag.setBufferSize(1024));
+        assertThrows(IllegalArgumentException.class, () -> bag.setBufferSize(SpeedBagIt.MAX_BUFFER_SIZE + 1));
+        bag.setBufferSize(SpeedBagIt.MAX_BUFFER_SIZE);
+
+        byte[] data = new byte[200000];
+        new java.util.Random(5).nextBytes(data);
+        bag.addFile(new ByteArrayInputStream(data), "data/medium.bin", false);
+        bag.addFile(new ByteArrayInputStream(data), "data/copy.bin", false);
+        String expected = org.apache.commons.codec.digest.DigestUtils.md5Hex(data);
+        String manifest;
+        Path bagFilePath = Files.createFile(Paths.get(directory.toString() + "bufferBag.zip"));
+        try (FileOutputStream fos = new FileOutputStream(bagFilePath.toString())) {
+            IOUtils.copy(bag.stream(), fos);
+        }
+        try (ZipFile zipFile = new ZipFile(bagFilePath.toString())) {
+            manifest = convertStreamToString(zipFile.getInputStream(zipFile.getEntry("manifest-md5.txt")));
+            assertArrayEquals(data, IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/copy.bin"))));
+        }
+        Files.delete(bagFilePath);
+        // Files with the same content each get a line
+        assertTrue(manifest.contains(expected + " data/medium.bin"));
+        assertTrue(manifest.contains(expected + " data/copy.bin"));
+    }
+
+    /**
+     * Test that streaming a bag allocates next to nothing for each byte of payload.
+     * The allocations are measured on the thread that streams the bag, from the
+     * listener callbacks that run on it.
+     */
+    @Test
+    public void testNoGarbagePerByte() throws Exception {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        long payload = 64L << 20;
+        for (int i = 0; i < 2; i++) {
+            // The first bag warms up the code and fills the pools
+            long[] allocated = new long[2];
+            SpeedBagIt bag = new SpeedBagIt(1.0, "SHA-256");
+            bag.addFile(new InputStream() {
+                long remaining = payload;
+
+                @Override
+                public int read() {
+                    return remaining-- > 0 ? (int) (remaining & 0x7f) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    len = (int) Math.min(len, remaining);
+                    for (int j = off; j < off + len; j++) {
+                        b[j] = (byte) (j & 0x7f);
+                    }
+                    remaining -= len;
+                    return len;
+                }
+            }, "data/large.bin", false);
+            bag.addStreamListener(new BagStreamListener() {
+                @Override
+                public void onBagStarted(int payloadFileCount, int queueDepth) {
+                    allocated[0] = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+
+                @Override
+                public void onFileStreamed(FileMetrics metrics) {
+                    if (!metrics.isTagFile()) {
+                        allocated[1] = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    }
+                }
+            });
+            IOUtils.consume(bag.stream());
+            if (i == 1) {
+                long bytes = allocated[1] - allocated[0];
+                assertTrue(bytes < payload / 1000, "Allocated " + bytes + " bytes for the payload");
+            }
+        }
+    }
+
+    /**
+     * Test that files can't be added at the paths of the tag files that the bag generates
+     */
+    @Test
+    void testGeneratedTagFilePaths() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        for (String path : new String[]{"bagit.txt", "bag-info.txt", "manifest-md5.txt", "tagmanifest-sha256.txt"}) {
+            assertThrows(SpeedBagException.class,
+                    () -> bag.addFile(new ByteArrayInputStream(new byte[1]), path, true));
+            assertThrows(SpeedBagException.class,
+                    () -> bag.addFile(new ByteArrayInputStream(new byte[1]), path, false));
+        }
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "data/bagit.txt", false);
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "metadata/manifest-md5.txt", true);
+        bag.addFile(new ByteArrayInputStream(new byte[1]), "manifest-notes.csv", true);
+
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(bag.stream())) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                names.add(entry.getName());
+            }
+        }
+        assertEquals(1, names.stream().filter("bagit.txt"::equals).count());
+        assertTrue(names.contains("metadata/manifest-md5.txt"));
+    }
+}
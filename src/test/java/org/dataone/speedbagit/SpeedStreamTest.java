@@ -24,6 +24,7 @@ package org.dataone.speedbagit;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -104,4 +105,19 @@ public class SpeedStreamTest {
         // Check that the SpeedStream size matches the size of the result
         assertEquals(result.toString().length(), testData.length());
     }
+
+    /**
+     * Tests that the checksum is computed once and kept, so that it can be read more than once
+     */
+    @Test
+    public void testDigestKept() throws NoSuchAlgorithmException, IOException {
+        String expectedSHA1 = "2fe482afad4e73addf3cb3823ff9b83144763bf2";
+        InputStream testDataStream = new ByteArrayInputStream("12345, 345rfdew, 45tgfdr".getBytes());
+        SpeedStream speedStream = new SpeedStream(testDataStream, MessageDigest.getInstance("SHA-1"));
+        while (speedStream.read(new byte[8]) != -1) {
+        }
+        assertSame(speedStream.getDigest(), speedStream.getDigest());
+        assertEquals(expectedSHA1, speedStream.getChecksum());
+        assertEquals(expectedSHA1, speedStream.getChecksum());
+    }
 }
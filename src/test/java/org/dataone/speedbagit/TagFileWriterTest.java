@@ -0,0 +1,98 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TagFileWriterTest {
+
+    /**
+     * Test that short lines are written as they are
+     */
+    @Test
+    public void testLines() {
+        TagFileWriter writer = new TagFileWriter(79);
+        writer.writeTag("BagIt-Version", "1.0").writeTag("Tag-File-Character-Encoding", "UTF-8");
+        assertEquals("BagIt-Version: 1.0\nTag-File-Character-Encoding: UTF-8\n", writer.toString());
+        assertEquals(writer.toString().length(), writer.size());
+    }
+
+    /**
+     * Test that long values are folded at spaces, and that words longer than a line aren't broken
+     */
+    @Test
+    public void testFolding() {
+        TagFileWriter writer = new TagFileWriter(20);
+        writer.writeTag("Label", "one two three four five six");
+        writer.writeTag("Url", "https://example.org/a/very/long/path");
+        assertEquals("Label: one two three\n four five six\nUrl: https://example.org/a/very/long/path\n",
+                writer.toString());
+
+        TagFileWriter unfolded = new TagFileWriter(0);
+        unfolded.writeTag("Label", "one two three four five six");
+        assertEquals("Label: one two three four five six\n", unfolded.toString());
+    }
+
+    /**
+     * Test that line breaks in a value continue the value rather than starting a new label
+     */
+    @Test
+    public void testLineBreaks() {
+        TagFileWriter writer = new TagFileWriter(0);
+        writer.writeTag("Description", "first\nsecond\r\nthird\rfourth");
+        assertEquals("Description: first\n second\n third\n fourth\n", writer.toString());
+    }
+
+    /**
+     * Test that non-ASCII text, including characters outside of the BMP, is encoded as UTF-8
+     */
+    @Test
+    public void testUtf8() {
+        String value = "Zoë Ångström 北極 🧊";
+        TagFileWriter writer = new TagFileWriter(0);
+        writer.writeTag("Contact-Name", value);
+        byte[] expected = ("Contact-Name: " + value + "\n").getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, writer.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], writer.getBytes()[i]);
+        }
+    }
+
+    /**
+     * Test that the buffer grows for files with many lines
+     */
+    @Test
+    public void testGrowth() {
+        TagFileWriter writer = new TagFileWriter(79);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            writer.writeTag("External-Identifier", "https://orcid.org/0000-0002-1825-" + i);
+            expected.append("External-Identifier: https://orcid.org/0000-0002-1825-").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), writer.toString());
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TarStreamWriterTest {
+
+    @TempDir
+    Path directory;
+
+    private static byte[] text(int size) {
+        byte[] data = new byte[size];
+        String line = "Observation,Temperature,Salinity\n";
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) line.charAt(i % line.length());
+        }
+        return data;
+    }
+
+    /**
+     * Reads the regular files of a tar file, taking their paths and sizes from the pax
+     * headers when there are any
+     *
+     * @param tar The tar file
+     * @return The bytes of each file, in the order they were written
+     */
+    static Map<String, byte[]> untar(InputStream tar) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        byte[] header = new byte[TarStreamWriter.BLOCK_SIZE];
+        Map<String, String> pax = new LinkedHashMap<>();
+        while (true) {
+            assertEquals(header.length, IOUtils.read(tar, header));
+            if (header[0] == 0) {
+                // The first of the two empty blocks at the end
+                assertEquals(header.length, IOUtils.read(tar, header));
+                assertEquals(0, header[0]);
+                assertEquals(-1, tar.read());
+                return files;
+            }
+            long checksum = 0;
+            for (int i = 0; i < header.length; i++) {
+                checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+            }
+            assertEquals(checksum, Long.parseLong(field(header, 148, 7), 8));
+            assertEquals("ustar", field(header, 257, 6));
+            long size = Long.parseLong(field(header, 124, 12), 8);
+            String name = field(header, 0, 100);
+            String prefix = field(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            if (pax.containsKey("size")) {
+                size = Long.parseLong(pax.get("size"));
+            }
+            byte[] data = new byte[(int) size];
+            assertEquals(data.length, IOUtils.read(tar, data));
+            IOUtils.skipFully(tar, -size & (TarStreamWriter.BLOCK_SIZE - 1));
+            if (header[156] == 'x') {
+                int position = 0;
+                while (position < data.length) {
+                    int space = position;
+                    while (data[space] != ' ') {
+                        space++;
+                    }
+                    int length = Integer.parseInt(new String(data, position, space - position, StandardCharsets.US_ASCII));
+                    assertEquals('\n', data[position + length - 1]);
+                    String keyValue = new String(data, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+                    pax.put(keyValue.substring(0, keyValue.indexOf('=')), keyValue.substring(keyValue.indexOf('=') + 1));
+                    position += length;
+                }
+                continue;
+            }
+            if (header[156] == TarStreamWriter.HARD_LINK) {
+                // A link has the bytes of the file it links to
+                String link = pax.containsKey("linkpath") ? pax.get("linkpath") : field(header, 157, 100);
+                assertEquals(0, data.length);
+                assertTrue(files.containsKey(link));
+                data = files.get(link);
+            } else {
+                assertEquals('0', header[156]);
+            }
+            files.put(pax.containsKey("path") ? pax.get("path") : name, data);
+            pax.clear();
+        }
+    }
+
+    private static String field(byte[] header, int off, int length) {
+        int end = off;
+        while (end < off + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, off, end - off, StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Test that whole entries, entries streamed with their size and entries streamed
+     * without it can be read back
+     */
+    @Test
+    public void testEntries() throws Exception {
+        byte[] small = text(700);
+        byte[] large = text(300000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarStreamWriter writer = new TarStreamWriter(out, false, -1, 4096)) {
+            writer.writeEntry("bagit.txt", small, 0, small.length);
+            writer.writeEntry("data/buffer.csv", ByteBuffer.wrap(large, 0, 1024));
+            writer.putNextEntry("data/sized.csv", large.length);
+            for (int off = 0; off < large.length; off += 4096) {
+                writer.write(large, off, Math.min(4096, large.length - off));
+            }
+            writer.putNextEntry("data/unsized.csv");
+            for (int off = 0; off < large.length; off += 4096) {
+                writer.write(ByteBuffer.wrap(large, off, Math.min(4096, large.length - off)));
+            }
+            writer.writeEntry("data/empty.csv", new byte[0], 0, 0);
+            assertEquals(5, writer.getEntryCount());
+        }
+        byte[] tar = out.toByteArray();
+        assertEquals(0, tar.length % TarStreamWriter.BLOCK_SIZE);
+        Map<String, byte[]> files = untar(new ByteArrayInputStream(tar));
+        assertEquals(5, files.size());
+        assertArrayEquals(small, files.get("bagit.txt"));
+        assertArrayEquals(Arrays.copyOf(large, 1024), files.get("data/buffer.csv"));
+        assertArrayEquals(large, files.get("data/sized.csv"));
+        assertArrayEquals(large, files.get("data/unsized.csv"));
+        assertEquals(0, files.get("data/empty.csv").length);
+    }
+
+    /**
+     * Test that long paths are split between the ustar fields when they can be, and get
+     * a pax header when they can't
+     */
+    @Test
+    public void testLongPaths() throws Exception {
+        StringBuilder directories = new StringBuilder("data/");
+        while (directories.length() < 120) {
+            directories.append("observations/");
+        }
+        String split = directories + "2020.csv";
+        String tooLong = directories.toString() + directories + directories + "2020.csv";
+        String unicode = "data/température.csv";
+        assertEquals(-1, TarStreamWriter.splitPath("data/2020.csv".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(TarStreamWriter.splitPath(split.getBytes(StandardCharsets.UTF_8)) > 0);
+        assertEquals(-2, TarStreamWriter.splitPath(tooLong.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-2, TarStreamWriter.splitPath(unicode.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(-2, TarStreamWriter.splitPath("data/line\nbreak.csv".getBytes(StandardCharsets.UTF_8)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarStreamWriter writer = new TarStreamWriter(out, false, -1, 4096)) {
+            for (String path : new String[]{split, tooLong, unicode}) {
+                byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                writer.writeEntry(path, bytes, 0, bytes.length);
+            }
+        }
+        Map<String, byte[]> files = untar(new ByteArrayInputStream(out.toByteArray()));
+        for (String path : new String[]{split, tooLong, unicode}) {
+            assertEquals(path, new String(files.get(path), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Test that a duplicate is a hard link to its original, with a pax linkpath when the
+     * original's path doesn't fit the link field
+     */
+    @Test
+    public void testDuplicates() throws Exception {
+        byte[] large = text(10000);
+        String longPath = "data/" + String.join("/", Collections.nCopies(30, "observations")) + ".csv";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarStreamWriter writer = new TarStreamWriter(out, false, -1, 4096)) {
+            writer.writeEntry("data/original.csv", large, 0, large.length);
+            writer.writeEntry(longPath, large, 0, 100);
+            writer.writeDuplicate("data/copy.csv", "data/original.csv");
+            writer.writeDuplicate("data/copy2.csv", longPath);
+            assertEquals(4, writer.getEntryCount());
+        }
+        Map<String, byte[]> files = untar(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(4, files.size());
+        assertArrayEquals(large, files.get("data/copy.csv"));
+        assertArrayEquals(Arrays.copyOf(large, 100), files.get("data/copy2.csv"));
+    }
+
+    /**
+     * Test that pax records count the digits of their own length
+     */
+    @Test
+    public void testPaxRecord() {
+        for (int length = 1; length < 1200; length += 7) {
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                value.append('a');
+            }
+            StringBuilder pax = new StringBuilder();
+            TarStreamWriter.paxRecord(pax, "path", value.toString());
+            String record = pax.toString();
+            assertEquals(Integer.parseInt(record.substring(0, record.indexOf(' '))), record.length());
+        }
+    }
+
+    /**
+     * Test that a streamed entry fails when it isn't the size that it was started with
+     */
+    @Test
+    public void testWrongSize() throws Exception {
+        TarStreamWriter writer = new TarStreamWriter(new ByteArrayOutputStream(), false, -1, 4096);
+        writer.putNextEntry("data/sized.csv", 100);
+        writer.write(text(99), 0, 99);
+        assertThrows(IOException.class, writer::closeEntry);
+        writer.release();
+    }
+
+    /**
+     * Test that direct buffers are written to a channel, and that a gzipped tar file can be
+     * written to a channel without closing it
+     */
+    @Test
+    public void testChannel() throws Exception {
+        byte[] large = text(100000);
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        for (boolean gzip : new boolean[]{false, true}) {
+            Path tar = directory.resolve(gzip ? "bag.tar.gz" : "bag.tar");
+            try (FileChannel channel = FileChannel.open(tar, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                TarStreamWriter writer = new TarStreamWriter(channel, gzip, -1, 4096);
+                direct.clear();
+                direct.put(large).flip();
+                writer.writeEntry("data/whole.csv", direct);
+                direct.clear();
+                direct.put(large).flip();
+                writer.putNextEntry("data/streamed.csv", large.length);
+                writer.write(direct);
+                writer.close();
+                assertTrue(channel.isOpen());
+            }
+            InputStream in = Files.newInputStream(tar);
+            if (gzip) {
+                in = new GZIPInputStream(in);
+            }
+            Map<String, byte[]> files = untar(in);
+            assertArrayEquals(large, files.get("data/whole.csv"));
+            assertArrayEquals(large, files.get("data/streamed.csv"));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class Xxh64ChecksummerTest {
+
+    static String xxh64(byte[] input) {
+        Checksummer checksummer = new Xxh64Checksummer();
+        checksummer.update(input, 0, input.length);
+        return Hex.encodeHexString(checksummer.digest());
+    }
+
+    /**
+     * Test inputs around the stripe boundaries against known digests
+     */
+    @Test
+    public void testVectors() {
+        assertEquals("ef46db3751d8e999", xxh64(Blake3ChecksummerTest.testInput(0)));
+        assertEquals("e934a84adb052768", xxh64(Blake3ChecksummerTest.testInput(1)));
+        assertEquals("d66738f081c25cf4", xxh64(Blake3ChecksummerTest.testInput(1023)));
+        assertEquals("138e26c65048ce29", xxh64(Blake3ChecksummerTest.testInput(1024)));
+        assertEquals("8c8e0218a8ee0fee", xxh64(Blake3ChecksummerTest.testInput(65537)));
+        assertEquals("16b5f2723d9d80bb", xxh64("12345, 345rfdew, 45tgfdr".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Test that the digest doesn't depend on how the input is split up
+     */
+    @Test
+    public void testIncrementalUpdates() {
+        byte[] input = Blake3ChecksummerTest.testInput(4099);
+        Checksummer checksummer = new Xxh64Checksummer();
+        for (int off = 0; off < input.length; off += 37) {
+            int len = Math.min(37, input.length - off);
+            checksummer.update(input[off]);
+            checksummer.update(input, off + 1, len - 1);
+        }
+        assertEquals(xxh64(input), Hex.encodeHexString(checksummer.digest()));
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZipStreamWriterTest {
+
+    @TempDir
+    Path directory;
+
+    private static byte[] text(int size) {
+        byte[] data = new byte[size];
+        String line = "Observation,Temperature,Salinity\n";
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) line.charAt(i % line.length());
+        }
+        return data;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Test that whole and streamed entries can be read back with both ZipFile and ZipInputStream
+     */
+    @Test
+    public void testEntries() throws Exception {
+        byte[][] contents = {new byte[0], text(10), text(5000), random(5000), random(300000), text(300000)};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipStreamWriter writer = new ZipStreamWriter(bytes);
+        try {
+            for (int i = 0; i < contents.length; i++) {
+                writer.writeEntry("whole/" + i, contents[i], 0, contents[i].length);
+                writer.putNextEntry("streamed/" + i);
+                // Write in uneven pieces
+                for (int off = 0; off < contents[i].length; off += 7777) {
+                    writer.write(contents[i], off, Math.min(7777, contents[i].length - off));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        assertEquals(2 * contents.length, writer.getEntryCount());
+        assertEquals(bytes.size(), writer.getBytesWritten());
+
+        Path zip = directory.resolve("entries.zip");
+        Files.write(zip, bytes.toByteArray());
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            assertEquals(2 * contents.length, zipFile.size());
+            for (int i = 0; i < contents.length; i++) {
+                for (String prefix : new String[]{"whole/", "streamed/"}) {
+                    ZipEntry entry = zipFile.getEntry(prefix + i);
+                    CRC32 crc = new CRC32();
+                    crc.update(contents[i]);
+                    assertEquals(crc.getValue(), entry.getCrc());
+                    assertEquals(contents[i].length, entry.getSize());
+                    assertArrayEquals(contents[i], IOUtils.toByteArray(zipFile.getInputStream(entry)));
+                }
+            }
+            // Small random entries are stored, compressible ones are deflated
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("whole/3").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("whole/2").getMethod());
+            assertTrue(zipFile.getEntry("whole/2").getCompressedSize() < 5000);
+        }
+
+        int count = 0;
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                int i = Integer.parseInt(entry.getName().substring(entry.getName().indexOf('/') + 1));
+                assertArrayEquals(contents[i], IOUtils.toByteArray(in), entry.getName());
+                count++;
+            }
+        }
+        assertEquals(2 * contents.length, count);
+    }
+
+    /**
+     * Test that names are written in UTF-8
+     */
+    @Test
+    public void testUnicodeNames() throws Exception {
+        String name = "data/données/观测.csv";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipStreamWriter writer = new ZipStreamWriter(bytes)) {
+            writer.writeEntry(name, text(100), 0, 100);
+        }
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()), StandardCharsets.ISO_8859_1)) {
+            // The language encoding flag makes readers use UTF-8 whatever their default
+            assertEquals(name, in.getNextEntry().getName());
+        }
+    }
+
+    /**
+     * Test that a zip file with more entries than fit in the end record gets ZIP64 records
+     */
+    @Test
+    public void testManyEntries() throws Exception {
+        int entries = 70000;
+        Path zip = directory.resolve("many.zip");
+        try (ZipStreamWriter writer = new ZipStreamWriter(Files.newOutputStream(zip))) {
+            byte[] data = {1, 2, 3};
+            for (int i = 0; i < entries; i++) {
+                writer.writeEntry("data/" + i, data, 0, data.length);
+            }
+        }
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            assertEquals(entries, zipFile.size());
+            assertArrayEquals(new byte[]{1, 2, 3},
+                    IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry("data/69999"))));
+        }
+    }
+
+    /**
+     * Test the guess of whether bytes are worth deflating
+     */
+    @Test
+    public void testIsCompressible() {
+        ZipStreamWriter writer = new ZipStreamWriter(new ByteArrayOutputStream());
+        assertFalse(writer.isCompressible(text(10), 0, 10));
+        for (int size : new int[]{64, 128, 1000, 100000}) {
+            assertTrue(writer.isCompressible(text(size), 0, size), "Text of " + size);
+            assertFalse(writer.isCompressible(random(size), 0, size), "Random bytes of " + size);
+        }
+        writer.release();
+    }
+
+    /**
+     * Test that the level can change between entries and in the middle of a streamed entry,
+     * and that level 0 stores whole entries
+     */
+    @Test
+    public void testLevelChange() throws Exception {
+        byte[] data = text(300000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipStreamWriter writer = new ZipStreamWriter(bytes)) {
+            writer.putNextEntry("data/streamed.txt");
+            writer.write(data, 0, 100000);
+            writer.setLevel(0);
+            writer.write(data, 100000, 100000);
+            writer.setLevel(9);
+            writer.write(data, 200000, 100000);
+            writer.closeEntry();
+            writer.setLevel(0);
+            writer.writeEntry("data/stored.txt", data, 0, 1000);
+            assertEquals(0, writer.getLevel());
+        }
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals("data/streamed.txt", in.getNextEntry().getName());
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+            ZipEntry stored = in.getNextEntry();
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals(1000, IOUtils.toByteArray(in).length);
+        }
+    }
+
+    /**
+     * Extracts the entries of a zip file, including the Zstandard ones that ZipFile refuses
+     * to open. The central directory is read by hand and each entry is found through its
+     * local header.
+     *
+     * @param zip The zip file, without ZIP64 records or an archive comment
+     * @param methods Receives the compression method of each entry
+     * @return The bytes of each entry, in central directory order
+     */
+    static Map<String, byte[]> extract(Path zip, Map<String, Integer> methods) throws IOException {
+        byte[] bytes = Files.readAllBytes(zip);
+        ByteBuffer file = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int end = bytes.length - 22;
+        assertEquals(ZipStreamWriter.END_SIGNATURE, file.getInt(end));
+        int count = file.getShort(end + 10) & 0xFFFF;
+        int position = file.getInt(end + 16);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            assertEquals(ZipStreamWriter.CENTRAL_HEADER_SIGNATURE, file.getInt(position));
+            int method = file.getShort(position + 10);
+            long crc = file.getInt(position + 16) & 0xFFFFFFFFL;
+            int compressedSize = file.getInt(position + 20);
+            int size = file.getInt(position + 24);
+            int nameLength = file.getShort(position + 28);
+            int offset = file.getInt(position + 42);
+            String name = new String(bytes, position + ZipStreamWriter.CENTRAL_HEADER_SIZE, nameLength,
+                    StandardCharsets.UTF_8);
+            position += ZipStreamWriter.CENTRAL_HEADER_SIZE + nameLength + file.getShort(position + 30)
+                    + file.getShort(position + 32);
+
+            assertEquals(ZipStreamWriter.LOCAL_HEADER_SIGNATURE, file.getInt(offset));
+            assertEquals(method, file.getShort(offset + 8));
+            int start = offset + ZipStreamWriter.LOCAL_HEADER_SIZE + file.getShort(offset + 26)
+                    + file.getShort(offset + 28);
+            InputStream data = new ByteArrayInputStream(bytes, start, compressedSize);
+            if (method == ZipStreamWriter.ZSTD) {
+                data = new ZstdInputStream(data);
+            } else if (method == ZipStreamWriter.DEFLATED) {
+                data = new InflaterInputStream(data, new Inflater(true));
+            }
+            byte[] content = IOUtils.toByteArray(data);
+            assertEquals(size, content.length);
+            CRC32 checksum = new CRC32();
+            checksum.update(content, 0, content.length);
+            assertEquals(crc, checksum.getValue());
+            entries.put(name, content);
+            methods.put(name, method);
+        }
+        return entries;
+    }
+
+    /**
+     * Test that a duplicate's central directory entry points at the data of a remembered
+     * entry, and that one that wasn't remembered fails
+     */
+    @Test
+    public void testDuplicates() throws Exception {
+        byte[] large = text(100000);
+        Path zip = directory.resolve("duplicates.zip");
+        try (ZipStreamWriter writer = new ZipStreamWriter(Files.newOutputStream(zip))) {
+            writer.writeEntry("data/whole.csv", large, 0, large.length);
+            writer.remember("data/whole.csv");
+            writer.putNextEntry("data/streamed.csv");
+            writer.write(large, 0, large.length);
+            writer.closeEntry();
+            writer.remember("data/streamed.csv");
+            long written = writer.getBytesWritten();
+            writer.writeDuplicate("data/whole-copy.csv", "data/whole.csv");
+            writer.writeDuplicate("data/streamed-copy.csv", "data/streamed.csv");
+            assertEquals(written, writer.getBytesWritten());
+            assertEquals(4, writer.getEntryCount());
+            assertThrows(IOException.class, () -> writer.writeDuplicate("data/other.csv", "data/missing.csv"));
+        }
+        Map<String, Integer> methods = new HashMap<>();
+        Map<String, byte[]> entries = extract(zip, methods);
+        assertEquals(4, entries.size());
+        assertArrayEquals(large, entries.get("data/whole-copy.csv"));
+        assertArrayEquals(large, entries.get("data/streamed-copy.csv"));
+        assertEquals(methods.get("data/whole.csv"), methods.get("data/whole-copy.csv"));
+    }
+
+    /**
+     * Test that entries can be compressed with Zstandard, both whole and streamed
+     */
+    @Test
+    public void testZstd() throws Exception {
+        byte[] small = text(5000);
+        byte[] large = text(500000);
+        byte[] noise = random(3000);
+        Path zip = directory.resolve("zstd.zip");
+        try (ZipStreamWriter writer = new ZipStreamWriter(Files.newOutputStream(zip))) {
+            writer.setMethod(ZipStreamWriter.ZSTD);
+            writer.writeEntry("data/small.txt", small, 0, small.length);
+            writer.writeEntry("data/noise.bin", noise, 0, noise.length);
+            writer.putNextEntry("data/large.txt");
+            for (int off = 0; off < large.length; off += 65536) {
+                writer.write(large, off, Math.min(65536, large.length - off));
+            }
+            writer.closeEntry();
+            writer.setMethod(ZipStreamWriter.DEFLATED);
+            writer.writeEntry("bagit.txt", small, 0, 100);
+        }
+        Map<String, Integer> methods = new HashMap<>();
+        Map<String, byte[]> entries = extract(zip, methods);
+        assertEquals(ZipStreamWriter.ZSTD, (int) methods.get("data/small.txt"));
+        assertEquals(ZipStreamWriter.ZSTD, (int) methods.get("data/large.txt"));
+        assertEquals(ZipStreamWriter.STORED, (int) methods.get("data/noise.bin"));
+        assertEquals(ZipStreamWriter.DEFLATED, (int) methods.get("bagit.txt"));
+        assertArrayEquals(small, entries.get("data/small.txt"));
+        assertArrayEquals(noise, entries.get("data/noise.bin"));
+        assertArrayEquals(large, entries.get("data/large.txt"));
+        assertEquals(100, entries.get("bagit.txt").length);
+        assertThrows(IllegalArgumentException.class, () -> new ZipStreamWriter(new ByteArrayOutputStream()).setMethod(12));
+    }
+
+    /**
+     * Test that nothing can be written once the zip file is finished
+     */
+    @Test
+    public void testFinished() throws Exception {
+        ZipStreamWriter writer = new ZipStreamWriter(new ByteArrayOutputStream());
+        assertThrows(IOException.class, () -> writer.write(1));
+        writer.finish();
+        assertThrows(IOException.class, () -> writer.putNextEntry("data/late.txt"));
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.io.IOUtils;
+import org.dataone.speedbagit.BagMetrics;
+import org.dataone.speedbagit.BagStreamListener;
+import org.dataone.speedbagit.SpeedBagIt;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JfrBagStreamListenerTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Test that a recording contains an event for every file and one for the bag
+     */
+    @Test
+    public void testEventsRecorded() throws Exception {
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        byte[] data = "1234, 9876, 3845".getBytes(StandardCharsets.UTF_8);
+        bag.addFile(new ByteArrayInputStream(data), "data/data_file1.csv", false);
+        bag.addStreamListener(new JfrBagStreamListener());
+        CountDownLatch done = new CountDownLatch(1);
+        bag.addStreamListener(new BagStreamListener() {
+            @Override
+            public void onBagFinished(BagMetrics metrics) {
+                done.countDown();
+            }
+        });
+
+        Path recordingFile = directory.resolve("bag.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(FileStreamedEvent.class);
+            recording.enable(BagStreamedEvent.class);
+            recording.start();
+            IOUtils.copy(bag.stream(), new ByteArrayOutputStream());
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+        long files = events.stream()
+                .filter(e -> e.getEventType().getName().equals("org.dataone.speedbagit.FileStreamed")).count();
+        long bags = events.stream()
+                .filter(e -> e.getEventType().getName().equals("org.dataone.speedbagit.BagStreamed")).count();
+        assertEquals(5, files);
+        assertEquals(1, bags);
+        Files.delete(recordingFile);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.speedbagit.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.IOUtils;
+import org.dataone.speedbagit.BagMetrics;
+import org.dataone.speedbagit.BagStreamListener;
+import org.dataone.speedbagit.SpeedBagIt;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MicrometerBagStreamListenerTest {
+
+    /**
+     * Test that streaming a bag records its files and bytes in the registry
+     */
+    @Test
+    public void testMetersRecorded() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        SpeedBagIt bag = new SpeedBagIt(1.0, "MD5");
+        byte[] data = "1234, 9876, 3845".getBytes(StandardCharsets.UTF_8);
+        bag.addFile(new ByteArrayInputStream(data), "data/data_file1.csv", false);
+        MicrometerBagStreamListener listener = new MicrometerBagStreamListener(registry);
+        bag.addStreamListener(listener);
+        CountDownLatch done = new CountDownLatch(1);
+        bag.addStreamListener(new BagStreamListener() {
+            @Override
+            public void onBagFinished(BagMetrics metrics) {
+                done.countDown();
+            }
+        });
+
+        ByteArrayOutputStream bagBytes = new ByteArrayOutputStream();
+        IOUtils.copy(bag.stream(), bagBytes);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The data file, bagit.txt, bag-info.txt, and the two manifests
+        assertEquals(5, registry.get("speedbagit.file.hash").timer().count());
+        assertEquals(1, registry.get("speedbagit.bag").timer().count());
+        assertEquals(bagBytes.size(), registry.get("speedbagit.bytes.compressed").counter().count());
+        assertTrue(registry.get("speedbagit.bytes.uncompressed").counter().count() >= data.length);
+        assertNotNull(registry.get("speedbagit.executor.queue").gauge());
+        // The depth is the one the bag started with, which a BagScheduler reports for its bags
+        listener.onBagStarted(1, 7);
+        assertEquals(7, registry.get("speedbagit.executor.queue").gauge().value());
+        assertNotNull(registry.get("speedbagit.directbuffers.used").gauge());
+        assertNotNull(registry.get("speedbagit.directbuffers.allocated").gauge());
+    }
+}